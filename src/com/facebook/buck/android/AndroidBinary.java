@@ -812,7 +812,13 @@ public class AndroidBinary extends AbstractBuildRule implements
           dexSplitMode,
           dexSplitMode.getPrimaryDexScenarioFile().transform(getResolver().getPathFunction()),
           dexSplitMode.getPrimaryDexClassesFile().transform(getResolver().getPathFunction()),
-          zipSplitReportDir);
+          zipSplitReportDir,
+          classNamesToHashesSupplier,
+          // Not cleaned between builds, so that unchanged classes needn't be parsed again.
+          getBinPath("__%s_dalvik_stats__.bin"),
+          dexSplitMode.isIncrementalSplitDex() ?
+              Optional.of(getBinPath("__%s_secondary_zip_layout__.txt")) :
+              Optional.<Path>absent());
       steps.add(splitZipCommand);
 
       // Add the secondary dex directory that has yet to be created, but will be by the
@@ -861,10 +867,14 @@ public class AndroidBinary extends AbstractBuildRule implements
     // assumption that --num-threads specifies the threading of build rule execution and does not
     // directly apply to the internal threading/parallelization details of various build commands
     // being executed.  For example, aapt is internally threaded by default when preprocessing
-    // images.
-    EnumSet<DxStep.Option> dxOptions = PackageType.RELEASE.equals(packageType)
-        ? EnumSet.noneOf(DxStep.Option.class)
-        : EnumSet.of(DxStep.Option.NO_OPTIMIZE);
+    // images.  dx runs in-process, though, where InProcessDxLimiter holds the number of concurrent
+    // invocations to --num-threads and their memory use to what the heap can bear.
+    EnumSet<DxStep.Option> dxOptions = EnumSet.of(
+        DxStep.Option.USE_CUSTOM_DX_IF_AVAILABLE,
+        DxStep.Option.RUN_IN_PROCESS);
+    if (!PackageType.RELEASE.equals(packageType)) {
+      dxOptions.add(DxStep.Option.NO_OPTIMIZE);
+    }
     SmartDexingStep smartDexingCommand = new SmartDexingStep(
         primaryDexPath,
         primaryInputsToDex,
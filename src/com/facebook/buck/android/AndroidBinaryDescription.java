@@ -209,7 +209,8 @@ public class AndroidBinaryDescription implements Description<AndroidBinaryDescri
         args.primaryDexPatterns.or(ImmutableList.<String>of()),
         args.primaryDexClassesFile,
         args.primaryDexScenarioFile,
-        args.primaryDexScenarioOverflowAllowed.or(false));
+        args.primaryDexScenarioOverflowAllowed.or(false),
+        args.incrementalSplitDex.or(false));
   }
 
   private PackageType getPackageType(Arg args) {
@@ -235,6 +236,7 @@ public class AndroidBinaryDescription implements Description<AndroidBinaryDescri
     @Hint(isDep = false) public Optional<Set<BuildTarget>> noDx;
     public Optional<Boolean> useSplitDex;
     public Optional<Boolean> useLinearAllocSplitDex;
+    public Optional<Boolean> incrementalSplitDex;
     public Optional<Boolean> minimizePrimaryDexSize;
     public Optional<Boolean> disablePreDex;
     public Optional<Boolean> exopackage;
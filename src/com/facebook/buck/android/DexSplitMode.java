@@ -86,6 +86,14 @@ class DexSplitMode {
    */
   private final boolean isPrimaryDexScenarioOverflowAllowed;
 
+  /**
+   * Boolean identifying whether classes should be kept in the secondary dex they were put in by
+   * the previous build of the same rule, so that only the secondary dexes whose classes changed
+   * have to be dexed again.  This makes the assignment of classes to secondary dexes depend on the
+   * history of the build, so it is off by default.
+   */
+  private final boolean isIncrementalSplitDex;
+
   /**
    *
    * @param primaryDexPatterns Set of substrings that, when matched, will cause individual input
@@ -113,6 +121,36 @@ class DexSplitMode {
       Optional<SourcePath> primaryDexClassesFile,
       Optional<SourcePath> primaryDexScenarioFile,
       boolean isPrimaryDexScenarioOverflowAllowed) {
+    this(
+        shouldSplitDex,
+        dexSplitStrategy,
+        dexStore,
+        useLinearAllocSplitDex,
+        linearAllocHardLimit,
+        primaryDexPatterns,
+        primaryDexClassesFile,
+        primaryDexScenarioFile,
+        isPrimaryDexScenarioOverflowAllowed,
+        /* isIncrementalSplitDex */ false);
+  }
+
+  /**
+   * @param isIncrementalSplitDex If true, classes are put back in the secondary dex they were in
+   *     after the previous build, as long as it has room for them.
+   * @see #DexSplitMode(boolean, ZipSplitter.DexSplitStrategy, DexStore, boolean, long, Collection,
+   *     Optional, Optional, boolean)
+   */
+  public DexSplitMode(
+      boolean shouldSplitDex,
+      ZipSplitter.DexSplitStrategy dexSplitStrategy,
+      DexStore dexStore,
+      boolean useLinearAllocSplitDex,
+      long linearAllocHardLimit,
+      Collection<String> primaryDexPatterns,
+      Optional<SourcePath> primaryDexClassesFile,
+      Optional<SourcePath> primaryDexScenarioFile,
+      boolean isPrimaryDexScenarioOverflowAllowed,
+      boolean isIncrementalSplitDex) {
     this.shouldSplitDex = shouldSplitDex;
     this.dexSplitStrategy = dexSplitStrategy;
     this.dexStore = dexStore;
@@ -122,6 +160,7 @@ class DexSplitMode {
     this.primaryDexClassesFile = primaryDexClassesFile;
     this.primaryDexScenarioFile = primaryDexScenarioFile;
     this.isPrimaryDexScenarioOverflowAllowed = isPrimaryDexScenarioOverflowAllowed;
+    this.isIncrementalSplitDex = isIncrementalSplitDex;
   }
 
   public DexStore getDexStore() {
@@ -161,6 +200,10 @@ class DexSplitMode {
     return isPrimaryDexScenarioOverflowAllowed;
   }
 
+  public boolean isIncrementalSplitDex() {
+    return isIncrementalSplitDex;
+  }
+
   /**
    * @return All {@link SourcePath}s referenced by this object, for use in
    *     {@link com.facebook.buck.rules.AbstractBuildRule#getInputsToCompareToOutput()}.
@@ -182,6 +225,10 @@ class DexSplitMode {
     builder.set(
         prefix + ".isPrimaryDexScenarioOverflowAllowed",
         isPrimaryDexScenarioOverflowAllowed);
+    if (isIncrementalSplitDex) {
+      // Only added when set so that the keys of existing rules don't change.
+      builder.set(prefix + ".isIncrementalSplitDex", isIncrementalSplitDex);
+    }
     return builder;
   }
 }
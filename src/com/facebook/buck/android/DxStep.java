@@ -30,7 +30,11 @@ import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Sets;
 
 import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.EnumSet;
 import java.util.Set;
 
@@ -169,7 +173,7 @@ public class DxStep extends ShellStep {
     }
   }
 
-  private int executeInProcess(ExecutionContext context) {
+  private int executeInProcess(ExecutionContext context) throws InterruptedException {
     ImmutableList<String> argv = getShellCommandInternal(context);
 
     // The first arguments should be ".../dx --dex" ("...\dx --dex on Windows).  Strip them off
@@ -178,7 +182,11 @@ public class DxStep extends ShellStep {
     Preconditions.checkState(argv.get(1).equals("--dex"));
     ImmutableList<String> args = argv.subList(2, argv.size());
 
-    try {
+    // The dexer is part of Buck, so it is loaded and warmed up once per process and shared by every
+    // build in the daemon, but all invocations share its heap.
+    try (InProcessDxLimiter.Permit permit =
+             InProcessDxLimiter.forNumThreads(context.getNumThreads())
+                 .acquire(getSizeOfFilesToDex(context.getProjectFilesystem()))) {
       return new com.android.dx.command.dexer.Main().run(
           args.toArray(new String[args.size()]),
           context.getStdOut(),
@@ -190,6 +198,23 @@ public class DxStep extends ShellStep {
     }
   }
 
+  private long getSizeOfFilesToDex(ProjectFilesystem projectFilesystem) throws IOException {
+    final long[] size = {0};
+    for (Path fileToDex : filesToDex) {
+      // Each input is a .class file, a zip of them, or a directory of them.
+      Files.walkFileTree(
+          projectFilesystem.resolve(fileToDex),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              size[0] += attrs.size();
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    }
+    return size[0];
+  }
+
   @Override
   protected boolean shouldPrintStderr(Verbosity verbosity) {
     return verbosity.shouldPrintSelectCommandOutput();
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounds how many {@code dx} invocations run inside the Buck process at once, and how much of the
+ * heap they may use between them.
+ * <p>
+ * Forked {@code dx} processes each get a heap of their own, but in-process invocations share
+ * Buck's, and a build runs dexing steps both from parallel build rules and from the thread pool of
+ * {@link SmartDexingStep}. Without a limit, enough large dex jobs starting at once would exhaust
+ * the heap of the daemon. Each invocation takes one of {@code numThreads} slots, plus an estimate
+ * of the memory it needs out of a fixed share of the maximum heap size.
+ */
+class InProcessDxLimiter {
+
+  /** The part of the maximum heap size that in-process dx invocations may use between them. */
+  private static final double HEAP_FRACTION = 0.75;
+
+  /**
+   * dx holds a parsed copy of its input and the dex it is writing, so it needs several times the
+   * size of the input.
+   */
+  @VisibleForTesting
+  static final int ESTIMATED_BYTES_PER_INPUT_BYTE = 16;
+
+  @VisibleForTesting
+  static final long MIN_ESTIMATED_BYTES = 32 * 1024 * 1024;
+
+  private static final long BYTES_PER_MEGABYTE = 1024 * 1024;
+
+  @Nullable
+  private static InProcessDxLimiter instance;
+
+  private final int numThreads;
+  private final int memoryBudgetMegabytes;
+  private final Semaphore invocations;
+  private final Semaphore memoryMegabytes;
+
+  @VisibleForTesting
+  InProcessDxLimiter(int numThreads, long memoryBudgetBytes) {
+    Preconditions.checkArgument(numThreads > 0);
+    this.numThreads = numThreads;
+    this.memoryBudgetMegabytes =
+        (int) Math.max(1, Math.min(Integer.MAX_VALUE, memoryBudgetBytes / BYTES_PER_MEGABYTE));
+    this.invocations = new Semaphore(numThreads, /* fair */ true);
+    this.memoryMegabytes = new Semaphore(memoryBudgetMegabytes, /* fair */ true);
+  }
+
+  /**
+   * @return the limiter shared by every build in this process that runs on {@code numThreads}
+   *     threads. A build with a different number of threads gets a new limiter, while invocations
+   *     that are still running release their slots to the old one.
+   */
+  static synchronized InProcessDxLimiter forNumThreads(int numThreads) {
+    if (instance == null || instance.numThreads != numThreads) {
+      instance = new InProcessDxLimiter(
+          numThreads,
+          (long) (Runtime.getRuntime().maxMemory() * HEAP_FRACTION));
+    }
+    return instance;
+  }
+
+  /**
+   * Blocks until there is room for another invocation of dx with {@code inputBytes} of input.
+   * An invocation that needs more memory than the whole budget is let through once it is the only
+   * one running, rather than never.
+   */
+  Permit acquire(long inputBytes) throws InterruptedException {
+    int megabytes = getEstimatedMegabytes(inputBytes);
+    invocations.acquire();
+    try {
+      memoryMegabytes.acquire(megabytes);
+    } catch (InterruptedException e) {
+      invocations.release();
+      throw e;
+    }
+    return new Permit(megabytes);
+  }
+
+  @VisibleForTesting
+  int getEstimatedMegabytes(long inputBytes) {
+    long bytes = Math.max(MIN_ESTIMATED_BYTES, inputBytes * ESTIMATED_BYTES_PER_INPUT_BYTE);
+    long megabytes = (bytes + BYTES_PER_MEGABYTE - 1) / BYTES_PER_MEGABYTE;
+    return (int) Math.min(memoryBudgetMegabytes, megabytes);
+  }
+
+  /** Held for the duration of an in-process dx invocation. */
+  class Permit implements AutoCloseable {
+    private final int megabytes;
+    private boolean isReleased = false;
+
+    private Permit(int megabytes) {
+      this.megabytes = megabytes;
+    }
+
+    @Override
+    public synchronized void close() {
+      if (isReleased) {
+        return;
+      }
+      isReleased = true;
+      memoryMegabytes.release(megabytes);
+      invocations.release();
+    }
+  }
+}
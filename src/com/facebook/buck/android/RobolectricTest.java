@@ -84,6 +84,7 @@ public class RobolectricTest extends JavaTest {
       List<String> vmArgs,
       ImmutableSet<BuildRule> sourceTargetsUnderTest,
       Optional<Path> resourcesRoot,
+      int maxShards,
       Optional<DummyRDotJava> optionalDummyRDotJava) {
     super(
         buildRuleParams,
@@ -98,7 +99,8 @@ public class RobolectricTest extends JavaTest {
         javacOptions,
         vmArgs,
         sourceTargetsUnderTest,
-        resourcesRoot);
+        resourcesRoot,
+        maxShards);
     this.optionalDummyRDotJava = optionalDummyRDotJava;
   }
 
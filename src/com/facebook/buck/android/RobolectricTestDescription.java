@@ -106,6 +106,7 @@ public class RobolectricTestDescription implements Description<RobolectricTestDe
             params.getBuildTarget(),
             resolver),
         args.resourcesRoot,
+        args.shards.or(1),
         dummyRDotJava);
   }
 
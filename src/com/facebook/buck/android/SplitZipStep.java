@@ -18,9 +18,12 @@ package com.facebook.buck.android;
 
 import com.facebook.buck.dalvik.DalvikAwareZipSplitterFactory;
 import com.facebook.buck.dalvik.DefaultZipSplitterFactory;
+import com.facebook.buck.dalvik.PersistentDalvikStatsStore;
+import com.facebook.buck.dalvik.SecondaryZipLayout;
 import com.facebook.buck.dalvik.ZipSplitter;
 import com.facebook.buck.dalvik.ZipSplitterFactory;
 import com.facebook.buck.dalvik.firstorder.FirstOrderHelper;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.util.ProjectFilesystem;
@@ -37,6 +40,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMultimap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Multimap;
+import com.google.common.hash.HashCode;
 import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
 
@@ -50,6 +54,7 @@ import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -65,6 +70,8 @@ import javax.annotation.Nullable;
  */
 public class SplitZipStep implements Step {
 
+  private static final Logger LOG = Logger.get(SplitZipStep.class);
+
   private static final int ZIP_SIZE_SOFT_LIMIT = 11 * 1024 * 1024;
 
   /**
@@ -123,6 +130,9 @@ public class SplitZipStep implements Step {
 
   private final Optional<Path> primaryDexScenarioFile;
   private final Optional<Path> primaryDexClassesFile;
+  private final Supplier<Map<String, HashCode>> classNamesToHashesSupplier;
+  private final Path pathToDalvikStatsStore;
+  private final Optional<Path> pathToSecondaryZipLayout;
 
   @Nullable
   private List<File> outputFiles;
@@ -140,6 +150,11 @@ public class SplitZipStep implements Step {
    * @param proguardFullConfigFile Path to the full generated ProGuard configuration, generated
    *     by the -printconfiguration flag.  This is part of the *output* of ProGuard.
    * @param proguardMappingFile Path to the mapping file generated by ProGuard's obfuscation.
+   * @param classNamesToHashesSupplier The SHA-1 of each class in {@code inputPathsToSplit}, used to
+   *     look up the linear alloc estimates of classes that haven't changed since the last build.
+   * @param pathToDalvikStatsStore Where the linear alloc estimates are kept between builds.
+   * @param pathToSecondaryZipLayout If present, where the assignment of classes to secondary jars
+   *     is kept between builds, so that classes stay in the same secondary jar.
    */
   public SplitZipStep(
       Set<Path> inputPathsToSplit,
@@ -152,7 +167,10 @@ public class SplitZipStep implements Step {
       DexSplitMode dexSplitMode,
       Optional<Path> primaryDexScenarioFile,
       Optional<Path> primaryDexClassesFile,
-      Path pathToReportDir) {
+      Path pathToReportDir,
+      Supplier<Map<String, HashCode>> classNamesToHashesSupplier,
+      Path pathToDalvikStatsStore,
+      Optional<Path> pathToSecondaryZipLayout) {
     this.inputPathsToSplit = ImmutableSet.copyOf(inputPathsToSplit);
     this.secondaryJarMetaPath = secondaryJarMetaPath;
     this.primaryJarPath = primaryJarPath;
@@ -164,6 +182,9 @@ public class SplitZipStep implements Step {
     this.primaryDexScenarioFile = primaryDexScenarioFile;
     this.primaryDexClassesFile = primaryDexClassesFile;
     this.pathToReportDir = pathToReportDir;
+    this.classNamesToHashesSupplier = Preconditions.checkNotNull(classNamesToHashesSupplier);
+    this.pathToDalvikStatsStore = Preconditions.checkNotNull(pathToDalvikStatsStore);
+    this.pathToSecondaryZipLayout = Preconditions.checkNotNull(pathToSecondaryZipLayout);
 
     Preconditions.checkArgument(
         proguardFullConfigFile.isPresent() == proguardMappingFile.isPresent(),
@@ -185,19 +206,32 @@ public class SplitZipStep implements Step {
       final ImmutableSet<String> wantedInPrimaryZip =
           getWantedPrimaryDexEntries(context, translatorFactory, classes);
 
+      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
+      SecondaryZipLayout previousLayout = SecondaryZipLayout.EMPTY;
+      if (pathToSecondaryZipLayout.isPresent()) {
+        previousLayout = SecondaryZipLayout.load(projectFilesystem, pathToSecondaryZipLayout.get());
+      }
+
       ZipSplitterFactory zipSplitterFactory;
+      Optional<PersistentDalvikStatsStore> dalvikStatsStore = Optional.absent();
       if (dexSplitMode.useLinearAllocSplitDex()) {
+        dalvikStatsStore = Optional.of(
+            PersistentDalvikStatsStore.load(
+                context.getProjectFilesystem(),
+                pathToDalvikStatsStore));
         zipSplitterFactory = new DalvikAwareZipSplitterFactory(
             dexSplitMode.getLinearAllocHardLimit(),
-            wantedInPrimaryZip);
+            wantedInPrimaryZip,
+            dalvikStatsStore,
+            classNamesToHashesSupplier.get(),
+            previousLayout);
       } else {
         zipSplitterFactory = new DefaultZipSplitterFactory(ZIP_SIZE_SOFT_LIMIT,
-            ZIP_SIZE_HARD_LIMIT);
+            ZIP_SIZE_HARD_LIMIT, previousLayout);
       }
 
-      ProjectFilesystem projectFilesystem = context.getProjectFilesystem();
       File primaryJarFile = primaryJarPath.toFile();
-      outputFiles = zipSplitterFactory.newInstance(
+      ZipSplitter zipSplitter = zipSplitterFactory.newInstance(
           projectFilesystem,
           inputJarPaths,
           primaryJarFile,
@@ -206,14 +240,27 @@ public class SplitZipStep implements Step {
           requiredInPrimaryZip,
           dexSplitMode.getDexSplitStrategy(),
           ZipSplitter.CanaryStrategy.INCLUDE_CANARIES,
-          projectFilesystem.getFileForRelativePath(pathToReportDir))
-          .execute();
+          projectFilesystem.getFileForRelativePath(pathToReportDir));
+      outputFiles = zipSplitter.execute();
 
       try (BufferedWriter secondaryMetaInfoWriter = Files.newWriter(secondaryJarMetaPath.toFile(),
           Charsets.UTF_8)) {
         writeMetaList(secondaryMetaInfoWriter, outputFiles, dexSplitMode.getDexStore());
       }
 
+      if (dalvikStatsStore.isPresent()) {
+        try {
+          dalvikStatsStore.get().save();
+        } catch (IOException e) {
+          // The store only saves time in the next build, so this shouldn't fail this one.
+          LOG.warn(e, "Unable to save dalvik stats to %s.", pathToDalvikStatsStore);
+        }
+      }
+
+      if (pathToSecondaryZipLayout.isPresent()) {
+        saveSecondaryZipLayout(projectFilesystem, zipSplitter.getSecondaryZipLayout());
+      }
+
       return 0;
     } catch (IOException e) {
       context.logError(e, "There was an error running SplitZipStep.");
@@ -221,6 +268,24 @@ public class SplitZipStep implements Step {
     }
   }
 
+  private void saveSecondaryZipLayout(
+      ProjectFilesystem projectFilesystem,
+      SecondaryZipLayout layout) {
+    Path path = pathToSecondaryZipLayout.get();
+    if (layout.hasEmptySecondaryZips()) {
+      // Jars whose classes were all removed are only kept so that later jars keep their index.
+      // Rather than carry them forever, start from scratch next time, packing the jars densely.
+      projectFilesystem.deleteFileAtPath(path);
+      return;
+    }
+    try {
+      layout.save(projectFilesystem, path);
+    } catch (IOException e) {
+      // The layout only saves time in the next build, so this shouldn't fail this one.
+      LOG.warn(e, "Unable to save secondary zip layout to %s.", path);
+    }
+  }
+
   @VisibleForTesting
   Predicate<String> createRequiredInPrimaryZipPredicate(
       ExecutionContext context,
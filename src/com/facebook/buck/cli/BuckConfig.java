@@ -19,6 +19,7 @@ package com.facebook.buck.cli;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.java.DefaultJavaPackageFinder;
+import com.facebook.buck.json.BuildFileOutputFormat;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.parser.BuildTargetParseException;
 import com.facebook.buck.parser.BuildTargetParser;
@@ -27,6 +28,7 @@ import com.facebook.buck.rules.ArtifactCache;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.BuildTargetSourcePath;
 import com.facebook.buck.rules.CassandraArtifactCache;
+import com.facebook.buck.rules.ContentAddressedDirArtifactCache;
 import com.facebook.buck.rules.DirArtifactCache;
 import com.facebook.buck.rules.HttpArtifactCache;
 import com.facebook.buck.rules.MultiArtifactCache;
@@ -103,6 +105,8 @@ public class BuckConfig {
   static final String BUCK_BUCKD_DIR_KEY = "buck.buckd_dir";
 
   private static final String DEFAULT_CACHE_DIR = "buck-cache";
+  private static final String DIR_CACHE_LAYOUT_FLAT = "flat";
+  private static final String DIR_CACHE_LAYOUT_CONTENT_ADDRESSED = "content_addressed";
   private static final String DEFAULT_DIR_CACHE_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_CASSANDRA_PORT = "9160";
   private static final String DEFAULT_CASSANDRA_MODE = CacheMode.readwrite.name();
@@ -110,6 +114,10 @@ public class BuckConfig {
   private static final String DEFAULT_HTTP_CACHE_MODE = CacheMode.readwrite.name();
   private static final String DEFAULT_HTTP_CACHE_PORT = "8080";
   private static final String DEFAULT_HTTP_CACHE_TIMEOUT_SECONDS = "10";
+  private static final String DEFAULT_CONCURRENT_FETCH_GRACE_PERIOD_MILLIS = "20";
+  private static final String DEFAULT_CACHE_WRITE_BACK_THREADS = "2";
+  private static final String DEFAULT_CACHE_UPLOAD_THREADS = "2";
+  private static final String DEFAULT_CACHE_MAX_PENDING_UPLOADS = "32";
   private static final String DEFAULT_MAX_TRACES = "25";
 
   // Prefer "python2" where available (Linux), but fall back to "python" (Mac).
@@ -419,6 +427,26 @@ public class BuckConfig {
     return builder.build();
   }
 
+  /**
+   * @return the maximum number of buck.py processes used to parse build files in parallel.
+   *     Defaults to the number of available processors.
+   */
+  public int getNumParserThreads() {
+    Optional<String> value = getValue("project", "parser_threads");
+    if (value.isPresent()) {
+      return Integer.parseInt(value.get());
+    }
+    return Runtime.getRuntime().availableProcessors();
+  }
+
+  /**
+   * @return the encoding buck.py uses to send parsed rules back to Buck. Defaults to JSON.
+   */
+  public BuildFileOutputFormat getBuildFileOutputFormat() {
+    return getEnum("project", "build_file_output_format", BuildFileOutputFormat.class)
+        .or(BuildFileOutputFormat.JSON);
+  }
+
   @Nullable
   public String getBuildTargetForAlias(String alias) {
     BuildTarget buildTarget = aliasToBuildTargetMap.get(alias);
@@ -568,6 +596,19 @@ public class BuckConfig {
     return Long.parseLong(getValue("test", "timeout").or("0"));
   }
 
+  /**
+   * @return whether {@code buck test} runs Java tests in a pool of long-lived JVMs, rather than in
+   *     a new JVM for each test rule.
+   */
+  public boolean isUsingTestRunnerWorkers() {
+    return getBooleanValue("test", "use_worker_jvms", false);
+  }
+
+  /** @return how many test rules a test runner worker runs before it is replaced. */
+  public int getTestRunnerWorkerMaxRuns() {
+    return Integer.parseInt(getValue("test", "worker_jvm_max_runs").or("50"));
+  }
+
   public boolean isTreatingAssumptionsAsErrors() {
     return getBooleanValue("test", "assumptions-are-errors", false);
   }
@@ -576,6 +617,14 @@ public class BuckConfig {
     return Integer.parseInt(getValue("log", "max_traces").or(DEFAULT_MAX_TRACES));
   }
 
+  /**
+   * @return whether Chrome traces should be written to a compressed file as events happen, rather
+   *     than kept in memory until the command finishes.
+   */
+  public boolean isStreamingTracesEnabled() {
+    return getBooleanValue("log", "streaming_traces", false);
+  }
+
   public boolean getRestartAdbOnFailure() {
     return Boolean.parseBoolean(getValue("adb", "adb_restart_on_failure").or("true"));
   }
@@ -685,6 +734,14 @@ public class BuckConfig {
     if (artifactCaches.size() == 1) {
       // Don't bother wrapping a single artifact cache in MultiArtifactCache.
       return artifactCaches.get(0);
+    } else if (getBooleanValue("cache", "concurrent_fetch", false)) {
+      return MultiArtifactCache.createConcurrent(
+          artifactCaches,
+          Long.parseLong(
+              getValue("cache", "concurrent_fetch_grace_period_millis")
+                  .or(DEFAULT_CONCURRENT_FETCH_GRACE_PERIOD_MILLIS)),
+          Integer.parseInt(
+              getValue("cache", "write_back_threads").or(DEFAULT_CACHE_WRITE_BACK_THREADS)));
     } else {
       return new MultiArtifactCache(artifactCaches);
     }
@@ -725,11 +782,65 @@ public class BuckConfig {
         });
   }
 
+  /**
+   * @return whether file content hashes should be kept in an index under {@code buck-out} so that
+   *     they survive daemon restarts.
+   */
+  public boolean isPersistentFileHashCacheEnabled() {
+    return getBooleanValue("cache", "persistent_file_hashes", false);
+  }
+
+  /**
+   * @return whether the rules produced by each build file should be kept under {@code buck-out}
+   *     so that unchanged build files need not be parsed again after a daemon restart.
+   */
+  public boolean isPersistentParseCacheEnabled() {
+    return getBooleanValue("cache", "persistent_parse_cache", false);
+  }
+
+  /**
+   * @return whether rules that are ready to build should be run in order of how much of the build
+   *     is waiting on them, as estimated from the durations recorded by previous builds.
+   */
+  public boolean isCriticalPathSchedulingEnabled() {
+    return getBooleanValue("build", "critical_path_scheduling", true);
+  }
+
+  /**
+   * @return the number of threads that upload artifacts to the cache in the background. Zero means
+   *     that artifacts are uploaded on the thread that built the rule.
+   */
+  public int getArtifactCacheUploadThreads() {
+    return Integer.parseInt(getValue("cache", "upload_threads").or(DEFAULT_CACHE_UPLOAD_THREADS));
+  }
+
+  /**
+   * @return how many artifacts may be waiting to be uploaded before rules that finish building
+   *     block until the upload queue drains.
+   */
+  public int getArtifactCacheMaxPendingUploads() {
+    return Integer.parseInt(
+        getValue("cache", "max_pending_uploads").or(DEFAULT_CACHE_MAX_PENDING_UPLOADS));
+  }
+
+  /**
+   * @return whether the dir cache should deduplicate artifacts by content, sharding keys and blobs
+   *     into subdirectories, rather than storing one flat file per rule key.
+   */
+  @VisibleForTesting
+  boolean isContentAddressedDirCacheEnabled() {
+    return getValue("cache", "dir_layout").or(DIR_CACHE_LAYOUT_FLAT)
+        .equals(DIR_CACHE_LAYOUT_CONTENT_ADDRESSED);
+  }
+
   private ArtifactCache createDirArtifactCache() {
     Path cacheDir = getCacheDir();
     File dir = cacheDir.toFile();
     boolean doStore = readCacheMode("dir_mode", DEFAULT_DIR_CACHE_MODE);
     try {
+      if (isContentAddressedDirCacheEnabled()) {
+        return new ContentAddressedDirArtifactCache(dir, doStore, getCacheDirMaxSizeBytes());
+      }
       return new DirArtifactCache(dir, doStore, getCacheDirMaxSizeBytes());
     } catch (IOException e) {
       throw new HumanReadableException("Failure initializing artifact cache directory: %s", dir);
@@ -149,6 +149,7 @@ public class BuildCommand extends AbstractCommandRunner<BuildCommandOptions> {
     int exitCode = 0;
     try {
       exitCode = executeBuildAndPrintAnyFailuresToConsole(buildTargets, build, options, console);
+      build.waitForArtifactUploads();
     } finally {
       build.close(); // Can't use try-with-resources as build is returned by getBuild.
     }
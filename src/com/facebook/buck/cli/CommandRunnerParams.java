@@ -18,6 +18,7 @@ package com.facebook.buck.cli;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.java.JavaPackageFinder;
+import com.facebook.buck.json.BuildFileOutputFormat;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildRule;
@@ -93,13 +94,16 @@ class CommandRunnerParams {
         Parser.createParser(
             repositoryFactory,
             pythonInterpreter,
+            BuildFileOutputFormat.JSON,
             /* tempFilePatterns */ ImmutableSet.<Pattern>of(),
             new RuleKeyBuilderFactory() {
               @Override
               public Builder newInstance(BuildRule buildRule, SourcePathResolver resolver) {
                 return RuleKey.builder(buildRule, resolver, new NullFileHashCache());
               }
-            }),
+            },
+            /* numParserThreads */ 1,
+            /* enablePersistentParseCache */ false),
         platform,
         environment,
         javaPackageFinder,
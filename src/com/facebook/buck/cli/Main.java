@@ -20,6 +20,7 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.event.listener.AbstractConsoleEventBusListener;
+import com.facebook.buck.event.listener.BuildRuleDurationListener;
 import com.facebook.buck.event.listener.ChromeTraceBuildListener;
 import com.facebook.buck.event.listener.JavaUtilsLoggingBuildListener;
 import com.facebook.buck.event.listener.LoggingBuildListener;
@@ -33,6 +34,7 @@ import com.facebook.buck.model.BuildId;
 import com.facebook.buck.parser.Parser;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.CachingBuildEngine;
+import com.facebook.buck.rules.FileHashCacheEvent;
 import com.facebook.buck.rules.KnownBuildRuleTypes;
 import com.facebook.buck.rules.Repository;
 import com.facebook.buck.rules.RepositoryFactory;
@@ -44,11 +46,13 @@ import com.facebook.buck.timing.Clock;
 import com.facebook.buck.timing.DefaultClock;
 import com.facebook.buck.timing.NanosAdjustedClock;
 import com.facebook.buck.util.Ansi;
+import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.Console;
 import com.facebook.buck.util.DefaultFileHashCache;
 import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.InterruptionFailedException;
+import com.facebook.buck.util.PersistentFileHashCache;
 import com.facebook.buck.util.PkillProcessManager;
 import com.facebook.buck.util.ProcessExecutor;
 import com.facebook.buck.util.ProcessManager;
@@ -158,7 +162,7 @@ public final class Main {
 
     private final Repository repository;
     private final Parser parser;
-    private final DefaultFileHashCache hashCache;
+    private final FileHashCache hashCache;
     private final EventBus fileEventBus;
     private final ProjectFilesystemWatcher filesystemWatcher;
     private final Optional<WebServer> webServer;
@@ -173,12 +177,15 @@ public final class Main {
       this.repository = repositoryFactory.getRootRepository();
       this.clock = clock;
       this.objectMapper = objectMapper;
-      this.hashCache = new DefaultFileHashCache(repository.getFilesystem());
+      this.hashCache = createFileHashCache(repository);
       this.parser = Parser.createParser(
           repositoryFactory,
           repository.getBuckConfig().getPythonInterpreter(),
+          repository.getBuckConfig().getBuildFileOutputFormat(),
           repository.getBuckConfig().getTempFilePatterns(),
-          createRuleKeyBuilderFactory(hashCache));
+          createRuleKeyBuilderFactory(hashCache),
+          repository.getBuckConfig().getNumParserThreads(),
+          repository.getBuckConfig().isPersistentParseCacheEnabled());
 
       this.fileEventBus = new EventBus("file-change-events");
       this.filesystemWatcher = createWatcher(repository.getFilesystem());
@@ -256,6 +263,10 @@ public final class Main {
       return parser;
     }
 
+    private FileHashCache getFileHashCache() {
+      return hashCache;
+    }
+
     private void watchClient(final NGContext context) {
       context.addClientListener(new NGClientListener() {
         @Override
@@ -308,6 +319,9 @@ public final class Main {
     public void close() throws IOException {
       filesystemWatcher.close();
       shutdownWebServer();
+      if (hashCache instanceof PersistentFileHashCache) {
+        ((PersistentFileHashCache) hashCache).save();
+      }
     }
 
     private void shutdownWebServer() {
@@ -547,8 +561,6 @@ public final class Main {
       }
     }
 
-    DefaultFileHashCache fileHashCache = new DefaultFileHashCache(rootRepository.getFilesystem());
-
     @Nullable ArtifactCacheFactory artifactCacheFactory = null;
 
     // The order of resources in the try-with-resources block is important: the BuckEventBus must
@@ -570,13 +582,6 @@ public final class Main {
                  rootRepository.getBuckConfig());
          BuckEventBus buildEventBus = new BuckEventBus(clock, buildId)) {
 
-      // The ArtifactCache is constructed lazily so that we do not try to connect to Cassandra when
-      // running commands such as `buck clean`.
-      artifactCacheFactory = new LoggingArtifactCacheFactory(
-          executionEnvironment,
-          buildEventBus,
-          fileHashCache);
-
       Optional<WebServer> webServer = getWebServerIfDaemon(
           context,
           repositoryFactory,
@@ -618,12 +623,32 @@ public final class Main {
         }
       }
 
+      // A persistent hash cache owned by the daemon is kept up to date by the file change events
+      // that were just processed, so it can also serve this command.
+      FileHashCache fileHashCache;
+      if (parser != null &&
+          rootRepository.getBuckConfig().isPersistentFileHashCacheEnabled()) {
+        fileHashCache = getDaemon(repositoryFactory, clock, objectMapper).getFileHashCache();
+      } else {
+        fileHashCache = createFileHashCache(rootRepository);
+      }
+
+      // The ArtifactCache is constructed lazily so that we do not try to connect to Cassandra when
+      // running commands such as `buck clean`.
+      artifactCacheFactory = new LoggingArtifactCacheFactory(
+          executionEnvironment,
+          buildEventBus,
+          fileHashCache);
+
       if (parser == null) {
         parser = Parser.createParser(
             repositoryFactory,
             rootRepository.getBuckConfig().getPythonInterpreter(),
+            rootRepository.getBuckConfig().getBuildFileOutputFormat(),
             rootRepository.getBuckConfig().getTempFilePatterns(),
-            createRuleKeyBuilderFactory(fileHashCache));
+            createRuleKeyBuilderFactory(fileHashCache),
+            rootRepository.getBuckConfig().getNumParserThreads(),
+            rootRepository.getBuckConfig().isPersistentParseCacheEnabled());
       }
       JavaUtilsLoggingBuildListener.ensureLogFileIsWritten(rootRepository.getFilesystem());
 
@@ -653,6 +678,7 @@ public final class Main {
               processManager));
 
       parser.cleanCache();
+      flushFileHashCache(fileHashCache, buildEventBus);
 
       // If the Daemon is running and serving web traffic, print the URL to the Chrome Trace.
       if (webServer.isPresent()) {
@@ -802,10 +828,24 @@ public final class Main {
       AbstractConsoleEventBusListener consoleEventBusListener,
       KnownBuildRuleTypes knownBuildRuleTypes,
       ImmutableMap<String, String> environment) {
+    ChromeTraceBuildListener chromeTraceListener;
+    if (config.isStreamingTracesEnabled()) {
+      chromeTraceListener = new ChromeTraceBuildListener(
+          projectFilesystem,
+          clock,
+          config.getMaxTraces(),
+          buckEvents.getBuildId());
+    } else {
+      chromeTraceListener = new ChromeTraceBuildListener(
+          projectFilesystem,
+          clock,
+          config.getMaxTraces());
+    }
     ImmutableList.Builder<BuckEventListener> eventListenersBuilder =
         ImmutableList.<BuckEventListener>builder()
             .add(new JavaUtilsLoggingBuildListener())
-            .add(new ChromeTraceBuildListener(projectFilesystem, clock, config.getMaxTraces()))
+            .add(chromeTraceListener)
+            .add(new BuildRuleDurationListener(projectFilesystem))
             .add(consoleEventBusListener)
             .add(new LoggingBuildListener());
 
@@ -863,6 +903,33 @@ public final class Main {
         config.isTreatingAssumptionsAsErrors());
   }
 
+  private static FileHashCache createFileHashCache(Repository repository) {
+    if (repository.getBuckConfig().isPersistentFileHashCacheEnabled()) {
+      return PersistentFileHashCache.load(
+          repository.getFilesystem(),
+          BuckConstant.FILE_HASH_CACHE_PATH);
+    }
+    return new DefaultFileHashCache(repository.getFilesystem());
+  }
+
+  /**
+   * Reports how many hashes were served by a {@link PersistentFileHashCache} during the command
+   * and writes any new hashes back to disk. Failing to save the index is not fatal: the hashes
+   * will simply be recomputed next time.
+   */
+  private static void flushFileHashCache(FileHashCache fileHashCache, BuckEventBus eventBus) {
+    if (!(fileHashCache instanceof PersistentFileHashCache)) {
+      return;
+    }
+    PersistentFileHashCache persistentFileHashCache = (PersistentFileHashCache) fileHashCache;
+    eventBus.post(FileHashCacheEvent.of(persistentFileHashCache.getAndResetStats()));
+    try {
+      persistentFileHashCache.save();
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to save file hash index.");
+    }
+  }
+
   /**
    * @param hashCache A cache of file content hashes, used to avoid reading and hashing input files.
    */
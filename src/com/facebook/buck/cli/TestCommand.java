@@ -23,6 +23,7 @@ import com.facebook.buck.java.GenerateCodeCoverageReportStep;
 import com.facebook.buck.java.JUnitStep;
 import com.facebook.buck.java.JavaLibrary;
 import com.facebook.buck.java.JavaTest;
+import com.facebook.buck.java.TestRunnerWorkerPool;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
@@ -331,6 +332,7 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       // Build all of the test rules.
       int exitCode = BuildCommand.executeBuildAndPrintAnyFailuresToConsole(
           testRules, build, options, console);
+      build.waitForArtifactUploads();
       getBuckEventBus().post(BuildEvent.finished(emptyTargetsList, exitCode));
       if (exitCode != 0) {
         return exitCode;
@@ -429,10 +431,38 @@ public class TestCommand extends AbstractCommandRunner<TestCommandOptions> {
       TestCommandOptions options)
       throws IOException, ExecutionException, InterruptedException {
 
+    Optional<TestRunnerWorkerPool> workerPool = createTestRunnerWorkerPool(options);
+    ExecutionContext testExecutionContext = ExecutionContext.builder()
+        .setExecutionContext(executionContext)
+        .setTestRunnerWorkerPool(workerPool)
+        .setRunningAffectedTestsOnly(options.isRunningAffectedTestsOnly())
+        .build();
     try (DefaultStepRunner stepRunner =
-            new DefaultStepRunner(executionContext, options.getNumThreads())) {
-      return runTests(tests, buildContext, executionContext, stepRunner, options);
+            new DefaultStepRunner(testExecutionContext, options.getNumThreads())) {
+      return runTests(tests, buildContext, testExecutionContext, stepRunner, options);
+    } finally {
+      // The step runner has waited for every test to finish by now.
+      if (workerPool.isPresent()) {
+        workerPool.get().close();
+      }
+    }
+  }
+
+  private Optional<TestRunnerWorkerPool> createTestRunnerWorkerPool(TestCommandOptions options)
+      throws IOException {
+    BuckConfig buckConfig = options.getBuckConfig();
+    if (!buckConfig.isUsingTestRunnerWorkers()) {
+      return Optional.absent();
     }
+    ProjectFilesystem filesystem = getProjectFilesystem();
+    filesystem.mkdirs(BuckConstant.LOG_PATH);
+    return Optional.of(
+        new TestRunnerWorkerPool(
+            JUnitStep.getDefaultTestRunnerClassesDirectory(),
+            filesystem.getRootPath(),
+            filesystem.resolve(BuckConstant.BIN_PATH.resolve("__test_worker_jvms_tmp__")),
+            filesystem.resolve(BuckConstant.LOG_PATH.resolve("test_worker_jvms.log")),
+            buckConfig.getTestRunnerWorkerMaxRuns()));
   }
 
   @SuppressWarnings("PMD.EmptyCatchBlock")
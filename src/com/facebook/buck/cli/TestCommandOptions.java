@@ -89,6 +89,14 @@ public class TestCommandOptions extends BuildCommandOptions {
           "WARNING: only works for Java tests!")
   private boolean isShufflingTests;
 
+  @Option(
+      name = "--only-affected-tests",
+      usage =
+          "Skip the test classes that passed last time, unless a class they loaded has changed " +
+          "since. Changes to resources and other files that tests read are not detected. " +
+          "WARNING: only works for Java tests!")
+  private boolean isRunningAffectedTestsOnly;
+
   @AdditionalOptions
   @SuppressFieldNotInitialized
   private TargetDeviceOptions targetDeviceOptions;
@@ -177,6 +185,14 @@ public class TestCommandOptions extends BuildCommandOptions {
     return isShufflingTests;
   }
 
+  /**
+   * @return whether to skip unaffected test classes. This never applies to dry runs, or when test
+   *     selectors pick the tests to run, as those runs do not say which classes the tests need.
+   */
+  public boolean isRunningAffectedTestsOnly() {
+    return isRunningAffectedTestsOnly && !isDryRun && getTestSelectorList().isEmpty();
+  }
+
   public boolean shouldExcludeWin() {
     return testLabelOptions.shouldExcludeWin();
   }
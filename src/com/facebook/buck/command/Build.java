@@ -25,13 +25,17 @@ import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.graph.AbstractBottomUpTraversal;
 import com.facebook.buck.graph.TraversableGraph;
 import com.facebook.buck.java.JavaPackageFinder;
+import com.facebook.buck.log.Logger;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.ArtifactCache;
+import com.facebook.buck.rules.ArtifactUploadQueue;
 import com.facebook.buck.rules.BuildContext;
 import com.facebook.buck.rules.BuildDependencies;
 import com.facebook.buck.rules.BuildEngine;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.BuildRuleSuccess;
+import com.facebook.buck.rules.CriticalPathEstimate;
+import com.facebook.buck.rules.RuleDurationHistory;
 import com.facebook.buck.step.DefaultStepRunner;
 import com.facebook.buck.step.ExecutionContext;
 import com.facebook.buck.step.StepFailedException;
@@ -49,26 +53,38 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
 
 import javax.annotation.Nullable;
 
 public class Build implements Closeable {
 
+  private static final Logger LOG = Logger.get(Build.class);
+
   private final ActionGraph actionGraph;
 
   private final ExecutionContext executionContext;
 
   private final ArtifactCache artifactCache;
 
+  private final Optional<ArtifactUploadQueue> artifactUploadQueue;
+
   private final BuildEngine buildEngine;
 
   private final DefaultStepRunner stepRunner;
 
+  private final int numThreads;
+
+  private final boolean isCriticalPathSchedulingEnabled;
+
+  private final ForkJoinPool ruleKeyPool;
+
   private final JavaPackageFinder javaPackageFinder;
 
   private final BuildDependencies buildDependencies;
@@ -123,10 +139,25 @@ public class Build implements Closeable {
         .setEnvironment(environment)
         .setJavaPackageFinder(javaPackageFinder)
         .setObjectMapper(objectMapper)
+        .setNumThreads(numThreads)
         .build();
     this.artifactCache = artifactCache;
+    int uploadThreads = buckConfig.getArtifactCacheUploadThreads();
+    if (uploadThreads > 0 && artifactCache.isStoreSupported()) {
+      this.artifactUploadQueue = Optional.of(
+          new ArtifactUploadQueue(
+              artifactCache,
+              eventBus,
+              buckConfig.getArtifactCacheMaxPendingUploads(),
+              uploadThreads));
+    } else {
+      this.artifactUploadQueue = Optional.absent();
+    }
     this.buildEngine = buildEngine;
     this.stepRunner = new DefaultStepRunner(executionContext, numThreads);
+    this.numThreads = numThreads;
+    this.isCriticalPathSchedulingEnabled = buckConfig.isCriticalPathSchedulingEnabled();
+    this.ruleKeyPool = new ForkJoinPool(numThreads);
     this.javaPackageFinder = javaPackageFinder;
     this.buildDependencies = buildDependencies;
     this.clock = clock;
@@ -232,12 +263,21 @@ public class Build implements Closeable {
       Iterable<BuildRule> rulesToBuild,
       boolean isKeepGoing)
       throws IOException, StepFailedException {
+    Optional<CriticalPathEstimate> criticalPathEstimate = Optional.absent();
+    if (isCriticalPathSchedulingEnabled) {
+      criticalPathEstimate = Optional.of(
+          CriticalPathEstimate.compute(
+              actionGraph,
+              RuleDurationHistory.load(executionContext.getProjectFilesystem())));
+    }
+
     buildContext = BuildContext.builder()
         .setActionGraph(actionGraph)
         .setStepRunner(stepRunner)
         .setProjectFilesystem(executionContext.getProjectFilesystem())
         .setClock(clock)
         .setArtifactCache(artifactCache)
+        .setArtifactUploadQueue(artifactUploadQueue)
         .setJavaPackageFinder(javaPackageFinder)
         .setEventBus(executionContext.getBuckEventBus())
         .setAndroidBootclasspathForAndroidPlatformTarget(
@@ -245,8 +285,17 @@ public class Build implements Closeable {
         .setBuildDependencies(buildDependencies)
         .setBuildId(executionContext.getBuildId())
         .setEnvironment(executionContext.getEnvironment())
+        .setCriticalPathEstimate(criticalPathEstimate)
         .build();
 
+    // Compute every rule key up front so that no build step has to wait for input files to be
+    // hashed on the critical path.
+    buildEngine.computeRuleKeys(rulesToBuild, ruleKeyPool);
+
+    // Now that every rule key is known, let the artifact cache look up everything the build may
+    // fetch in a few batches rather than paying for a round-trip per rule.
+    buildEngine.prefetchArtifacts(buildContext, rulesToBuild);
+
     Iterable<ListenableFuture<BuildRuleSuccess>> futures = Iterables.transform(
         rulesToBuild,
         new Function<BuildRule, ListenableFuture<BuildRuleSuccess>>() {
@@ -255,15 +304,69 @@ public class Build implements Closeable {
             return buildEngine.build(buildContext, rule);
           }
         });
+    ListenableFuture<List<BuildRuleSuccess>> result;
     if (isKeepGoing) {
-      return Futures.successfulAsList(futures);
+      result = Futures.successfulAsList(futures);
     } else {
-      return Futures.allAsList(futures);
+      result = Futures.allAsList(futures);
+    }
+
+    if (criticalPathEstimate.isPresent() &&
+        criticalPathEstimate.get().getRulesWithRecordedDurations() > 0) {
+      logPredictedBuildTime(criticalPathEstimate.get(), result);
+    }
+    return result;
+  }
+
+  /**
+   * Once {@code result} completes, logs how long the build was predicted to take from the recorded
+   * rule durations next to how long it actually took, so that the quality of the estimates that
+   * drive the scheduling can be checked. The comparison is also printed to the console when
+   * commands are being printed. The prediction assumes that every rule is built, so it
+   * overestimates builds that fetch rules from the cache.
+   */
+  private void logPredictedBuildTime(
+      final CriticalPathEstimate criticalPathEstimate,
+      ListenableFuture<List<BuildRuleSuccess>> result) {
+    final long startMillis = clock.currentTimeMillis();
+    result.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            String message = String.format(
+                "Predicted build time %d ms (critical path %d ms), actual %d ms. " +
+                    "%d of %d rules had recorded durations.",
+                criticalPathEstimate.getPredictedBuildMillis(numThreads),
+                criticalPathEstimate.getCriticalPathMillis(),
+                clock.currentTimeMillis() - startMillis,
+                criticalPathEstimate.getRulesWithRecordedDurations(),
+                criticalPathEstimate.getRuleCount());
+            LOG.info(message);
+            if (executionContext.getVerbosity().shouldPrintCommand()) {
+              executionContext.getBuckEventBus().post(ConsoleEvent.info(message));
+            }
+          }
+        },
+        MoreExecutors.directExecutor());
+  }
+
+  /**
+   * Blocks until every artifact produced so far has been stored in the artifact cache. Callers
+   * should invoke this before posting {@link com.facebook.buck.rules.BuildEvent.Finished} so that
+   * a finished build always means a populated cache.
+   */
+  public void waitForArtifactUploads() throws InterruptedException {
+    if (artifactUploadQueue.isPresent()) {
+      artifactUploadQueue.get().flush();
     }
   }
 
   @Override
   public void close() throws IOException {
+    if (artifactUploadQueue.isPresent()) {
+      artifactUploadQueue.get().close();
+    }
+    ruleKeyPool.shutdown();
     stepRunner.close();
   }
 }
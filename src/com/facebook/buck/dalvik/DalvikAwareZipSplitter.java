@@ -23,10 +23,12 @@ import com.facebook.buck.java.classes.DefaultClasspathTraverser;
 import com.facebook.buck.java.classes.FileLike;
 import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
 import com.google.common.io.ByteStreams;
 
 import java.io.ByteArrayInputStream;
@@ -36,6 +38,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.nio.file.Path;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 import javax.annotation.Nullable;
@@ -95,7 +98,9 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       Set<String> wantedInPrimaryZip,
       DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      DalvikStatsCache dalvikStatsCache,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     if (linearAllocLimit <= 0) {
       throw new HumanReadableException("linear_alloc_hard_limit must be greater than zero.");
     }
@@ -103,13 +108,17 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     this.inFiles = ImmutableSet.copyOf(inFiles);
     this.outPrimary = Preconditions.checkNotNull(outPrimary);
     this.secondaryDexWriter =
-        new MySecondaryDexHelper(outSecondaryDir, secondaryPattern, canaryStrategy);
+        new MySecondaryDexHelper(
+            outSecondaryDir,
+            secondaryPattern,
+            canaryStrategy,
+            previousSecondaryZipLayout);
     this.requiredInPrimaryZip = Preconditions.checkNotNull(requiredInPrimaryZip);
     this.wantedInPrimaryZip = ImmutableSet.copyOf(wantedInPrimaryZip);
     this.reportDir = reportDir;
     this.dexSplitStrategy = Preconditions.checkNotNull(dexSplitStrategy);
     this.linearAllocLimit = linearAllocLimit;
-    this.dalvikStatsCache = new DalvikStatsCache();
+    this.dalvikStatsCache = Preconditions.checkNotNull(dalvikStatsCache);
   }
 
   public static DalvikAwareZipSplitter splitZip(
@@ -123,7 +132,10 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
       Set<String> wantedInPrimaryZip,
       DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      Optional<PersistentDalvikStatsStore> dalvikStatsStore,
+      Map<String, HashCode> classNamesToHashes,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     return new DalvikAwareZipSplitter(
         filesystem,
         inFiles,
@@ -135,7 +147,9 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
         wantedInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        new DalvikStatsCache(dalvikStatsStore, classNamesToHashes),
+        previousSecondaryZipLayout);
   }
 
   @Override
@@ -198,6 +212,11 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     return secondaryDexWriter.getFiles();
   }
 
+  @Override
+  public SecondaryZipLayout getSecondaryZipLayout() {
+    return secondaryDexWriter.getLayout();
+  }
+
   private DalvikAwareOutputStreamHelper newZipOutput(File file) throws FileNotFoundException {
     return new DalvikAwareOutputStreamHelper(file, linearAllocLimit, reportDir, dalvikStatsCache);
   }
@@ -208,8 +227,9 @@ public class DalvikAwareZipSplitter implements ZipSplitter {
     MySecondaryDexHelper(
         File outSecondaryDir,
         String secondaryPattern,
-        CanaryStrategy canaryStrategy) {
-      super(outSecondaryDir, secondaryPattern, canaryStrategy);
+        CanaryStrategy canaryStrategy,
+        SecondaryZipLayout previousLayout) {
+      super(outSecondaryDir, secondaryPattern, canaryStrategy, previousLayout);
     }
 
     @Override
@@ -17,22 +17,40 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
 import com.google.common.base.Predicate;
+import com.google.common.hash.HashCode;
 
 import java.io.File;
 import java.nio.file.Path;
+import java.util.Map;
 import java.util.Set;
 
 public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
 
   private final long linearAllocLimit;
   private final Set<String> wantedInPrimaryZip;
+  private final Optional<PersistentDalvikStatsStore> dalvikStatsStore;
+  private final Map<String, HashCode> classNamesToHashes;
+  private final SecondaryZipLayout previousSecondaryZipLayout;
 
+  /**
+   * @param dalvikStatsStore Where to look up the stats of classes before parsing them.
+   * @param classNamesToHashes The hashes used to look up classes in {@code dalvikStatsStore}.
+   * @param previousSecondaryZipLayout Where entries were put by a previous split, which they are
+   *     put back in if they still fit.
+   */
   public DalvikAwareZipSplitterFactory(
       long linearAllocLimit,
-      Set<String> wantedInPrimaryZip) {
+      Set<String> wantedInPrimaryZip,
+      Optional<PersistentDalvikStatsStore> dalvikStatsStore,
+      Map<String, HashCode> classNamesToHashes,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     this.linearAllocLimit = linearAllocLimit;
     this.wantedInPrimaryZip = wantedInPrimaryZip;
+    this.dalvikStatsStore = dalvikStatsStore;
+    this.classNamesToHashes = classNamesToHashes;
+    this.previousSecondaryZipLayout = previousSecondaryZipLayout;
   }
 
   @Override
@@ -57,6 +75,9 @@ public class DalvikAwareZipSplitterFactory implements ZipSplitterFactory {
         wantedInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        dalvikStatsStore,
+        classNamesToHashes,
+        previousSecondaryZipLayout);
   }
 }
@@ -17,20 +17,42 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.java.classes.FileLike;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.MapMaker;
+import com.google.common.hash.HashCode;
 
 import java.io.IOException;
+import java.util.Map;
 import java.util.concurrent.ConcurrentMap;
 
 /**
  * Cache to memoize results from DalvikStatsTool.
+ * <p>
+ * If a {@link PersistentDalvikStatsStore} is given, classes whose hash is known are looked up in it
+ * before being parsed, and the stats of those that had to be parsed are added to it.
  */
 class DalvikStatsCache {
 
   private final ConcurrentMap<FileLike, DalvikStatsTool.Stats> cache;
+  private final Optional<PersistentDalvikStatsStore> store;
+  private final Map<String, HashCode> classNamesToHashes;
 
   DalvikStatsCache() {
-    cache = new MapMaker().weakKeys().makeMap();
+    this(Optional.<PersistentDalvikStatsStore>absent(), ImmutableMap.<String, HashCode>of());
+  }
+
+  /**
+   * @param classNamesToHashes The SHA-1 of the contents of each class, keyed by its path without
+   *     the {@code .class} suffix, as written to {@code classes.txt}.
+   */
+  DalvikStatsCache(
+      Optional<PersistentDalvikStatsStore> store,
+      Map<String, HashCode> classNamesToHashes) {
+    this.cache = new MapMaker().weakKeys().makeMap();
+    this.store = Preconditions.checkNotNull(store);
+    this.classNamesToHashes = Preconditions.checkNotNull(classNamesToHashes);
   }
 
   DalvikStatsTool.Stats getStats(FileLike entry) {
@@ -46,9 +68,24 @@ class DalvikStatsCache {
       return stats;
     }
 
+    HashCode hash = null;
+    if (store.isPresent()) {
+      hash = classNamesToHashes.get(name.substring(0, name.length() - ".class".length()));
+      if (hash != null) {
+        Optional<DalvikStatsTool.Stats> storedStats = store.get().get(hash);
+        if (storedStats.isPresent()) {
+          cache.put(entry, storedStats.get());
+          return storedStats.get();
+        }
+      }
+    }
+
     try {
       stats = DalvikStatsTool.getEstimate(entry.getInput());
       cache.put(entry, stats);
+      if (hash != null) {
+        store.get().put(hash, stats);
+      }
       return stats;
     } catch (IOException e) {
       throw new RuntimeException(String.format("Error calculating size for %s.", name), e);
@@ -67,14 +67,19 @@ public class DefaultZipSplitter implements ZipSplitter {
       Predicate<String> requiredInPrimaryZip,
       ZipSplitter.DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
-      File reportDir) {
+      File reportDir,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     this.filesystem = Preconditions.checkNotNull(filesystem);
     this.inFiles = ImmutableSet.copyOf(inFiles);
     this.outPrimary = Preconditions.checkNotNull(outPrimary);
     this.requiredInPrimaryZip = Preconditions.checkNotNull(requiredInPrimaryZip);
     this.dexSplitStrategy = dexSplitStrategy;
     this.secondaryDexWriter =
-        new MySecondaryDexHelper(outSecondaryDir, secondaryPattern, canaryStrategy);
+        new MySecondaryDexHelper(
+            outSecondaryDir,
+            secondaryPattern,
+            canaryStrategy,
+            previousSecondaryZipLayout);
     this.reportDir = reportDir;
     this.zipSizeSoftLimit = zipSizeSoftLimit;
     this.zipSizeHardLimit = zipSizeHardLimit;
@@ -92,6 +97,38 @@ public class DefaultZipSplitter implements ZipSplitter {
       ZipSplitter.DexSplitStrategy dexSplitStrategy,
       ZipSplitter.CanaryStrategy canaryStrategy,
       File reportDir) {
+    return splitZip(
+        filesystem,
+        inFiles,
+        outPrimary,
+        outSecondaryDir,
+        secondaryPattern,
+        zipSizeSoftLimit,
+        zipSizeHardLimit,
+        requiredInPrimaryZip,
+        dexSplitStrategy,
+        canaryStrategy,
+        reportDir,
+        SecondaryZipLayout.EMPTY);
+  }
+
+  /**
+   * @param previousSecondaryZipLayout Where entries were put by a previous split, which they are
+   *     put back in if they still fit.
+   */
+  public static DefaultZipSplitter splitZip(
+      ProjectFilesystem filesystem,
+      Set<Path> inFiles,
+      File outPrimary,
+      File outSecondaryDir,
+      String secondaryPattern,
+      long zipSizeSoftLimit,
+      long zipSizeHardLimit,
+      Predicate<String> requiredInPrimaryZip,
+      ZipSplitter.DexSplitStrategy dexSplitStrategy,
+      ZipSplitter.CanaryStrategy canaryStrategy,
+      File reportDir,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     return new DefaultZipSplitter(
         filesystem,
         inFiles,
@@ -103,7 +140,8 @@ public class DefaultZipSplitter implements ZipSplitter {
         requiredInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        previousSecondaryZipLayout);
   }
 
   // Not safe to execute multiple times.
@@ -157,6 +195,11 @@ public class DefaultZipSplitter implements ZipSplitter {
     return secondaryDexWriter.getFiles();
   }
 
+  @Override
+  public SecondaryZipLayout getSecondaryZipLayout() {
+    return secondaryDexWriter.getLayout();
+  }
+
   private void processEntry(FileLike entry) throws IOException {
     long entrySize = entry.getSize();
     if (entrySize <= 0) {
@@ -206,8 +249,9 @@ public class DefaultZipSplitter implements ZipSplitter {
     MySecondaryDexHelper(
         File outSecondaryDir,
         String secondaryPattern,
-        CanaryStrategy canaryStrategy) {
-      super(outSecondaryDir, secondaryPattern, canaryStrategy);
+        CanaryStrategy canaryStrategy,
+        SecondaryZipLayout previousLayout) {
+      super(outSecondaryDir, secondaryPattern, canaryStrategy, previousLayout);
     }
 
     @Override
@@ -17,6 +17,7 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 
 import java.io.File;
@@ -27,6 +28,7 @@ public class DefaultZipSplitterFactory implements ZipSplitterFactory {
 
   private final long zipSizeSoftLimit;
   private final long zipSizeHardLimit;
+  private final SecondaryZipLayout previousSecondaryZipLayout;
 
   /**
    * @param zipSizeSoftLimit Soft limit for the resulting zip file.  Once hit, a new output zip
@@ -38,8 +40,21 @@ public class DefaultZipSplitterFactory implements ZipSplitterFactory {
    *     it straddles a single {@code inFiles} entry.
    */
   public DefaultZipSplitterFactory(long zipSizeSoftLimit, long zipSizeHardLimit) {
+    this(zipSizeSoftLimit, zipSizeHardLimit, SecondaryZipLayout.EMPTY);
+  }
+
+  /**
+   * @param previousSecondaryZipLayout Where entries were put by a previous split, which they are
+   *     put back in if they still fit.
+   * @see #DefaultZipSplitterFactory(long, long)
+   */
+  public DefaultZipSplitterFactory(
+      long zipSizeSoftLimit,
+      long zipSizeHardLimit,
+      SecondaryZipLayout previousSecondaryZipLayout) {
     this.zipSizeSoftLimit = zipSizeSoftLimit;
     this.zipSizeHardLimit = zipSizeHardLimit;
+    this.previousSecondaryZipLayout = Preconditions.checkNotNull(previousSecondaryZipLayout);
   }
 
   @Override
@@ -64,7 +79,8 @@ public class DefaultZipSplitterFactory implements ZipSplitterFactory {
         requiredInPrimaryZip,
         dexSplitStrategy,
         canaryStrategy,
-        reportDir);
+        reportDir,
+        previousSecondaryZipLayout);
   }
 
 }
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link DalvikStatsTool.Stats} keyed by the SHA-1 of the contents of the {@code .class} file they
+ * were computed from, stored on disk so that classes which have not changed since the last build
+ * don't have to be parsed again.
+ * <p>
+ * Only the stats that are looked up or added between {@link #load} and {@link #save()} are written
+ * back, so the store doesn't grow without bound as classes change.
+ */
+public class PersistentDalvikStatsStore {
+
+  private static final Logger LOG = Logger.get(PersistentDalvikStatsStore.class);
+
+  /** Identifies the store format. Bump {@link #VERSION} whenever the record layout changes. */
+  private static final int MAGIC = 0xDA1F57A7;
+  private static final int VERSION = 1;
+
+  private static final int SHA1_NUM_BYTES = 20;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path pathToStore;
+  private final ImmutableMap<HashCode, DalvikStatsTool.Stats> loaded;
+  private final ConcurrentMap<HashCode, DalvikStatsTool.Stats> used;
+  private final AtomicBoolean isDirty;
+
+  private PersistentDalvikStatsStore(
+      ProjectFilesystem projectFilesystem,
+      Path pathToStore,
+      ImmutableMap<HashCode, DalvikStatsTool.Stats> loaded) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.pathToStore = Preconditions.checkNotNull(pathToStore);
+    this.loaded = Preconditions.checkNotNull(loaded);
+    this.used = new ConcurrentHashMap<>();
+    this.isDirty = new AtomicBoolean(false);
+  }
+
+  /**
+   * Creates a store primed with the stats saved at {@code pathToStore}. A missing or corrupt store
+   * is not an error: it simply starts empty and is rewritten by {@link #save()}.
+   * @param pathToStore Location of the store, relative to the project root.
+   */
+  public static PersistentDalvikStatsStore load(
+      ProjectFilesystem projectFilesystem,
+      Path pathToStore) {
+    ImmutableMap<HashCode, DalvikStatsTool.Stats> stats = ImmutableMap.of();
+    try (InputStream inputStream = new BufferedInputStream(
+             Files.newInputStream(projectFilesystem.resolve(pathToStore)))) {
+      stats = read(new DataInputStream(inputStream));
+      LOG.debug("Loaded dalvik stats for %d classes from %s.", stats.size(), pathToStore);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No dalvik stats at %s.", pathToStore);
+    } catch (IOException | IllegalArgumentException | IndexOutOfBoundsException e) {
+      LOG.warn(e, "Ignoring unreadable dalvik stats at %s.", pathToStore);
+    }
+    return new PersistentDalvikStatsStore(projectFilesystem, pathToStore, stats);
+  }
+
+  private static ImmutableMap<HashCode, DalvikStatsTool.Stats> read(DataInputStream input)
+      throws IOException {
+    Preconditions.checkArgument(input.readInt() == MAGIC, "Bad magic number.");
+    int version = input.readInt();
+    if (version != VERSION) {
+      LOG.debug("Discarding dalvik stats with version %d.", version);
+      return ImmutableMap.of();
+    }
+
+    // Class names and method descriptors are repeated across many method references, so each
+    // distinct string is only stored once.
+    int numStrings = input.readInt();
+    Preconditions.checkArgument(numStrings >= 0, "Bad string count %s.", numStrings);
+    String[] strings = new String[numStrings];
+    for (int i = 0; i < numStrings; i++) {
+      strings[i] = input.readUTF();
+    }
+
+    int numEntries = input.readInt();
+    Preconditions.checkArgument(numEntries >= 0, "Bad entry count %s.", numEntries);
+    ImmutableMap.Builder<HashCode, DalvikStatsTool.Stats> stats = ImmutableMap.builder();
+    for (int i = 0; i < numEntries; i++) {
+      byte[] sha1 = new byte[SHA1_NUM_BYTES];
+      input.readFully(sha1);
+      int estimatedLinearAllocSize = input.readInt();
+      int numMethodReferences = input.readInt();
+      ImmutableSet.Builder<DalvikStatsTool.MethodReference> methodReferences =
+          ImmutableSet.builder();
+      for (int j = 0; j < numMethodReferences; j++) {
+        methodReferences.add(new DalvikStatsTool.MethodReference(
+            strings[input.readInt()],
+            strings[input.readInt()],
+            strings[input.readInt()]));
+      }
+      stats.put(
+          HashCode.fromBytes(sha1),
+          new DalvikStatsTool.Stats(estimatedLinearAllocSize, methodReferences.build()));
+    }
+    return stats.build();
+  }
+
+  /**
+   * @param sha1 The hash of the contents of a {@code .class} file.
+   * @return the stats that were stored for a class with those contents, if any.
+   */
+  public Optional<DalvikStatsTool.Stats> get(HashCode sha1) {
+    DalvikStatsTool.Stats stats = used.get(sha1);
+    if (stats == null) {
+      stats = loaded.get(sha1);
+      if (stats == null) {
+        return Optional.absent();
+      }
+      used.put(sha1, stats);
+    }
+    return Optional.of(stats);
+  }
+
+  public void put(HashCode sha1, DalvikStatsTool.Stats stats) {
+    Preconditions.checkArgument(
+        sha1.bits() == SHA1_NUM_BYTES * 8,
+        "Dalvik stats must be keyed by a SHA-1, not %s.",
+        sha1);
+    if (used.put(sha1, stats) == null) {
+      isDirty.set(true);
+    }
+  }
+
+  /**
+   * Writes the stats that were used since the store was loaded back to disk, if they differ from
+   * what was loaded. The store is written to a temporary file and moved into place so that a
+   * concurrent or interrupted Buck never observes a partially written store.
+   */
+  public synchronized void save() throws IOException {
+    if (!isDirty.getAndSet(false) && used.size() == loaded.size()) {
+      return;
+    }
+    projectFilesystem.createParentDirs(pathToStore);
+    Path absolutePathToStore = projectFilesystem.resolve(pathToStore);
+    Path tempFile = Files.createTempFile(
+        absolutePathToStore.getParent(),
+        absolutePathToStore.getFileName().toString(),
+        ".tmp");
+    Map<HashCode, DalvikStatsTool.Stats> snapshot = ImmutableMap.copyOf(used);
+    try (OutputStream outputStream = new BufferedOutputStream(
+             Files.newOutputStream(tempFile));
+         DataOutputStream output = new DataOutputStream(outputStream)) {
+      write(output, snapshot);
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+    Files.move(
+        tempFile,
+        absolutePathToStore,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.debug("Saved dalvik stats for %d classes to %s.", snapshot.size(), pathToStore);
+  }
+
+  private static void write(DataOutputStream output, Map<HashCode, DalvikStatsTool.Stats> stats)
+      throws IOException {
+    Map<String, Integer> stringIndexes = Maps.newLinkedHashMap();
+    for (DalvikStatsTool.Stats entry : stats.values()) {
+      for (DalvikStatsTool.MethodReference reference : entry.methodReferences) {
+        addString(stringIndexes, reference.className);
+        addString(stringIndexes, reference.methodName);
+        addString(stringIndexes, reference.methodDesc);
+      }
+    }
+
+    output.writeInt(MAGIC);
+    output.writeInt(VERSION);
+    output.writeInt(stringIndexes.size());
+    for (String string : stringIndexes.keySet()) {
+      output.writeUTF(string);
+    }
+
+    output.writeInt(stats.size());
+    for (Map.Entry<HashCode, DalvikStatsTool.Stats> entry : stats.entrySet()) {
+      output.write(entry.getKey().asBytes());
+      output.writeInt(entry.getValue().estimatedLinearAllocSize);
+      List<DalvikStatsTool.MethodReference> references =
+          entry.getValue().methodReferences.asList();
+      output.writeInt(references.size());
+      for (DalvikStatsTool.MethodReference reference : references) {
+        output.writeInt(stringIndexes.get(reference.className));
+        output.writeInt(stringIndexes.get(reference.methodName));
+        output.writeInt(stringIndexes.get(reference.methodDesc));
+      }
+    }
+  }
+
+  private static void addString(Map<String, Integer> stringIndexes, String string) {
+    if (!stringIndexes.containsKey(string)) {
+      stringIndexes.put(string, stringIndexes.size());
+    }
+  }
+}
@@ -17,45 +17,66 @@
 package com.facebook.buck.dalvik;
 
 import com.facebook.buck.java.classes.FileLike;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 
 import java.io.File;
 import java.io.IOException;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.SortedMap;
 
 import javax.annotation.Nullable;
 
 /**
  * Helper to write to secondary DEX files.
+ * <p>
+ * Given the {@link SecondaryZipLayout} of a previous split, entries are put back in the secondary
+ * zip they were in before, as long as it has room for them. New entries fill up the last of those
+ * zips, and anything that doesn't fit goes in new zips numbered after them. That way a change to a
+ * few entries only changes the contents of a few zips, and the dex files of the others can be
+ * reused. Without a previous layout, entries are simply written to one zip after the other.
  */
 abstract class SecondaryDexHelper<ZIP_OUTPUT_STREAM_HELPER extends ZipOutputStreamHelper> {
 
   private final File outSecondaryDir;
   private final String secondaryPattern;
   private final ZipSplitter.CanaryStrategy canaryStrategy;
+  private final SecondaryZipLayout previousLayout;
 
   private int currentSecondaryIndex;
 
   @Nullable
   private ZIP_OUTPUT_STREAM_HELPER currentSecondaryOut;
   private boolean newSecondaryOutOnNextEntry;
-  private ImmutableList.Builder<File> secondaryFiles;
+  /** Outputs for the zips of {@link #previousLayout}, by index, opened when first written to. */
+  private Map<Integer, ZIP_OUTPUT_STREAM_HELPER> previousSecondaryOuts;
+  private SortedMap<Integer, File> secondaryFiles;
+  private SortedMap<Integer, Set<String>> secondaryEntries;
 
   SecondaryDexHelper(
       File outSecondaryDir,
       String secondaryPattern,
-      ZipSplitter.CanaryStrategy canaryStrategy) {
+      ZipSplitter.CanaryStrategy canaryStrategy,
+      SecondaryZipLayout previousLayout) {
     this.outSecondaryDir = Preconditions.checkNotNull(outSecondaryDir);
     this.secondaryPattern = Preconditions.checkNotNull(secondaryPattern);
     this.canaryStrategy = Preconditions.checkNotNull(canaryStrategy);
-    this.secondaryFiles = ImmutableList.builder();
+    this.previousLayout = Preconditions.checkNotNull(previousLayout);
+    reset();
   }
 
   void reset() {
-    currentSecondaryIndex = 0;
+    currentSecondaryIndex = previousLayout.getSecondaryZipCount();
     currentSecondaryOut = null;
-    secondaryFiles = ImmutableList.builder();
+    previousSecondaryOuts = Maps.newHashMap();
+    secondaryFiles = Maps.newTreeMap();
+    secondaryEntries = Maps.newTreeMap();
   }
 
   @Nullable
@@ -68,7 +89,23 @@ abstract class SecondaryDexHelper<ZIP_OUTPUT_STREAM_HELPER extends ZipOutputStre
   }
 
   ZIP_OUTPUT_STREAM_HELPER getOutputToWriteTo(FileLike entry) throws IOException {
-    // Going to write this entry to a secondary zip.
+    Optional<Integer> previousIndex = previousLayout.getSecondaryZipIndex(entry.getRelativePath());
+    if (!previousIndex.isPresent() &&
+        currentSecondaryOut == null &&
+        previousLayout.getSecondaryZipCount() > 0) {
+      // New entries go in the last of the previous zips while it has room, so that adding a few
+      // classes doesn't create a zip of its own.
+      previousIndex = Optional.of(previousLayout.getSecondaryZipCount());
+    }
+    if (previousIndex.isPresent()) {
+      ZIP_OUTPUT_STREAM_HELPER previousSecondaryOut = getPreviousOutput(previousIndex.get());
+      if (previousSecondaryOut.canPutEntry(entry)) {
+        recordEntry(previousIndex.get(), entry);
+        return previousSecondaryOut;
+      }
+    }
+
+    // Going to write this entry to a secondary zip after those of the previous layout.
     if (currentSecondaryOut == null ||
         !currentSecondaryOut.canPutEntry(entry) ||
         newSecondaryOutOnNextEntry) {
@@ -76,32 +113,62 @@ abstract class SecondaryDexHelper<ZIP_OUTPUT_STREAM_HELPER extends ZipOutputStre
         currentSecondaryOut.close();
       }
       currentSecondaryIndex++;
-      File newSecondaryFile = new File(
-          outSecondaryDir,
-          String.format(secondaryPattern, currentSecondaryIndex));
-      secondaryFiles.add(newSecondaryFile);
-      currentSecondaryOut = newZipOutput(newSecondaryFile);
+      currentSecondaryOut = newSecondaryOutput(currentSecondaryIndex);
       newSecondaryOutOnNextEntry = false;
-      if (canaryStrategy == ZipSplitter.CanaryStrategy.INCLUDE_CANARIES) {
-        // Make sure the first class in the new secondary dex can be safely loaded.
-        FileLike canaryFile = CanaryFactory.create(currentSecondaryIndex);
-        currentSecondaryOut.putEntry(canaryFile);
-      }
       // We've already tested for this. It really shouldn't happen.
       Preconditions.checkState(currentSecondaryOut.canPutEntry(entry));
     }
 
+    recordEntry(currentSecondaryIndex, entry);
     return currentSecondaryOut;
   }
 
+  private ZIP_OUTPUT_STREAM_HELPER getPreviousOutput(int index) throws IOException {
+    ZIP_OUTPUT_STREAM_HELPER out = previousSecondaryOuts.get(index);
+    if (out == null) {
+      out = newSecondaryOutput(index);
+      previousSecondaryOuts.put(index, out);
+    }
+    return out;
+  }
+
+  private ZIP_OUTPUT_STREAM_HELPER newSecondaryOutput(int index) throws IOException {
+    File newSecondaryFile = new File(outSecondaryDir, String.format(secondaryPattern, index));
+    secondaryFiles.put(index, newSecondaryFile);
+    secondaryEntries.put(index, Sets.<String>newLinkedHashSet());
+    ZIP_OUTPUT_STREAM_HELPER out = newZipOutput(newSecondaryFile);
+    if (canaryStrategy == ZipSplitter.CanaryStrategy.INCLUDE_CANARIES) {
+      // Make sure the first class in the new secondary dex can be safely loaded.
+      FileLike canaryFile = CanaryFactory.create(index);
+      out.putEntry(canaryFile);
+    }
+    return out;
+  }
+
+  private void recordEntry(int index, FileLike entry) {
+    secondaryEntries.get(index).add(entry.getRelativePath());
+  }
+
   void close() throws IOException {
+    // Every zip of the previous layout is written, even if all of its entries are gone, so that the
+    // zips after it keep their index.
+    for (int index = 1; index <= previousLayout.getSecondaryZipCount(); index++) {
+      getPreviousOutput(index).close();
+    }
     if (currentSecondaryOut != null) {
       currentSecondaryOut.close();
     }
   }
 
   List<File> getFiles() {
-    return secondaryFiles.build();
+    return ImmutableList.copyOf(secondaryFiles.values());
+  }
+
+  /**
+   * @return which entries were written to each secondary zip, not counting canaries.
+   */
+  SecondaryZipLayout getLayout() {
+    return new SecondaryZipLayout(Lists.newArrayList(secondaryEntries.values()));
   }
 
   protected abstract ZIP_OUTPUT_STREAM_HELPER newZipOutput(File file) throws IOException;
@@ -0,0 +1,179 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+
+import javax.annotation.concurrent.Immutable;
+
+/**
+ * Records which entries a {@link ZipSplitter} put in each secondary zip, so that the next split of
+ * mostly the same entries can put them back in the same zips. Secondary zips are numbered from 1,
+ * like the files they are written to.
+ */
+@Immutable
+public class SecondaryZipLayout {
+
+  private static final Logger LOG = Logger.get(SecondaryZipLayout.class);
+
+  public static final SecondaryZipLayout EMPTY =
+      new SecondaryZipLayout(ImmutableList.<Set<String>>of());
+
+  /** First line of a saved layout. Change it whenever the format changes. */
+  private static final String HEADER = "secondary_zip_layout 1";
+
+  private final ImmutableList<ImmutableSet<String>> secondaryZips;
+  private final ImmutableMap<String, Integer> secondaryZipIndexes;
+
+  /**
+   * @param secondaryZips The entries of each secondary zip, starting with the first one.
+   */
+  public SecondaryZipLayout(List<? extends Set<String>> secondaryZips) {
+    ImmutableList.Builder<ImmutableSet<String>> zips = ImmutableList.builder();
+    ImmutableMap.Builder<String, Integer> indexes = ImmutableMap.builder();
+    for (int i = 0; i < secondaryZips.size(); i++) {
+      ImmutableSet<String> entries = ImmutableSet.copyOf(secondaryZips.get(i));
+      zips.add(entries);
+      for (String entry : entries) {
+        indexes.put(entry, i + 1);
+      }
+    }
+    this.secondaryZips = zips.build();
+    this.secondaryZipIndexes = indexes.build();
+  }
+
+  public int getSecondaryZipCount() {
+    return secondaryZips.size();
+  }
+
+  /**
+   * @param index Index of the secondary zip, starting at 1.
+   */
+  public ImmutableSet<String> getEntries(int index) {
+    Preconditions.checkElementIndex(index - 1, secondaryZips.size());
+    return secondaryZips.get(index - 1);
+  }
+
+  /**
+   * @return the index of the secondary zip that contains {@code entry}, if any.
+   */
+  public Optional<Integer> getSecondaryZipIndex(String entry) {
+    return Optional.fromNullable(secondaryZipIndexes.get(entry));
+  }
+
+  /**
+   * @return whether any secondary zip has no entries of its own, which happens when every entry
+   *     that used to be in it was removed, but it had to be kept so later zips kept their index.
+   */
+  public boolean hasEmptySecondaryZips() {
+    for (ImmutableSet<String> entries : secondaryZips) {
+      if (entries.isEmpty()) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Reads the layout saved at {@code pathToLayout}. A missing or unreadable layout is not an error:
+   * it is treated as {@link #EMPTY}, which splits entries as if there had been no previous build.
+   */
+  public static SecondaryZipLayout load(ProjectFilesystem projectFilesystem, Path pathToLayout) {
+    try (BufferedReader reader = Files.newBufferedReader(
+             projectFilesystem.resolve(pathToLayout),
+             Charsets.UTF_8)) {
+      return read(reader);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No secondary zip layout at %s.", pathToLayout);
+    } catch (IOException | IllegalArgumentException e) {
+      LOG.warn(e, "Ignoring unreadable secondary zip layout at %s.", pathToLayout);
+    }
+    return EMPTY;
+  }
+
+  private static SecondaryZipLayout read(BufferedReader reader) throws IOException {
+    Preconditions.checkArgument(HEADER.equals(reader.readLine()), "Unknown layout format.");
+    int numSecondaryZips = Integer.parseInt(reader.readLine());
+    Preconditions.checkArgument(numSecondaryZips >= 0, "Bad zip count %s.", numSecondaryZips);
+
+    ImmutableList.Builder<Set<String>> secondaryZips = ImmutableList.builder();
+    for (int i = 0; i < numSecondaryZips; i++) {
+      int numEntries = Integer.parseInt(reader.readLine());
+      Preconditions.checkArgument(numEntries >= 0, "Bad entry count %s.", numEntries);
+      ImmutableSet.Builder<String> entries = ImmutableSet.builder();
+      for (int j = 0; j < numEntries; j++) {
+        String entry = reader.readLine();
+        Preconditions.checkArgument(entry != null, "Layout is truncated.");
+        entries.add(entry);
+      }
+      secondaryZips.add(entries.build());
+    }
+    return new SecondaryZipLayout(secondaryZips.build());
+  }
+
+  /**
+   * Writes this layout to {@code pathToLayout}, by way of a temporary file so that an interrupted
+   * build never leaves a partially written layout behind.
+   */
+  public void save(ProjectFilesystem projectFilesystem, Path pathToLayout) throws IOException {
+    projectFilesystem.createParentDirs(pathToLayout);
+    Path absolutePathToLayout = projectFilesystem.resolve(pathToLayout);
+    Path tempFile = Files.createTempFile(
+        absolutePathToLayout.getParent(),
+        absolutePathToLayout.getFileName().toString(),
+        ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tempFile, Charsets.UTF_8)) {
+      writer.write(HEADER);
+      writer.newLine();
+      writer.write(String.valueOf(secondaryZips.size()));
+      writer.newLine();
+      for (ImmutableSet<String> entries : secondaryZips) {
+        writer.write(String.valueOf(entries.size()));
+        writer.newLine();
+        for (String entry : entries) {
+          writer.write(entry);
+          writer.newLine();
+        }
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+    Files.move(
+        tempFile,
+        absolutePathToLayout,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+}
@@ -39,4 +39,10 @@ public interface ZipSplitter {
    * @return Secondary output zip files.
    */
   public List<File> execute() throws IOException;
+
+  /**
+   * @return which entries {@link #execute()} put in each secondary zip, which can be passed to the
+   *     next split of the same inputs so that entries stay where they were.
+   */
+  public SecondaryZipLayout getSecondaryZipLayout();
 }
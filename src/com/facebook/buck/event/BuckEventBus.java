@@ -19,20 +19,22 @@ import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.timing.Clock;
-import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
-import com.google.common.eventbus.AsyncEventBus;
+import com.google.common.collect.ImmutableList;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.TimeUnit;
 
 /**
- * Thin wrapper around guava event bus.
+ * Timestamps events and delivers them to the methods of registered listeners which are annotated
+ * with {@link com.google.common.eventbus.Subscribe}. Each listener receives events on a thread of
+ * its own, in the order they were posted; see {@link EventDispatcher}.
  */
 public class BuckEventBus implements Closeable {
 
@@ -49,14 +51,16 @@ public class BuckEventBus implements Closeable {
 
   private final Clock clock;
   private final ExecutorService executorService;
-  private final AsyncEventBus eventBus;
+  private final EventDispatcher dispatcher;
   private final Supplier<Long> threadIdSupplier;
   private final BuildId buildId;
   private final int shutdownTimeoutMillis;
 
   public BuckEventBus(Clock clock, BuildId buildId) {
+    // Each listener is drained by at most one thread at a time, so this never has more threads
+    // than there are listeners.
     this(clock,
-        MoreExecutors.newSingleThreadExecutor(
+        Executors.newCachedThreadPool(
             new CommandThreadFactory(BuckEventBus.class.getSimpleName())),
         buildId,
         DEFAULT_SHUTDOWN_TIMEOUT_MS);
@@ -70,7 +74,10 @@ public class BuckEventBus implements Closeable {
       int shutdownTimeoutMillis) {
     this.clock = Preconditions.checkNotNull(clock);
     this.executorService = Preconditions.checkNotNull(executorService);
-    this.eventBus = new AsyncEventBus("buck-build-events", executorService);
+    this.dispatcher = new EventDispatcher(
+        executorService,
+        clock,
+        EventDispatcher.DEFAULT_RING_BUFFER_CAPACITY);
     this.threadIdSupplier = DEFAULT_THREAD_ID_SUPPLIER;
     this.buildId = Preconditions.checkNotNull(buildId);
     this.shutdownTimeoutMillis = shutdownTimeoutMillis;
@@ -78,7 +85,7 @@ public class BuckEventBus implements Closeable {
 
   public void post(BuckEvent event) {
     timestamp(event);
-    eventBus.post(event);
+    dispatcher.post(event);
   }
 
   public void logVerboseAndPost(Logger logger, BuckEvent event) {
@@ -96,20 +103,30 @@ public class BuckEventBus implements Closeable {
    */
   public void post(BuckEvent event, BuckEvent atTime) {
     event.configure(atTime.getTimestamp(), atTime.getNanoTime(), threadIdSupplier.get(), buildId);
-    eventBus.post(event);
+    dispatcher.post(event);
+  }
+
+  /**
+   * Posts an event which has already been configured, keeping its timestamp and thread.
+   */
+  @VisibleForTesting
+  void postWithoutConfiguring(BuckEvent event) {
+    dispatcher.post(event);
   }
 
   public void register(Object object) {
-    eventBus.register(object);
+    dispatcher.register(object);
   }
 
   public void unregister(Object object) {
-    eventBus.unregister(object);
+    dispatcher.unregister(object);
   }
 
-  @VisibleForTesting
-  AsyncEventBus getEventBus() {
-    return eventBus;
+  /**
+   * @return how far each registered listener has fallen behind the events posted to it.
+   */
+  public ImmutableList<ListenerQueueStats> getListenerQueueStats() {
+    return dispatcher.getStats();
   }
 
   @VisibleForTesting
@@ -135,8 +152,8 @@ public class BuckEventBus implements Closeable {
 
   /**
    * {@link ExecutorService#awaitTermination(long, java.util.concurrent.TimeUnit)} is called
-   * to wait for events which have been posted, but which have been queued by the
-   * {@link AsyncEventBus}, to be delivered. This allows listeners to record or report as much
+   * to wait for events which have been posted, but which are still queued for their listeners,
+   * to be delivered. This allows listeners to record or report as much
    * information as possible. This aids debugging when close is called during exception processing.
    */
   @Override
@@ -154,6 +171,9 @@ public class BuckEventBus implements Closeable {
     } catch (InterruptedException e) {
       Thread.currentThread().interrupt();
     }
+    for (ListenerQueueStats stats : dispatcher.getStats()) {
+      LOG.debug("Event queue of %s", stats);
+    }
   }
 
   /**
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+/**
+ * An event which reports the latest state of something, such as the progress of a download,
+ * rather than something that happened. If a listener falls behind, the {@link BuckEventBus} only
+ * delivers the newest of the waiting events with the same {@link #getCoalescingKey()}, and drops
+ * the others.
+ */
+public interface CoalescableEvent extends BuckEvent {
+
+  /**
+   * @return a key which is equal for events that supersede each other.
+   */
+  Object getCoalescingKey();
+}
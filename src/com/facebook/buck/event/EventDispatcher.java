@@ -0,0 +1,379 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.util.concurrent.RingBuffer;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableListMultimap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.reflect.TypeToken;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nullable;
+
+/**
+ * Delivers events to the methods of registered listeners which are annotated with
+ * {@link Subscribe}, as Guava's {@link com.google.common.eventbus.EventBus} would.
+ * <p>
+ * Every listener has its own queue, which is drained by at most one thread of the executor at a
+ * time. Listeners therefore handle events in parallel with each other and a slow listener only
+ * holds up its own events, but each listener still sees its events one at a time and in the order
+ * they were posted. Posting an event appends it to the {@link RingBuffer} of each listener which
+ * subscribes to its type, without taking a lock. When a listener's ring buffer is full, events
+ * spill into an unbounded queue instead of blocking the thread that posted them.
+ */
+class EventDispatcher {
+
+  private static final Logger LOG = Logger.get(EventDispatcher.class);
+
+  /** Events each listener can fall behind by before they spill. Must be a power of two. */
+  static final int DEFAULT_RING_BUFFER_CAPACITY = 8192;
+
+  private static final ConcurrentMap<Class<?>, ImmutableSet<Class<?>>> SUPERTYPES =
+      Maps.newConcurrentMap();
+
+  private final Executor executor;
+  private final Clock clock;
+  private final int ringBufferCapacity;
+  private volatile Registry registry = new Registry(ImmutableList.<ListenerQueue>of());
+
+  EventDispatcher(Executor executor, Clock clock, int ringBufferCapacity) {
+    this.executor = Preconditions.checkNotNull(executor);
+    this.clock = Preconditions.checkNotNull(clock);
+    this.ringBufferCapacity = ringBufferCapacity;
+  }
+
+  public void post(BuckEvent event) {
+    for (ListenerQueue queue : registry.getQueuesFor(event.getClass())) {
+      queue.enqueue(event);
+    }
+  }
+
+  /**
+   * Registering the same listener twice has no effect, as does registering an object without any
+   * methods annotated with {@link Subscribe}.
+   */
+  public synchronized void register(Object listener) {
+    if (registry.find(listener) != null) {
+      return;
+    }
+    ImmutableListMultimap<Class<?>, Method> handlers = findHandlers(listener.getClass());
+    if (handlers.isEmpty()) {
+      return;
+    }
+    registry = new Registry(
+        ImmutableList.<ListenerQueue>builder()
+            .addAll(registry.queues)
+            .add(new ListenerQueue(listener, handlers))
+            .build());
+  }
+
+  /**
+   * Stops delivering events posted from now on to {@code listener}. Events which were already
+   * queued for it are still delivered.
+   */
+  public synchronized void unregister(Object listener) {
+    ListenerQueue queue = registry.find(listener);
+    if (queue == null) {
+      Preconditions.checkArgument(
+          findHandlers(listener.getClass()).isEmpty(),
+          "%s was not registered.",
+          listener);
+      return;
+    }
+    ImmutableList.Builder<ListenerQueue> queues = ImmutableList.builder();
+    for (ListenerQueue other : registry.queues) {
+      if (other != queue) {
+        queues.add(other);
+      }
+    }
+    registry = new Registry(queues.build());
+  }
+
+  public ImmutableList<ListenerQueueStats> getStats() {
+    ImmutableList.Builder<ListenerQueueStats> stats = ImmutableList.builder();
+    for (ListenerQueue queue : registry.queues) {
+      stats.add(queue.getStats());
+    }
+    return stats.build();
+  }
+
+  /**
+   * @return the methods of {@code listenerClass} and its supertypes which are annotated with
+   *     {@link Subscribe}, keyed by the type of event they take. An overridden method is only
+   *     included once, and invoking it dispatches to the override.
+   */
+  private static ImmutableListMultimap<Class<?>, Method> findHandlers(Class<?> listenerClass) {
+    ImmutableListMultimap.Builder<Class<?>, Method> handlers = ImmutableListMultimap.builder();
+    Map<String, Method> handlersBySignature = Maps.newHashMap();
+    for (Class<?> type : TypeToken.of(listenerClass).getTypes().rawTypes()) {
+      for (Method method : type.getDeclaredMethods()) {
+        if (!method.isAnnotationPresent(Subscribe.class) || method.isSynthetic()) {
+          continue;
+        }
+        Class<?>[] parameterTypes = method.getParameterTypes();
+        Preconditions.checkArgument(
+            parameterTypes.length == 1,
+            "%s is annotated with @Subscribe but takes %s parameters instead of one.",
+            method,
+            parameterTypes.length);
+        String signature = method.getName() + Arrays.toString(parameterTypes);
+        if (!handlersBySignature.containsKey(signature)) {
+          method.setAccessible(true);
+          handlersBySignature.put(signature, method);
+          handlers.put(parameterTypes[0], method);
+        }
+      }
+    }
+    return handlers.build();
+  }
+
+  private static ImmutableSet<Class<?>> getSupertypes(Class<?> eventType) {
+    ImmutableSet<Class<?>> supertypes = SUPERTYPES.get(eventType);
+    if (supertypes == null) {
+      supertypes = ImmutableSet.<Class<?>>copyOf(TypeToken.of(eventType).getTypes().rawTypes());
+      SUPERTYPES.putIfAbsent(eventType, supertypes);
+    }
+    return supertypes;
+  }
+
+  /**
+   * The registered listeners, replaced as a whole when they change so that posting never has to
+   * take a lock.
+   */
+  private static class Registry {
+
+    private final ImmutableList<ListenerQueue> queues;
+    private final ConcurrentMap<Class<?>, ImmutableList<ListenerQueue>> queuesByEventType;
+
+    private Registry(ImmutableList<ListenerQueue> queues) {
+      this.queues = queues;
+      this.queuesByEventType = Maps.newConcurrentMap();
+    }
+
+    private ImmutableList<ListenerQueue> getQueuesFor(Class<?> eventType) {
+      ImmutableList<ListenerQueue> subscribed = queuesByEventType.get(eventType);
+      if (subscribed == null) {
+        ImmutableList.Builder<ListenerQueue> builder = ImmutableList.builder();
+        for (ListenerQueue queue : queues) {
+          if (!queue.getHandlersFor(eventType).isEmpty()) {
+            builder.add(queue);
+          }
+        }
+        subscribed = builder.build();
+        queuesByEventType.putIfAbsent(eventType, subscribed);
+      }
+      return subscribed;
+    }
+
+    @Nullable
+    private ListenerQueue find(Object listener) {
+      for (ListenerQueue queue : queues) {
+        if (queue.listener == listener) {
+          return queue;
+        }
+      }
+      return null;
+    }
+  }
+
+  /** Stands in the queue for the newest pending {@link CoalescableEvent} with its key. */
+  private static class CoalescedEntry {
+    private final Object coalescingKey;
+
+    private CoalescedEntry(Object coalescingKey) {
+      this.coalescingKey = coalescingKey;
+    }
+  }
+
+  private class ListenerQueue {
+
+    private final Object listener;
+    private final ImmutableListMultimap<Class<?>, Method> handlersByParameterType;
+    private final ConcurrentMap<Class<?>, ImmutableList<Method>> handlersByEventType;
+
+    /** Holds {@link BuckEvent}s and {@link CoalescedEntry}s. */
+    private final RingBuffer<Object> ringBuffer;
+
+    /**
+     * Events posted while the ring buffer was full. Once this is not empty, every new event goes
+     * here as well, so that events are still delivered in order.
+     */
+    private final Queue<Object> spilled;
+    private final ConcurrentMap<Object, CoalescableEvent> pendingCoalescedEvents;
+
+    /** Whether a thread is draining, or has been asked to drain, the queue. */
+    private final AtomicBoolean isDraining = new AtomicBoolean();
+    private final Runnable drainTask;
+
+    private final AtomicInteger depth = new AtomicInteger();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong eventsDelivered = new AtomicLong();
+    private final AtomicLong eventsCoalesced = new AtomicLong();
+    private final AtomicLong eventsSpilled = new AtomicLong();
+
+    /** Only written by the thread draining the queue. */
+    private volatile long maxLagNanos;
+
+    private ListenerQueue(
+        Object listener,
+        ImmutableListMultimap<Class<?>, Method> handlersByParameterType) {
+      this.listener = listener;
+      this.handlersByParameterType = handlersByParameterType;
+      this.handlersByEventType = Maps.newConcurrentMap();
+      this.ringBuffer = new RingBuffer<>(ringBufferCapacity);
+      this.spilled = Queues.newConcurrentLinkedQueue();
+      this.pendingCoalescedEvents = Maps.newConcurrentMap();
+      this.drainTask = new Runnable() {
+        @Override
+        public void run() {
+          drain();
+        }
+      };
+    }
+
+    private ImmutableList<Method> getHandlersFor(Class<?> eventType) {
+      ImmutableList<Method> handlers = handlersByEventType.get(eventType);
+      if (handlers == null) {
+        ImmutableList.Builder<Method> builder = ImmutableList.builder();
+        for (Class<?> supertype : getSupertypes(eventType)) {
+          builder.addAll(handlersByParameterType.get(supertype));
+        }
+        handlers = builder.build();
+        handlersByEventType.putIfAbsent(eventType, handlers);
+      }
+      return handlers;
+    }
+
+    private void enqueue(BuckEvent event) {
+      Object entry = event;
+      if (event instanceof CoalescableEvent) {
+        CoalescableEvent coalescableEvent = (CoalescableEvent) event;
+        Object key = coalescableEvent.getCoalescingKey();
+        if (pendingCoalescedEvents.put(key, coalescableEvent) != null) {
+          // The entry that is already queued will deliver this event instead.
+          eventsCoalesced.incrementAndGet();
+          return;
+        }
+        entry = new CoalescedEntry(key);
+      }
+
+      if (!spilled.isEmpty() || !ringBuffer.offer(entry)) {
+        spilled.add(entry);
+        eventsSpilled.incrementAndGet();
+      }
+      updateMaxDepth(depth.incrementAndGet());
+
+      if (isDraining.compareAndSet(false, true)) {
+        try {
+          executor.execute(drainTask);
+        } catch (RejectedExecutionException e) {
+          // The event bus is shutting down, so deliver the event before returning.
+          drain();
+        }
+      }
+    }
+
+    private void updateMaxDepth(int currentDepth) {
+      int max = maxDepth.get();
+      while (currentDepth > max && !maxDepth.compareAndSet(max, currentDepth)) {
+        max = maxDepth.get();
+      }
+    }
+
+    private void drain() {
+      try {
+        while (true) {
+          Object entry = ringBuffer.poll();
+          if (entry == null) {
+            entry = spilled.poll();
+          }
+          if (entry == null) {
+            isDraining.set(false);
+            // Events queued after the polls above but before the flag was cleared were left for
+            // this thread by their posters.
+            if ((ringBuffer.isEmpty() && spilled.isEmpty()) ||
+                !isDraining.compareAndSet(false, true)) {
+              return;
+            }
+            continue;
+          }
+          depth.decrementAndGet();
+          deliver(entry);
+        }
+      } catch (RuntimeException | Error e) {
+        isDraining.set(false);
+        throw e;
+      }
+    }
+
+    private void deliver(Object entry) {
+      BuckEvent event;
+      if (entry instanceof CoalescedEntry) {
+        event = Preconditions.checkNotNull(
+            pendingCoalescedEvents.remove(((CoalescedEntry) entry).coalescingKey));
+      } else {
+        event = (BuckEvent) entry;
+      }
+
+      for (Method handler : getHandlersFor(event.getClass())) {
+        try {
+          handler.invoke(listener, event);
+        } catch (InvocationTargetException e) {
+          Throwables.propagateIfInstanceOf(e.getCause(), Error.class);
+          LOG.error(e.getCause(), "Could not dispatch %s to %s.", event, handler);
+        } catch (IllegalAccessException e) {
+          throw new IllegalStateException(e);
+        }
+      }
+
+      eventsDelivered.incrementAndGet();
+      long lagNanos = clock.nanoTime() - event.getNanoTime();
+      if (lagNanos > maxLagNanos) {
+        maxLagNanos = lagNanos;
+      }
+    }
+
+    private ListenerQueueStats getStats() {
+      return new ListenerQueueStats(
+          listener.getClass().getName(),
+          eventsDelivered.get(),
+          eventsCoalesced.get(),
+          eventsSpilled.get(),
+          maxDepth.get(),
+          maxLagNanos);
+    }
+  }
+}
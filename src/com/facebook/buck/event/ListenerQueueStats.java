@@ -0,0 +1,100 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * How far a listener registered with a {@link BuckEventBus} has fallen behind the events posted
+ * to it.
+ */
+public class ListenerQueueStats {
+
+  private final String listenerName;
+  private final long eventsDelivered;
+  private final long eventsCoalesced;
+  private final long eventsSpilled;
+  private final int maxDepth;
+  private final long maxLagNanos;
+
+  public ListenerQueueStats(
+      String listenerName,
+      long eventsDelivered,
+      long eventsCoalesced,
+      long eventsSpilled,
+      int maxDepth,
+      long maxLagNanos) {
+    this.listenerName = Preconditions.checkNotNull(listenerName);
+    this.eventsDelivered = eventsDelivered;
+    this.eventsCoalesced = eventsCoalesced;
+    this.eventsSpilled = eventsSpilled;
+    this.maxDepth = maxDepth;
+    this.maxLagNanos = maxLagNanos;
+  }
+
+  public String getListenerName() {
+    return listenerName;
+  }
+
+  public long getEventsDelivered() {
+    return eventsDelivered;
+  }
+
+  /**
+   * @return the number of {@link CoalescableEvent}s that were dropped because a newer event with
+   *     the same key was posted before they were delivered.
+   */
+  public long getEventsCoalesced() {
+    return eventsCoalesced;
+  }
+
+  /**
+   * @return the number of events that had to be queued outside of the listener's ring buffer
+   *     because it was full.
+   */
+  public long getEventsSpilled() {
+    return eventsSpilled;
+  }
+
+  /**
+   * @return the largest number of events that were waiting to be delivered at once.
+   */
+  public int getMaxDepth() {
+    return maxDepth;
+  }
+
+  /**
+   * @return the longest time between an event being posted and being delivered.
+   */
+  public long getMaxLagNanos() {
+    return maxLagNanos;
+  }
+
+  @Override
+  public String toString() {
+    return String.format(
+        "%s: delivered %d, coalesced %d, spilled %d, max depth %d, max lag %d ms",
+        listenerName,
+        eventsDelivered,
+        eventsCoalesced,
+        eventsSpilled,
+        maxDepth,
+        TimeUnit.NANOSECONDS.toMillis(maxLagNanos));
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import com.facebook.buck.event.BuckEventListener;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.rules.BuildRuleEvent;
+import com.facebook.buck.rules.BuildRuleStatus;
+import com.facebook.buck.rules.BuildRuleSuccess;
+import com.facebook.buck.rules.RuleDurationHistory;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+import com.google.common.eventbus.Subscribe;
+
+import java.io.IOException;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Records how long each rule took to build locally and merges those durations into the
+ * {@link RuleDurationHistory} when the command finishes, so that the next build can schedule its
+ * rules along the critical path.
+ */
+public class BuildRuleDurationListener implements BuckEventListener {
+
+  private static final Logger LOG = Logger.get(BuildRuleDurationListener.class);
+
+  private final ProjectFilesystem projectFilesystem;
+  private final ConcurrentMap<BuildTarget, Long> startTimestamps = Maps.newConcurrentMap();
+  private final ConcurrentMap<BuildTarget, Long> durations = Maps.newConcurrentMap();
+
+  public BuildRuleDurationListener(ProjectFilesystem projectFilesystem) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+  }
+
+  @Subscribe
+  public void buildRuleStarted(BuildRuleEvent.Started started) {
+    startTimestamps.put(started.getBuildRule().getBuildTarget(), started.getTimestamp());
+  }
+
+  @Subscribe
+  public void buildRuleFinished(BuildRuleEvent.Finished finished) {
+    BuildTarget buildTarget = finished.getBuildRule().getBuildTarget();
+    Long startTimestamp = startTimestamps.remove(buildTarget);
+    if (startTimestamp == null ||
+        finished.getStatus() != BuildRuleStatus.SUCCESS ||
+        !finished.getSuccessType().equals(Optional.of(BuildRuleSuccess.Type.BUILT_LOCALLY))) {
+      return;
+    }
+    durations.put(buildTarget, finished.getTimestamp() - startTimestamp);
+  }
+
+  @Override
+  public void outputTrace(BuildId buildId) {
+    if (durations.isEmpty()) {
+      return;
+    }
+    try {
+      RuleDurationHistory.load(projectFilesystem)
+          .withLatestDurations(durations)
+          .save(projectFilesystem);
+    } catch (IOException e) {
+      LOG.warn(e, "Could not save the durations of the rules that were built.");
+    }
+  }
+}
@@ -24,6 +24,7 @@ import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventListener;
 import com.facebook.buck.event.ChromeTraceEvent;
 import com.facebook.buck.event.TraceEvent;
+import com.facebook.buck.log.CommandThreadFactory;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.parser.ParseEvent;
@@ -43,6 +44,7 @@ import com.fasterxml.jackson.databind.ObjectMapper;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Functions;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
 import com.google.common.base.Throwables;
@@ -52,6 +54,7 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -65,11 +68,18 @@ import java.util.concurrent.TimeUnit;
 
 /**
  * Logs events to a json file formatted to be viewed in Chrome Trace View (chrome://tracing).
+ * <p>
+ * By default, events are kept in memory and written out when the command finishes. In streaming
+ * mode, they are instead written to a gzipped trace as they happen, which keeps the memory used by
+ * long builds bounded and leaves a readable trace behind if the build is killed.
  */
 public class ChromeTraceBuildListener implements BuckEventListener {
   private static final Logger LOG = Logger.get(ChromeTraceBuildListener.class);
   private static final String TRACE_FILE_PATTERN =
-    "build\\.[a-z\\d\\-\\.]*\\.trace";
+    "build\\.[a-z\\d\\-\\.]*\\.trace(\\.gz)?";
+
+  /** How many events may be waiting to be written in streaming mode before the event bus blocks. */
+  private static final int STREAMING_BUFFER_SIZE = 4096;
 
   private final ProjectFilesystem projectFilesystem;
   private final Clock clock;
@@ -78,11 +88,49 @@ public class ChromeTraceBuildListener implements BuckEventListener {
   private ConcurrentLinkedQueue<ChromeTraceEvent> eventList =
       new ConcurrentLinkedQueue<ChromeTraceEvent>();
 
+  /** Present in streaming mode, along with the path of the trace it writes. */
+  private final Optional<StreamingChromeTraceWriter> streamingWriter;
+  private final Optional<Path> streamingTracePath;
+
   public ChromeTraceBuildListener(
       ProjectFilesystem projectFilesystem,
       Clock clock,
       int tracesToKeep) {
-    this(projectFilesystem, clock, Locale.US, TimeZone.getDefault(), tracesToKeep);
+    this(
+        projectFilesystem,
+        clock,
+        Locale.US,
+        TimeZone.getDefault(),
+        tracesToKeep,
+        Optional.<BuildId>absent());
+  }
+
+  /**
+   * Creates a listener in streaming mode, which writes the trace of {@code buildId} to a gzipped
+   * file as events are received.
+   */
+  public ChromeTraceBuildListener(
+      ProjectFilesystem projectFilesystem,
+      Clock clock,
+      int tracesToKeep,
+      BuildId buildId) {
+    this(
+        projectFilesystem,
+        clock,
+        Locale.US,
+        TimeZone.getDefault(),
+        tracesToKeep,
+        Optional.of(buildId));
+  }
+
+  @VisibleForTesting
+  ChromeTraceBuildListener(
+      ProjectFilesystem projectFilesystem,
+      Clock clock,
+      Locale locale,
+      TimeZone timeZone,
+      int tracesToKeep) {
+    this(projectFilesystem, clock, locale, timeZone, tracesToKeep, Optional.<BuildId>absent());
   }
 
   @VisibleForTesting
@@ -91,7 +139,8 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       Clock clock,
       final Locale locale,
       final TimeZone timeZone,
-      int tracesToKeep) {
+      int tracesToKeep,
+      Optional<BuildId> streamingBuildId) {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.clock = Preconditions.checkNotNull(clock);
     this.dateFormat = new ThreadLocal<SimpleDateFormat>() {
@@ -103,11 +152,41 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       }
     };
     this.tracesToKeep = tracesToKeep;
+
+    Optional<StreamingChromeTraceWriter> streamingWriter = Optional.absent();
+    Optional<Path> streamingTracePath = Optional.absent();
+    if (streamingBuildId.isPresent()) {
+      Path tracePath = Paths.get(getTracePath(streamingBuildId.get()) + ".gz");
+      try {
+        projectFilesystem.createParentDirs(tracePath);
+        streamingWriter = Optional.of(
+            new StreamingChromeTraceWriter(
+                new FileOutputStream(projectFilesystem.getFileForRelativePath(tracePath)),
+                STREAMING_BUFFER_SIZE,
+                new CommandThreadFactory("chrome-trace-writer")));
+        streamingTracePath = Optional.of(tracePath);
+        LOG.debug("Streaming Chrome trace to %s", tracePath);
+      } catch (IOException e) {
+        LOG.warn(e, "Could not open %s; writing the trace when the command ends.", tracePath);
+      }
+    }
+    this.streamingWriter = streamingWriter;
+    this.streamingTracePath = streamingTracePath;
+
     addProcessMetadataEvent();
   }
 
+  private Path getTracePath(BuildId buildId) {
+    String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
+    return Paths.get(
+        String.format("%s/build.%s.%s.trace",
+            BuckConstant.BUCK_TRACE_DIR,
+            filenameTime,
+            buildId));
+  }
+
   private void addProcessMetadataEvent() {
-    eventList.add(
+    addEvent(
         new ChromeTraceEvent(
             "buck",
             "process_name",
@@ -160,23 +239,26 @@ public class ChromeTraceBuildListener implements BuckEventListener {
   }
 
   @Override
-  public void outputTrace(BuildId buildId) {
+  public void outputTrace(BuildId buildId) throws InterruptedException {
     Preconditions.checkNotNull(buildId);
     try {
-      String filenameTime = dateFormat.get().format(new Date(clock.currentTimeMillis()));
-      String tracePath = String.format("%s/build.%s.%s.trace",
-          BuckConstant.BUCK_TRACE_DIR,
-          filenameTime,
-          buildId);
-      File traceOutput = projectFilesystem.getFileForRelativePath(tracePath);
-      projectFilesystem.createParentDirs(tracePath);
-
-      ObjectMapper mapper = new ObjectMapper();
-      LOG.debug("Writing Chrome trace to %s", tracePath);
-      mapper.writeValue(traceOutput, eventList);
-
-      String symlinkPath = String.format("%s/build.trace",
-          BuckConstant.BUCK_TRACE_DIR);
+      File traceOutput;
+      String symlinkPath;
+      if (streamingWriter.isPresent()) {
+        streamingWriter.get().close();
+        traceOutput = projectFilesystem.getFileForRelativePath(streamingTracePath.get());
+        symlinkPath = String.format("%s/build.trace.gz", BuckConstant.BUCK_TRACE_DIR);
+      } else {
+        Path tracePath = getTracePath(buildId);
+        traceOutput = projectFilesystem.getFileForRelativePath(tracePath);
+        projectFilesystem.createParentDirs(tracePath);
+
+        ObjectMapper mapper = new ObjectMapper();
+        LOG.debug("Writing Chrome trace to %s", tracePath);
+        mapper.writeValue(traceOutput, eventList);
+        symlinkPath = String.format("%s/build.trace", BuckConstant.BUCK_TRACE_DIR);
+      }
+
       File symlinkFile = projectFilesystem.getFileForRelativePath(symlinkPath);
       projectFilesystem.createSymLink(Paths.get(traceOutput.toURI()),
           Paths.get(symlinkFile.toURI()),
@@ -430,7 +512,7 @@ public class ChromeTraceBuildListener implements BuckEventListener {
       ChromeTraceEvent.Phase phase,
       ImmutableMap<String, String> arguments,
       BuckEvent event) {
-    eventList.add(new ChromeTraceEvent(category,
+    addEvent(new ChromeTraceEvent(category,
         name,
         phase,
         0,
@@ -438,4 +520,16 @@ public class ChromeTraceBuildListener implements BuckEventListener {
         TimeUnit.NANOSECONDS.toMicros(event.getNanoTime()),
         arguments));
   }
+
+  private void addEvent(ChromeTraceEvent event) {
+    if (!streamingWriter.isPresent()) {
+      eventList.add(event);
+      return;
+    }
+    try {
+      streamingWriter.get().write(event);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
 }
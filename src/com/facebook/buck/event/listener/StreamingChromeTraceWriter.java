@@ -0,0 +1,171 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import com.facebook.buck.event.ChromeTraceEvent;
+import com.facebook.buck.log.Logger;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.SerializationFeature;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.GZIPOutputStream;
+
+import javax.annotation.Nullable;
+
+/**
+ * Writes {@link ChromeTraceEvent}s to a gzipped JSON array on a background thread as they arrive,
+ * rather than holding the whole trace in memory until the command finishes. At most
+ * {@code bufferSize} events wait to be written; beyond that, {@link #write(ChromeTraceEvent)}
+ * blocks until the writer catches up.
+ * <p>
+ * Whenever the writer runs out of events, it flushes the compressed stream, so the file is a
+ * readable trace even if Buck is killed before {@link #close()} is called: the trace viewer
+ * accepts a JSON array which is missing its closing bracket.
+ */
+class StreamingChromeTraceWriter implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(StreamingChromeTraceWriter.class);
+
+  /** Queued by {@link #close()} after the last event. */
+  private static final Object END_OF_TRACE = new Object();
+
+  /**
+   * Holds {@link ChromeTraceEvent}s, {@link CountDownLatch}es to release once everything before
+   * them has been flushed, and finally {@link #END_OF_TRACE}.
+   */
+  private final BlockingQueue<Object> queue;
+  private final ObjectMapper objectMapper;
+  private final JsonGenerator generator;
+  private final Thread writerThread;
+
+  /** Only accessed by the writer thread until it has been joined. */
+  @Nullable private IOException failure;
+
+  StreamingChromeTraceWriter(
+      OutputStream outputStream,
+      int bufferSize,
+      ThreadFactory threadFactory) throws IOException {
+    Preconditions.checkArgument(bufferSize > 0);
+    this.queue = new ArrayBlockingQueue<>(bufferSize);
+    this.objectMapper = new ObjectMapper();
+    // Flushing a gzip stream in sync mode ends the current block, so only flush when idle.
+    this.objectMapper.disable(SerializationFeature.FLUSH_AFTER_WRITE_VALUE);
+    this.generator = objectMapper.getJsonFactory().createJsonGenerator(
+        new GZIPOutputStream(outputStream, /* syncFlush */ true));
+    this.generator.writeStartArray();
+    this.writerThread = threadFactory.newThread(
+        new Runnable() {
+          @Override
+          public void run() {
+            writeQueuedEvents();
+          }
+        });
+    // A command which dies without closing the writer must not be kept alive by it.
+    this.writerThread.setDaemon(true);
+    this.writerThread.start();
+  }
+
+  public void write(ChromeTraceEvent event) throws InterruptedException {
+    queue.put(Preconditions.checkNotNull(event));
+  }
+
+  /**
+   * Blocks until every event passed to {@link #write(ChromeTraceEvent)} so far has been written
+   * and flushed.
+   */
+  public void flush() throws InterruptedException {
+    CountDownLatch flushed = new CountDownLatch(1);
+    queue.put(flushed);
+    flushed.await();
+  }
+
+  private void writeQueuedEvents() {
+    try {
+      while (true) {
+        Object next = queue.poll();
+        if (next == null) {
+          // Make everything written so far readable before waiting for more.
+          flushGenerator();
+          next = queue.take();
+        }
+
+        if (next == END_OF_TRACE) {
+          closeGenerator();
+          return;
+        } else if (next instanceof CountDownLatch) {
+          flushGenerator();
+          ((CountDownLatch) next).countDown();
+        } else if (failure == null) {
+          // Once writing has failed, keep draining the queue so that the event bus never blocks.
+          try {
+            objectMapper.writeValue(generator, next);
+          } catch (IOException e) {
+            LOG.warn(e, "Could not write to the Chrome trace; dropping further events.");
+            failure = e;
+          }
+        }
+      }
+    } catch (InterruptedException e) {
+      LOG.warn(e, "Interrupted while waiting for Chrome trace events.");
+    }
+  }
+
+  private void closeGenerator() {
+    try {
+      if (failure == null) {
+        generator.writeEndArray();
+      }
+      generator.close();
+    } catch (IOException e) {
+      if (failure == null) {
+        failure = e;
+      }
+    }
+  }
+
+  private void flushGenerator() {
+    if (failure != null) {
+      return;
+    }
+    try {
+      generator.flush();
+    } catch (IOException e) {
+      failure = e;
+    }
+  }
+
+  /**
+   * Writes any queued events, ends the trace and closes the underlying stream.
+   *
+   * @throws IOException if any event could not be written.
+   */
+  @Override
+  public void close() throws IOException, InterruptedException {
+    queue.put(END_OF_TRACE);
+    writerThread.join();
+    if (failure != null) {
+      throw failure;
+    }
+  }
+}
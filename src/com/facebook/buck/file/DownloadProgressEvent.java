@@ -18,11 +18,12 @@ package com.facebook.buck.file;
 
 import com.facebook.buck.event.AbstractBuckEvent;
 import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.CoalescableEvent;
 import com.google.common.base.Preconditions;
 
 import java.net.URI;
 
-public class DownloadProgressEvent extends AbstractBuckEvent {
+public class DownloadProgressEvent extends AbstractBuckEvent implements CoalescableEvent {
 
   private final URI uri;
   private final long downloadedSoFar;
@@ -52,4 +53,12 @@ public class DownloadProgressEvent extends AbstractBuckEvent {
   public String getEventName() {
     return "DownloadProgressEvent";
   }
+
+  /**
+   * Only the latest progress of each download is of interest.
+   */
+  @Override
+  public Object getCoalescingKey() {
+    return uri;
+  }
 }
@@ -0,0 +1,447 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * An immutable DAG that stores its edges in primitive arrays rather than in collections of nodes.
+ * <p>
+ * Every node is given a dense id, from 0 to {@link #getNodeCount()} - 1, in the order the nodes
+ * were added. The edges are kept in compressed sparse row form: the outgoing nodes of the node with
+ * id {@code i} are the ids in {@code outgoingEdges} from {@code outgoingOffsets[i]} up to
+ * {@code outgoingOffsets[i + 1]}, and likewise for incoming edges. That takes two ints per edge
+ * in each direction and no objects per node or edge beyond the nodes themselves, where
+ * {@link DefaultImmutableDirectedAcyclicGraph} needs a multimap entry per edge in each direction.
+ * <p>
+ * The {@link TraversableGraph} methods return lightweight views, and {@link #traverseBottomUp}
+ * visits nodes in dependency order using counters in a single int array rather than a map.
+ */
+public final class CompactDirectedAcyclicGraph<T> implements TraversableGraph<T> {
+
+  private final ImmutableList<T> nodes;
+  private final ImmutableMap<T, Integer> ids;
+  private final int[] outgoingOffsets;
+  private final int[] outgoingEdges;
+  private final int[] incomingOffsets;
+  private final int[] incomingEdges;
+  private final int[] nodesWithNoOutgoingEdges;
+  private final int[] nodesWithNoIncomingEdges;
+
+  private CompactDirectedAcyclicGraph(
+      ImmutableList<T> nodes,
+      ImmutableMap<T, Integer> ids,
+      int[] outgoingOffsets,
+      int[] outgoingEdges,
+      int[] incomingOffsets,
+      int[] incomingEdges) {
+    this.nodes = nodes;
+    this.ids = ids;
+    this.outgoingOffsets = outgoingOffsets;
+    this.outgoingEdges = outgoingEdges;
+    this.incomingOffsets = incomingOffsets;
+    this.incomingEdges = incomingEdges;
+    this.nodesWithNoOutgoingEdges = findNodesWithNoEdges(outgoingOffsets);
+    this.nodesWithNoIncomingEdges = findNodesWithNoEdges(incomingOffsets);
+  }
+
+  public static <T> Builder<T> builder() {
+    return new Builder<>();
+  }
+
+  public static <T> CompactDirectedAcyclicGraph<T> copyOf(MutableDirectedGraph<T> graph) {
+    return copyOf(graph.getNodes(), graph);
+  }
+
+  public static <T> CompactDirectedAcyclicGraph<T> copyOf(
+      DefaultImmutableDirectedAcyclicGraph<T> graph) {
+    return copyOf(graph.getNodes(), graph);
+  }
+
+  private static <T> CompactDirectedAcyclicGraph<T> copyOf(
+      Iterable<T> nodes,
+      TraversableGraph<T> graph) {
+    Builder<T> builder = builder();
+    // Add every node before any edges so that ids follow the iteration order of the nodes.
+    for (T node : nodes) {
+      builder.addNode(node);
+    }
+    for (T node : nodes) {
+      for (T sink : graph.getOutgoingNodesFor(node)) {
+        builder.addEdge(node, sink);
+      }
+    }
+    return builder.build();
+  }
+
+  public int getNodeCount() {
+    return nodes.size();
+  }
+
+  public int getEdgeCount() {
+    return outgoingEdges.length;
+  }
+
+  /** @return every node in the graph, indexed by id. */
+  public ImmutableList<T> getNodes() {
+    return nodes;
+  }
+
+  public boolean containsNode(T node) {
+    return ids.containsKey(node);
+  }
+
+  public T getNode(int id) {
+    return nodes.get(id);
+  }
+
+  public int getId(T node) {
+    Integer id = ids.get(node);
+    Preconditions.checkArgument(id != null, "%s is not in the graph.", node);
+    return id;
+  }
+
+  public int getOutDegree(int id) {
+    return outgoingOffsets[id + 1] - outgoingOffsets[id];
+  }
+
+  public int getInDegree(int id) {
+    return incomingOffsets[id + 1] - incomingOffsets[id];
+  }
+
+  /** @return the id of the {@code index}th node that {@code id} has an edge to. */
+  public int getOutgoingNode(int id, int index) {
+    Preconditions.checkElementIndex(index, getOutDegree(id));
+    return outgoingEdges[outgoingOffsets[id] + index];
+  }
+
+  /** @return the id of the {@code index}th node that has an edge to {@code id}. */
+  public int getIncomingNode(int id, int index) {
+    Preconditions.checkElementIndex(index, getInDegree(id));
+    return incomingEdges[incomingOffsets[id] + index];
+  }
+
+  @Override
+  public List<T> getNodesWithNoIncomingEdges() {
+    return new NodeList(nodesWithNoIncomingEdges, 0, nodesWithNoIncomingEdges.length);
+  }
+
+  @Override
+  public List<T> getNodesWithNoOutgoingEdges() {
+    return new NodeList(nodesWithNoOutgoingEdges, 0, nodesWithNoOutgoingEdges.length);
+  }
+
+  @Override
+  public List<T> getIncomingNodesFor(T sink) {
+    int id = getId(sink);
+    return new NodeList(incomingEdges, incomingOffsets[id], incomingOffsets[id + 1]);
+  }
+
+  @Override
+  public List<T> getOutgoingNodesFor(T source) {
+    int id = getId(source);
+    return new NodeList(outgoingEdges, outgoingOffsets[id], outgoingOffsets[id + 1]);
+  }
+
+  /**
+   * @return the ids of all of the nodes, ordered so that every node comes after all of the nodes it
+   *     has an edge to.
+   */
+  public int[] getIdsInBottomUpOrder() {
+    int[] order = new int[nodes.size()];
+    // The builder rejects cycles, so every node is reached.
+    Preconditions.checkState(fillInBottomUpOrder(order) == order.length);
+    return order;
+  }
+
+  /**
+   * Kahn's algorithm, using {@code order} itself as the queue of nodes whose outgoing nodes have
+   * all been seen.
+   *
+   * @return how many nodes were put in {@code order}, which is less than the number of nodes if
+   *     and only if there is a cycle.
+   */
+  private int fillInBottomUpOrder(int[] order) {
+    int[] remainingOutDegrees = new int[nodes.size()];
+    int head = 0;
+    int tail = 0;
+    for (int id = 0; id < nodes.size(); id++) {
+      remainingOutDegrees[id] = getOutDegree(id);
+      if (remainingOutDegrees[id] == 0) {
+        order[tail++] = id;
+      }
+    }
+    while (head < tail) {
+      int id = order[head++];
+      for (int i = incomingOffsets[id]; i < incomingOffsets[id + 1]; i++) {
+        int source = incomingEdges[i];
+        if (--remainingOutDegrees[source] == 0) {
+          order[tail++] = source;
+        }
+      }
+    }
+    return tail;
+  }
+
+  /**
+   * Visits every node on {@code executor}, each one only once all of the nodes it has an edge to
+   * have been visited, so nodes whose dependencies are done are visited in parallel. If a visit
+   * throws, no further nodes are started and the exception is rethrown once the visits that are
+   * already running have finished.
+   */
+  public void traverseBottomUp(Executor executor, Visitor<T> visitor)
+      throws InterruptedException {
+    if (nodes.isEmpty()) {
+      return;
+    }
+    ParallelTraversal traversal = new ParallelTraversal(executor, visitor);
+    traversal.start();
+    traversal.await();
+  }
+
+  /** Callback for {@link #traverseBottomUp}, which may be called from several threads at once. */
+  public interface Visitor<T> {
+    void visit(T node);
+  }
+
+  private static int[] findNodesWithNoEdges(int[] offsets) {
+    int count = 0;
+    int[] ids = new int[offsets.length - 1];
+    for (int id = 0; id < ids.length; id++) {
+      if (offsets[id] == offsets[id + 1]) {
+        ids[count++] = id;
+      }
+    }
+    return Arrays.copyOf(ids, count);
+  }
+
+  private class ParallelTraversal {
+    private final Executor executor;
+    private final Visitor<T> visitor;
+    private final AtomicIntegerArray remainingOutDegrees;
+    /** Visits that have been submitted but not yet finished. */
+    private final AtomicInteger pending = new AtomicInteger();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private final CountDownLatch done = new CountDownLatch(1);
+
+    public ParallelTraversal(Executor executor, Visitor<T> visitor) {
+      this.executor = Preconditions.checkNotNull(executor);
+      this.visitor = Preconditions.checkNotNull(visitor);
+      this.remainingOutDegrees = new AtomicIntegerArray(nodes.size());
+      for (int id = 0; id < nodes.size(); id++) {
+        remainingOutDegrees.set(id, getOutDegree(id));
+      }
+    }
+
+    public void start() {
+      // Counts as a pending visit until every leaf has been submitted, so that the traversal
+      // can't be considered done while they are still being submitted.
+      pending.incrementAndGet();
+      for (int id : nodesWithNoOutgoingEdges) {
+        submit(id);
+      }
+      finishOne();
+    }
+
+    public void await() throws InterruptedException {
+      done.await();
+      Throwable throwable = failure.get();
+      if (throwable != null) {
+        throw Throwables.propagate(throwable);
+      }
+    }
+
+    private void submit(final int id) {
+      pending.incrementAndGet();
+      try {
+        executor.execute(
+            new Runnable() {
+              @Override
+              public void run() {
+                visit(id);
+              }
+            });
+      } catch (RuntimeException e) {
+        failure.compareAndSet(null, e);
+        finishOne();
+      }
+    }
+
+    private void visit(int id) {
+      try {
+        if (failure.get() != null) {
+          return;
+        }
+        visitor.visit(nodes.get(id));
+        for (int i = incomingOffsets[id]; i < incomingOffsets[id + 1]; i++) {
+          int source = incomingEdges[i];
+          if (remainingOutDegrees.decrementAndGet(source) == 0) {
+            submit(source);
+          }
+        }
+      } catch (Throwable t) {
+        failure.compareAndSet(null, t);
+      } finally {
+        finishOne();
+      }
+    }
+
+    private void finishOne() {
+      if (pending.decrementAndGet() == 0) {
+        done.countDown();
+      }
+    }
+  }
+
+  /** Read-only view of a range of an array of ids as the nodes they stand for. */
+  private class NodeList extends AbstractList<T> {
+    private final int[] ids;
+    private final int start;
+    private final int end;
+
+    public NodeList(int[] ids, int start, int end) {
+      this.ids = ids;
+      this.start = start;
+      this.end = end;
+    }
+
+    @Override
+    public T get(int index) {
+      Preconditions.checkElementIndex(index, end - start);
+      return nodes.get(ids[start + index]);
+    }
+
+    @Override
+    public int size() {
+      return end - start;
+    }
+  }
+
+  /**
+   * Collects nodes and edges, interning each node to an id as it is first seen, and keeps edges as
+   * pairs of ids until {@link #build()} lays them out.
+   */
+  public static class Builder<T> {
+    private final List<T> nodes = Lists.newArrayList();
+    private final Map<T, Integer> ids = Maps.newHashMap();
+    private int[] sources = new int[16];
+    private int[] sinks = new int[16];
+    private int edgeCount = 0;
+
+    private Builder() {}
+
+    /** @return the id of {@code node}, which is added to the graph if it isn't already in it. */
+    public int addNode(T node) {
+      Preconditions.checkNotNull(node);
+      Integer id = ids.get(node);
+      if (id == null) {
+        id = nodes.size();
+        nodes.add(node);
+        ids.put(node, id);
+      }
+      return id;
+    }
+
+    /** Adds an edge from {@code source} to {@code sink}, and either node if it's missing. */
+    public Builder<T> addEdge(T source, T sink) {
+      int sourceId = addNode(source);
+      int sinkId = addNode(sink);
+      if (edgeCount == sources.length) {
+        sources = Arrays.copyOf(sources, edgeCount * 2);
+        sinks = Arrays.copyOf(sinks, edgeCount * 2);
+      }
+      sources[edgeCount] = sourceId;
+      sinks[edgeCount] = sinkId;
+      edgeCount++;
+      return this;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the edges form a cycle.
+     */
+    public CompactDirectedAcyclicGraph<T> build() {
+      int nodeCount = nodes.size();
+      int[] outgoingOffsets = new int[nodeCount + 1];
+      int[] outgoingEdges = layOut(sources, sinks, nodeCount, outgoingOffsets);
+      int[] incomingOffsets = new int[nodeCount + 1];
+      int[] incomingEdges = layOut(sinks, sources, nodeCount, incomingOffsets);
+      CompactDirectedAcyclicGraph<T> graph = new CompactDirectedAcyclicGraph<>(
+          ImmutableList.copyOf(nodes),
+          ImmutableMap.copyOf(ids),
+          outgoingOffsets,
+          outgoingEdges,
+          incomingOffsets,
+          incomingEdges);
+      Preconditions.checkArgument(
+          graph.fillInBottomUpOrder(new int[nodeCount]) == nodeCount,
+          "Graph must not contain cycles.");
+      return graph;
+    }
+
+    /**
+     * Sorts the edges by their {@code from} end, dropping duplicates, and fills in {@code offsets}.
+     * The {@code to} ends of the edges from each node keep the order the edges were added in.
+     */
+    private int[] layOut(int[] from, int[] to, int nodeCount, int[] offsets) {
+      for (int i = 0; i < edgeCount; i++) {
+        offsets[from[i] + 1]++;
+      }
+      for (int id = 0; id < nodeCount; id++) {
+        offsets[id + 1] += offsets[id];
+      }
+      int[] next = Arrays.copyOf(offsets, nodeCount);
+      int[] edges = new int[edgeCount];
+      for (int i = 0; i < edgeCount; i++) {
+        edges[next[from[i]]++] = to[i];
+      }
+
+      // Remove duplicate edges, compacting the array in place.
+      int[] lastSeenFrom = new int[nodeCount];
+      Arrays.fill(lastSeenFrom, -1);
+      int write = 0;
+      int start = 0;
+      for (int id = 0; id < nodeCount; id++) {
+        int end = offsets[id + 1];
+        for (int i = start; i < end; i++) {
+          int target = edges[i];
+          if (lastSeenFrom[target] != id) {
+            lastSeenFrom[target] = id;
+            edges[write++] = target;
+          }
+        }
+        start = end;
+        offsets[id + 1] = write;
+      }
+      return write == edges.length ? edges : Arrays.copyOf(edges, write);
+    }
+  }
+}
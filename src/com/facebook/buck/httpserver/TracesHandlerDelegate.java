@@ -41,7 +41,7 @@ public class TracesHandlerDelegate extends AbstractTemplateHandlerDelegate {
   static final Pattern TRACE_ID_PATTERN = Pattern.compile(TRACE_ID_PATTERN_TEXT);
 
   private static final Pattern TRACE_FILE_NAME_PATTERN = Pattern.compile(
-      "build\\.(?:[\\d\\-\\.]+\\.)?" + TRACE_ID_PATTERN + "\\.trace");
+      "build\\.(?:[\\d\\-\\.]+\\.)?" + TRACE_ID_PATTERN + "\\.trace(?:\\.gz)?");
 
   private final TracesHelper tracesHelper;
 
@@ -37,12 +37,16 @@ import java.nio.file.Path;
 import java.text.DateFormat;
 import java.text.SimpleDateFormat;
 import java.util.Date;
+import java.util.zip.GZIPInputStream;
 
 /**
- * Utility to help with reading data from build trace files.
+ * Utility to help with reading data from build trace files. Traces that were streamed while the
+ * command ran are gzipped, and are decompressed transparently when read.
  */
 public class TracesHelper {
 
+  private static final String GZIPPED_TRACE_SUFFIX = ".trace.gz";
+
   private final ProjectFilesystem projectFilesystem;
 
   TracesHelper(ProjectFilesystem projectFilesystem) {
@@ -110,7 +114,7 @@ public class TracesHelper {
     Preconditions.checkNotNull(id);
     ImmutableList.Builder<InputStream> tracesBuilder = ImmutableList.builder();
     for (Path p : getPathsToTraces(id)) {
-      tracesBuilder.add(projectFilesystem.getInputStreamForRelativePath(p));
+      tracesBuilder.add(openTrace(p));
     }
     return tracesBuilder.build();
   }
@@ -138,7 +142,7 @@ public class TracesHelper {
 
   private Optional<String> parseCommandFrom(Path pathToTrace) {
     try (
-        InputStream input = projectFilesystem.newFileInputStream(pathToTrace);
+        InputStream input = openTrace(pathToTrace);
         JsonReader jsonReader = new JsonReader(new InputStreamReader(input))) {
       jsonReader.beginArray();
       Gson gson = new Gson();
@@ -166,11 +170,28 @@ public class TracesHelper {
     }
   }
 
+  private InputStream openTrace(Path pathToTrace) throws IOException {
+    InputStream input = projectFilesystem.newFileInputStream(pathToTrace);
+    if (pathToTrace.getFileName().toString().endsWith(GZIPPED_TRACE_SUFFIX)) {
+      try {
+        return new GZIPInputStream(input);
+      } catch (IOException e) {
+        input.close();
+        throw e;
+      }
+    }
+    return input;
+  }
+
+  private static boolean isTraceWithId(Path path, String id) {
+    String name = path.getFileName().toString();
+    return name.endsWith("." + id + ".trace") || name.endsWith("." + id + GZIPPED_TRACE_SUFFIX);
+  }
+
   private boolean isTraceForBuild(Path path, String id) {
     String testPrefix = "build.";
-    String testSuffix = "." + id + ".trace";
     String name = path.getFileName().toString();
-    return name.startsWith(testPrefix) && name.endsWith(testSuffix);
+    return name.startsWith(testPrefix) && isTraceWithId(path, id);
   }
 
   /**
@@ -185,8 +206,7 @@ public class TracesHelper {
 
     ImmutableList.Builder<Path> tracesBuilder = ImmutableList.builder();
     for (Path path : projectFilesystem.getDirectoryContents(BuckConstant.BUCK_TRACE_DIR)) {
-      String name = path.getFileName().toString();
-      if (name.endsWith("." + id + ".trace")) {
+      if (isTraceWithId(path, id)) {
         tracesBuilder.add(path);
       }
     }
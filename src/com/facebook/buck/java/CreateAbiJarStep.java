@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.java.abi2.StubJar;
+import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.Step;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * {@link Step} that writes a jar containing only the ABI of a directory or jar of {@code .class}
+ * files: its non-private classes, fields and methods, without any method bodies. Code which is
+ * compiled against the ABI jar compiles exactly as it would against the full classes.
+ */
+public class CreateAbiJarStep implements Step {
+
+  private final Path pathToJarOrClassesDirectory;
+  private final Path pathToAbiJar;
+
+  public CreateAbiJarStep(Path pathToJarOrClassesDirectory, Path pathToAbiJar) {
+    this.pathToJarOrClassesDirectory = Preconditions.checkNotNull(pathToJarOrClassesDirectory);
+    this.pathToAbiJar = Preconditions.checkNotNull(pathToAbiJar);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) {
+    ProjectFilesystem filesystem = context.getProjectFilesystem();
+    Path abiJar = filesystem.resolve(pathToAbiJar);
+    try {
+      Files.deleteIfExists(abiJar);
+      new StubJar(filesystem.resolve(pathToJarOrClassesDirectory)).writeTo(abiJar);
+    } catch (IOException e) {
+      context.logError(e, "Unable to write the ABI of %s to %s.",
+          pathToJarOrClassesDirectory,
+          pathToAbiJar);
+      return 1;
+    }
+    return 0;
+  }
+
+  @Override
+  public String getShortName() {
+    return "abi_jar";
+  }
+
+  @Override
+  public String getDescription(ExecutionContext context) {
+    return String.format("abi_jar %s %s", pathToJarOrClassesDirectory, pathToAbiJar);
+  }
+}
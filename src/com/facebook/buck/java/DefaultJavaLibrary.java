@@ -54,7 +54,6 @@ import com.facebook.buck.util.HumanReadableException;
 import com.facebook.buck.util.Optionals;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
-import com.google.common.base.Function;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
@@ -79,9 +78,9 @@ import java.net.URL;
 import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Collection;
 import java.util.Collections;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.SortedSet;
 
@@ -343,6 +342,42 @@ public class DefaultJavaLibrary extends AbstractBuildRule
     return getPathToAbiOutputDir().resolve("abi");
   }
 
+  /**
+   * @return the path to a jar of just the ABI of this library, which rules that depend on it are
+   *     compiled against, if {@code [java] compile_against_abis} is set.
+   */
+  public Optional<Path> getAbiJar() {
+    if (!outputJar.isPresent() ||
+        !javacOptions.getJavaCompilerEnvironment().shouldCompileAgainstAbiJars()) {
+      return Optional.absent();
+    }
+    return Optional.of(
+        getPathToAbiOutputDir().resolve(getBuildTarget().getShortName() + "-abi.jar"));
+  }
+
+  /**
+   * Replaces the output jar of each {@link DefaultJavaLibrary} in {@code classpathEntries} with its
+   * ABI jar, if it has one. Dependents only need the ABI to compile, and the ABI jars are smaller
+   * and change less often.
+   */
+  private ImmutableSet<Path> toCompileTimeClasspath(
+      ImmutableSetMultimap<JavaLibrary, Path> classpathEntries) {
+    ImmutableSet.Builder<Path> classpath = ImmutableSet.builder();
+    for (Map.Entry<JavaLibrary, Path> entry : classpathEntries.entries()) {
+      JavaLibrary library = entry.getKey();
+      Path path = entry.getValue();
+      if (library != this && library instanceof DefaultJavaLibrary) {
+        DefaultJavaLibrary javaLibrary = (DefaultJavaLibrary) library;
+        Optional<Path> abiJar = javaLibrary.getAbiJar();
+        if (abiJar.isPresent() && path.equals(javaLibrary.getPathToOutputFile())) {
+          path = abiJar.get();
+        }
+      }
+      classpath.add(path);
+    }
+    return classpath.build();
+  }
+
   private static Path getOutputJarDirPath(BuildTarget target) {
     return BuildTargets.getGenPath(target, "lib__%s__output");
   }
@@ -547,24 +582,20 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
     // We don't want to add these to the declared or transitive deps, since they're only used at
     // compile time.
-    Collection<Path> provided = JavaLibraryClasspathProvider.getJavaLibraryDeps(providedDeps)
-        .transformAndConcat(
-            new Function<JavaLibrary, Collection<Path>>() {
-              @Override
-              public Collection<Path> apply(JavaLibrary input) {
-                return input.getOutputClasspathEntries().values();
-              }
-            })
-        .filter(Predicates.notNull())
-        .toSet();
+    ImmutableSetMultimap.Builder<JavaLibrary, Path> providedClasspathEntries =
+        ImmutableSetMultimap.builder();
+    for (JavaLibrary library : JavaLibraryClasspathProvider.getJavaLibraryDeps(providedDeps)) {
+      providedClasspathEntries.putAll(library.getOutputClasspathEntries());
+    }
+    ImmutableSet<Path> provided = toCompileTimeClasspath(providedClasspathEntries.build());
 
     ImmutableSet<Path> transitive = ImmutableSet.<Path>builder()
-        .addAll(transitiveClasspathEntries.values())
+        .addAll(toCompileTimeClasspath(transitiveClasspathEntries))
         .addAll(provided)
         .build();
 
     ImmutableSet<Path> declared = ImmutableSet.<Path>builder()
-        .addAll(declaredClasspathEntries.values())
+        .addAll(toCompileTimeClasspath(declaredClasspathEntries))
         .addAll(provided)
         .build();
 
@@ -581,6 +612,14 @@ public class DefaultJavaLibrary extends AbstractBuildRule
 
     addPostprocessClassesCommands(steps, postprocessClassesCommands, outputDirectory);
 
+    // Dependents may be compiled against the ABI as soon as the classes are final. The directory
+    // for the jar was created along with the one for the ABI key.
+    Optional<Path> abiJar = getAbiJar();
+    if (abiJar.isPresent()) {
+      steps.add(new CreateAbiJarStep(outputDirectory, abiJar.get()));
+      buildableContext.recordArtifact(abiJar.get());
+    }
+
     // If there are resources, then link them to the appropriate place in the classes directory.
     JavaPackageFinder finder = context.getJavaPackageFinder();
     if (resourcesRoot.isPresent()) {
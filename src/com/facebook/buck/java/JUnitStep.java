@@ -23,17 +23,21 @@ import com.facebook.buck.test.selectors.TestSelectorList;
 import com.facebook.buck.util.BuckConstant;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 
 import java.io.File;
+import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 public class JUnitStep extends ShellStep {
@@ -46,9 +50,21 @@ public class JUnitStep extends ShellStep {
   static final String TESTNG_TEST_RUNNER_CLASS_NAME =
       "com.facebook.buck.junit.TestNGMain";
 
+  // The runners that the main classes above use, which a TestRunnerWorker invokes directly.
+  @VisibleForTesting
+  static final String JUNIT_RUNNER_CLASS_NAME = "com.facebook.buck.junit.JUnitRunner";
+  @VisibleForTesting
+  static final String TESTNG_RUNNER_CLASS_NAME = "com.facebook.buck.junit.TestNGRunner";
+
   @VisibleForTesting
   public static final String BUILD_ID_PROPERTY = "com.facebook.buck.buildId";
 
+  /**
+   * Asks the JUnit runner to list the classes each test class loaded, in a {@code .classes} file
+   * next to its results. See {@code com.facebook.buck.junit.LoadedClassRecorder}.
+   */
+  static final String RECORD_LOADED_CLASSES_PROPERTY = "com.facebook.buck.recordLoadedClasses";
+
   private final ImmutableSet<Path> classpathEntries;
   private final Iterable<String> testClassNames;
   private final List<String> vmArgs;
@@ -106,9 +122,14 @@ public class JUnitStep extends ShellStep {
         testSelectorList,
         isDryRun,
         type,
-        Paths.get(System.getProperty(
-                "buck.testrunner_classes",
-                new File("build/testrunner/classes").getAbsolutePath())));
+        getDefaultTestRunnerClassesDirectory());
+  }
+
+  /** @return where the classes of the test runner that ships with Buck are. */
+  public static Path getDefaultTestRunnerClassesDirectory() {
+    return Paths.get(System.getProperty(
+        "buck.testrunner_classes",
+        new File("build/testrunner/classes").getAbsolutePath()));
   }
 
   @VisibleForTesting
@@ -144,6 +165,67 @@ public class JUnitStep extends ShellStep {
     return "junit";
   }
 
+  @Override
+  public int execute(ExecutionContext context) throws InterruptedException {
+    // Shards of a rule run in parallel, so cap the JVMs of the whole run, not just its rules.
+    try (TestJvmLimiter.Permit permit =
+             TestJvmLimiter.forNumThreads(context.getNumThreads()).acquire()) {
+      return runTests(context);
+    }
+  }
+
+  private int runTests(ExecutionContext context) throws InterruptedException {
+    Optional<TestRunnerWorkerPool> workerPool = context.getTestRunnerWorkerPool();
+    Optional<ImmutableMap<String, String>> systemProperties = getSystemPropertiesForWorker();
+    if (!workerPool.isPresent() || !systemProperties.isPresent()) {
+      return super.execute(context);
+    }
+
+    try {
+      return workerPool.get().run(
+          getTestRunnerClassName(JUNIT_RUNNER_CLASS_NAME, TESTNG_RUNNER_CLASS_NAME),
+          getClasspath(),
+          systemProperties.get(),
+          getTestRunnerArgs(context));
+    } catch (IOException e) {
+      context.logError(e, "Failed to run tests in a test runner worker.");
+      return 1;
+    }
+  }
+
+  /**
+   * A worker cannot change the options of its JVM, so tests can only run in one if they need
+   * nothing more than system properties. Code coverage needs an agent, and debugging needs a JDWP
+   * port, so those also run in a JVM of their own.
+   * <p>
+   * The JDK reads {@code java.io.tmpdir} once per JVM, so tests in a worker use the temporary
+   * directory of the worker, which {@code TMP} also points to and which is emptied between rules,
+   * rather than {@link #tmpDirectory}. Tests that set {@code java.io.tmpdir} themselves run in a
+   * JVM of their own.
+   *
+   * @return the system properties to run the tests with, or absent if they need a JVM of their own.
+   */
+  @VisibleForTesting
+  Optional<ImmutableMap<String, String>> getSystemPropertiesForWorker() {
+    if (isCodeCoverageEnabled || isDebugEnabled) {
+      return Optional.absent();
+    }
+    Map<String, String> properties = Maps.newLinkedHashMap();
+    properties.put(BUILD_ID_PROPERTY, buildId.toString());
+    for (String vmArg : vmArgs) {
+      if (!vmArg.startsWith("-D") || vmArg.startsWith("-Djava.io.tmpdir=")) {
+        return Optional.absent();
+      }
+      int equals = vmArg.indexOf('=');
+      if (equals == -1) {
+        properties.put(vmArg.substring(2), "");
+      } else {
+        properties.put(vmArg.substring(2, equals), vmArg.substring(equals + 1));
+      }
+    }
+    return Optional.of(ImmutableMap.copyOf(properties));
+  }
+
   @Override
   protected ImmutableList<String> getShellCommandInternal(ExecutionContext context) {
     ImmutableList.Builder<String> args = ImmutableList.builder();
@@ -177,25 +259,40 @@ public class JUnitStep extends ShellStep {
       args.add("-verbose");
     }
 
-    // Build up the -classpath argument, starting with the classpath entries the client specified.
-    List<Path> classpath = Lists.newArrayList(classpathEntries);
-
-    // Finally, include an entry for the test runner.
-    classpath.add(testRunnerClassesDirectory);
-
     // Add the -classpath argument.
-    args.add("-classpath").add(Joiner.on(File.pathSeparator).join(classpath));
+    args.add("-classpath").add(Joiner.on(File.pathSeparator).join(getClasspath()));
 
     // Specify the Java class whose main() method should be run. This is the class that is
     // responsible for running the tests.
+    args.add(getTestRunnerClassName(JUNIT_TEST_RUNNER_CLASS_NAME, TESTNG_TEST_RUNNER_CLASS_NAME));
+
+    args.addAll(getTestRunnerArgs(context));
+
+    return args.build();
+  }
+
+  /**
+   * @return the classpath entries the client specified, followed by an entry for the test runner.
+   */
+  private List<Path> getClasspath() {
+    List<Path> classpath = Lists.newArrayList(classpathEntries);
+    classpath.add(testRunnerClassesDirectory);
+    return classpath;
+  }
+
+  private String getTestRunnerClassName(String junitClassName, String testNgClassName) {
     if (TestType.JUNIT == type) {
-      args.add(JUNIT_TEST_RUNNER_CLASS_NAME);
+      return junitClassName;
     } else if (TestType.TESTNG == type) {
-      args.add(TESTNG_TEST_RUNNER_CLASS_NAME);
+      return testNgClassName;
     } else {
       throw new IllegalArgumentException(
           "java_test: unrecognized type " + type + ", expected eg. junit or testng");
     }
+  }
+
+  private ImmutableList<String> getTestRunnerArgs(ExecutionContext context) {
+    ImmutableList.Builder<String> args = ImmutableList.builder();
 
     // The first argument to the test runner is where the test results should be written. It is not
     // reliable to write test results to stdout or stderr because there may be output from the unit
@@ -71,7 +71,7 @@ public class JarDirectoryStepHelper {
     Manifest manifest = new Manifest();
     manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
 
-    try (CustomZipOutputStream outputFile = ZipOutputStreams.newOutputStream(
+    try (CustomZipOutputStream outputFile = ZipOutputStreams.newParallelOutputStream(
         filesystem.getFileForRelativePath(pathToOutputFile), APPEND_TO_ZIP)) {
 
       Set<String> alreadyAddedEntries = Sets.newHashSet();
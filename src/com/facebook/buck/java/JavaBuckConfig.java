@@ -52,7 +52,12 @@ public class JavaBuckConfig {
         javac,
         javacVersion,
         sourceLevel.or(TARGETED_JAVA_VERSION),
-        targetLevel.or(TARGETED_JAVA_VERSION));
+        targetLevel.or(TARGETED_JAVA_VERSION),
+        shouldCompileAgainstAbiJars());
+  }
+
+  public boolean shouldCompileAgainstAbiJars() {
+    return delegate.getBooleanValue("java", "compile_against_abis", false);
   }
 
   @VisibleForTesting
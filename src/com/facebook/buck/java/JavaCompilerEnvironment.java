@@ -36,16 +36,27 @@ public class JavaCompilerEnvironment {
   private final Optional<JavacVersion> javacVersion;
   private final String sourceLevel;
   private final String targetLevel;
+  private final boolean compileAgainstAbiJars;
 
   public JavaCompilerEnvironment(
       Optional<Path> javacPath,
       Optional<JavacVersion> javacVersion,
       String sourceLevel,
       String targetLevel) {
+    this(javacPath, javacVersion, sourceLevel, targetLevel, /* compileAgainstAbiJars */ false);
+  }
+
+  public JavaCompilerEnvironment(
+      Optional<Path> javacPath,
+      Optional<JavacVersion> javacVersion,
+      String sourceLevel,
+      String targetLevel,
+      boolean compileAgainstAbiJars) {
     this.javacPath = Preconditions.checkNotNull(javacPath);
     this.javacVersion = Preconditions.checkNotNull(javacVersion);
     this.sourceLevel = Preconditions.checkNotNull(sourceLevel);
     this.targetLevel = Preconditions.checkNotNull(targetLevel);
+    this.compileAgainstAbiJars = compileAgainstAbiJars;
   }
 
   public Optional<Path> getJavacPath() {
@@ -63,4 +74,12 @@ public class JavaCompilerEnvironment {
   public String getTargetLevel() {
     return targetLevel;
   }
+
+  /**
+   * @return whether each java library should also write a jar of just its ABI, which the
+   *     libraries that depend on it are then compiled against.
+   */
+  public boolean shouldCompileAgainstAbiJars() {
+    return compileAgainstAbiJars;
+  }
 }
@@ -137,7 +137,8 @@ public class JavaLibraryDescription implements Description<JavaLibraryDescriptio
         javacEnv.getJavacPath(),
         javacEnv.getJavacVersion(),
         sourceLevel,
-        targetLevel);
+        targetLevel,
+        javacEnv.shouldCompileAgainstAbiJars());
 
     javacOptions.setJavaCompilerEnvironment(javacEnvToUse);
 
@@ -27,9 +27,12 @@ import com.facebook.buck.rules.SourcePath;
 import com.facebook.buck.rules.SourcePathResolver;
 import com.facebook.buck.rules.TestRule;
 import com.facebook.buck.step.ExecutionContext;
+import com.facebook.buck.step.ParallelStep;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.TargetDevice;
+import com.facebook.buck.step.fs.CopyStep;
 import com.facebook.buck.step.fs.MakeCleanDirectoryStep;
+import com.facebook.buck.step.fs.MkdirStep;
 import com.facebook.buck.test.TestCaseSummary;
 import com.facebook.buck.test.TestResultSummary;
 import com.facebook.buck.test.TestResults;
@@ -44,10 +47,12 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
+import com.google.common.hash.HashCode;
 
 import java.io.File;
 import java.io.IOException;
@@ -81,6 +86,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
 
   private final TestType testType;
 
+  private final int maxShards;
+
   private static final int TEST_CLASSES_SHUFFLE_SEED = 0xFACEB00C;
 
   private static final Logger LOG = Logger.get(JavaTest.class);
@@ -98,7 +105,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
       JavacOptions javacOptions,
       List<String> vmArgs,
       ImmutableSet<BuildRule> sourceUnderTest,
-      Optional<Path> resourcesRoot) {
+      Optional<Path> resourcesRoot,
+      int maxShards) {
     super(
         params,
         resolver,
@@ -117,6 +125,8 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
     this.contacts = ImmutableSet.copyOf(contacts);
     this.additionalClasspathEntries = Preconditions.checkNotNull(addtionalClasspathEntries);
     this.testType = testType;
+    Preconditions.checkArgument(maxShards > 0, "shards must be positive: %s", maxShards);
+    this.maxShards = maxShards;
   }
 
   @Override
@@ -178,7 +188,7 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
       return ImmutableList.of();
     }
 
-    Iterable<String> reorderedTestClasses = reorderClasses(testClassNames, isShufflingTests);
+    List<String> reorderedTestClasses = reorderClasses(testClassNames, isShufflingTests);
 
     ImmutableList.Builder<Step> steps = ImmutableList.builder();
 
@@ -187,16 +197,90 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
     steps.add(new MakeCleanDirectoryStep(pathToTestOutput));
     steps.add(new MakeCleanDirectoryStep(tmpDirectory));
 
+    if (executionContext.isRunningAffectedTestsOnly()) {
+      // Unaffected classes report the results of the run that they were last recorded in.
+      Path pathToImpactRecords = getPathToImpactRecords();
+      ImmutableSet<String> unaffectedTestClasses = JavaTestImpact.getUnaffectedTestClasses(
+          executionContext.getProjectFilesystem(),
+          pathToImpactRecords,
+          reorderedTestClasses,
+          getClassHashes());
+      LOG.debug("Skipping unaffected classes: %s", unaffectedTestClasses);
+      for (String testClass : unaffectedTestClasses) {
+        steps.add(
+            CopyStep.forFile(
+                JavaTestImpact.getPathToSavedResults(pathToImpactRecords, testClass),
+                pathToTestOutput.resolve(testClass + ".xml")));
+      }
+      reorderedTestClasses.removeAll(unaffectedTestClasses);
+      if (reorderedTestClasses.isEmpty()) {
+        return steps.build();
+      }
+    }
+
     ImmutableSet<Path> classpathEntries = ImmutableSet.<Path>builder()
         .addAll(getTransitiveClasspathEntries().values())
         .addAll(additionalClasspathEntries)
         .addAll(getBootClasspathEntries(executionContext))
         .build();
 
-    Step junit = new JUnitStep(
+    ImmutableList<ImmutableList<String>> shards =
+        getShards(executionContext, reorderedTestClasses, pathToTestOutput);
+    if (shards.size() == 1) {
+      steps.add(
+          createJUnitStep(
+              executionContext,
+              classpathEntries,
+              reorderedTestClasses,
+              pathToTestOutput,
+              tmpDirectory,
+              testSelectorList,
+              isDryRun));
+      return steps.build();
+    }
+
+    // Each shard runs in a JVM of its own, with its own scratch space, but they all write their
+    // results to the same directory, where interpretTestResults() picks them up as usual. Shards
+    // of every rule share the run's cap on test JVMs, see TestJvmLimiter.
+    ImmutableList.Builder<Step> junitSteps = ImmutableList.builder();
+    for (int i = 0; i < shards.size(); i++) {
+      Path shardTmpDirectory = tmpDirectory.resolve("shard_" + i);
+      steps.add(new MkdirStep(shardTmpDirectory));
+      junitSteps.add(
+          createJUnitStep(
+              executionContext,
+              classpathEntries,
+              shards.get(i),
+              pathToTestOutput,
+              shardTmpDirectory,
+              testSelectorList,
+              isDryRun));
+    }
+    steps.add(new ParallelStep(junitSteps.build()));
+
+    return steps.build();
+  }
+
+  private JUnitStep createJUnitStep(
+      ExecutionContext executionContext,
+      Set<Path> classpathEntries,
+      List<String> testClassNames,
+      Path pathToTestOutput,
+      Path tmpDirectory,
+      TestSelectorList testSelectorList,
+      boolean isDryRun) {
+    ImmutableList<String> amendedVmArgs =
+        amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional());
+    if (executionContext.isRunningAffectedTestsOnly()) {
+      amendedVmArgs = ImmutableList.<String>builder()
+          .addAll(amendedVmArgs)
+          .add(String.format("-D%s=true", JUnitStep.RECORD_LOADED_CLASSES_PROPERTY))
+          .build();
+    }
+    return new JUnitStep(
         classpathEntries,
-        reorderedTestClasses,
-        amendVmArgs(vmArgs, executionContext.getTargetDeviceOptional()),
+        testClassNames,
+        amendedVmArgs,
         pathToTestOutput,
         tmpDirectory,
         executionContext.isCodeCoverageEnabled(),
@@ -205,12 +289,38 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
         testSelectorList,
         isDryRun,
         testType);
-    steps.add(junit);
+  }
 
-    return steps.build();
+  /**
+   * Splits the test classes across up to {@code shards} JVMs, but never more than there are build
+   * threads. Tests are not sharded when debugging, as every JVM would wait for a debugger on the
+   * same port, or when collecting coverage, as every JVM would write to the same coverage file.
+   * This must run before the output directory is cleaned, as it reads how long each class took
+   * from the results of the previous run.
+   */
+  private ImmutableList<ImmutableList<String>> getShards(
+      ExecutionContext executionContext,
+      List<String> testClassNames,
+      Path pathToTestOutput) {
+    int numShards = Math.min(maxShards, executionContext.getNumThreads());
+    if (numShards <= 1 ||
+        testClassNames.size() <= 1 ||
+        executionContext.isDebugEnabled() ||
+        executionContext.isCodeCoverageEnabled()) {
+      return ImmutableList.of(ImmutableList.copyOf(testClassNames));
+    }
+    ImmutableList<ImmutableList<String>> shards = JavaTestShards.split(
+        testClassNames,
+        JavaTestShards.readDurations(
+            executionContext.getProjectFilesystem(),
+            pathToTestOutput,
+            testClassNames),
+        numShards);
+    LOG.debug("Running %s in %d shards.", getBuildTarget(), shards.size());
+    return shards;
   }
 
-  private static Iterable<String> reorderClasses(Set<String> testClassNames, boolean shuffle) {
+  private static List<String> reorderClasses(Set<String> testClassNames, boolean shuffle) {
     Random rng;
     if (shuffle) {
       // This is a runtime-seed reorder, which always produces a new order.
@@ -297,6 +407,18 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
     return Paths.get(BuckConstant.GEN_DIR, pathsArray);
   }
 
+  /**
+   * @return where the records of which classes each test class uses are kept. Unlike the test
+   *     output directory, this is not cleaned before each run.
+   */
+  private Path getPathToImpactRecords() {
+    return BuildTargets.getBinPath(getBuildTarget(), "__java_test_%s_impact__");
+  }
+
+  private ImmutableMap<String, HashCode> getClassHashes() {
+    return JavaTestImpact.getClassHashes(getTransitiveClasspathEntries().keySet());
+  }
+
   private Path getPathToTmpDirectory() {
     Path base = BuildTargets.getBinPath(getBuildTarget(), "__java_test_%s_tmp__").toAbsolutePath();
     String subdir = BuckConstant.oneTimeTestSubdirectory;
@@ -369,6 +491,18 @@ public class JavaTest extends DefaultJavaLibrary implements TestRule {
           }
         }
 
+        if (context.isRunningAffectedTestsOnly() && !isUsingTestSelectors && !isDryRun) {
+          ImmutableMap<String, HashCode> classHashes = getClassHashes();
+          for (TestCaseSummary summary : summaries) {
+            JavaTestImpact.updateRecord(
+                filesystem,
+                getPathToImpactRecords(),
+                getPathToTestOutputDirectory(),
+                summary,
+                classHashes);
+          }
+        }
+
         return new TestResults(getBuildTarget(), summaries, contacts);
       }
 
@@ -87,7 +87,8 @@ public class JavaTestDescription implements Description<JavaTestDescription.Arg>
             args.sourceUnderTest.get(),
             params.getBuildTarget(),
             resolver),
-        args.resourcesRoot);
+        args.resourcesRoot,
+        args.shards.or(1));
   }
 
   public static ImmutableSet<BuildRule> validateAndGetSourcesUnderTest(
@@ -119,5 +120,6 @@ public class JavaTestDescription implements Description<JavaTestDescription.Arg>
     @Hint(isDep = false) public Optional<ImmutableSortedSet<BuildTarget>> sourceUnderTest;
     public Optional<ImmutableList<String>> vmArgs;
     public Optional<TestType> testType;
+    public Optional<Integer> shards;
   }
 }
@@ -0,0 +1,172 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decides which test classes of a {@link JavaTest} can be skipped when running affected tests only.
+ * <p>
+ * When a test class passes, the test runner lists the classes it had loaded by then in
+ * {@code <class>.classes} next to its results. This turns that list into a record of the hash each
+ * of those classes had, and keeps it, along with the results, in a directory of its own that
+ * survives the output directory being cleaned before the next run. The test class is unaffected,
+ * and its saved results can stand in for running it again, for as long as every class in its
+ * record still has the same hash.
+ */
+final class JavaTestImpact {
+
+  private static final Logger LOG = Logger.get(JavaTestImpact.class);
+
+  /** The suffix of the files in which the test runner lists the classes a test class loaded. */
+  static final String LOADED_CLASSES_SUFFIX = ".classes";
+
+  private static final String RECORD_SUFFIX = ".impact";
+  private static final String RESULTS_SUFFIX = ".xml";
+
+  private static final Splitter NAME_AND_HASH_SPLITTER = Splitter.on(' ');
+
+  private JavaTestImpact() {}
+
+  /**
+   * @return the hash of every class in the output of {@code rules}, keyed by its path without the
+   *     {@code .class} suffix. If several rules have a class of the same name, the first one wins,
+   *     as it does on a classpath.
+   */
+  static ImmutableMap<String, HashCode> getClassHashes(
+      Iterable<? extends HasJavaClassHashes> rules) {
+    Map<String, HashCode> classHashes = Maps.newHashMap();
+    for (HasJavaClassHashes rule : rules) {
+      for (Map.Entry<String, HashCode> entry : rule.getClassNamesToHashes().entrySet()) {
+        if (!classHashes.containsKey(entry.getKey())) {
+          classHashes.put(entry.getKey(), entry.getValue());
+        }
+      }
+    }
+    return ImmutableMap.copyOf(classHashes);
+  }
+
+  /**
+   * @return those of {@code testClassNames} that have a record in {@code pathToImpactRecords} in
+   *     which every class still has its current hash.
+   */
+  static ImmutableSet<String> getUnaffectedTestClasses(
+      ProjectFilesystem filesystem,
+      Path pathToImpactRecords,
+      Iterable<String> testClassNames,
+      Map<String, HashCode> classHashes) {
+    ImmutableSet.Builder<String> unaffected = ImmutableSet.builder();
+    for (String testClass : testClassNames) {
+      if (isUnaffected(filesystem, pathToImpactRecords, testClass, classHashes)) {
+        unaffected.add(testClass);
+      }
+    }
+    return unaffected.build();
+  }
+
+  private static boolean isUnaffected(
+      ProjectFilesystem filesystem,
+      Path pathToImpactRecords,
+      String testClass,
+      Map<String, HashCode> classHashes) {
+    Path results = pathToImpactRecords.resolve(testClass + RESULTS_SUFFIX);
+    Optional<String> record =
+        filesystem.readFileIfItExists(pathToImpactRecords.resolve(testClass + RECORD_SUFFIX));
+    if (!record.isPresent() || !filesystem.isFile(results)) {
+      return false;
+    }
+    for (String line : Splitter.on('\n').omitEmptyStrings().split(record.get())) {
+      List<String> nameAndHash = ImmutableList.copyOf(NAME_AND_HASH_SPLITTER.split(line));
+      if (nameAndHash.size() != 2) {
+        LOG.debug("Ignoring malformed impact record for %s.", testClass);
+        return false;
+      }
+      HashCode hash = classHashes.get(nameAndHash.get(0));
+      if (hash == null || !hash.toString().equals(nameAndHash.get(1))) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** @return where the results of {@code testClass} are saved when it has a record. */
+  static Path getPathToSavedResults(Path pathToImpactRecords, String testClass) {
+    return pathToImpactRecords.resolve(testClass + RESULTS_SUFFIX);
+  }
+
+  /**
+   * Brings the record of the test class {@code summary} is for up to date with its latest run.
+   * A record is kept only while the class passes, and only if every class it loaded has a hash.
+   * Classes that did not run this time, and so have no list of loaded classes, keep the record
+   * they have.
+   */
+  static void updateRecord(
+      ProjectFilesystem filesystem,
+      Path pathToImpactRecords,
+      Path pathToTestOutput,
+      TestCaseSummary summary,
+      Map<String, HashCode> classHashes) throws IOException {
+    String testClass = summary.getTestCaseName();
+    Path record = pathToImpactRecords.resolve(testClass + RECORD_SUFFIX);
+    Path savedResults = getPathToSavedResults(pathToImpactRecords, testClass);
+    if (!summary.isSuccess()) {
+      filesystem.deleteFileAtPath(record);
+      filesystem.deleteFileAtPath(savedResults);
+      return;
+    }
+
+    Path loadedClasses = pathToTestOutput.resolve(testClass + LOADED_CLASSES_SUFFIX);
+    if (!filesystem.isFile(loadedClasses)) {
+      return;
+    }
+
+    ImmutableList.Builder<String> lines = ImmutableList.builder();
+    for (String className : filesystem.readLines(loadedClasses)) {
+      if (className.isEmpty()) {
+        continue;
+      }
+      HashCode hash = classHashes.get(className);
+      if (hash == null) {
+        // The class came from outside of any Java rule, such as a bootclasspath entry, so there is
+        // no telling whether it changes. Run this test class every time instead.
+        LOG.debug("%s loaded %s, which has no hash.", testClass, className);
+        filesystem.deleteFileAtPath(record);
+        filesystem.deleteFileAtPath(savedResults);
+        return;
+      }
+      lines.add(className + " " + hash);
+    }
+
+    filesystem.mkdirs(pathToImpactRecords);
+    filesystem.copyFile(pathToTestOutput.resolve(testClass + RESULTS_SUFFIX), savedResults);
+    filesystem.writeLinesToPath(lines.build(), record);
+  }
+}
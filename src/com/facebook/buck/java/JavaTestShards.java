@@ -0,0 +1,169 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.test.XmlTestResultParser;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Splits the test classes of a {@link JavaTest} into shards that take about as long as each
+ * other to run, based on how long each class took the last time it ran.
+ */
+final class JavaTestShards {
+
+  private static final Logger LOG = Logger.get(JavaTestShards.class);
+
+  /** Used for every class when none of them has run before. */
+  private static final long DEFAULT_DURATION_MILLIS = 1;
+
+  private JavaTestShards() {}
+
+  /**
+   * @return how long, in milliseconds, each of {@code testClassNames} that has a result file in
+   *     {@code pathToTestOutput} took to run. Classes without one are left out.
+   */
+  static ImmutableMap<String, Long> readDurations(
+      ProjectFilesystem filesystem,
+      Path pathToTestOutput,
+      Iterable<String> testClassNames) {
+    ImmutableMap.Builder<String, Long> durations = ImmutableMap.builder();
+    for (String testClass : testClassNames) {
+      File testResultFile =
+          filesystem.getFileForRelativePath(pathToTestOutput.resolve(testClass + ".xml"));
+      if (!testResultFile.isFile()) {
+        continue;
+      }
+      try {
+        durations.put(testClass, XmlTestResultParser.parse(testResultFile).getTotalTime());
+      } catch (IOException | RuntimeException e) {
+        LOG.debug(e, "Ignoring unreadable test results in %s.", testResultFile);
+      }
+    }
+    return durations.build();
+  }
+
+  /**
+   * Assigns each test class to one of at most {@code maxShards} shards, always giving the longest
+   * remaining class to the shard with the least work so far. Classes that have not run before are
+   * assumed to take the average time of those that have. Within a shard, classes keep the order
+   * they have in {@code testClassNames}.
+   */
+  static ImmutableList<ImmutableList<String>> split(
+      List<String> testClassNames,
+      Map<String, Long> durations,
+      int maxShards) {
+    Preconditions.checkArgument(maxShards > 0);
+    int numShards = Math.min(maxShards, testClassNames.size());
+    if (numShards <= 1) {
+      return ImmutableList.of(ImmutableList.copyOf(testClassNames));
+    }
+
+    final Map<String, Long> estimates = estimateDurations(testClassNames, durations);
+    final Map<String, Integer> positions = Maps.newHashMap();
+    for (int i = 0; i < testClassNames.size(); i++) {
+      positions.put(testClassNames.get(i), i);
+    }
+    List<String> longestFirst = Lists.newArrayList(testClassNames);
+    Collections.sort(longestFirst, new Comparator<String>() {
+      @Override
+      public int compare(String a, String b) {
+        int byDuration = Long.compare(estimates.get(b), estimates.get(a));
+        return byDuration != 0 ? byDuration : Integer.compare(positions.get(a), positions.get(b));
+      }
+    });
+
+    PriorityQueue<Shard> shards = new PriorityQueue<>(numShards);
+    for (int i = 0; i < numShards; i++) {
+      shards.add(new Shard(i));
+    }
+    int[] shardOfClass = new int[testClassNames.size()];
+    for (String testClass : longestFirst) {
+      Shard shard = shards.remove();
+      shard.durationMillis += estimates.get(testClass);
+      shardOfClass[positions.get(testClass)] = shard.index;
+      shards.add(shard);
+    }
+
+    List<ImmutableList.Builder<String>> builders = Lists.newArrayListWithCapacity(numShards);
+    for (int i = 0; i < numShards; i++) {
+      builders.add(ImmutableList.<String>builder());
+    }
+    for (int i = 0; i < testClassNames.size(); i++) {
+      builders.get(shardOfClass[i]).add(testClassNames.get(i));
+    }
+    ImmutableList.Builder<ImmutableList<String>> result = ImmutableList.builder();
+    for (ImmutableList.Builder<String> builder : builders) {
+      result.add(builder.build());
+    }
+    return result.build();
+  }
+
+  private static Map<String, Long> estimateDurations(
+      List<String> testClassNames,
+      Map<String, Long> durations) {
+    long total = 0;
+    int known = 0;
+    for (String testClass : testClassNames) {
+      Long duration = durations.get(testClass);
+      if (duration != null) {
+        total += duration;
+        known++;
+      }
+    }
+    // Give every class some weight, so that classes that ran in no time still get spread out.
+    long unknownDuration = Math.max(DEFAULT_DURATION_MILLIS, known == 0 ? 0 : total / known);
+
+    Map<String, Long> estimates = Maps.newHashMap();
+    for (String testClass : testClassNames) {
+      Long duration = durations.get(testClass);
+      estimates.put(
+          testClass,
+          duration == null ? unknownDuration : Math.max(DEFAULT_DURATION_MILLIS, duration));
+    }
+    return estimates;
+  }
+
+  private static class Shard implements Comparable<Shard> {
+    private final int index;
+    private long durationMillis = 0;
+
+    private Shard(int index) {
+      this.index = index;
+    }
+
+    @Override
+    public int compareTo(Shard that) {
+      int byDuration = Long.compare(this.durationMillis, that.durationMillis);
+      return byDuration != 0 ? byDuration : Integer.compare(this.index, that.index);
+    }
+  }
+}
@@ -42,9 +42,6 @@ import java.io.File;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.Writer;
-import java.net.MalformedURLException;
-import java.net.URL;
-import java.net.URLClassLoader;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Enumeration;
@@ -59,10 +56,8 @@ import javax.annotation.processing.Processor;
 import javax.tools.Diagnostic;
 import javax.tools.DiagnosticCollector;
 import javax.tools.JavaCompiler;
-import javax.tools.JavaFileManager;
 import javax.tools.JavaFileObject;
 import javax.tools.StandardJavaFileManager;
-import javax.tools.ToolProvider;
 
 /**
  * Command used to compile java libraries with a variety of ways to handle dependencies.
@@ -82,6 +77,8 @@ public class JavacInMemoryStep extends JavacStep {
   @Nullable
   private static final Class<? extends Processor> abiWriterClass = loadAbiWriterClass();
 
+  private final JavacWorkerPool workerPool = JavacWorkerPool.getSharedInstance();
+
   public JavacInMemoryStep(
       Path outputDirectory,
       Set<Path> javaSourceFilePaths,
@@ -127,16 +124,21 @@ public class JavacInMemoryStep extends JavacStep {
 
   @Override
   protected int buildWithClasspath(ExecutionContext context, Set<Path> buildClasspathEntries) {
-    JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
-    Preconditions.checkNotNull(compiler,
-        "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
-    StandardJavaFileManager fileManager = compiler.getStandardFileManager(null, null, null);
+    List<String> options = getOptions(context, buildClasspathEntries);
+    Optional<String> bootclasspath = getOptionValue(options, "-bootclasspath");
+
+    // Reuse a compiler and file manager from an earlier compilation, if one is idle, so that the
+    // jars on the classpath do not have to be opened and indexed again.
+    JavacWorkerPool.Worker worker = workerPool.borrowWorker(bootclasspath);
+    boolean isWorkerReusable = false;
+    JavaCompiler compiler = worker.getCompiler();
+    StandardJavaFileManager fileManager = worker.getFileManager();
     Iterable<? extends JavaFileObject> compilationUnits = ImmutableSet.of();
     try {
       compilationUnits = createCompilationUnits(
           fileManager, context.getProjectFilesystem().getAbsolutifier());
     } catch (IOException e) {
-      close(fileManager, compilationUnits, null);
+      close(worker, isWorkerReusable, options, compilationUnits, null);
       e.printStackTrace(context.getStdErr());
       return 1;
     }
@@ -152,7 +154,7 @@ public class JavacInMemoryStep extends JavacStep {
                 .transform(ARGFILES_ESCAPER),
             pathToSrcsList.get());
       } catch (IOException e) {
-        close(fileManager, compilationUnits, null);
+        close(worker, isWorkerReusable, options, compilationUnits, null);
         context.logError(e,
             "Cannot write list of .java files to compile to %s file! Terminating compilation.",
             pathToSrcsList.get());
@@ -161,7 +163,6 @@ public class JavacInMemoryStep extends JavacStep {
     }
 
     DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<JavaFileObject>();
-    List<String> options = getOptions(context, buildClasspathEntries);
     List<String> classNamesForAnnotationProcessing = ImmutableList.of();
     Writer compilerOutputWriter = new PrintWriter(context.getStdErr());
     JavaCompiler.CompilationTask compilationTask = compiler.getTask(
@@ -185,8 +186,10 @@ public class JavacInMemoryStep extends JavacStep {
 
       // Invoke the compilation and inspect the result.
       isSuccess = compilationTask.call();
+      // Only a compilation which ran to completion leaves the file manager in a known state.
+      isWorkerReusable = true;
     } finally {
-      close(fileManager, compilationUnits, bundle);
+      close(worker, isWorkerReusable, options, compilationUnits, bundle);
     }
 
     if (isSuccess) {
@@ -227,13 +230,15 @@ public class JavacInMemoryStep extends JavacStep {
   }
 
   private void close(
-      JavaFileManager fileManager,
+      JavacWorkerPool.Worker worker,
+      boolean isWorkerReusable,
+      List<String> options,
       Iterable<? extends JavaFileObject> compilationUnits,
       @Nullable ProcessorBundle bundle) {
-    try {
-      fileManager.close();
-    } catch (IOException e) {
-      LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+    if (isWorkerReusable) {
+      workerPool.returnWorker(worker, getPathsRead(options));
+    } else {
+      workerPool.discardWorker(worker);
     }
 
     for (JavaFileObject unit : compilationUnits) {
@@ -252,51 +257,60 @@ public class JavacInMemoryStep extends JavacStep {
     }
   }
 
-  private ProcessorBundle prepareProcessors(@Nullable BuildTarget target, List<String> options) {
-    String processorClassPath = null;
-    String processorNames = null;
+  /**
+   * @return the paths on the classpath and bootclasspath, which the file manager may have cached.
+   */
+  private static ImmutableList<Path> getPathsRead(List<String> options) {
+    ImmutableList.Builder<Path> paths = ImmutableList.builder();
+    for (String option : ImmutableList.of("-classpath", "-bootclasspath")) {
+      Optional<String> value = getOptionValue(options, option);
+      if (value.isPresent()) {
+        paths.addAll(splitPaths(value.get()));
+      }
+    }
+    return paths.build();
+  }
 
+  private static Optional<String> getOptionValue(List<String> options, String name) {
     Iterator<String> iterator = options.iterator();
     while (iterator.hasNext()) {
-      String curr = iterator.next();
-      if ("-processorpath".equals(curr) && iterator.hasNext()) {
-        processorClassPath = iterator.next();
-      } else if ("-processor".equals(curr) && iterator.hasNext()) {
-        processorNames = iterator.next();
+      if (name.equals(iterator.next()) && iterator.hasNext()) {
+        return Optional.of(iterator.next());
       }
     }
+    return Optional.absent();
+  }
 
-    ProcessorBundle processorBundle = new ProcessorBundle();
-    if (processorClassPath == null || processorNames == null) {
-      return processorBundle;
-    }
-
-    Iterable<String> rawPaths = Splitter.on(File.pathSeparator)
-        .omitEmptyStrings()
-        .split(processorClassPath);
-    URL[] urls = FluentIterable.from(rawPaths)
+  private static ImmutableList<Path> splitPaths(String classpath) {
+    return FluentIterable.from(Splitter.on(File.pathSeparator).omitEmptyStrings().split(classpath))
         .transform(
-            new Function<String, URL>() {
+            new Function<String, Path>() {
               @Override
-              public URL apply(String pathRelativeToProjectRoot) {
-                try {
-                  return Paths.get(pathRelativeToProjectRoot).toUri().toURL();
-                } catch (MalformedURLException e) {
-                  // The paths we're being given should have all been resolved from the file system
-                  // already. We'd need to be unfortunate to get here. Bubble up a runtime
-                  // exception.
-                  throw new RuntimeException(e);
-                }
+              public Path apply(String path) {
+                return Paths.get(path);
               }
             })
-        .toArray(URL.class);
-    // Note the lack of a parent classloader.
-    processorBundle.classLoader = new URLClassLoader(urls, /* parent */ null);
+        .toList();
+  }
+
+  private ProcessorBundle prepareProcessors(@Nullable BuildTarget target, List<String> options) {
+    Optional<String> processorClassPath = getOptionValue(options, "-processorpath");
+    Optional<String> processorNames = getOptionValue(options, "-processor");
+
+    ProcessorBundle processorBundle = new ProcessorBundle();
+    if (!processorClassPath.isPresent() || !processorNames.isPresent()) {
+      return processorBundle;
+    }
+
+    // Compilations with the same processor classpath share a classloader, so that the processors
+    // are only loaded once.
+    processorBundle.classLoader = workerPool.acquireProcessorClassLoader(
+        splitPaths(processorClassPath.get()));
 
     Iterable<String> names = Splitter.on(",")
         .trimResults()
         .omitEmptyStrings()
-        .split(processorNames);
+        .split(processorNames.get());
     for (String name : names) {
       try {
         // We know that AbiWriter has no dependencies other than the JRE. We can safely load it from
@@ -309,6 +323,7 @@ public class JavacInMemoryStep extends JavacStep {
         LOG.debug("Loading %s from own classloader", name);
 
         Class<? extends Processor> aClass = Preconditions.checkNotNull(processorBundle.classLoader)
+            .getClassLoader()
             .loadClass(name)
             .asSubclass(Processor.class);
         processorBundle.processors.add(aClass.newInstance());
@@ -389,7 +404,7 @@ public class JavacInMemoryStep extends JavacStep {
 
   private static class ProcessorBundle {
     @Nullable
-    public URLClassLoader classLoader;
+    public JavacWorkerPool.ProcessorClassLoader classLoader;
     public List<Processor> processors = Lists.newArrayList();
 
     public void close() {
@@ -397,15 +412,9 @@ public class JavacInMemoryStep extends JavacStep {
         return;
       }
 
-      try {
-        classLoader.close();
-      } catch (IOException e) {
-        // Nothing sane to do. Log and carry on.
-        LOG.warn("Unable to close annotation processor classloader.");
-      } finally {
-        // Null out the classloader to allow it to be garbage collected.
-        classLoader = null;
-      }
+      classLoader.release();
+      // Null out the classloader so that it is only released once.
+      classLoader = null;
     }
   }
 }
@@ -149,6 +149,10 @@ public class JavacOptions {
         .set("debug", debug)
         .set("javacVersion", javacEnv.getJavacVersion().transform(
             Functions.toStringFunction()).orNull());
+    // Only set when enabled so that the keys of existing builds are unchanged.
+    if (javacEnv.shouldCompileAgainstAbiJars()) {
+      builder.set("compileAgainstAbiJars", true);
+    }
 
     return annotationProcessingData.appendToRuleKey(builder);
   }
@@ -0,0 +1,451 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Objects;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+
+import java.io.IOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+import javax.tools.JavaCompiler;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.StandardLocation;
+import javax.tools.ToolProvider;
+
+/**
+ * Keeps javac file managers and annotation processor classloaders alive between compilations, so
+ * that each {@code java_library} does not have to re-open and re-index its classpath jars, or
+ * re-load its annotation processors. The shared instance lives as long as the JVM, so a warm
+ * buckd keeps its workers from one command to the next.
+ * <p>
+ * A file manager caches the contents of the jars it has read, so a worker is only handed out
+ * again if none of those jars have changed since. Everything that is idle is dropped when the
+ * heap is nearly full.
+ */
+class JavacWorkerPool {
+
+  private static final Logger LOG = Logger.get(JavacWorkerPool.class);
+
+  /** Drop idle workers and classloaders once this fraction of the maximum heap is in use. */
+  private static final double MEMORY_PRESSURE_THRESHOLD = 0.75;
+
+  private static final JavacWorkerPool SHARED_INSTANCE = new JavacWorkerPool(
+      Runtime.getRuntime().availableProcessors(),
+      /* maxIdleClassLoaders */ 32,
+      new Supplier<Boolean>() {
+        @Override
+        public Boolean get() {
+          Runtime runtime = Runtime.getRuntime();
+          long used = runtime.totalMemory() - runtime.freeMemory();
+          return used > runtime.maxMemory() * MEMORY_PRESSURE_THRESHOLD;
+        }
+      });
+
+  private final int maxIdleWorkers;
+  private final int maxIdleClassLoaders;
+  private final Supplier<Boolean> isUnderMemoryPressure;
+
+  @GuardedBy("this")
+  private final Deque<Worker> idleWorkers = Lists.newLinkedList();
+
+  /** In least recently used order. */
+  @GuardedBy("this")
+  private final LinkedHashMap<HashCode, ProcessorClassLoader> classLoaders =
+      new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+
+  @VisibleForTesting
+  JavacWorkerPool(
+      int maxIdleWorkers,
+      int maxIdleClassLoaders,
+      Supplier<Boolean> isUnderMemoryPressure) {
+    this.maxIdleWorkers = maxIdleWorkers;
+    this.maxIdleClassLoaders = maxIdleClassLoaders;
+    this.isUnderMemoryPressure = Preconditions.checkNotNull(isUnderMemoryPressure);
+  }
+
+  public static JavacWorkerPool getSharedInstance() {
+    return SHARED_INSTANCE;
+  }
+
+  /**
+   * @param bootclasspath the {@code -bootclasspath} the worker will compile against, if any.
+   *     Workers are only shared between compilations with the same bootclasspath.
+   * @return a worker which the caller has to itself until it passes it to
+   *     {@link #returnWorker(Worker, Iterable)}.
+   */
+  public Worker borrowWorker(Optional<String> bootclasspath) {
+    trimIfUnderMemoryPressure();
+
+    List<Worker> stale = Lists.newArrayList();
+    Worker worker = null;
+    synchronized (this) {
+      for (Iterator<Worker> iterator = idleWorkers.iterator(); iterator.hasNext();) {
+        Worker candidate = iterator.next();
+        if (!candidate.bootclasspath.equals(bootclasspath)) {
+          continue;
+        }
+        iterator.remove();
+        if (candidate.isUpToDate()) {
+          worker = candidate;
+          break;
+        }
+        stale.add(candidate);
+      }
+    }
+
+    for (Worker staleWorker : stale) {
+      LOG.debug("Discarding javac worker whose classpath has changed.");
+      staleWorker.close();
+    }
+
+    if (worker == null) {
+      return new Worker(bootclasspath);
+    }
+    worker.reset();
+    return worker;
+  }
+
+  /**
+   * Makes {@code worker} available to later compilations.
+   *
+   * @param pathsRead the jars and directories which {@code worker} compiled against. If any of
+   *     them change, the worker is discarded rather than reused.
+   */
+  public void returnWorker(Worker worker, Iterable<Path> pathsRead) {
+    try {
+      worker.fileManager.flush();
+      worker.recordPathsRead(pathsRead);
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to flush javac file manager; discarding it.");
+      worker.close();
+      return;
+    }
+
+    Worker toClose = null;
+    synchronized (this) {
+      idleWorkers.addFirst(worker);
+      if (idleWorkers.size() > maxIdleWorkers) {
+        toClose = idleWorkers.removeLast();
+      }
+    }
+    if (toClose != null) {
+      toClose.close();
+    }
+  }
+
+  /**
+   * Closes a worker which is not fit to be reused, such as one whose compilation failed with an
+   * exception.
+   */
+  public void discardWorker(Worker worker) {
+    worker.close();
+  }
+
+  /**
+   * @return a classloader, with no parent, for the given annotation processor classpath. The
+   *     caller must {@link ProcessorClassLoader#release()} it once the compilation is done.
+   */
+  public ProcessorClassLoader acquireProcessorClassLoader(ImmutableList<Path> processorPath) {
+    trimIfUnderMemoryPressure();
+
+    HashCode key = fingerprint(processorPath);
+    List<ProcessorClassLoader> evicted = Lists.newArrayList();
+    ProcessorClassLoader classLoader;
+    synchronized (this) {
+      classLoader = classLoaders.get(key);
+      if (classLoader == null) {
+        classLoader = new ProcessorClassLoader(toUrls(processorPath));
+        classLoaders.put(key, classLoader);
+      }
+      // Claim it before evicting, so that the new classloader is never chosen.
+      classLoader.users++;
+      evicted.addAll(evictLeastRecentlyUsedClassLoaders());
+    }
+
+    for (ProcessorClassLoader evictedClassLoader : evicted) {
+      evictedClassLoader.close();
+    }
+    return classLoader;
+  }
+
+  @GuardedBy("this")
+  private List<ProcessorClassLoader> evictLeastRecentlyUsedClassLoaders() {
+    List<ProcessorClassLoader> evicted = Lists.newArrayList();
+    Iterator<ProcessorClassLoader> iterator = classLoaders.values().iterator();
+    while (classLoaders.size() > maxIdleClassLoaders && iterator.hasNext()) {
+      ProcessorClassLoader candidate = iterator.next();
+      if (candidate.users == 0) {
+        iterator.remove();
+        evicted.add(candidate);
+      }
+    }
+    return evicted;
+  }
+
+  /**
+   * Closes all idle workers and classloaders. Those in use are left alone.
+   */
+  public void evictIdle() {
+    List<Worker> workers;
+    List<ProcessorClassLoader> evicted = Lists.newArrayList();
+    synchronized (this) {
+      workers = ImmutableList.copyOf(idleWorkers);
+      idleWorkers.clear();
+      for (Iterator<ProcessorClassLoader> iterator = classLoaders.values().iterator();
+           iterator.hasNext();) {
+        ProcessorClassLoader classLoader = iterator.next();
+        if (classLoader.users == 0) {
+          iterator.remove();
+          evicted.add(classLoader);
+        }
+      }
+    }
+
+    for (Worker worker : workers) {
+      worker.close();
+    }
+    for (ProcessorClassLoader classLoader : evicted) {
+      classLoader.close();
+    }
+  }
+
+  private void trimIfUnderMemoryPressure() {
+    if (isUnderMemoryPressure.get()) {
+      LOG.debug("Heap is nearly full; dropping idle javac workers.");
+      evictIdle();
+    }
+  }
+
+  @VisibleForTesting
+  synchronized int getIdleWorkerCount() {
+    return idleWorkers.size();
+  }
+
+  @VisibleForTesting
+  synchronized int getClassLoaderCount() {
+    return classLoaders.size();
+  }
+
+  /**
+   * Identifies a processor classpath by the paths on it and the state of the files they point to,
+   * so that a rebuilt processor jar gets a new classloader.
+   */
+  private static HashCode fingerprint(ImmutableList<Path> paths) {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Path path : paths) {
+      hasher.putString(path.toString(), StandardCharsets.UTF_8);
+      FileState state = FileState.of(path);
+      hasher.putLong(state.lastModified);
+      hasher.putLong(state.size);
+      hasher.putString(String.valueOf(state.fileKey), StandardCharsets.UTF_8);
+    }
+    return hasher.hash();
+  }
+
+  private static URL[] toUrls(ImmutableList<Path> paths) {
+    URL[] urls = new URL[paths.size()];
+    for (int i = 0; i < urls.length; i++) {
+      try {
+        urls[i] = paths.get(i).toUri().toURL();
+      } catch (MalformedURLException e) {
+        // The paths we're being given should have all been resolved from the file system
+        // already. We'd need to be unfortunate to get here.
+        throw new RuntimeException(e);
+      }
+    }
+    return urls;
+  }
+
+  /**
+   * A compiler and a file manager which may only be used by one compilation at a time.
+   */
+  static class Worker {
+    private final Optional<String> bootclasspath;
+    private final JavaCompiler compiler;
+    private final StandardJavaFileManager fileManager;
+
+    /** The state of each regular file the file manager has read, when it was returned. */
+    private final Map<Path, FileState> filesRead = Maps.newHashMap();
+
+    private Worker(Optional<String> bootclasspath) {
+      this.bootclasspath = bootclasspath;
+      this.compiler = ToolProvider.getSystemJavaCompiler();
+      Preconditions.checkNotNull(compiler,
+          "If using JRE instead of JDK, ToolProvider.getSystemJavaCompiler() may be null.");
+      this.fileManager = compiler.getStandardFileManager(null, null, null);
+    }
+
+    public JavaCompiler getCompiler() {
+      return compiler;
+    }
+
+    public StandardJavaFileManager getFileManager() {
+      return fileManager;
+    }
+
+    private void recordPathsRead(Iterable<Path> pathsRead) {
+      for (Path path : pathsRead) {
+        // Directories are listed afresh by every compilation, so only files need checking.
+        if (Files.isRegularFile(path)) {
+          filesRead.put(path, FileState.of(path));
+        }
+      }
+    }
+
+    private boolean isUpToDate() {
+      for (Map.Entry<Path, FileState> entry : filesRead.entrySet()) {
+        if (!entry.getValue().equals(FileState.of(entry.getKey()))) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Forgets the locations set by the previous compilation, so that an option it passed, such as
+     * {@code -s}, does not leak into the next one.
+     */
+    private void reset() {
+      for (StandardLocation location : ImmutableList.of(
+          StandardLocation.CLASS_OUTPUT,
+          StandardLocation.SOURCE_OUTPUT,
+          StandardLocation.SOURCE_PATH,
+          StandardLocation.ANNOTATION_PROCESSOR_PATH)) {
+        try {
+          fileManager.setLocation(location, null);
+        } catch (IOException e) {
+          // Setting a location to its default never touches the disk.
+          throw new RuntimeException(e);
+        }
+      }
+    }
+
+    private void close() {
+      try {
+        fileManager.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close java filemanager. We may be leaking memory.");
+      }
+    }
+  }
+
+  /**
+   * A classloader for annotation processors which is shared by all compilations with the same
+   * processor classpath.
+   */
+  class ProcessorClassLoader {
+    private final URLClassLoader classLoader;
+
+    /** The number of compilations using this classloader. */
+    @GuardedBy("JavacWorkerPool.this")
+    private int users;
+
+    private ProcessorClassLoader(URL[] urls) {
+      // Note the lack of a parent classloader.
+      this.classLoader = new URLClassLoader(urls, /* parent */ null);
+    }
+
+    public ClassLoader getClassLoader() {
+      return classLoader;
+    }
+
+    /**
+     * Allows this classloader to be evicted. It is only ever closed once no compilation is using
+     * it.
+     */
+    public void release() {
+      synchronized (JavacWorkerPool.this) {
+        Preconditions.checkState(users > 0);
+        users--;
+      }
+    }
+
+    private void close() {
+      try {
+        classLoader.close();
+      } catch (IOException e) {
+        // Nothing sane to do. Log and carry on.
+        LOG.warn("Unable to close annotation processor classloader.");
+      }
+    }
+  }
+
+  private static class FileState {
+    private final long lastModified;
+    private final long size;
+    @Nullable private final Object fileKey;
+
+    private FileState(long lastModified, long size, @Nullable Object fileKey) {
+      this.lastModified = lastModified;
+      this.size = size;
+      this.fileKey = fileKey;
+    }
+
+    public static FileState of(Path path) {
+      try {
+        BasicFileAttributes attributes = Files.readAttributes(path, BasicFileAttributes.class);
+        return new FileState(
+            attributes.lastModifiedTime().toMillis(),
+            attributes.size(),
+            attributes.fileKey());
+      } catch (IOException e) {
+        // Only files which existed are recorded, so this never matches one of them.
+        return new FileState(-1, -1, null);
+      }
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+      if (!(obj instanceof FileState)) {
+        return false;
+      }
+      FileState that = (FileState) obj;
+      return lastModified == that.lastModified &&
+          size == that.size &&
+          Objects.equal(fileKey, that.fileKey);
+    }
+
+    @Override
+    public int hashCode() {
+      return Objects.hashCode(lastModified, size, fileKey);
+    }
+  }
+}
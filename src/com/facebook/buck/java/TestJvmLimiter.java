@@ -0,0 +1,83 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.Semaphore;
+
+import javax.annotation.Nullable;
+
+/**
+ * Bounds how many JVMs run tests at once, across every rule of a {@code buck test} run.
+ * <p>
+ * Test rules run on {@code numThreads} threads, but a sharded rule runs each of its shards in a JVM
+ * of its own, at the same time. Without a limit, {@code numThreads} sharded rules could start
+ * {@code numThreads} JVMs each. Every {@link JUnitStep} holds one of {@code numThreads} slots while
+ * its tests run, whether in a JVM it forks or in a worker. Threads that are only waiting for shards
+ * to finish hold none, so shards can always make progress.
+ */
+class TestJvmLimiter {
+
+  @Nullable
+  private static TestJvmLimiter instance;
+
+  private final int numThreads;
+  private final Semaphore jvms;
+
+  @VisibleForTesting
+  TestJvmLimiter(int numThreads) {
+    Preconditions.checkArgument(numThreads > 0);
+    this.numThreads = numThreads;
+    this.jvms = new Semaphore(numThreads, /* fair */ true);
+  }
+
+  /**
+   * @return the limiter shared by every test run in this process that runs on {@code numThreads}
+   *     threads. A run with a different number of threads gets a new limiter, while tests that are
+   *     still running release their slots to the old one.
+   */
+  static synchronized TestJvmLimiter forNumThreads(int numThreads) {
+    if (instance == null || instance.numThreads != numThreads) {
+      instance = new TestJvmLimiter(numThreads);
+    }
+    return instance;
+  }
+
+  /** Blocks until there is room for another JVM to run tests. */
+  Permit acquire() throws InterruptedException {
+    jvms.acquire();
+    return new Permit();
+  }
+
+  /** Held for as long as a JVM runs tests. */
+  class Permit implements AutoCloseable {
+    private boolean isReleased = false;
+
+    private Permit() {}
+
+    @Override
+    public synchronized void close() {
+      if (isReleased) {
+        return;
+      }
+      isReleased = true;
+      jvms.release();
+    }
+  }
+}
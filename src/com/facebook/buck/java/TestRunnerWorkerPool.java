@@ -0,0 +1,297 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.MoreFiles;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * Leases long-lived test runner JVMs, each running {@code com.facebook.buck.junit.TestRunnerWorker}
+ * (see there for the protocol), to the {@link JUnitStep}s of a {@code buck test} run. A worker runs
+ * the tests of one rule at a time, and goes back to the pool afterwards unless it has run
+ * {@code maxRunsPerWorker} times, or the heap it holds on to after a collection has grown past
+ * {@link #MAX_HEAP_FRACTION} of its maximum. Tests can leave threads, caches and other state behind
+ * in a JVM, so recycling workers keeps any one of them from accumulating too much of it.
+ * <p>
+ * The JDK reads {@code java.io.tmpdir} once per JVM, so a worker cannot switch to the temporary
+ * directory of each rule. Instead, each worker starts with a temporary directory of its own, also
+ * set as {@code TMP} in its environment, which is emptied before the worker is leased again.
+ */
+public class TestRunnerWorkerPool implements Closeable {
+
+  private static final Logger LOG = Logger.get(TestRunnerWorkerPool.class);
+
+  @VisibleForTesting
+  static final String WORKER_CLASS_NAME = "com.facebook.buck.junit.TestRunnerWorker";
+
+  /** Retire a worker once it holds on to this fraction of its maximum heap between runs. */
+  @VisibleForTesting
+  static final double MAX_HEAP_FRACTION = 0.5;
+
+  private final Path testRunnerClassesDirectory;
+  private final Path workingDirectory;
+  private final Path tmpDirectoryRoot;
+  private final Path pathToWorkerLog;
+  private final int maxRunsPerWorker;
+
+  @GuardedBy("this")
+  private final Deque<Worker> idleWorkers = Lists.newLinkedList();
+
+  @GuardedBy("this")
+  private final Set<Worker> allWorkers = Sets.newHashSet();
+
+  @GuardedBy("this")
+  private int numWorkersStarted = 0;
+
+  @GuardedBy("this")
+  private boolean isClosed = false;
+
+  /**
+   * @param testRunnerClassesDirectory the classes of the test runner, including the worker.
+   * @param workingDirectory the directory workers run in, which relative paths in requests are
+   *     resolved against.
+   * @param tmpDirectoryRoot the directory each worker gets a temporary directory of its own in.
+   * @param pathToWorkerLog the file the workers append their stderr to.
+   */
+  public TestRunnerWorkerPool(
+      Path testRunnerClassesDirectory,
+      Path workingDirectory,
+      Path tmpDirectoryRoot,
+      Path pathToWorkerLog,
+      int maxRunsPerWorker) {
+    Preconditions.checkArgument(maxRunsPerWorker > 0);
+    this.testRunnerClassesDirectory = Preconditions.checkNotNull(testRunnerClassesDirectory);
+    this.workingDirectory = Preconditions.checkNotNull(workingDirectory);
+    this.tmpDirectoryRoot = Preconditions.checkNotNull(tmpDirectoryRoot);
+    this.pathToWorkerLog = Preconditions.checkNotNull(pathToWorkerLog);
+    this.maxRunsPerWorker = maxRunsPerWorker;
+  }
+
+  /**
+   * Runs tests in a worker, starting a new one if none is idle, and blocks until they have
+   * finished.
+   *
+   * @param runnerClassName the {@code BaseRunner} that runs the tests.
+   * @param classpath everything the tests need, including the test runner.
+   * @param systemProperties set for the duration of the run.
+   * @param runnerArgs the arguments the runner expects on its command line.
+   * @return 0 if the runner completed, whatever the outcome of the tests.
+   */
+  public int run(
+      String runnerClassName,
+      Iterable<Path> classpath,
+      Map<String, String> systemProperties,
+      List<String> runnerArgs) throws IOException {
+    Worker worker = lease();
+    boolean isReusable = false;
+    try {
+      int status = worker.run(runnerClassName, classpath, systemProperties, runnerArgs);
+      isReusable = status == 0 && worker.isHealthy() && worker.cleanTmpDirectory();
+      return status;
+    } finally {
+      release(worker, isReusable);
+    }
+  }
+
+  private synchronized Worker lease() throws IOException {
+    Preconditions.checkState(!isClosed, "The test runner worker pool has been closed.");
+    Worker worker = idleWorkers.pollFirst();
+    if (worker == null) {
+      Path tmpDirectory = tmpDirectoryRoot.resolve("worker_" + numWorkersStarted++);
+      worker = new Worker(startWorkerProcess(tmpDirectory), tmpDirectory);
+      allWorkers.add(worker);
+    }
+    return worker;
+  }
+
+  private synchronized void release(Worker worker, boolean isReusable) {
+    if (isReusable && !isClosed) {
+      idleWorkers.addFirst(worker);
+    } else {
+      allWorkers.remove(worker);
+      worker.destroy();
+    }
+  }
+
+  private Process startWorkerProcess(Path tmpDirectory) throws IOException {
+    // Whatever a previous run of Buck left behind is of no use to this worker.
+    if (Files.exists(tmpDirectory)) {
+      MoreFiles.deleteRecursively(tmpDirectory);
+    }
+    Files.createDirectories(tmpDirectory);
+    ImmutableList<String> workerCommand = ImmutableList.of(
+        "java",
+        "-Djava.io.tmpdir=" + tmpDirectory,
+        "-classpath",
+        testRunnerClassesDirectory.toString(),
+        WORKER_CLASS_NAME);
+    LOG.debug("Starting a test runner worker: %s", workerCommand);
+    ProcessBuilder processBuilder = new ProcessBuilder(workerCommand);
+    processBuilder.directory(workingDirectory.toFile());
+    processBuilder.environment().put("TMP", tmpDirectory.toString());
+    processBuilder.redirectError(ProcessBuilder.Redirect.appendTo(pathToWorkerLog.toFile()));
+    return processBuilder.start();
+  }
+
+  @VisibleForTesting
+  synchronized int getNumWorkers() {
+    return allWorkers.size();
+  }
+
+  /** Stops every worker, including those that are still running tests. */
+  @Override
+  public synchronized void close() {
+    isClosed = true;
+    for (Worker worker : allWorkers) {
+      worker.destroy();
+    }
+    allWorkers.clear();
+    idleWorkers.clear();
+  }
+
+  private class Worker {
+    private final Process process;
+    private final Path tmpDirectory;
+    private final DataOutputStream requests;
+    private final DataInputStream responses;
+    private int numRuns = 0;
+    private long usedHeapBytes = 0;
+    private long maxHeapBytes = Long.MAX_VALUE;
+
+    private Worker(Process process, Path tmpDirectory) {
+      this.process = process;
+      this.tmpDirectory = tmpDirectory;
+      this.requests = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+      this.responses = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+    }
+
+    /** @return the status of the run, or 1 if the worker went away before answering. */
+    private int run(
+        String runnerClassName,
+        Iterable<Path> classpath,
+        Map<String, String> systemProperties,
+        List<String> runnerArgs) {
+      ImmutableList.Builder<String> properties = ImmutableList.builder();
+      for (Map.Entry<String, String> property : ImmutableMap.copyOf(systemProperties).entrySet()) {
+        properties.add(property.getKey(), property.getValue());
+      }
+      ImmutableList.Builder<String> classpathEntries = ImmutableList.builder();
+      for (Path entry : classpath) {
+        classpathEntries.add(entry.toString());
+      }
+
+      numRuns++;
+      try {
+        writeStrings(ImmutableList.of(runnerClassName));
+        writeStrings(classpathEntries.build());
+        writeStrings(properties.build());
+        writeStrings(runnerArgs);
+        requests.flush();
+
+        int status = responses.readInt();
+        usedHeapBytes = responses.readLong();
+        maxHeapBytes = responses.readLong();
+        return status;
+      } catch (IOException e) {
+        // Most likely a test called System.exit(), or the pool was closed.
+        LOG.warn(e, "Test runner worker exited while running tests.");
+        return 1;
+      }
+    }
+
+    private boolean isHealthy() {
+      if (numRuns >= maxRunsPerWorker) {
+        LOG.debug("Retiring a test runner worker after %d runs.", numRuns);
+        return false;
+      }
+      if (usedHeapBytes > maxHeapBytes * MAX_HEAP_FRACTION) {
+        LOG.debug(
+            "Retiring a test runner worker holding on to %d of %d bytes of heap.",
+            usedHeapBytes,
+            maxHeapBytes);
+        return false;
+      }
+      return true;
+    }
+
+    /**
+     * Deletes whatever the tests of the last run left in the temporary directory of the worker.
+     *
+     * @return whether the directory is empty, so that the next rule starts with a clean one.
+     */
+    private boolean cleanTmpDirectory() {
+      try (DirectoryStream<Path> entries = Files.newDirectoryStream(tmpDirectory)) {
+        for (Path entry : entries) {
+          MoreFiles.deleteRecursively(entry);
+        }
+        return true;
+      } catch (IOException e) {
+        LOG.warn(e, "Failed to clean the temporary directory of a test runner worker.");
+        return false;
+      }
+    }
+
+    private void writeStrings(List<String> strings) throws IOException {
+      requests.writeInt(strings.size());
+      for (String string : strings) {
+        byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+        requests.writeInt(bytes.length);
+        requests.write(bytes);
+      }
+    }
+
+    private void destroy() {
+      // Closing stdin lets an idle worker exit by itself. Kill it anyway, in case it is busy.
+      try {
+        requests.close();
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to close the stdin of a test runner worker.");
+      }
+      process.destroy();
+      // The process may still be writing to it, so this is only an attempt. The next run of Buck
+      // deletes anything that is left when it starts a worker with the same directory.
+      try {
+        MoreFiles.deleteRecursively(tmpDirectory);
+      } catch (IOException e) {
+        LOG.debug(e, "Failed to delete the temporary directory of a test runner worker.");
+      }
+    }
+  }
+}
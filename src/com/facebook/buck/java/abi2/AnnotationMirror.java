@@ -16,45 +16,28 @@
 
 package com.facebook.buck.java.abi2;
 
-
-import com.google.common.collect.Maps;
-
-import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AnnotationNode;
 
-import java.util.Map;
-import java.util.SortedMap;
-
-class AnnotationMirror extends AnnotationVisitor implements Comparable<AnnotationMirror> {
-  private final SortedMap<String, String> annotations;
-  private final String desc;
+/**
+ * Records an annotation, including its values, so that it can be copied to the stub. Values are
+ * part of the ABI: dependents read the {@code @Retention} of annotation types, for example, and
+ * annotation processors may read the values of any annotation.
+ */
+class AnnotationMirror extends AnnotationNode implements Comparable<AnnotationMirror> {
   private final boolean visible;
 
   public AnnotationMirror(String desc, boolean visible) {
-    super(Opcodes.ASM5);
+    super(Opcodes.ASM5, desc);
 
-    this.desc = desc;
     this.visible = visible;
-    this.annotations = Maps.newTreeMap();
-  }
-
-  @Override
-  public AnnotationVisitor visitAnnotation(String name, String desc) {
-    annotations.put(name, desc);
-    return this;
   }
 
   public void appendTo(ClassWriter writer) {
-    AnnotationVisitor visitor = writer.visitAnnotation(desc, visible);
-
-    for (Map.Entry<String, String> entry : annotations.entrySet()) {
-      visitor.visitAnnotation(entry.getKey(), entry.getValue());
-    }
-
-    visitor.visitEnd();
+    accept(writer.visitAnnotation(desc, visible));
   }
 
   @Override
@@ -63,17 +46,14 @@ class AnnotationMirror extends AnnotationVisitor implements Comparable<Annotatio
   }
 
   public void appendTo(MethodVisitor method) {
-    AnnotationVisitor visitor = method.visitAnnotation(desc, visible);
-    visitor.visitEnd();
+    accept(method.visitAnnotation(desc, visible));
   }
 
   public void appendTo(MethodVisitor method, int parameterIndex) {
-    AnnotationVisitor visitor = method.visitParameterAnnotation(parameterIndex, desc, visible);
-    visitor.visitEnd();
+    accept(method.visitParameterAnnotation(parameterIndex, desc, visible));
   }
 
   public void appendTo(FieldVisitor field) {
-    AnnotationVisitor visitor = field.visitAnnotation(desc, visible);
-    visitor.visitEnd();
+    accept(field.visitAnnotation(desc, visible));
   }
 }
@@ -16,6 +16,7 @@
 
 package com.facebook.buck.java.abi2;
 
+import com.google.common.collect.Lists;
 import com.google.common.collect.Sets;
 import com.google.common.io.ByteSource;
 
@@ -25,8 +26,10 @@ import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.FieldVisitor;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.InnerClassNode;
 
 import java.io.IOException;
+import java.util.List;
 import java.util.SortedSet;
 import java.util.jar.JarEntry;
 import java.util.jar.JarOutputStream;
@@ -39,6 +42,14 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
   private final SortedSet<AnnotationMirror> annotations;
   private final SortedSet<FieldMirror> fields;
   private final SortedSet<MethodMirror> methods;
+  // Without these, javac cannot find nested classes by their source names.
+  private final List<InnerClassNode> innerClasses;
+  @Nullable
+  private String outerClassOwner;
+  @Nullable
+  private String outerClassMethodName;
+  @Nullable
+  private String outerClassMethodDesc;
   private int version;
   private int access;
   @Nullable
@@ -57,6 +68,7 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
     this.annotations = Sets.newTreeSet();
     this.fields = Sets.newTreeSet();
     this.methods = Sets.newTreeSet();
+    this.innerClasses = Lists.newArrayList();
   }
 
   @Override
@@ -75,6 +87,18 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
     this.superName = superName;
   }
 
+  @Override
+  public void visitOuterClass(String owner, String name, String desc) {
+    this.outerClassOwner = owner;
+    this.outerClassMethodName = name;
+    this.outerClassMethodDesc = desc;
+  }
+
+  @Override
+  public void visitInnerClass(String name, String outerName, String innerName, int access) {
+    innerClasses.add(new InnerClassNode(name, outerName, innerName, access));
+  }
+
   @Override
   public AnnotationVisitor visitAnnotation(String desc, boolean visible) {
     AnnotationMirror mirror = new AnnotationMirror(desc, visible);
@@ -131,10 +155,18 @@ class ClassMirror extends ClassVisitor implements Comparable<ClassMirror> {
     ClassWriter writer = new ClassWriter(0);
     writer.visit(version, access, name, signature, superName, interfaces);
 
+    if (outerClassOwner != null) {
+      writer.visitOuterClass(outerClassOwner, outerClassMethodName, outerClassMethodDesc);
+    }
+
     for (AnnotationMirror annotation : annotations) {
       annotation.appendTo(writer);
     }
 
+    for (InnerClassNode innerClass : innerClasses) {
+      innerClass.accept(writer);
+    }
+
     for (FieldMirror field : fields) {
       field.accept(writer);
     }
@@ -31,6 +31,7 @@ class FieldMirror extends FieldNode implements Comparable<FieldMirror> {
 
   @Override
   public int compareTo(FieldMirror o) {
-    return desc.compareTo(o.desc);
+    // Names are unique within a class, but types need not be.
+    return name.compareTo(o.name);
   }
 }
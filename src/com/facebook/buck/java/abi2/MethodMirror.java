@@ -17,15 +17,21 @@
 package com.facebook.buck.java.abi2;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Sets;
 
 import org.objectweb.asm.AnnotationVisitor;
 import org.objectweb.asm.ClassWriter;
 import org.objectweb.asm.MethodVisitor;
 import org.objectweb.asm.Opcodes;
+import org.objectweb.asm.tree.AnnotationNode;
 
+import java.util.Map;
 import java.util.SortedSet;
 
+import javax.annotation.Nullable;
+
 class MethodMirror extends MethodVisitor implements Comparable<MethodMirror> {
   private final String name;
   private final String desc;
@@ -33,8 +39,11 @@ class MethodMirror extends MethodVisitor implements Comparable<MethodMirror> {
   private final int access;
   private final String[] exceptions;
   private final SortedSet<AnnotationMirror> annotations;
-  private final AnnotationMirror[] parameterAnnotations;
+  private final ListMultimap<Integer, AnnotationMirror> parameterAnnotations;
   private final String key;
+  /** The default value of an element of an annotation type, which callers may rely on. */
+  @Nullable
+  private AnnotationNode annotationDefault;
 
   public MethodMirror(int access, String name, String desc, String signature, String[] exceptions) {
     super(Opcodes.ASM5);
@@ -48,7 +57,7 @@ class MethodMirror extends MethodVisitor implements Comparable<MethodMirror> {
     this.annotations = Sets.newTreeSet();
 
     int paramCount = countParameters(desc);
-    this.parameterAnnotations = new AnnotationMirror[paramCount];
+    this.parameterAnnotations = ArrayListMultimap.create();
 
     this.key = name + desc + paramCount;
   }
@@ -115,10 +124,17 @@ class MethodMirror extends MethodVisitor implements Comparable<MethodMirror> {
   @Override
   public AnnotationVisitor visitParameterAnnotation(int parameter, String desc, boolean visible) {
     AnnotationMirror mirror = new AnnotationMirror(desc, visible);
-    parameterAnnotations[parameter] = mirror;
+    parameterAnnotations.put(parameter, mirror);
     return mirror;
   }
 
+  @Override
+  public AnnotationVisitor visitAnnotationDefault() {
+    // The value is visited without a name; any non-null desc makes the node record it anyway.
+    annotationDefault = new AnnotationNode(Opcodes.ASM5, "");
+    return annotationDefault;
+  }
+
   @Override
   public int compareTo(MethodMirror o) {
     return key.compareTo(o.key);
@@ -129,12 +145,11 @@ class MethodMirror extends MethodVisitor implements Comparable<MethodMirror> {
     for (AnnotationMirror annotation : annotations) {
       annotation.appendTo(method);
     }
-    for (int i = 0; i < parameterAnnotations.length; i++) {
-      AnnotationMirror annotation = parameterAnnotations[i];
-      if (annotation == null) {
-        continue;
-      }
-      annotation.appendTo(method, i);
+    for (Map.Entry<Integer, AnnotationMirror> entry : parameterAnnotations.entries()) {
+      entry.getValue().appendTo(method, entry.getKey());
+    }
+    if (annotationDefault != null) {
+      annotationDefault.accept(method.visitAnnotationDefault());
     }
     method.visitEnd();
   }
@@ -0,0 +1,34 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+/**
+ * The encoding buck.py uses to write the rules it parses from build files to its stdout.
+ */
+public enum BuildFileOutputFormat {
+  /** One JSON value per build file (or per rule, outside of server mode). */
+  JSON,
+
+  /**
+   * A length-prefixed binary encoding in which repeated strings, such as attribute names, rule
+   * types and target names, are written once per buck.py process and then referred to by index.
+   * This is much cheaper to produce and consume than JSON for large build files.
+   *
+   * @see BuildFileToBinaryParser
+   */
+  BINARY,
+}
@@ -0,0 +1,37 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reads the rules that buck.py writes to its stdout, in whichever {@link BuildFileOutputFormat} it
+ * was asked to use.
+ */
+interface BuildFileOutputParser extends AutoCloseable {
+
+  /**
+   * Access the next set of rules from the build file processor.  Note that for non-server
+   * invocations, this will collect all of the rules into one enormous list.
+   */
+  List<Map<String, Object>> nextRules() throws IOException;
+
+  @Override
+  void close() throws IOException;
+}
@@ -0,0 +1,228 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nullable;
+
+/**
+ * Consumes the output of buck.py when it is run with {@code --output_format binary}.
+ * <p>
+ * Each message is a big-endian 32-bit length followed by that many bytes holding a single value.
+ * In server mode there is one message per build file, holding the list of its rules; otherwise
+ * there is one message per rule. Every value starts with a one byte tag:
+ * <pre>
+ *   'N'                     null
+ *   'T', 'F'                true, false
+ *   'I' int64               an integer
+ *   'D' float64             a floating point number
+ *   'S' uint32 utf8-bytes   a string, which is appended to the string table
+ *   'R' uint32              the string at that index in the string table
+ *   'L' uint32 value*       a list with that many values
+ *   'M' uint32 (key value)* a map with that many entries, each key being an 'S' or 'R' string
+ * </pre>
+ * The string table lives as long as the buck.py process, so attribute names, rule types and
+ * target names are only sent once no matter how many rules or build files use them, and are
+ * decoded to a single {@link String} instance.
+ */
+public class BuildFileToBinaryParser implements BuildFileOutputParser {
+
+  private static final byte NULL = 'N';
+  private static final byte TRUE = 'T';
+  private static final byte FALSE = 'F';
+  private static final byte INTEGER = 'I';
+  private static final byte DOUBLE = 'D';
+  private static final byte STRING = 'S';
+  private static final byte STRING_REFERENCE = 'R';
+  private static final byte LIST = 'L';
+  private static final byte MAP = 'M';
+
+  private final DataInputStream input;
+  private final boolean isServerMode;
+  private final List<String> strings;
+
+  public BuildFileToBinaryParser(InputStream input, boolean isServerMode) {
+    this.input = new DataInputStream(new BufferedInputStream(input));
+    this.isServerMode = isServerMode;
+    this.strings = Lists.newArrayList();
+  }
+
+  @Override
+  @SuppressWarnings("unchecked")
+  public List<Map<String, Object>> nextRules() throws IOException {
+    if (isServerMode) {
+      Object rules = readMessage(/* allowEndOfStream */ false);
+      if (!(rules instanceof List)) {
+        throw new IOException("Expected a list of rules from buck.py but got: " + rules);
+      }
+      return (List<Map<String, Object>>) rules;
+    }
+
+    List<Map<String, Object>> items = Lists.newArrayList();
+    while (true) {
+      Object rule = readMessage(/* allowEndOfStream */ true);
+      if (rule == null) {
+        return items;
+      } else if (!(rule instanceof Map)) {
+        throw new IOException("Expected a rule from buck.py but got: " + rule);
+      }
+      items.add((Map<String, Object>) rule);
+    }
+  }
+
+  /**
+   * @return the value held by the next message, or {@code null} if the stream ended before it and
+   *     {@code allowEndOfStream} is set.
+   */
+  @Nullable
+  private Object readMessage(boolean allowEndOfStream) throws IOException {
+    int first = input.read();
+    if (first == -1) {
+      if (allowEndOfStream) {
+        return null;
+      }
+      throw new EOFException("buck.py exited before writing the rules of the build file.");
+    }
+    int length = (first << 24) |
+        (input.readUnsignedByte() << 16) |
+        (input.readUnsignedByte() << 8) |
+        input.readUnsignedByte();
+    if (length < 0) {
+      throw new IOException("Invalid message length from buck.py: " + length);
+    }
+
+    byte[] message = new byte[length];
+    input.readFully(message);
+    ByteBuffer buffer = ByteBuffer.wrap(message);
+    try {
+      Object value = readValue(buffer);
+      if (buffer.hasRemaining()) {
+        throw new IOException(
+            String.format("%d unexpected bytes at the end of a message.", buffer.remaining()));
+      }
+      return value;
+    } catch (BufferUnderflowException e) {
+      throw new IOException("Truncated message from buck.py.", e);
+    }
+  }
+
+  /**
+   * @return One of: null, String, Boolean, Long, Double, List<Object>, Map<String, Object>, the
+   *     same types that {@link RawParser#toRawTypes} produces for the JSON encoding.
+   */
+  @Nullable
+  private Object readValue(ByteBuffer buffer) throws IOException {
+    // Cases are ordered from most common to least common.
+    byte tag = buffer.get();
+    switch (tag) {
+      case STRING:
+      case STRING_REFERENCE:
+        return readString(tag, buffer, /* intern */ false);
+      case LIST:
+        int size = readSize(buffer);
+        List<Object> list = Lists.newArrayListWithCapacity(size);
+        for (int i = 0; i < size; i++) {
+          list.add(readValue(buffer));
+        }
+        return list;
+      case MAP:
+        int entries = readSize(buffer);
+        Map<String, Object> map = Maps.newHashMapWithExpectedSize(entries);
+        for (int i = 0; i < entries; i++) {
+          // Keys are interned, as they are by RawParser, since they are shared by so many rules.
+          String key = readString(buffer.get(), buffer, /* intern */ true);
+          map.put(key, readValue(buffer));
+        }
+        return map;
+      case NULL:
+        return null;
+      case TRUE:
+        return true;
+      case FALSE:
+        return false;
+      case INTEGER:
+        return buffer.getLong();
+      case DOUBLE:
+        double number = buffer.getDouble();
+        if ((long) number == number) {
+          return (long) number;
+        }
+        return number;
+      default:
+        throw new IOException(String.format("Unknown tag in buck.py output: 0x%02x", tag));
+    }
+  }
+
+  private String readString(byte tag, ByteBuffer buffer, boolean intern) throws IOException {
+    if (tag == STRING) {
+      int length = readSize(buffer);
+      if (length > buffer.remaining()) {
+        throw new BufferUnderflowException();
+      }
+      String value = new String(buffer.array(), buffer.position(), length, UTF_8);
+      buffer.position(buffer.position() + length);
+      if (intern) {
+        value = value.intern();
+      }
+      strings.add(value);
+      return value;
+    } else if (tag == STRING_REFERENCE) {
+      int index = buffer.getInt();
+      if (index < 0 || index >= strings.size()) {
+        throw new IOException(
+            String.format(
+                "Reference to string %d but only %d strings have been read.",
+                index,
+                strings.size()));
+      }
+      String value = strings.get(index);
+      if (intern) {
+        value = value.intern();
+        strings.set(index, value);
+      }
+      return value;
+    }
+    throw new IOException(String.format("Expected a string in buck.py output: 0x%02x", tag));
+  }
+
+  private static int readSize(ByteBuffer buffer) throws IOException {
+    int size = buffer.getInt();
+    if (size < 0 || size > buffer.limit()) {
+      throw new IOException("Invalid size in buck.py output: " + size);
+    }
+    return size;
+  }
+
+  @Override
+  public void close() throws IOException {
+    input.close();
+  }
+}
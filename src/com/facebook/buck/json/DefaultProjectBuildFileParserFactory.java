@@ -27,14 +27,17 @@ import com.google.common.collect.ImmutableSet;
 public class DefaultProjectBuildFileParserFactory implements ProjectBuildFileParserFactory {
   private final ProjectFilesystem projectFilesystem;
   private final String pythonInterpreter;
+  private final BuildFileOutputFormat outputFormat;
   private final ImmutableSet<Description<?>> descriptions;
 
   public DefaultProjectBuildFileParserFactory(
       ProjectFilesystem projectFilesystem,
       String pythonInterpreter,
+      BuildFileOutputFormat outputFormat,
       ImmutableSet<Description<?>> descriptions) {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.pythonInterpreter = Preconditions.checkNotNull(pythonInterpreter);
+    this.outputFormat = Preconditions.checkNotNull(outputFormat);
     this.descriptions = Preconditions.checkNotNull(descriptions);
   }
 
@@ -48,6 +51,7 @@ public class DefaultProjectBuildFileParserFactory implements ProjectBuildFilePar
         projectFilesystem,
         commonIncludes,
         pythonInterpreter,
+        outputFormat,
         descriptions,
         console,
         environment,
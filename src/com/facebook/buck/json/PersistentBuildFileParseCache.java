@@ -0,0 +1,367 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.rules.Description;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.collect.Sets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonPrimitive;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedSet;
+
+import javax.annotation.Nullable;
+
+/**
+ * Keeps the raw rules that buck.py produced for each build file in a directory under
+ * {@code buck-out}, so that a fresh Buck process or a restarted daemon can skip running buck.py
+ * on build files that have not changed.
+ * <p>
+ * Each entry is keyed by the contents of the build file and every file it included, along with
+ * the default includes and the environment it was parsed with. Build files that called
+ * {@code glob()} are additionally keyed by the listing of their package, the directory tree they
+ * live in up to any nested build files, as adding or removing a file there can change their rules.
+ * Entries are only read when a build file is first needed, and are validated by rehashing its
+ * sources, which is far cheaper than executing them.
+ */
+public class PersistentBuildFileParseCache {
+
+  private static final Logger LOG = Logger.get(PersistentBuildFileParseCache.class);
+
+  /** Bump whenever the entry format or the contents of the key change. */
+  private static final int VERSION = 2;
+
+  /** Key of the meta rule that buck.py emits with the build files that were executed. */
+  private static final String INCLUDES_META_RULE = "__includes";
+
+  /** Key of the meta rule that buck.py emits with whether the build file called glob(). */
+  private static final String USES_GLOB_META_RULE = "__uses_glob";
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path pathToCache;
+
+  /** Identifies the Buck build and the rule functions available to build files. */
+  private final String buckFingerprint;
+
+  private final Gson gson;
+
+  @VisibleForTesting
+  PersistentBuildFileParseCache(
+      ProjectFilesystem projectFilesystem,
+      Path pathToCache,
+      String buckFingerprint) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.pathToCache = Preconditions.checkNotNull(pathToCache);
+    this.buckFingerprint = Preconditions.checkNotNull(buckFingerprint);
+    // buck.py emits nulls for unset arguments, which must survive the round trip.
+    this.gson = new GsonBuilder().serializeNulls().create();
+  }
+
+  /**
+   * @param pathToCache directory to keep the entries in, relative to the project root.
+   * @param descriptions the rules available to build files. Adding or removing one changes the
+   *     functions buck.py exposes, so it invalidates every entry.
+   */
+  public static PersistentBuildFileParseCache create(
+      ProjectFilesystem projectFilesystem,
+      Path pathToCache,
+      ImmutableSet<Description<?>> descriptions) {
+    SortedSet<String> ruleNames = Sets.newTreeSet();
+    for (Description<?> description : descriptions) {
+      ruleNames.add(description.getBuildRuleType().getName());
+    }
+    String buckFingerprint = Hashing.sha1().newHasher()
+        .putString(System.getProperty("buck.git_commit", ""), UTF_8)
+        .putString(ruleNames.toString(), UTF_8)
+        .hash()
+        .toString();
+    return new PersistentBuildFileParseCache(projectFilesystem, pathToCache, buckFingerprint);
+  }
+
+  /**
+   * @param buildFile absolute path to the build file.
+   * @return the rules and meta rules that were stored for {@code buildFile}, if none of the
+   *     files they were computed from have changed since.
+   */
+  public Optional<List<Map<String, Object>>> get(
+      Path buildFile,
+      Iterable<String> defaultIncludes,
+      ImmutableMap<String, String> environment) {
+    Path pathToEntry = getPathToEntry(buildFile);
+    JsonObject entry;
+    try (Reader reader = Files.newBufferedReader(pathToEntry, UTF_8)) {
+      entry = gson.fromJson(reader, JsonObject.class);
+    } catch (NoSuchFileException e) {
+      LOG.verbose("No persisted rules for %s.", buildFile);
+      return Optional.absent();
+    } catch (IOException | JsonParseException e) {
+      LOG.debug(e, "Ignoring unreadable persisted rules for %s.", buildFile);
+      return Optional.absent();
+    }
+
+    try {
+      if (entry == null ||
+          entry.get("version").getAsInt() != VERSION ||
+          !entry.get("build_file").getAsString().equals(buildFile.toString()) ||
+          !entry.get("config").getAsString().equals(
+              getConfigKey(defaultIncludes, environment))) {
+        LOG.debug("Persisted rules for %s were parsed with a different configuration.", buildFile);
+        return Optional.absent();
+      }
+
+      ImmutableList.Builder<Path> includes = ImmutableList.builder();
+      for (JsonElement include : entry.getAsJsonArray("includes")) {
+        includes.add(Paths.get(include.getAsString()));
+      }
+      String sourcesKey = getSourcesKey(
+          buildFile,
+          includes.build(),
+          entry.get("uses_glob").getAsBoolean());
+      if (!entry.get("sources").getAsString().equals(sourcesKey)) {
+        LOG.debug("Persisted rules for %s are stale.", buildFile);
+        return Optional.absent();
+      }
+
+      @SuppressWarnings("unchecked")
+      List<Map<String, Object>> rules =
+          (List<Map<String, Object>>) RawParser.toRawTypes(entry.getAsJsonArray("rules"));
+      LOG.verbose("Using persisted rules for %s.", buildFile);
+      return Optional.of(rules);
+    } catch (IOException e) {
+      // One of the included files was probably deleted: the build file needs to be parsed again.
+      LOG.debug(e, "Could not validate persisted rules for %s.", buildFile);
+      return Optional.absent();
+    } catch (RuntimeException e) {
+      LOG.debug(e, "Ignoring malformed persisted rules for %s.", buildFile);
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Stores the rules and meta rules that buck.py produced for {@code buildFile}. Failures are
+   * logged rather than thrown, as the cache is only an optimization.
+   *
+   * @param buildFile absolute path to the build file.
+   */
+  public void put(
+      Path buildFile,
+      Iterable<String> defaultIncludes,
+      ImmutableMap<String, String> environment,
+      List<Map<String, Object>> rulesAndMetaRules) {
+    Optional<ImmutableList<Path>> includes = getIncludes(rulesAndMetaRules);
+    if (!includes.isPresent()) {
+      LOG.debug("Not persisting rules for %s, which have no includes meta rule.", buildFile);
+      return;
+    }
+
+    JsonArray includesJson = new JsonArray();
+    for (Path include : includes.get()) {
+      includesJson.add(new JsonPrimitive(include.toString()));
+    }
+    Path pathToEntry = getPathToEntry(buildFile);
+    @Nullable Path tempFile = null;
+    try {
+      boolean usesGlob = usesGlob(buildFile, rulesAndMetaRules);
+      JsonObject entry = new JsonObject();
+      entry.addProperty("version", VERSION);
+      entry.addProperty("build_file", buildFile.toString());
+      entry.addProperty("config", getConfigKey(defaultIncludes, environment));
+      entry.add("includes", includesJson);
+      entry.addProperty("uses_glob", usesGlob);
+      entry.addProperty("sources", getSourcesKey(buildFile, includes.get(), usesGlob));
+      entry.add("rules", gson.toJsonTree(rulesAndMetaRules));
+
+      Files.createDirectories(pathToEntry.getParent());
+      tempFile = Files.createTempFile(
+          pathToEntry.getParent(),
+          pathToEntry.getFileName().toString(),
+          ".tmp");
+      try (Writer writer = Files.newBufferedWriter(tempFile, UTF_8)) {
+        gson.toJson(entry, writer);
+      }
+      // Move the entry into place so that a concurrent Buck never reads a partial entry.
+      Files.move(
+          tempFile,
+          pathToEntry,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      LOG.warn(e, "Could not persist rules for %s.", buildFile);
+      if (tempFile != null) {
+        try {
+          Files.deleteIfExists(tempFile);
+        } catch (IOException deleteException) {
+          LOG.debug(deleteException, "Could not delete %s.", tempFile);
+        }
+      }
+    }
+  }
+
+  private Path getPathToEntry(Path buildFile) {
+    return projectFilesystem.resolve(pathToCache)
+        .resolve(Hashing.sha1().hashString(buildFile.toString(), UTF_8).toString());
+  }
+
+  @SuppressWarnings("unchecked") // The value of the includes meta rule is a list of strings.
+  private static Optional<ImmutableList<Path>> getIncludes(
+      List<Map<String, Object>> rulesAndMetaRules) {
+    for (Map<String, Object> rule : rulesAndMetaRules) {
+      Object includes = rule.get(INCLUDES_META_RULE);
+      if (includes instanceof List) {
+        ImmutableList.Builder<Path> paths = ImmutableList.builder();
+        for (String include : (List<String>) includes) {
+          paths.add(Paths.get(include));
+        }
+        return Optional.of(paths.build());
+      }
+    }
+    return Optional.absent();
+  }
+
+  /**
+   * @return whether buck.py reported that {@code buildFile} called {@code glob()}, directly or
+   *     through a macro. Output from a buck.py that does not report it is checked for a literal
+   *     call in the build file itself instead.
+   */
+  private static boolean usesGlob(Path buildFile, List<Map<String, Object>> rulesAndMetaRules)
+      throws IOException {
+    for (Map<String, Object> rule : rulesAndMetaRules) {
+      Object usesGlob = rule.get(USES_GLOB_META_RULE);
+      if (usesGlob instanceof Boolean) {
+        return (Boolean) usesGlob;
+      }
+    }
+    return new String(Files.readAllBytes(buildFile), UTF_8).contains("glob(");
+  }
+
+  private String getConfigKey(
+      Iterable<String> defaultIncludes,
+      ImmutableMap<String, String> environment) {
+    Hasher hasher = Hashing.sha1().newHasher()
+        .putInt(VERSION)
+        .putString(buckFingerprint, UTF_8);
+    for (String include : defaultIncludes) {
+      hasher.putString(include, UTF_8).putByte((byte) 0);
+    }
+    hasher.putByte((byte) 1);
+    for (Map.Entry<String, String> entry : ImmutableSortedMap.copyOf(environment).entrySet()) {
+      hasher.putString(entry.getKey(), UTF_8).putByte((byte) 0);
+      hasher.putString(entry.getValue(), UTF_8).putByte((byte) 0);
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Hashes the contents of the build file and the files it included and, if the build file called
+   * {@code glob()}, the listing of its package.
+   */
+  private String getSourcesKey(
+      Path buildFile,
+      ImmutableList<Path> includes,
+      boolean usesGlob) throws IOException {
+    Hasher hasher = Hashing.sha1().newHasher();
+    for (Path include : includes) {
+      hasher.putString(include.toString(), UTF_8).putByte((byte) 0);
+      hasher.putBytes(Hashing.sha1().hashBytes(Files.readAllBytes(include)).asBytes());
+    }
+    if (usesGlob) {
+      for (String path : listPackage(buildFile)) {
+        hasher.putString(path, UTF_8).putByte((byte) 0);
+      }
+    }
+    return hasher.hash().toString();
+  }
+
+  /**
+   * @return the paths of all files and directories under the directory containing
+   *     {@code buildFile}, relative to it, excluding those that the project ignores, such as
+   *     {@code buck-out}. Subdirectories with a build file of their own are listed but not entered:
+   *     as with the parser's in-memory cache, only the nearest build file is invalidated when a
+   *     file is added or removed, and walking nested packages would make the cost of validating
+   *     the root build file proportional to the size of the repository.
+   */
+  private SortedSet<String> listPackage(Path buildFile) throws IOException {
+    final Path directory = buildFile.getParent();
+    final Path buildFileName = buildFile.getFileName();
+    final SortedSet<String> paths = Sets.newTreeSet();
+    final Path projectRoot = projectFilesystem.getRootPath().toAbsolutePath();
+    Files.walkFileTree(
+        directory,
+        EnumSet.of(FileVisitOption.FOLLOW_LINKS),
+        Integer.MAX_VALUE,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+            if (dir.startsWith(projectRoot) &&
+                projectFilesystem.isIgnored(projectRoot.relativize(dir))) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            paths.add(directory.relativize(dir).toString() + "/");
+            if (!dir.equals(directory) && Files.isRegularFile(dir.resolve(buildFileName))) {
+              return FileVisitResult.SKIP_SUBTREE;
+            }
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            paths.add(directory.relativize(file).toString());
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            // Typically a symlink loop, which buck.py would not descend into either.
+            paths.add(directory.relativize(file).toString() + "!");
+            return FileVisitResult.CONTINUE;
+          }
+        });
+    return paths;
+  }
+}
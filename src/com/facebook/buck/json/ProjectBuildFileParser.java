@@ -78,13 +78,14 @@ public class ProjectBuildFileParser implements AutoCloseable {
   private Optional<Path> pathToBuckPy;
 
   @Nullable private Process buckPyProcess;
-  @Nullable BuildFileToJsonParser buckPyStdoutParser;
+  @Nullable BuildFileOutputParser buckPyStdoutParser;
   @Nullable private BufferedWriter buckPyStdinWriter;
 
   private final Path projectRoot;
   private final ImmutableSet<Description<?>> descriptions;
   private final ImmutableList<String> commonIncludes;
   private final String pythonInterpreter;
+  private final BuildFileOutputFormat outputFormat;
   private final Console console;
   private final BuckEventBus buckEventBus;
 
@@ -101,6 +102,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
       ProjectFilesystem projectFilesystem,
       Iterable<String> commonIncludes,
       String pythonInterpreter,
+      BuildFileOutputFormat outputFormat,
       ImmutableSet<Description<?>> descriptions,
       Console console,
       ImmutableMap<String, String> environment,
@@ -109,6 +111,7 @@ public class ProjectBuildFileParser implements AutoCloseable {
     this.descriptions = Preconditions.checkNotNull(descriptions);
     this.commonIncludes = ImmutableList.copyOf(commonIncludes);
     this.pythonInterpreter = Preconditions.checkNotNull(pythonInterpreter);
+    this.outputFormat = Preconditions.checkNotNull(outputFormat);
     this.pathToBuckPy = Optional.absent();
     this.console = Preconditions.checkNotNull(console);
     this.environment = Preconditions.checkNotNull(environment);
@@ -206,12 +209,22 @@ public class ProjectBuildFileParser implements AutoCloseable {
 
     buckPyStdinWriter = new BufferedWriter(new OutputStreamWriter(stdin));
 
-    Reader reader = new InputStreamReader(buckPyProcess.getInputStream(), Charsets.UTF_8);
-    buckPyStdoutParser = new BuildFileToJsonParser(reader, isServerMode);
+    switch (outputFormat) {
+      case BINARY:
+        buckPyStdoutParser =
+            new BuildFileToBinaryParser(buckPyProcess.getInputStream(), isServerMode);
+        break;
+      case JSON:
+        Reader reader = new InputStreamReader(buckPyProcess.getInputStream(), Charsets.UTF_8);
+        buckPyStdoutParser = new BuildFileToJsonParser(reader, isServerMode);
+        break;
+      default:
+        throw new IllegalStateException("Unknown output format: " + outputFormat);
+    }
   }
 
   private ImmutableList<String> buildArgs() throws IOException {
-    // Invoking buck.py and read JSON-formatted build rules from its stdout.
+    // Invoking buck.py and read JSON- or binary-formatted build rules from its stdout.
     ImmutableList.Builder<String> argBuilder = ImmutableList.builder();
 
     argBuilder.add(pythonInterpreter);
@@ -237,6 +250,10 @@ public class ProjectBuildFileParser implements AutoCloseable {
 
     argBuilder.add("--project_root", projectRoot.toAbsolutePath().toString());
 
+    if (outputFormat == BuildFileOutputFormat.BINARY) {
+      argBuilder.add("--output_format", "binary");
+    }
+
     // Add the --include flags.
     for (String include : commonIncludes) {
       argBuilder.add("--include");
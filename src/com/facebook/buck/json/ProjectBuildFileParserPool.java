@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.util.Console;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Queues;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import java.nio.file.Path;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.Nullable;
+
+/**
+ * Runs up to a fixed number of buck.py processes so that independent build files can be parsed
+ * concurrently. Each {@link ProjectBuildFileParser} is only used by one thread at a time, and
+ * parsers are started lazily, so a pool which is never asked to parse more than one build file
+ * at once only ever starts a single buck.py process. Must be closed afterward to shut down the
+ * processes.
+ */
+public class ProjectBuildFileParserPool implements AutoCloseable {
+
+  private static final Logger LOG = Logger.get(ProjectBuildFileParserPool.class);
+
+  private final int maxParsers;
+  private final ProjectBuildFileParserFactory parserFactory;
+  private final ImmutableList<String> commonIncludes;
+  private final Console console;
+  private final ImmutableMap<String, String> environment;
+  private final BuckEventBus buckEventBus;
+  private final boolean enableProfiling;
+
+  /** Absent when there is a single parser, in which case build files are parsed inline. */
+  private final Optional<ListeningExecutorService> executorService;
+
+  private final BlockingQueue<ProjectBuildFileParser> idleParsers;
+  private final List<ProjectBuildFileParser> parsers;
+
+  public ProjectBuildFileParserPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory parserFactory,
+      Iterable<String> commonIncludes,
+      Console console,
+      ImmutableMap<String, String> environment,
+      BuckEventBus buckEventBus,
+      boolean enableProfiling) {
+    Preconditions.checkArgument(maxParsers > 0, "Must allow at least one parser.");
+    this.maxParsers = maxParsers;
+    this.parserFactory = Preconditions.checkNotNull(parserFactory);
+    this.commonIncludes = ImmutableList.copyOf(commonIncludes);
+    this.console = Preconditions.checkNotNull(console);
+    this.environment = Preconditions.checkNotNull(environment);
+    this.buckEventBus = Preconditions.checkNotNull(buckEventBus);
+    this.enableProfiling = enableProfiling;
+    this.idleParsers = Queues.newLinkedBlockingQueue();
+    this.parsers = Lists.newArrayList();
+    if (maxParsers == 1) {
+      this.executorService = Optional.absent();
+    } else {
+      this.executorService = Optional.of(
+          MoreExecutors.listeningDecorator(
+              Executors.newFixedThreadPool(
+                  maxParsers,
+                  new CommandThreadFactory("build-file-parser"))));
+    }
+  }
+
+  /**
+   * Parses a single build file on the calling thread.
+   *
+   * @param buildFile should be an absolute path to a build file.
+   * @see ProjectBuildFileParser#getAllRulesAndMetaRules(Path)
+   */
+  public List<Map<String, Object>> getAllRulesAndMetaRules(Path buildFile)
+      throws BuildFileParseException, InterruptedException {
+    ProjectBuildFileParser parser = borrowParser();
+    try {
+      return parser.getAllRulesAndMetaRules(buildFile);
+    } finally {
+      idleParsers.add(parser);
+    }
+  }
+
+  /**
+   * Parses the given build files, sharding them across up to {@code maxParsers} buck.py
+   * processes. If any build file fails to parse, the first failure (in iteration order) is
+   * rethrown and the build files that have not started parsing yet are skipped.
+   *
+   * @param buildFiles absolute paths to build files.
+   * @return the rules and meta rules of each build file, in the order the files were given.
+   */
+  public ImmutableMap<Path, List<Map<String, Object>>> getAllRulesAndMetaRules(
+      Iterable<Path> buildFiles)
+      throws BuildFileParseException, InterruptedException {
+    ImmutableSet<Path> uniqueBuildFiles = ImmutableSet.copyOf(buildFiles);
+    ImmutableMap.Builder<Path, List<Map<String, Object>>> results = ImmutableMap.builder();
+
+    if (!executorService.isPresent() || uniqueBuildFiles.size() == 1) {
+      for (Path buildFile : uniqueBuildFiles) {
+        results.put(buildFile, getAllRulesAndMetaRules(buildFile));
+      }
+      return results.build();
+    }
+
+    LOG.debug(
+        "Parsing %d build files with up to %d parsers.",
+        uniqueBuildFiles.size(),
+        maxParsers);
+    Map<Path, ListenableFuture<List<Map<String, Object>>>> futures = Maps.newLinkedHashMap();
+    for (final Path buildFile : uniqueBuildFiles) {
+      futures.put(
+          buildFile,
+          executorService.get().submit(
+              new Callable<List<Map<String, Object>>>() {
+                @Override
+                public List<Map<String, Object>> call()
+                    throws BuildFileParseException, InterruptedException {
+                  return getAllRulesAndMetaRules(buildFile);
+                }
+              }));
+    }
+
+    try {
+      for (Map.Entry<Path, ListenableFuture<List<Map<String, Object>>>> entry :
+          futures.entrySet()) {
+        results.put(entry.getKey(), entry.getValue().get());
+      }
+    } catch (ExecutionException e) {
+      cancel(futures.values());
+      Throwable cause = e.getCause();
+      Throwables.propagateIfInstanceOf(cause, BuildFileParseException.class);
+      Throwables.propagateIfInstanceOf(cause, InterruptedException.class);
+      throw Throwables.propagate(cause);
+    } catch (InterruptedException e) {
+      cancel(futures.values());
+      throw e;
+    }
+    return results.build();
+  }
+
+  private static void cancel(Iterable<? extends ListenableFuture<?>> futures) {
+    for (ListenableFuture<?> future : futures) {
+      future.cancel(/* mayInterruptIfRunning */ false);
+    }
+  }
+
+  /**
+   * Returns an idle parser, starting a new one if fewer than {@code maxParsers} exist.
+   */
+  private ProjectBuildFileParser borrowParser() throws InterruptedException {
+    ProjectBuildFileParser parser = idleParsers.poll();
+    if (parser != null) {
+      return parser;
+    }
+
+    synchronized (this) {
+      if (parsers.size() < maxParsers) {
+        parser = parserFactory.createParser(commonIncludes, console, environment, buckEventBus);
+        parser.setEnableProfiling(enableProfiling);
+        parsers.add(parser);
+        return parser;
+      }
+    }
+    return idleParsers.take();
+  }
+
+  @Override
+  public void close() throws BuildFileParseException, InterruptedException {
+    if (executorService.isPresent()) {
+      // Let any parse that is still running finish before its buck.py process is shut down.
+      executorService.get().shutdown();
+      executorService.get().awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+
+    @Nullable BuildFileParseException firstException = null;
+    synchronized (this) {
+      for (ProjectBuildFileParser parser : parsers) {
+        try {
+          parser.close();
+        } catch (BuildFileParseException e) {
+          if (firstException == null) {
+            firstException = e;
+          }
+        }
+      }
+      parsers.clear();
+    }
+    idleParsers.clear();
+    if (firstException != null) {
+      throw firstException;
+    }
+  }
+}
@@ -203,6 +203,16 @@ public abstract class BaseRunner {
     this.testSelectorList = testSelectorList;
   }
 
+  /**
+   * Runs the tests described by {@code args}, in the format {@link #parseArgs(String...)} expects,
+   * without exiting afterwards, so that a {@link TestRunnerWorker} can go on to run more tests in
+   * the same JVM.
+   */
+  public void parseArgsAndRun(String... args) throws Throwable {
+    parseArgs(args);
+    run();
+  }
+
   protected void runAndExit() throws Throwable {
     // Run the tests.
     try {
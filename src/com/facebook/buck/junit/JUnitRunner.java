@@ -28,13 +28,18 @@ import org.junit.runner.Description;
 import org.junit.runner.JUnitCore;
 import org.junit.runner.Request;
 import org.junit.runner.Result;
+import org.junit.runner.RunWith;
 import org.junit.runner.Runner;
 import org.junit.runner.manipulation.Filter;
 import org.junit.runner.notification.Failure;
 import org.junit.runner.notification.RunListener;
+import org.junit.runners.BlockJUnit4ClassRunner;
+import org.junit.runners.JUnit4;
+import org.junit.runners.Parameterized;
 import org.junit.runners.model.RunnerBuilder;
 
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.PrintStream;
 import java.util.ArrayList;
 import java.util.Collections;
@@ -83,6 +88,12 @@ public final class JUnitRunner extends BaseRunner {
       }
     };
 
+    // Only a full run says which classes each test class needs.
+    LoadedClassRecorder loadedClassRecorder = null;
+    if (!isDryRun && testSelectorList.isEmpty()) {
+      loadedClassRecorder = LoadedClassRecorder.createIfEnabled(JUnitRunner.class);
+    }
+
     for (String className : testClassNames) {
       final Class<?> testClass = Class.forName(className);
       Ignore ignore = testClass.getAnnotation(Ignore.class);
@@ -108,7 +119,26 @@ public final class JUnitRunner extends BaseRunner {
       if (results != null) {
         writeResult(className, results);
       }
+
+      if (loadedClassRecorder != null && !isTestClassIgnored && isRunByJUnit(testClass)) {
+        loadedClassRecorder.record(new File(outputDirectory, className + ".classes"));
+      }
+    }
+  }
+
+  /**
+   * Custom runners, such as Robolectric's, may load the classes of a test in a classloader of their
+   * own, where {@link LoadedClassRecorder} cannot see them.
+   */
+  private boolean isRunByJUnit(Class<?> testClass) {
+    RunWith runWith = testClass.getAnnotation(RunWith.class);
+    if (runWith == null) {
+      return true;
     }
+    Class<?> runnerClass = runWith.value();
+    return runnerClass == JUnit4.class ||
+        runnerClass == BlockJUnit4ClassRunner.class ||
+        runnerClass == Parameterized.class;
   }
 
   /**
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.junit;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Enumeration;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Records which of the classes on the classpath of the tests have been loaded, so that Buck can
+ * skip test classes when none of the classes they use have changed since they last passed.
+ * <p>
+ * The record for a test class lists every class loaded by the time it finished, including those
+ * that earlier test classes in the same JVM loaded first, so it may list more classes than the test
+ * class uses, but never fewer. Classes are written one per line, as paths without the
+ * {@code .class} suffix, to match the class names Buck hashes.
+ * <p>
+ * IMPORTANT! This class limits itself to types that are available in the JDK. The objective is to
+ * limit the set of files added to the ClassLoader that runs the test, as not to interfere with the
+ * results of the test.
+ */
+class LoadedClassRecorder {
+
+  /** Set this system property to {@code true} to record loaded classes. */
+  static final String RECORD_LOADED_CLASSES_PROPERTY = "com.facebook.buck.recordLoadedClasses";
+
+  private static final String CLASS_SUFFIX = ".class";
+
+  private final ClassLoader classLoader;
+  private final Method findLoadedClass;
+  private final Set<String> loadedClasses = new TreeSet<>();
+  private final List<String> classesNotYetLoaded;
+
+  private LoadedClassRecorder(
+      ClassLoader classLoader,
+      Method findLoadedClass,
+      List<String> classesOnClasspath) {
+    this.classLoader = classLoader;
+    this.findLoadedClass = findLoadedClass;
+    this.classesNotYetLoaded = classesOnClasspath;
+  }
+
+  /**
+   * @param runnerClass the test runner, whose classloader loads the tests. Classes that are on the
+   *     same classpath entry as the runner are not recorded.
+   * @return a recorder, or null if recording was not asked for, or is not possible in this JVM.
+   */
+  /* @Nullable */
+  static LoadedClassRecorder createIfEnabled(Class<?> runnerClass) {
+    if (!Boolean.getBoolean(RECORD_LOADED_CLASSES_PROPERTY)) {
+      return null;
+    }
+
+    ClassLoader classLoader = runnerClass.getClassLoader();
+    Method findLoadedClass;
+    List<String> classesOnClasspath;
+    try {
+      findLoadedClass = ClassLoader.class.getDeclaredMethod("findLoadedClass", String.class);
+      findLoadedClass.setAccessible(true);
+      classesOnClasspath = listClasses(getClasspath(classLoader), getLocation(runnerClass));
+    } catch (IOException | ReflectiveOperationException | URISyntaxException |
+        RuntimeException e) {
+      // Without a record, Buck runs every test class, which is always safe.
+      System.err.println("Cannot record the classes used by tests: " + e);
+      return null;
+    }
+    return new LoadedClassRecorder(classLoader, findLoadedClass, classesOnClasspath);
+  }
+
+  /** Writes the classes that have been loaded so far to {@code outputFile}. */
+  void record(File outputFile) throws IOException {
+    try {
+      for (Iterator<String> iterator = classesNotYetLoaded.iterator(); iterator.hasNext();) {
+        String className = iterator.next();
+        String binaryName = className.replace('/', '.');
+        if (findLoadedClass.invoke(classLoader, binaryName) != null) {
+          loadedClasses.add(className);
+          iterator.remove();
+        }
+      }
+    } catch (IllegalAccessException | InvocationTargetException e) {
+      throw new IOException("Failed to look up loaded classes.", e);
+    }
+
+    try (Writer writer = new BufferedWriter(
+        new OutputStreamWriter(new FileOutputStream(outputFile), "UTF-8"))) {
+      for (String className : loadedClasses) {
+        writer.write(className);
+        writer.write('\n');
+      }
+    }
+  }
+
+  private static List<File> getClasspath(ClassLoader classLoader) throws URISyntaxException {
+    List<File> classpath = new ArrayList<>();
+    if (classLoader instanceof URLClassLoader) {
+      for (URL url : ((URLClassLoader) classLoader).getURLs()) {
+        if ("file".equals(url.getProtocol())) {
+          classpath.add(new File(url.toURI()));
+        }
+      }
+    } else {
+      for (String entry : System.getProperty("java.class.path").split(File.pathSeparator)) {
+        if (!entry.isEmpty()) {
+          classpath.add(new File(entry));
+        }
+      }
+    }
+    return classpath;
+  }
+
+  /* @Nullable */
+  private static File getLocation(Class<?> clazz) throws URISyntaxException {
+    if (clazz.getProtectionDomain().getCodeSource() == null) {
+      return null;
+    }
+    return new File(clazz.getProtectionDomain().getCodeSource().getLocation().toURI());
+  }
+
+  private static List<String> listClasses(List<File> classpath, /* @Nullable */ File excludedEntry)
+      throws IOException {
+    List<String> classes = new ArrayList<>();
+    for (File entry : classpath) {
+      if (excludedEntry != null &&
+          entry.getAbsoluteFile().equals(excludedEntry.getAbsoluteFile())) {
+        continue;
+      }
+      if (entry.isDirectory()) {
+        listClassesInDirectory(entry, "", classes);
+      } else if (entry.isFile()) {
+        try (ZipFile zipFile = new ZipFile(entry)) {
+          Enumeration<? extends ZipEntry> entries = zipFile.entries();
+          while (entries.hasMoreElements()) {
+            String name = entries.nextElement().getName();
+            if (name.endsWith(CLASS_SUFFIX)) {
+              classes.add(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+            }
+          }
+        }
+      }
+    }
+    return classes;
+  }
+
+  private static void listClassesInDirectory(File directory, String prefix, List<String> classes) {
+    File[] files = directory.listFiles();
+    if (files == null) {
+      return;
+    }
+    for (File file : files) {
+      String name = prefix + file.getName();
+      if (file.isDirectory()) {
+        listClassesInDirectory(file, name + "/", classes);
+      } else if (name.endsWith(CLASS_SUFFIX)) {
+        classes.add(name.substring(0, name.length() - CLASS_SUFFIX.length()));
+      }
+    }
+  }
+}
@@ -0,0 +1,146 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.junit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * A long-lived JVM that runs the tests of one test rule after another, so that each rule does not
+ * pay for starting a JVM of its own.
+ * <p>
+ * Requests are read from stdin, and each is answered on stdout once its tests have finished. A
+ * request is four lists of strings: the name of the {@link BaseRunner} to use, the classpath of the
+ * rule, system properties as alternating keys and values, and the arguments for the runner. A list
+ * is written as its length followed by its elements, and a string as the length of its UTF-8
+ * encoding followed by the encoding. A response is an int that is 0 if the runner completed,
+ * followed by the heap in use after the run and the maximum heap, both as longs, so that the
+ * caller can retire workers that keep hold of more and more memory.
+ * <p>
+ * The classes of each rule, including the test runner itself, are loaded in a classloader of their
+ * own that is thrown away afterwards, so that one rule cannot see the classes or the static state
+ * of another. System properties are restored after each run.
+ * <p>
+ * IMPORTANT! This class limits itself to types that are available in the JDK. The objective is to
+ * limit the set of files added to the ClassLoader that runs the test, as not to interfere with the
+ * results of the test.
+ */
+public class TestRunnerWorker {
+
+  private TestRunnerWorker() {
+    // Launcher class.
+  }
+
+  public static void main(String[] args) throws IOException {
+    DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+    DataOutputStream out = new DataOutputStream(
+        new BufferedOutputStream(new FileOutputStream(FileDescriptor.out)));
+    // Anything written to System.out outside of a test would corrupt the responses, so send it to
+    // stderr instead.
+    System.setOut(System.err);
+
+    while (true) {
+      List<String> runner;
+      try {
+        runner = readStrings(in);
+      } catch (EOFException e) {
+        // The other end has gone away, so there is nothing more to run.
+        break;
+      }
+      List<String> classpath = readStrings(in);
+      List<String> properties = readStrings(in);
+      List<String> runnerArgs = readStrings(in);
+
+      int status = run(runner.get(0), classpath, properties, runnerArgs);
+
+      System.gc();
+      Runtime runtime = Runtime.getRuntime();
+      out.writeInt(status);
+      out.writeLong(runtime.totalMemory() - runtime.freeMemory());
+      out.writeLong(runtime.maxMemory());
+      out.flush();
+    }
+
+    // Tests may have left non-daemon threads behind, which would otherwise keep the JVM alive.
+    System.exit(0);
+  }
+
+  private static int run(
+      String runnerClassName,
+      List<String> classpath,
+      List<String> properties,
+      List<String> runnerArgs) throws IOException {
+    URL[] urls = new URL[classpath.size()];
+    for (int i = 0; i < urls.length; i++) {
+      urls[i] = new File(classpath.get(i)).toURI().toURL();
+    }
+
+    Properties originalProperties = (Properties) System.getProperties().clone();
+    Thread currentThread = Thread.currentThread();
+    ClassLoader originalContextClassLoader = currentThread.getContextClassLoader();
+    // Delegate to the parent of the system classloader, so that the classes of this worker are
+    // not visible to the tests.
+    URLClassLoader classLoader =
+        new URLClassLoader(urls, ClassLoader.getSystemClassLoader().getParent());
+    try {
+      for (int i = 0; i + 1 < properties.size(); i += 2) {
+        System.setProperty(properties.get(i), properties.get(i + 1));
+      }
+      currentThread.setContextClassLoader(classLoader);
+
+      Class<?> runnerClass = Class.forName(runnerClassName, true, classLoader);
+      Object runner = runnerClass.newInstance();
+      runnerClass.getMethod("parseArgsAndRun", String[].class)
+          .invoke(runner, (Object) runnerArgs.toArray(new String[runnerArgs.size()]));
+      return 0;
+    } catch (InvocationTargetException e) {
+      e.getCause().printStackTrace();
+      return 1;
+    } catch (Throwable t) {
+      t.printStackTrace();
+      return 1;
+    } finally {
+      currentThread.setContextClassLoader(originalContextClassLoader);
+      System.setProperties(originalProperties);
+      classLoader.close();
+    }
+  }
+
+  private static List<String> readStrings(DataInputStream in) throws IOException {
+    int size = in.readInt();
+    List<String> strings = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      byte[] bytes = new byte[in.readInt()];
+      in.readFully(bytes);
+      strings.add(new String(bytes, "UTF-8"));
+    }
+    return strings;
+  }
+}
@@ -0,0 +1,259 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.model;
+
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSortedSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.annotation.Nullable;
+import javax.annotation.concurrent.GuardedBy;
+
+/**
+ * A {@link BuildFileTree} that finds every build file in the project once, with a scan that lists
+ * directories in parallel, and then keeps track of build files being added and removed from the
+ * {@link WatchEvent}s that the file watcher posts. Lookups are then probes of an in-memory set of
+ * base paths, rather than a crawl of the filesystem.
+ * <p>
+ * Like {@link FilesystemBackedBuildFileTree}, this skips the ignored paths of the
+ * {@link ProjectFilesystem}, for which the watcher does not post events either.
+ */
+public class IncrementalBuildFileTree extends BuildFileTree {
+
+  private static final Path ROOT = Paths.get("");
+
+  private final ProjectFilesystem projectFilesystem;
+  private final int numThreads;
+
+  /** The directories that have a build file, or null if they need to be found again. */
+  @GuardedBy("this")
+  @Nullable
+  private Set<Path> basePaths;
+
+  /**
+   * @param numThreads the number of directories to list at the same time when scanning.
+   */
+  public IncrementalBuildFileTree(ProjectFilesystem projectFilesystem, int numThreads) {
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be positive: %s", numThreads);
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.numThreads = numThreads;
+  }
+
+  /**
+   * @return paths relative to BuildTarget that contain their own build files. No element is a
+   *     prefix of any other.
+   */
+  @Override
+  public synchronized Collection<Path> getChildPaths(BuildTarget target) {
+    Path basePath = target.getBasePath();
+    Set<Path> allBasePaths = getBasePaths();
+    ImmutableSortedSet.Builder<Path> childPaths = ImmutableSortedSet.naturalOrder();
+    for (Path candidate : allBasePaths) {
+      if (isStrictlyUnder(candidate, basePath) &&
+          !hasBasePathBetween(allBasePaths, basePath, candidate)) {
+        childPaths.add(basePath.relativize(candidate));
+      }
+    }
+    return childPaths.build();
+  }
+
+  /**
+   * Returns the base path for a given path. The base path is the nearest directory at or
+   * above filePath that contains a build file. If no base directory is found, returns an empty
+   * path.
+   */
+  @Override
+  public synchronized Path getBasePathOfAncestorTarget(Path filePath) {
+    Set<Path> allBasePaths = getBasePaths();
+    for (Path current = filePath; current != null; current = current.getParent()) {
+      if (allBasePaths.contains(current)) {
+        return current;
+      }
+    }
+    return ROOT;
+  }
+
+  /**
+   * @return the paths, relative to the project root, of the build files in {@code basePath} and
+   *     all of its subdirectories, in sorted order.
+   */
+  public synchronized ImmutableSortedSet<Path> getBuildFilesUnder(Path basePath) {
+    ImmutableSortedSet.Builder<Path> buildFiles = ImmutableSortedSet.naturalOrder();
+    for (Path candidate : getBasePaths()) {
+      if (candidate.equals(basePath) || isStrictlyUnder(candidate, basePath)) {
+        buildFiles.add(candidate.resolve(BuckConstant.BUILD_RULES_FILE_NAME));
+      }
+    }
+    return buildFiles.build();
+  }
+
+  /**
+   * Updates the tree for a file or directory having been created or deleted. {@link Path}s
+   * contained within events must all be relative to the {@link ProjectFilesystem} root. An event
+   * that does not name a path, such as an overflow, means that changes were missed, so the build
+   * files are found again on the next lookup.
+   */
+  public synchronized void onFileSystemChange(WatchEvent<?> event) {
+    if (basePaths == null) {
+      // Nothing to update until the first lookup.
+      return;
+    }
+    if (!projectFilesystem.isPathChangeEvent(event)) {
+      basePaths = null;
+      return;
+    }
+
+    Path path = (Path) event.context();
+    boolean isBuildFile = path.endsWith(BuckConstant.BUILD_RULES_FILE_NAME);
+    Path directory = isBuildFile ? getParent(path) : path;
+    if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+      if (projectFilesystem.isIgnored(directory)) {
+        return;
+      }
+      if (isBuildFile) {
+        basePaths.add(directory);
+      } else if (projectFilesystem.isDirectory(projectFilesystem.resolve(path))) {
+        // A directory that was moved into place may not get events for the files in it.
+        basePaths.addAll(scan(path, /* numThreads */ 1));
+      }
+    } else if (event.kind() == StandardWatchEventKinds.ENTRY_DELETE) {
+      if (isBuildFile) {
+        basePaths.remove(directory);
+      } else {
+        // If a directory was deleted, so were any build files under it.
+        for (Iterator<Path> iterator = basePaths.iterator(); iterator.hasNext();) {
+          Path basePath = iterator.next();
+          if (basePath.equals(path) || isStrictlyUnder(basePath, path)) {
+            iterator.remove();
+          }
+        }
+      }
+    }
+  }
+
+  @GuardedBy("this")
+  private Set<Path> getBasePaths() {
+    if (basePaths == null) {
+      basePaths = Sets.newHashSet(scan(ROOT, numThreads));
+    }
+    return basePaths;
+  }
+
+  private Set<Path> scan(Path directory, int parallelism) {
+    Set<Path> found = Sets.newConcurrentHashSet();
+    ForkJoinPool pool = new ForkJoinPool(parallelism);
+    try {
+      pool.invoke(new ScanDirectory(directory, ImmutableList.<Object>of(), found));
+    } finally {
+      pool.shutdown();
+    }
+    return found;
+  }
+
+  /**
+   * Lists a directory, records it if it has a build file, and scans its subdirectories in
+   * parallel. Subdirectories that are symlinks to one of their ancestors are skipped, as they
+   * would be scanned forever.
+   */
+  @SuppressWarnings("serial")
+  private class ScanDirectory extends RecursiveAction {
+    private final Path directory;
+    private final ImmutableList<Object> ancestorFileKeys;
+    private final Set<Path> found;
+
+    private ScanDirectory(Path directory, ImmutableList<Object> ancestorFileKeys, Set<Path> found) {
+      this.directory = directory;
+      this.ancestorFileKeys = ancestorFileKeys;
+      this.found = found;
+    }
+
+    @Override
+    protected void compute() {
+      Set<Path> ignorePaths = projectFilesystem.getIgnorePaths();
+      List<ScanDirectory> subdirectories = Lists.newArrayList();
+      try (DirectoryStream<Path> entries =
+               Files.newDirectoryStream(projectFilesystem.resolve(directory))) {
+        for (Path entry : entries) {
+          Path relativePath = directory.resolve(entry.getFileName());
+          if (Files.isDirectory(entry)) {
+            if (ignorePaths.contains(relativePath)) {
+              continue;
+            }
+            Object fileKey = Files.readAttributes(entry, BasicFileAttributes.class).fileKey();
+            if (fileKey != null && ancestorFileKeys.contains(fileKey)) {
+              continue;
+            }
+            ImmutableList.Builder<Object> fileKeys = ImmutableList.builder();
+            fileKeys.addAll(ancestorFileKeys);
+            if (fileKey != null) {
+              fileKeys.add(fileKey);
+            }
+            subdirectories.add(new ScanDirectory(relativePath, fileKeys.build(), found));
+          } else if (entry.getFileName().toString().equals(BuckConstant.BUILD_RULES_FILE_NAME)) {
+            found.add(directory);
+          }
+        }
+      } catch (IOException e) {
+        throw new RuntimeException(e);
+      }
+      invokeAll(subdirectories);
+    }
+  }
+
+  private static Path getParent(Path path) {
+    Path parent = path.getParent();
+    return parent == null ? ROOT : parent;
+  }
+
+  /** @return whether {@code path} is in a subdirectory of {@code ancestor}. */
+  private static boolean isStrictlyUnder(Path path, Path ancestor) {
+    if (ancestor.equals(ROOT)) {
+      return !path.equals(ROOT);
+    }
+    return !path.equals(ancestor) && path.startsWith(ancestor);
+  }
+
+  private static boolean hasBasePathBetween(Set<Path> allBasePaths, Path ancestor, Path path) {
+    for (Path current = path.getParent();
+         current != null && !current.equals(ancestor);
+         current = current.getParent()) {
+      if (allBasePaths.contains(current)) {
+        return true;
+      }
+    }
+    return false;
+  }
+}
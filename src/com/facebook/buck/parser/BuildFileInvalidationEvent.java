@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.parser;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEvent;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+
+import java.nio.file.Path;
+
+/**
+ * Reports how many of the build files cached by the {@link Parser} a single change made it
+ * forget, and so parse again when they are next needed.
+ */
+public class BuildFileInvalidationEvent extends AbstractBuckEvent {
+
+  public enum Cause {
+    /** A file was created, modified or deleted. */
+    FILE_CHANGE,
+    /** Environment variables were set, changed or unset. */
+    ENVIRONMENT_CHANGE,
+    /** The files included before every build file changed. */
+    DEFAULT_INCLUDES_CHANGE,
+    /** The file watcher missed events, so nothing that was cached can be trusted. */
+    OVERFLOW,
+  }
+
+  private final Cause cause;
+  private final String change;
+  private final int invalidatedBuildFiles;
+
+  protected BuildFileInvalidationEvent(Cause cause, String change, int invalidatedBuildFiles) {
+    this.cause = Preconditions.checkNotNull(cause);
+    this.change = Preconditions.checkNotNull(change);
+    this.invalidatedBuildFiles = invalidatedBuildFiles;
+  }
+
+  public static BuildFileInvalidationEvent fileChanged(Path path, int invalidatedBuildFiles) {
+    return new BuildFileInvalidationEvent(
+        Cause.FILE_CHANGE,
+        path.toString(),
+        invalidatedBuildFiles);
+  }
+
+  public static BuildFileInvalidationEvent environmentChanged(
+      Iterable<String> variables,
+      int invalidatedBuildFiles) {
+    return new BuildFileInvalidationEvent(
+        Cause.ENVIRONMENT_CHANGE,
+        Joiner.on(", ").join(variables),
+        invalidatedBuildFiles);
+  }
+
+  public static BuildFileInvalidationEvent defaultIncludesChanged(
+      Iterable<String> includes,
+      int invalidatedBuildFiles) {
+    return new BuildFileInvalidationEvent(
+        Cause.DEFAULT_INCLUDES_CHANGE,
+        Joiner.on(", ").join(includes),
+        invalidatedBuildFiles);
+  }
+
+  public static BuildFileInvalidationEvent overflow(int invalidatedBuildFiles) {
+    return new BuildFileInvalidationEvent(Cause.OVERFLOW, "", invalidatedBuildFiles);
+  }
+
+  public Cause getCause() {
+    return cause;
+  }
+
+  /**
+   * @return what changed: the path of the file, the names of the environment variables or the new
+   *     default includes, depending on the {@link Cause}.
+   */
+  public String getChange() {
+    return change;
+  }
+
+  public int getInvalidatedBuildFiles() {
+    return invalidatedBuildFiles;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format("%s %s invalidated=%d", cause, change, invalidatedBuildFiles);
+  }
+
+  @Override
+  public boolean isRelatedTo(BuckEvent event) {
+    return event instanceof BuildFileInvalidationEvent;
+  }
+
+  @Override
+  public String getEventName() {
+    return "BuildFileInvalidation";
+  }
+}
@@ -17,6 +17,7 @@
 package com.facebook.buck.parser;
 
 import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.IncrementalBuildFileTree;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.base.Function;
@@ -29,6 +30,8 @@ import java.nio.file.FileVisitor;
 import java.nio.file.Path;
 import java.nio.file.attribute.BasicFileAttributes;
 
+import javax.annotation.Nullable;
+
 /**
  * A specification used by the parser, via {@link TargetNodeSpec}, to match build files.
  */
@@ -127,6 +130,46 @@ public class BuildFileSpec {
         });
   }
 
+  /**
+   * @return paths to build files that this spec match in the given {@link ProjectFilesystem},
+   *     looked up in {@code buildFileTree} rather than found by crawling the filesystem when
+   *     possible. That is when this spec ignores every path that the tree does.
+   */
+  public ImmutableSet<Path> findBuildFiles(
+      ProjectFilesystem filesystem,
+      IncrementalBuildFileTree buildFileTree)
+      throws IOException {
+    if (!recursive ||
+        !recursiveIgnorePaths.containsAll(filesystem.getIgnorePaths()) ||
+        !filesystem.isDirectory(filesystem.resolve(basePath))) {
+      return findBuildFiles(filesystem);
+    }
+
+    ImmutableSet.Builder<Path> buildFiles = ImmutableSet.builder();
+    for (Path buildFile : buildFileTree.getBuildFilesUnder(basePath)) {
+      if (!isUnderIgnoredPath(buildFile.getParent())) {
+        buildFiles.add(buildFile);
+      }
+    }
+    return buildFiles.build();
+  }
+
+  /**
+   * @return whether {@code directory}, or any of its ancestors up to {@link #basePath}, is one of
+   *     the paths this spec ignores.
+   */
+  private boolean isUnderIgnoredPath(@Nullable Path directory) {
+    for (Path current = directory; current != null; current = current.getParent()) {
+      if (recursiveIgnorePaths.contains(current)) {
+        return true;
+      }
+      if (current.equals(basePath)) {
+        break;
+      }
+    }
+    return false;
+  }
+
   /**
    * @return paths to build files that this spec match in the given {@link ProjectFilesystem}.
    */
@@ -21,19 +21,20 @@ import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.graph.AbstractAcyclicDepthFirstPostOrderTraversal;
 import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.json.BuildFileOutputFormat;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
+import com.facebook.buck.json.PersistentBuildFileParseCache;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.json.ProjectBuildFileParserFactory;
+import com.facebook.buck.json.ProjectBuildFileParserPool;
 import com.facebook.buck.log.Logger;
-import com.facebook.buck.model.BuildFileTree;
-import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
 import com.facebook.buck.model.BuildTargetPattern;
-import com.facebook.buck.model.FilesystemBackedBuildFileTree;
 import com.facebook.buck.model.Flavored;
 import com.facebook.buck.model.HasBuildTarget;
+import com.facebook.buck.model.IncrementalBuildFileTree;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRuleFactoryParams;
 import com.facebook.buck.rules.BuildRuleType;
@@ -53,9 +54,9 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Predicate;
-import com.google.common.base.Supplier;
 import com.google.common.collect.ArrayListMultimap;
 import com.google.common.collect.FluentIterable;
+import com.google.common.collect.HashMultimap;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
@@ -63,7 +64,9 @@ import com.google.common.collect.Iterables;
 import com.google.common.collect.Iterators;
 import com.google.common.collect.ListMultimap;
 import com.google.common.collect.Lists;
+import com.google.common.collect.MapDifference;
 import com.google.common.collect.Maps;
+import com.google.common.collect.SetMultimap;
 import com.google.common.collect.Sets;
 import com.google.common.eventbus.Subscribe;
 
@@ -104,6 +107,12 @@ public class Parser {
 
   private final RuleKeyBuilderFactory ruleKeyBuilderFactory;
 
+  /** The maximum number of buck.py processes used to parse build files concurrently. */
+  private final int numParserThreads;
+
+  /** Rules persisted by earlier runs, consulted before running buck.py on a build file. */
+  private final Optional<PersistentBuildFileParseCache> persistentParseCache;
+
   /**
    * Key of the meta-rule that lists the build files executed while reading rules.
    * The value is a list of strings with the root build file as the head and included
@@ -117,6 +126,34 @@ public class Parser {
    */
   private final ListMultimap<Path, Path> buildFileDependents;
 
+  /**
+   * Key of the meta-rule entry that lists the environment variables read while reading rules, for
+   * example {"__env":["ANDROID_SDK"]}. It is null if the build file could have read any of them,
+   * for example by listing the whole environment.
+   */
+  private static final String ENVIRONMENT_META_RULE = "__env";
+
+  /**
+   * Environment variables that change how buck.py itself runs, such as {@code PYTHONPATH}, start
+   * with this, so a change to one of them invalidates every build file.
+   */
+  private static final String INTERPRETER_ENVIRONMENT_PREFIX = "PYTHON";
+
+  /** A map from environment variable names to the build files that read them. */
+  private final SetMultimap<String, Path> environmentDependents;
+
+  /**
+   * Build files that could have read any environment variable, along with those parsed by a
+   * buck.py that did not say which ones they read.
+   */
+  private final Set<Path> wholeEnvironmentDependents;
+
+  /**
+   * Invalidations to report on the {@link BuckEventBus} of the next command that parses, as the
+   * file watcher and the checks of the environment have no event bus of their own to post to.
+   */
+  private final List<BuildFileInvalidationEvent> pendingInvalidationEvents;
+
   /**
    * A BuckEvent used to record the parse start time, which should include the WatchEvent
    * processing that occurs before the BuildTargets required to build a full ParseStart event are
@@ -129,108 +166,71 @@ public class Parser {
   private static final ConstructorArgMarshaller marshaller = new ConstructorArgMarshaller();
 
   /**
-   * A cached BuildFileTree which can be invalidated and lazily constructs new BuildFileTrees.
-   * TODO(user): refactor this as a generic CachingSupplier<T> when it's needed elsewhere.
+   * Kept up to date with build files being added and removed by {@link #onFileSystemChange}, so
+   * that it survives from one command to the next when running as a daemon.
    */
-  @VisibleForTesting
-  static class BuildFileTreeCache implements Supplier<BuildFileTree> {
-    private final Supplier<BuildFileTree> supplier;
-    @Nullable private BuildFileTree buildFileTree;
-    private BuildId currentBuildId = new BuildId();
-    private BuildId buildTreeBuildId = new BuildId();
-
-    /**
-     * @param buildFileTreeSupplier each call to get() must reconstruct the tree from disk.
-     */
-    public BuildFileTreeCache(Supplier<BuildFileTree> buildFileTreeSupplier) {
-      this.supplier = Preconditions.checkNotNull(buildFileTreeSupplier);
-    }
-
-    /**
-     * Invalidate the current build file tree if it was not created during this build.
-     * If the BuildFileTree was created during the current build it is still valid and
-     * recreating it would generate an identical tree.
-     */
-    public synchronized void invalidateIfStale() {
-      if (!currentBuildId.equals(buildTreeBuildId)) {
-        buildFileTree = null;
-      }
-    }
-
-    /**
-     * @return the cached BuildFileTree, or a new lazily constructed BuildFileTree.
-     */
-    @Override
-    public synchronized BuildFileTree get() {
-      if (buildFileTree == null) {
-        buildTreeBuildId = currentBuildId;
-        buildFileTree = supplier.get();
-      }
-      return buildFileTree;
-    }
-
-    /**
-     * Stores the current build id, which is used to determine when the BuildFileTree is invalid.
-     */
-    public synchronized void onCommandStartedEvent(BuckEvent event) {
-      // Ideally, the type of event would be CommandEvent.Started, but that would introduce
-      // a dependency on com.facebook.buck.cli.
-      Preconditions.checkArgument(event.getEventName().equals("CommandStarted"),
-          "event should be of type CommandEvent.Started, but was: %s.",
-          event);
-      currentBuildId = event.getBuildId();
-    }
-  }
-  private final BuildFileTreeCache buildFileTreeCache;
+  private final IncrementalBuildFileTree buildFileTree;
 
   public static Parser createParser(
       final RepositoryFactory repositoryFactory,
       String pythonInterpreter,
+      BuildFileOutputFormat buildFileOutputFormat,
       ImmutableSet<Pattern> tempFilePatterns,
-      RuleKeyBuilderFactory ruleKeyBuilderFactory)
+      RuleKeyBuilderFactory ruleKeyBuilderFactory,
+      int numParserThreads,
+      boolean enablePersistentParseCache)
       throws IOException, InterruptedException {
     final Repository rootRepository = repositoryFactory.getRootRepository();
+    Optional<PersistentBuildFileParseCache> persistentParseCache = Optional.absent();
+    if (enablePersistentParseCache) {
+      persistentParseCache = Optional.of(
+          PersistentBuildFileParseCache.create(
+              rootRepository.getFilesystem(),
+              BuckConstant.PARSE_CACHE_PATH,
+              rootRepository.getAllDescriptions()));
+    }
     return new Parser(repositoryFactory,
-        /* Calls to get() will reconstruct the build file tree by calling constructBuildFileTree. */
-        // TODO(simons): Consider momoizing the suppler.
-        new Supplier<BuildFileTree>() {
-          @Override
-          public BuildFileTree get() {
-            return new FilesystemBackedBuildFileTree(
-                rootRepository.getFilesystem());
-          }
-        },
+        new IncrementalBuildFileTree(
+            rootRepository.getFilesystem(),
+            numParserThreads),
         // TODO(jacko): Get rid of this global BuildTargetParser completely.
         rootRepository.getBuildTargetParser(),
         new DefaultProjectBuildFileParserFactory(
             rootRepository.getFilesystem(),
             pythonInterpreter,
+            buildFileOutputFormat,
             rootRepository.getAllDescriptions()),
         tempFilePatterns,
-        ruleKeyBuilderFactory);
+        ruleKeyBuilderFactory,
+        numParserThreads,
+        persistentParseCache);
   }
 
-  /**
-   * @param buildFileTreeSupplier each call to getInput() must reconstruct the build file tree from
-   */
   @VisibleForTesting
   Parser(
       RepositoryFactory repositoryFactory,
-      Supplier<BuildFileTree> buildFileTreeSupplier,
+      IncrementalBuildFileTree buildFileTree,
       BuildTargetParser buildTargetParser,
       ProjectBuildFileParserFactory buildFileParserFactory,
       ImmutableSet<Pattern> tempFilePatterns,
-      RuleKeyBuilderFactory ruleKeyBuilderFactory)
+      RuleKeyBuilderFactory ruleKeyBuilderFactory,
+      int numParserThreads,
+      Optional<PersistentBuildFileParseCache> persistentParseCache)
       throws IOException, InterruptedException {
+    Preconditions.checkArgument(numParserThreads > 0);
     this.repositoryFactory = Preconditions.checkNotNull(repositoryFactory);
     this.repository = repositoryFactory.getRootRepository();
-    this.buildFileTreeCache = new BuildFileTreeCache(
-        Preconditions.checkNotNull(buildFileTreeSupplier));
+    this.buildFileTree = Preconditions.checkNotNull(buildFileTree);
     this.buildTargetParser = Preconditions.checkNotNull(buildTargetParser);
     this.buildFileParserFactory = Preconditions.checkNotNull(buildFileParserFactory);
     this.ruleKeyBuilderFactory = Preconditions.checkNotNull(ruleKeyBuilderFactory);
     this.buildFileDependents = ArrayListMultimap.create();
+    this.environmentDependents = HashMultimap.create();
+    this.wholeEnvironmentDependents = Sets.newHashSet();
+    this.pendingInvalidationEvents = Lists.newArrayList();
     this.tempFilePatterns = tempFilePatterns;
+    this.numParserThreads = numParserThreads;
+    this.persistentParseCache = Preconditions.checkNotNull(persistentParseCache);
     this.state = new CachedState();
   }
 
@@ -244,8 +244,8 @@ public class Parser {
 
   /**
    * The rules in a build file are cached if that specific build file was parsed or all build
-   * files in the project were parsed and the includes and environment haven't changed since the
-   * rules were cached.
+   * files in the project were parsed and neither the includes nor any environment variable the
+   * build file read have changed since the rules were cached.
    *
    * @param buildFile the build file to look up in the {@link CachedState}.
    * @param includes the files to include before executing the build file.
@@ -256,14 +256,36 @@ public class Parser {
       Path buildFile,
       Iterable<String> includes,
       ImmutableMap<String, String> env) {
-    boolean includesChanged = state.invalidateCacheOnIncludeChange(includes);
-    boolean environmentChanged = state.invalidateCacheOnEnvironmentChange(env);
-    boolean fileParsed = state.isParsed(buildFile);
-    return !includesChanged && !environmentChanged && fileParsed;
+    state.invalidateCacheOnIncludeChange(includes);
+    state.invalidateCacheOnEnvironmentChange(env);
+    return state.isParsed(buildFile);
   }
 
-  private synchronized void invalidateCache() {
-    state.invalidateAll();
+  /** @return the number of build files that were invalidated. */
+  private synchronized int invalidateCache() {
+    return state.invalidateAll();
+  }
+
+  /**
+   * Queues {@code event} to be posted by {@link #postInvalidationEvents}, unless the change did
+   * not invalidate anything.
+   */
+  private synchronized void recordInvalidation(BuildFileInvalidationEvent event) {
+    if (event.getInvalidatedBuildFiles() > 0) {
+      LOG.debug(
+          "Parser invalidated %d build files on %s %s.",
+          event.getInvalidatedBuildFiles(),
+          event.getCause(),
+          event.getChange());
+      pendingInvalidationEvents.add(event);
+    }
+  }
+
+  private synchronized void postInvalidationEvents(BuckEventBus eventBus) {
+    for (BuildFileInvalidationEvent event : pendingInvalidationEvents) {
+      eventBus.post(event);
+    }
+    pendingInvalidationEvents.clear();
   }
 
   /**
@@ -280,26 +302,32 @@ public class Parser {
   private ImmutableSet<BuildTarget> resolveTargetSpec(
       TargetNodeSpec spec,
       Iterable<String> defaultIncludes,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
     ImmutableSet.Builder<BuildTarget> targets = ImmutableSet.builder();
 
-    // Iterate over the build files the given target node spec returns.
-    for (Path buildFile : spec.getBuildFileSpec().findBuildFiles(repository.getFilesystem())) {
+    ImmutableList.Builder<Path> buildFilesBuilder = ImmutableList.builder();
+    ImmutableSet<Path> specBuildFiles =
+        spec.getBuildFileSpec().findBuildFiles(repository.getFilesystem(), buildFileTree);
+    for (Path buildFile : specBuildFiles) {
 
       // Format a proper error message for non-existent build files.
       if (!repository.getFilesystem().isFile(buildFile)) {
         throw new MissingBuildFileException(spec, buildFile);
       }
+      buildFilesBuilder.add(repository.getFilesystem().resolve(buildFile));
+    }
+    ImmutableList<Path> buildFiles = buildFilesBuilder.build();
 
+    // Parse all of the build files the given target node spec returns up front, so that they can
+    // be spread across the parser pool.
+    parseBuildFiles(buildFiles, defaultIncludes, buildFileParserPool, environment);
+
+    for (Path buildFile : buildFiles) {
       // Build up a list of all target nodes from the build file.
-      List<Map<String, Object>> parsed = parseBuildFile(
-          repository.getFilesystem().resolve(buildFile),
-          defaultIncludes,
-          buildFileParser,
-          environment);
+      List<Map<String, Object>> parsed = state.getRawRules(buildFile);
       List<TargetNode<?>> nodes = Lists.newArrayListWithCapacity(parsed.size());
       for (Map<String, Object> map : parsed) {
         BuildTarget target = parseBuildTargetFromRawRule(map);
@@ -317,7 +345,7 @@ public class Parser {
   private ImmutableSet<BuildTarget> resolveTargetSpecs(
       Iterable<? extends TargetNodeSpec> specs,
       Iterable<String> defaultIncludes,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
@@ -328,7 +356,7 @@ public class Parser {
           resolveTargetSpec(
               spec,
               defaultIncludes,
-              buildFileParser,
+              buildFileParserPool,
               environment));
     }
 
@@ -351,30 +379,33 @@ public class Parser {
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
     TargetGraph graph = null;
-    // TODO(jacko): Instantiating one ProjectBuildFileParser here isn't enough. We a collection of
-    //              repo-specific parsers.
-    try (ProjectBuildFileParser buildFileParser =
-             buildFileParserFactory.createParser(
+    // TODO(jacko): Instantiating one pool of ProjectBuildFileParsers here isn't enough. We a
+    //              collection of repo-specific parsers.
+    try (ProjectBuildFileParserPool buildFileParserPool =
+             new ProjectBuildFileParserPool(
+                 numParserThreads,
+                 buildFileParserFactory,
                  defaultIncludes,
                  console,
                  environment,
-                 eventBus)) {
-      buildFileParser.setEnableProfiling(enableProfiling);
+                 eventBus,
+                 enableProfiling)) {
 
       // Resolve the target node specs to the build targets the represent.
       ImmutableSet<BuildTarget> buildTargets = resolveTargetSpecs(
           targetNodeSpecs,
           defaultIncludes,
-          buildFileParser,
+          buildFileParserPool,
           environment);
 
       postParseStartEvent(buildTargets, eventBus);
+      postInvalidationEvents(eventBus);
 
       try {
         graph = buildTargetGraph(
             buildTargets,
             defaultIncludes,
-            buildFileParser,
+            buildFileParserPool,
             environment);
         return graph;
       } finally {
@@ -421,15 +452,19 @@ public class Parser {
    *
    * @param toExplore the {@link BuildTarget}s that {@link TargetGraph} is calculated for.
    * @param defaultIncludes the files to include before executing build files.
-   * @param buildFileParser the parser for build files.
+   * @param buildFileParserPool the parsers for build files.
    * @return a {@link TargetGraph} containing all the nodes from {@code toExplore}.
    */
   private synchronized TargetGraph buildTargetGraph(
       Iterable<BuildTarget> toExplore,
       final Iterable<String> defaultIncludes,
-      final ProjectBuildFileParser buildFileParser,
+      final ProjectBuildFileParserPool buildFileParserPool,
       final ImmutableMap<String, String> environment) throws IOException, InterruptedException {
 
+    if (numParserThreads > 1) {
+      parseTransitiveBuildFiles(toExplore, defaultIncludes, buildFileParserPool, environment);
+    }
+
     final MutableDirectedGraph<TargetNode<?>> graph = new MutableDirectedGraph<>();
     final Map<BuildTarget, TargetNode<?>> nodes = Maps.newHashMap();
 
@@ -456,7 +491,7 @@ public class Parser {
                   parseBuildFileContainingTarget(
                       buildTargetForDep,
                       defaultIncludes,
-                      buildFileParser,
+                      buildFileParserPool,
                       environment);
                   depTargetNode = getTargetNode(buildTargetForDep);
                   if (depTargetNode == null) {
@@ -506,6 +541,117 @@ public class Parser {
     return new TargetGraph(graph, ImmutableMap.copyOf(nodes));
   }
 
+  /**
+   * Walks the dependencies of {@code toExplore} breadth first, parsing each level's build files
+   * that are not yet cached across the parser pool. This only warms {@link CachedState}: any
+   * build file which fails to parse, or target which cannot be found, stops the walk, leaving
+   * the depth first traversal in {@link #buildTargetGraph} to report the error with context.
+   */
+  private synchronized void parseTransitiveBuildFiles(
+      Iterable<BuildTarget> toExplore,
+      Iterable<String> defaultIncludes,
+      ProjectBuildFileParserPool buildFileParserPool,
+      ImmutableMap<String, String> environment) throws IOException, InterruptedException {
+    Set<BuildTarget> visited = Sets.newHashSet(toExplore);
+    List<BuildTarget> frontier = Lists.newArrayList(toExplore);
+
+    try {
+      while (!frontier.isEmpty()) {
+        List<BuildTarget> nextFrontier = Lists.newArrayList();
+        Set<Path> buildFilesToParse = Sets.newLinkedHashSet();
+        for (BuildTarget buildTarget : frontier) {
+          TargetNode<?> targetNode = getTargetNode(buildTarget);
+          if (targetNode == null) {
+            continue;
+          }
+          for (BuildTarget dep : targetNode.getDeps()) {
+            if (!visited.add(dep)) {
+              continue;
+            }
+            nextFrontier.add(dep);
+            if (getTargetNode(dep) == null) {
+              Path buildFile = repositoryFactory.getRepositoryByCanonicalName(dep.getRepository())
+                  .getAbsolutePathToBuildFile(dep);
+              if (!isCached(buildFile, defaultIncludes, environment)) {
+                buildFilesToParse.add(buildFile);
+              }
+            }
+          }
+        }
+
+        parseBuildFiles(buildFilesToParse, defaultIncludes, buildFileParserPool, environment);
+        frontier = nextFrontier;
+      }
+    } catch (HumanReadableException | BuildTargetException | BuildFileParseException e) {
+      LOG.debug(e, "Stopped parsing build files in parallel.");
+    }
+  }
+
+  /**
+   * Parses each of the {@code buildFiles} that is not already cached, spreading them across the
+   * parser pool, and records their rules in {@link CachedState} in the order they were given.
+   */
+  private synchronized void parseBuildFiles(
+      Iterable<Path> buildFiles,
+      Iterable<String> defaultIncludes,
+      ProjectBuildFileParserPool buildFileParserPool,
+      ImmutableMap<String, String> environment)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    Set<Path> toParse = Sets.newLinkedHashSet();
+    for (Path buildFile : buildFiles) {
+      if (!isCached(buildFile, defaultIncludes, environment) &&
+          !parsePersistedRules(buildFile, defaultIncludes, environment)) {
+        toParse.add(buildFile);
+      }
+    }
+    if (toParse.isEmpty()) {
+      return;
+    }
+
+    for (Map.Entry<Path, List<Map<String, Object>>> entry :
+        buildFileParserPool.getAllRulesAndMetaRules(toParse).entrySet()) {
+      LOG.debug("Parsed %s file: %s", BuckConstant.BUILD_RULES_FILE_NAME, entry.getKey());
+      parseRawRulesInternal(entry.getValue());
+      persistRules(entry.getKey(), defaultIncludes, environment, entry.getValue());
+    }
+  }
+
+  /**
+   * Populates the {@link CachedState} from the {@link PersistentBuildFileParseCache}, if it holds
+   * up to date rules for {@code buildFile}.
+   *
+   * @return whether the rules of {@code buildFile} were found.
+   */
+  private synchronized boolean parsePersistedRules(
+      Path buildFile,
+      Iterable<String> defaultIncludes,
+      ImmutableMap<String, String> environment)
+      throws BuildTargetException, IOException {
+    if (!persistentParseCache.isPresent()) {
+      return false;
+    }
+    Optional<List<Map<String, Object>>> rules =
+        persistentParseCache.get().get(buildFile, defaultIncludes, environment);
+    if (!rules.isPresent()) {
+      return false;
+    }
+    LOG.debug("Using persisted rules for %s file: %s",
+        BuckConstant.BUILD_RULES_FILE_NAME,
+        buildFile);
+    parseRawRulesInternal(rules.get());
+    return true;
+  }
+
+  private void persistRules(
+      Path buildFile,
+      Iterable<String> defaultIncludes,
+      ImmutableMap<String, String> environment,
+      List<Map<String, Object>> rules) {
+    if (persistentParseCache.isPresent()) {
+      persistentParseCache.get().put(buildFile, defaultIncludes, environment, rules);
+    }
+  }
+
   /**
    * Note that if this Parser is populated via
    * {@link #filterAllTargetsInProject}, then this method should not be called.
@@ -513,7 +659,7 @@ public class Parser {
   private synchronized void parseBuildFileContainingTarget(
       BuildTarget buildTarget,
       Iterable<String> defaultIncludes,
-      ProjectBuildFileParser buildFileParser,
+      ProjectBuildFileParserPool buildFileParserPool,
       ImmutableMap<String, String> environment)
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
 
@@ -531,7 +677,11 @@ public class Parser {
           buildFile);
     }
 
-    parseBuildFile(buildFile, defaultIncludes, buildFileParser, environment);
+    parseBuildFiles(
+        ImmutableList.of(buildFile),
+        defaultIncludes,
+        buildFileParserPool,
+        environment);
   }
 
   public synchronized List<Map<String, Object>> parseBuildFile(
@@ -548,6 +698,8 @@ public class Parser {
             environment,
             buckEventBus)) {
       return parseBuildFile(buildFile, defaultIncludes, projectBuildFileParser, environment);
+    } finally {
+      postInvalidationEvents(buckEventBus);
     }
   }
 
@@ -568,8 +720,12 @@ public class Parser {
     Preconditions.checkNotNull(buildFileParser);
 
     if (!isCached(buildFile, defaultIncludes, environment)) {
-      LOG.debug("Parsing %s file: %s", BuckConstant.BUILD_RULES_FILE_NAME, buildFile);
-      parseRawRulesInternal(buildFileParser.getAllRulesAndMetaRules(buildFile));
+      if (!parsePersistedRules(buildFile, defaultIncludes, environment)) {
+        LOG.debug("Parsing %s file: %s", BuckConstant.BUILD_RULES_FILE_NAME, buildFile);
+        List<Map<String, Object>> rules = buildFileParser.getAllRulesAndMetaRules(buildFile);
+        parseRawRulesInternal(rules);
+        persistRules(buildFile, defaultIncludes, environment, rules);
+      }
     } else {
       LOG.debug("Not parsing %s file (already in cache)", BuckConstant.BUILD_RULES_FILE_NAME);
     }
@@ -628,6 +784,17 @@ public class Parser {
     for (String fileName : fileNames) {
       buildFileDependents.put(normalize(Paths.get(fileName)), dependent);
     }
+
+    // ENVIRONMENT_META_RULE maps to the names of the environment variables that the build file
+    // read, or to null if it could have read any of them.
+    Object environmentVariables = map.get(ENVIRONMENT_META_RULE);
+    if (environmentVariables instanceof List) {
+      for (String name : (List<String>) environmentVariables) {
+        environmentDependents.put(name, dependent);
+      }
+    } else {
+      wholeEnvironmentDependents.add(dependent);
+    }
     return true;
   }
 
@@ -703,21 +870,6 @@ public class Parser {
   }
 
 
-  /**
-   * Called when a new command is executed and used to signal to the BuildFileTreeCache
-   * that reconstructing the build file tree may result in a different BuildFileTree.
-   */
-  @Subscribe
-  public synchronized void onCommandStartedEvent(BuckEvent event) {
-    // Ideally, the type of event would be CommandEvent.Started, but that would introduce
-    // a dependency on com.facebook.buck.cli.
-    Preconditions.checkArgument(
-        event.getEventName().equals("CommandStarted"),
-        "event should be of type CommandEvent.Started, but was: %s.",
-        event);
-    buildFileTreeCache.onCommandStartedEvent(event);
-  }
-
   /**
    * Called when file change events are posted to the file change EventBus to invalidate cached
    * build rules if required. {@link Path}s contained within events must all be relative to the
@@ -734,32 +886,32 @@ public class Parser {
 
     if (repository.getFilesystem().isPathChangeEvent(event)) {
       Path path = (Path) event.context();
+      int invalidated = 0;
 
       if (isPathCreateOrDeleteEvent(event)) {
 
-        if (path.endsWith(BuckConstant.BUILD_RULES_FILE_NAME)) {
-
-          // If a build file has been added or removed, reconstruct the build file tree.
-          buildFileTreeCache.invalidateIfStale();
-        }
+        // Keep track of build files being added or removed.
+        buildFileTree.onFileSystemChange(event);
 
         // Added or removed files can affect globs, so invalidate the package build file
         // "containing" {@code path} unless its filename matches a temp file pattern.
         if (!isTempFile(path)) {
-          invalidateContainingBuildFile(path);
+          invalidated += invalidateContainingBuildFile(path);
         }
       }
 
       LOG.verbose("Invalidating dependents for path %s, cache state %s", path, state);
 
       // Invalidate the raw rules and targets dependent on this file.
-      state.invalidateDependents(path);
+      invalidated += state.invalidateDependents(path);
+      recordInvalidation(BuildFileInvalidationEvent.fileChanged(path, invalidated));
 
     } else {
-      // Non-path change event, likely an overflow due to many change events: invalidate everything.
+      // Non-path change event, likely an overflow due to many change events. Which files changed,
+      // including any that globs would now match, is unknown: invalidate everything.
       LOG.debug("Parser invalidating entire cache on overflow.");
-      buildFileTreeCache.invalidateIfStale();
-      invalidateCache();
+      buildFileTree.onFileSystemChange(event);
+      recordInvalidation(BuildFileInvalidationEvent.overflow(invalidateCache()));
     }
   }
 
@@ -783,11 +935,12 @@ public class Parser {
    * all of the cached rules dependent on it.
    * @param path A {@link Path}, relative to the project root and "contained"
    *             within the build file to find and invalidate.
+   * @return the number of build files that were invalidated.
    */
-  private synchronized void invalidateContainingBuildFile(Path path) throws IOException {
+  private synchronized int invalidateContainingBuildFile(Path path) throws IOException {
     String packageBuildFilePath =
-        buildFileTreeCache.get().getBasePathOfAncestorTarget(path).toString();
-    state.invalidateDependents(
+        buildFileTree.getBasePathOfAncestorTarget(path).toString();
+    return state.invalidateDependents(
         repository.getFilesystem().getFileForRelativePath(
             packageBuildFilePath + '/' + BuckConstant.BUILD_RULES_FILE_NAME).toPath());
   }
@@ -915,14 +1068,20 @@ public class Parser {
       this.pathsToBuildTargets = ArrayListMultimap.create();
     }
 
-    public void invalidateAll() {
+    /** @return the number of build files that were invalidated. */
+    public int invalidateAll() {
       LOG.debug("Invalidating all cached data.");
+      int invalidated = parsedBuildFiles.keySet().size();
       parsedBuildFiles.clear();
       symlinkExistenceCache.clear();
       buildInputPathsUnderSymlink.clear();
       memoizedTargetNodes.clear();
       targetsToFile.clear();
       pathsToBuildTargets.clear();
+      // Every build file will be parsed again, and say again what it reads.
+      environmentDependents.clear();
+      wholeEnvironmentDependents.clear();
+      return invalidated;
     }
 
     @Override
@@ -940,56 +1099,89 @@ public class Parser {
     }
 
     /**
-     * Invalidates the cached build rules if {@code environment} has changed since the last call.
-     * If the cache is invalidated the new {@code environment} used to build the new cache is
-     * stored.
+     * Invalidates the cached build rules of the build files that read an environment variable
+     * which has been set, changed or unset in {@code environment} since the last call, and stores
+     * the new {@code environment}.
      *
      * @param environment the environment to execute the build file in.
-     * @return true if the cache was invalidated, false if the cache is still valid.
      */
-    private synchronized boolean invalidateCacheOnEnvironmentChange(
+    private synchronized void invalidateCacheOnEnvironmentChange(
         ImmutableMap<String, String> environment) {
-      if (!Preconditions.checkNotNull(environment).equals(cacheEnvironment)) {
-        LOG.debug("Parser invalidating entire cache on environment change.");
+      Preconditions.checkNotNull(environment);
+      if (environment.equals(cacheEnvironment)) {
+        return;
+      }
+      ImmutableMap<String, String> previousEnvironment = cacheEnvironment;
+      this.cacheEnvironment = environment;
+      if (previousEnvironment == null) {
+        LOG.debug("Parser invalidating entire cache on first environment.");
         invalidateCache();
-        this.cacheEnvironment = environment;
-        return true;
+        return;
       }
-      return false;
+
+      MapDifference<String, String> difference =
+          Maps.difference(previousEnvironment, environment);
+      Set<String> changed = Sets.newTreeSet();
+      changed.addAll(difference.entriesOnlyOnLeft().keySet());
+      changed.addAll(difference.entriesOnlyOnRight().keySet());
+      changed.addAll(difference.entriesDiffering().keySet());
+
+      for (String name : changed) {
+        if (name.startsWith(INTERPRETER_ENVIRONMENT_PREFIX)) {
+          LOG.debug("Parser invalidating entire cache on change of %s.", name);
+          recordInvalidation(
+              BuildFileInvalidationEvent.environmentChanged(changed, invalidateCache()));
+          return;
+        }
+      }
+
+      int invalidated = 0;
+      for (String name : changed) {
+        for (Path dependent : environmentDependents.removeAll(name)) {
+          invalidated += invalidateDependents(dependent);
+        }
+      }
+      for (Path dependent : ImmutableList.copyOf(wholeEnvironmentDependents)) {
+        invalidated += invalidateDependents(dependent);
+      }
+      recordInvalidation(BuildFileInvalidationEvent.environmentChanged(changed, invalidated));
     }
 
     /**
      * Invalidates the cached build rules if {@code includes} have changed since the last call.
      * If the cache is invalidated the new {@code includes} used to build the new cache are stored.
+     * Every build file is executed after the default includes, so all of them are invalidated.
      *
      * @param includes the files to include before executing the build file.
-     * @return true if the cache was invalidated, false if the cache is still valid.
      */
-    private synchronized boolean invalidateCacheOnIncludeChange(Iterable<String> includes) {
+    private synchronized void invalidateCacheOnIncludeChange(Iterable<String> includes) {
       List<String> includesList = Lists.newArrayList(Preconditions.checkNotNull(includes));
       if (!includesList.equals(this.cacheDefaultIncludes)) {
         LOG.debug("Parser invalidating entire cache on default include change.");
-        invalidateCache();
+        recordInvalidation(
+            BuildFileInvalidationEvent.defaultIncludesChanged(includesList, invalidateCache()));
         this.cacheDefaultIncludes = includesList;
-        return true;
       }
-      return false;
     }
 
     /**
      * Remove the targets and rules defined by {@code path} from the cache and recursively remove
      * the targets and rules defined by files that transitively include {@code path} from the cache.
      * @param path The File that has changed.
+     * @return the number of build files that were invalidated.
      */
-    synchronized void invalidateDependents(Path path) {
+    synchronized int invalidateDependents(Path path) {
       // Normalize path to ensure it hashes equally with map keys.
       path = normalize(path);
+      int invalidated = 0;
 
       // The path may have changed from being a symlink to not being a symlink.
       symlinkExistenceCache.remove(path);
+      wholeEnvironmentDependents.remove(path);
 
       if (parsedBuildFiles.containsKey(path)) {
         LOG.debug("Parser invalidating %s cache", path);
+        invalidated++;
 
         // Remove all rules defined in path from cache.
         List<?> removed = parsedBuildFiles.removeAll(path);
@@ -1015,13 +1207,14 @@ public class Parser {
       for (Path dependent : dependents) {
 
         if (!dependent.equals(path)) {
-          invalidateDependents(dependent);
+          invalidated += invalidateDependents(dependent);
         }
       }
 
       // Dependencies will be repopulated when files are re-parsed.
       List<?> removedDependents = buildFileDependents.removeAll(path);
       LOG.verbose("Removed build file dependents %s defined by %s", removedDependents, path);
+      return invalidated;
     }
 
     public boolean isParsed(Path buildFile) {
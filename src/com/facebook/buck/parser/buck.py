@@ -14,6 +14,7 @@ import optparse
 import os
 import os.path
 import re
+import struct
 import sys
 
 
@@ -52,6 +53,9 @@ class BuildFileContext(object):
     def __init__(self, base_path, dirname):
         self.globals = {}
         self.includes = set()
+        self.env_vars = set()
+        self.reads_all_env_vars = False
+        self.uses_glob = False
         self.base_path = base_path
         self.dirname = dirname
         self.rules = {}
@@ -67,6 +71,68 @@ class IncludeContext(object):
     def __init__(self):
         self.globals = {}
         self.includes = set()
+        self.env_vars = set()
+        self.reads_all_env_vars = False
+
+
+class RecordingEnviron(object):
+    """Stands in for os.environ while build files are processed, noting the
+    variables read into the build context returned by get_build_env.
+
+    Looking up a variable by name records just that name. Anything else, such
+    as listing or copying the environment, could depend on every variable, so
+    it marks the context as reading all of them.
+    """
+
+    def __init__(self, environ, get_build_env):
+        self._environ = environ
+        self._get_build_env = get_build_env
+
+    def _record(self, key):
+        build_env = self._get_build_env()
+        if build_env is not None:
+            build_env.env_vars.add(key)
+
+    def _record_all(self):
+        build_env = self._get_build_env()
+        if build_env is not None:
+            build_env.reads_all_env_vars = True
+
+    def __getitem__(self, key):
+        self._record(key)
+        return self._environ[key]
+
+    def __setitem__(self, key, value):
+        self._record(key)
+        self._environ[key] = value
+
+    def __delitem__(self, key):
+        self._record(key)
+        del self._environ[key]
+
+    def __contains__(self, key):
+        self._record(key)
+        return key in self._environ
+
+    def has_key(self, key):
+        return key in self
+
+    def get(self, key, default=None):
+        self._record(key)
+        return self._environ.get(key, default)
+
+    def __iter__(self):
+        self._record_all()
+        return iter(self._environ)
+
+    def __len__(self):
+        self._record_all()
+        return len(self._environ)
+
+    def __getattr__(self, name):
+        # keys(), items(), copy() and so on.
+        self._record_all()
+        return getattr(self._environ, name)
 
 
 class LazyBuildEnvPartial(object):
@@ -120,6 +186,7 @@ def glob(includes, excludes=[], include_dotfiles=False, build_env=None):
     assert build_env.type == BuildContextType.BUILD_FILE, (
         "Cannot use `glob()` at the top-level of an included file.")
 
+    build_env.uses_glob = True
     search_base = Path(build_env.dirname)
     return glob_internal(includes, excludes, include_dotfiles, search_base)
 
@@ -281,9 +348,28 @@ class BuildFileProcessor(object):
         self._merge_globals(mod.__dict__, frame.f_globals)
 
         # Pull in the include's accounting of its own referenced includes
-        # into the current build context.
+        # and environment variables into the current build context.
+        self._merge_include_env(build_env, path, inner_env)
+
+    def _merge_include_env(self, build_env, path, inner_env):
+        """
+        Account for an include, and whatever it referenced, in the given
+        build context.
+        """
+
         build_env.includes.add(path)
         build_env.includes.update(inner_env.includes)
+        build_env.env_vars.update(inner_env.env_vars)
+        build_env.reads_all_env_vars |= inner_env.reads_all_env_vars
+
+    def _get_current_build_env(self):
+        """
+        Return the build context of the file being executed, if any.
+        """
+
+        if self._build_env_stack:
+            return self._build_env_stack[-1]
+        return None
 
     def _push_build_env(self, build_env):
         """
@@ -330,8 +416,7 @@ class BuildFileProcessor(object):
             include_path = self._get_include_path(include)
             inner_env, mod = self._process_include(include_path)
             self._merge_globals(mod.__dict__, default_globals)
-            build_env.includes.add(include_path)
-            build_env.includes.update(inner_env.includes)
+            self._merge_include_env(build_env, include_path, inner_env)
 
         # Build a new module for the given file, using the default globals
         # created above.
@@ -388,16 +473,90 @@ class BuildFileProcessor(object):
     def process(self, path):
         """
         Process a build file returning a dict of it's rules and includes.
+
+        The includes are followed by the environment variables that the build
+        file and its includes read, or None if they could have read any, so
+        that Buck only has to parse the build file again when one of those
+        changes, and by whether glob() was called, in which case adding or
+        removing files next to the build file can also change its rules.
         """
 
-        build_env, mod = self._process_build_file(
-            os.path.join(self._project_root, path),
-            implicit_includes=self._implicit_includes)
+        environ = os.environ
+        os.environ = RecordingEnviron(environ, self._get_current_build_env)
+        try:
+            build_env, mod = self._process_build_file(
+                os.path.join(self._project_root, path),
+                implicit_includes=self._implicit_includes)
+        finally:
+            os.environ = environ
         values = build_env.rules.values()
-        values.append({"__includes": [path] + sorted(build_env.includes)})
+        if build_env.reads_all_env_vars:
+            env_vars = None
+        else:
+            env_vars = sorted(build_env.env_vars)
+        values.append({
+            "__includes": [path] + sorted(build_env.includes),
+            "__env": env_vars,
+            "__uses_glob": build_env.uses_glob,
+        })
         return values
 
 
+class BinaryEncoder(object):
+    """
+    Encodes values in the format read by BuildFileToBinaryParser.java. Each
+    message is a big-endian 32-bit length followed by a single tagged value.
+
+    Strings are written in full the first time they are seen and by their
+    index in a table shared by every message from this process afterwards, so
+    the attribute names, rule types and targets repeated across rules are
+    only sent once.
+    """
+
+    def __init__(self):
+        self._strings = {}
+
+    def encode(self, value):
+        chunks = []
+        self._encode_value(value, chunks)
+        payload = ''.join(chunks)
+        return struct.pack('>I', len(payload)) + payload
+
+    def _encode_value(self, value, chunks):
+        if isinstance(value, basestring):
+            self._encode_string(value, chunks)
+        elif isinstance(value, (list, tuple)):
+            chunks.append('L' + struct.pack('>I', len(value)))
+            for item in value:
+                self._encode_value(item, chunks)
+        elif isinstance(value, dict):
+            chunks.append('M' + struct.pack('>I', len(value)))
+            for key, item in value.iteritems():
+                self._encode_string(key, chunks)
+                self._encode_value(item, chunks)
+        elif value is None:
+            chunks.append('N')
+        elif isinstance(value, bool):
+            # Checked before int, since bool is a subclass of it.
+            chunks.append('T' if value else 'F')
+        elif isinstance(value, (int, long)):
+            chunks.append('I' + struct.pack('>q', value))
+        elif isinstance(value, float):
+            chunks.append('D' + struct.pack('>d', value))
+        else:
+            raise TypeError('Cannot encode %r' % (value,))
+
+    def _encode_string(self, value, chunks):
+        if isinstance(value, unicode):
+            value = value.encode('utf-8')
+        index = self._strings.get(value)
+        if index is None:
+            self._strings[value] = len(self._strings)
+            chunks.append('S' + struct.pack('>I', len(value)) + value)
+        else:
+            chunks.append('R' + struct.pack('>I', index))
+
+
 # Inexplicably, this script appears to run faster when the arguments passed
 # into it are absolute paths. However, we want the "buck.base_path" property
 # of each rule to be printed out to be the base path of the build target that
@@ -411,8 +570,10 @@ class BuildFileProcessor(object):
 # directories of generated files produced by Buck.
 #
 # All of the build rules that are parsed from the BUILD files will be printed
-# to stdout by a JSON parser. That means that printing out other information
-# for debugging purposes will likely break the JSON parsing, so be careful!
+# to stdout as JSON, or in the format written by BinaryEncoder when
+# --output_format=binary is given. That means that printing out other
+# information for debugging purposes will likely break the parsing, so be
+# careful!
 
 
 def main():
@@ -431,6 +592,14 @@ def main():
         action='store_true',
         dest='server',
         help='Invoke as a server to parse individual BUCK files on demand.')
+    parser.add_option(
+        '--output_format',
+        action='store',
+        type='choice',
+        choices=['json', 'binary'],
+        default='json',
+        dest='output_format',
+        help='How to write the parsed rules to stdout.')
     (options, args) = parser.parse_args()
 
     # Even though project_root is absolute path, it may not be concise. For
@@ -441,19 +610,32 @@ def main():
         project_root,
         implicit_includes=options.include or [])
 
+    if options.output_format == 'binary':
+        if sys.platform == 'win32':
+            import msvcrt
+            msvcrt.setmode(sys.stdout.fileno(), os.O_BINARY)
+        encoder = BinaryEncoder()
+
+        def write(value):
+            sys.stdout.write(encoder.encode(value))
+            sys.stdout.flush()
+    else:
+        def write(value):
+            print json.dumps(value)
+
     for build_file in args:
         values = buildFileProcessor.process(build_file)
         if options.server:
-            print json.dumps(values)
+            write(values)
         else:
             for value in values:
-                print json.dumps(value)
+                write(value)
 
     if options.server:
         # "for ... in sys.stdin" in Python 2.x hangs until stdin is closed.
         for build_file in iter(sys.stdin.readline, ''):
             values = buildFileProcessor.process(build_file.rstrip())
-            print json.dumps(values)
+            write(values)
 
     # Python tries to flush/close stdout when it quits, and if there's a dead
     # pipe on the other end, it will spit some warnings to stderr. This breaks
@@ -1,7 +1,9 @@
-from buck import glob_internal, LazyBuildEnvPartial
+from buck import BinaryEncoder, BuildFileProcessor, glob_internal, IncludeContext, \
+    LazyBuildEnvPartial, RecordingEnviron
 from pathlib import Path, PurePosixPath
 import os
 import shutil
+import struct
 import sys
 import tempfile
 import unittest
@@ -191,6 +193,86 @@ class TestBuck(unittest.TestCase):
             ('HAL', [1, 2, 3], {'abc': 789}),
             testLazy.invoke(name='HAL', deps=[1, 2, 3]))
 
+    def test_binary_encoder_sends_repeated_strings_once(self):
+        def u32(n):
+            return struct.pack('>I', n)
+
+        def message(payload):
+            return u32(len(payload)) + payload
+
+        encoder = BinaryEncoder()
+        self.assertEqual(
+            message('L' + u32(1) + 'M' + u32(1) +
+                    'S' + u32(4) + 'name' + 'S' + u32(3) + 'foo'),
+            encoder.encode([{'name': 'foo'}]))
+        self.assertEqual(
+            message('L' + u32(6) + 'R' + u32(1) + 'R' + u32(0) +
+                    'T' + 'N' + 'I' + struct.pack('>q', 1) +
+                    'S' + u32(2) + '\xc3\xa9'),
+            encoder.encode(('foo', u'name', True, None, 1, u'\xe9')))
+
+
+    def test_recording_environ_notes_variables_read(self):
+        build_env = IncludeContext()
+        environ = RecordingEnviron(
+            {'FOO': 'foo', 'BAR': 'bar'},
+            lambda: build_env)
+
+        self.assertEqual('foo', environ['FOO'])
+        self.assertEqual(None, environ.get('BAZ'))
+        self.assertFalse('QUX' in environ)
+        self.assertEqual(set(['FOO', 'BAZ', 'QUX']), build_env.env_vars)
+        self.assertFalse(build_env.reads_all_env_vars)
+
+        self.assertEqual(['BAR', 'FOO'], sorted(environ.keys()))
+        self.assertTrue(build_env.reads_all_env_vars)
+
+    def test_process_lists_variables_read_by_build_file_and_includes(self):
+        d = tempfile.mkdtemp()
+        try:
+            with open(os.path.join(d, 'DEFS'), 'w') as f:
+                f.write('import os\nBAR = os.getenv("BUCK_TEST_BAR")\n')
+            os.mkdir(os.path.join(d, 'a'))
+            with open(os.path.join(d, 'a', 'BUCK'), 'w') as f:
+                f.write('import os\n'
+                        'include_defs("//DEFS")\n'
+                        'FOO = os.environ.get("BUCK_TEST_FOO")\n')
+            os.mkdir(os.path.join(d, 'b'))
+            with open(os.path.join(d, 'b', 'BUCK'), 'w') as f:
+                f.write('import os\nALL = dict(os.environ)\n')
+
+            processor = BuildFileProcessor(d)
+            self.assertEqual(
+                {
+                    '__includes': ['a/BUCK', os.path.join(d, 'DEFS')],
+                    '__env': ['BUCK_TEST_BAR', 'BUCK_TEST_FOO'],
+                    '__uses_glob': False,
+                },
+                processor.process('a/BUCK')[-1])
+            self.assertEqual(
+                {'__includes': ['b/BUCK'], '__env': None, '__uses_glob': False},
+                processor.process('b/BUCK')[-1])
+        finally:
+            shutil.rmtree(d)
+
+    def test_process_records_glob_calls_made_from_includes(self):
+        d = tempfile.mkdtemp()
+        try:
+            with open(os.path.join(d, 'DEFS'), 'w') as f:
+                f.write('def all_srcs():\n  return glob(["*.java"])\n')
+            os.mkdir(os.path.join(d, 'a'))
+            with open(os.path.join(d, 'a', 'BUCK'), 'w') as f:
+                f.write('include_defs("//DEFS")\nSRCS = all_srcs()\n')
+            os.mkdir(os.path.join(d, 'b'))
+            with open(os.path.join(d, 'b', 'BUCK'), 'w') as f:
+                f.write('include_defs("//DEFS")\n')
+
+            processor = BuildFileProcessor(d)
+            self.assertTrue(processor.process('a/BUCK')[-1]['__uses_glob'])
+            self.assertFalse(processor.process('b/BUCK')[-1]['__uses_glob'])
+        finally:
+            shutil.rmtree(d)
+
 
 if __name__ == '__main__':
     unittest.main()
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.collect.ImmutableSet;
+
 import java.io.Closeable;
 import java.io.File;
 
@@ -30,6 +32,33 @@ public interface ArtifactCache extends Closeable {
    */
   public CacheResult fetch(RuleKey ruleKey, File output) throws InterruptedException;
 
+  /**
+   * Fetch a cached artifact, keyed by ruleKey, and hand its contents to consumer as they are read
+   * rather than saving them to a file first.
+   * <p>
+   * The consumer may be invoked even when this returns {@link CacheResult#MISS}, for example if the
+   * artifact turns out to be truncated or fails checksum verification after it has been read. In
+   * that case anything the consumer did with the artifact must be discarded. If the consumer throws
+   * an {@link java.io.IOException}, the fetch is treated as a miss.
+   *
+   * @param ruleKey cache fetch key
+   * @param consumer reads the artifact
+   * @return whether it was a {@link CacheResult#MISS} (indicating a failure) or some type of hit.
+   */
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer)
+      throws InterruptedException;
+
+  /**
+   * Tell this cache that {@link #fetch(RuleKey, File)} or
+   * {@link #fetchStreaming(RuleKey, ArtifactConsumer)} is likely to be called soon for each of
+   * ruleKeys. A cache backed by a remote store may use this to look the keys up in a few batched
+   * requests rather than making one round-trip per key. Failures are not reported: the subsequent
+   * fetches simply behave as if this had not been called.
+   *
+   * @param ruleKeys cache fetch keys
+   */
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) throws InterruptedException;
+
   /**
    * Store the artifact at path specified by output to cache, such that it can later be fetched
    * using ruleKey as the lookup key.  If any internal errors occur, fail silently and continue
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.log.Logger;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * Helpers for {@link ArtifactCache} implementations.
+ */
+public class ArtifactCaches {
+
+  private static final Logger LOG = Logger.get(ArtifactCaches.class);
+
+  /** Utility class: do not instantiate. */
+  private ArtifactCaches() {}
+
+  /**
+   * Implements {@link ArtifactCache#fetchStreaming(RuleKey, ArtifactConsumer)} for caches that can
+   * only fetch to a file: the artifact is fetched to a temporary file, which is then streamed to
+   * {@code consumer} and deleted.
+   */
+  public static CacheResult fetchViaTempFile(
+      ArtifactCache artifactCache,
+      RuleKey ruleKey,
+      ArtifactConsumer consumer) throws InterruptedException {
+    File tempFile;
+    try {
+      tempFile = File.createTempFile(ruleKey.toString(), ".zip");
+    } catch (IOException e) {
+      LOG.warn(e, "fetchStreaming(%s): could not create a temporary file", ruleKey);
+      return CacheResult.MISS;
+    }
+
+    try {
+      CacheResult cacheResult = artifactCache.fetch(ruleKey, tempFile);
+      if (!cacheResult.isSuccess()) {
+        return cacheResult;
+      }
+      return consume(ruleKey, tempFile, consumer, cacheResult);
+    } finally {
+      tempFile.delete();
+    }
+  }
+
+  /**
+   * Streams {@code artifact} to {@code consumer}, returning {@code cacheResult} on success and
+   * {@link CacheResult#MISS} if the consumer fails.
+   */
+  static CacheResult consume(
+      RuleKey ruleKey,
+      File artifact,
+      ArtifactConsumer consumer,
+      CacheResult cacheResult) {
+    try (InputStream input = Files.newInputStream(artifact.toPath())) {
+      consumer.consume(input);
+      return cacheResult;
+    } catch (IOException e) {
+      LOG.warn(e, "fetchStreaming(%s): could not consume %s", ruleKey, artifact);
+      return CacheResult.MISS;
+    }
+  }
+}
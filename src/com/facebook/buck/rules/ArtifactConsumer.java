@@ -0,0 +1,31 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Receives the contents of an artifact as it is read from an {@link ArtifactCache}.
+ */
+public interface ArtifactConsumer {
+
+  /**
+   * Reads the artifact from {@code artifact}. Implementations should not close the stream.
+   */
+  public void consume(InputStream artifact) throws IOException;
+}
@@ -0,0 +1,198 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Sets;
+
+import java.io.Closeable;
+import java.io.File;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Uploads build artifacts to an {@link ArtifactCache} in the background so that a rule can be
+ * reported as finished as soon as its outputs are on disk.
+ * <p>
+ * At most {@code maxPendingUploads} artifacts may be queued or in flight at once. Once that limit
+ * is reached, {@link #enqueue(BuildInfoRecorder)} blocks until an upload completes, so that a
+ * slow cache cannot cause an unbounded number of zip files to pile up in the temp directory.
+ * Each {@link RuleKey} is uploaded at most once per queue.
+ */
+public class ArtifactUploadQueue implements Closeable {
+
+  private static final Logger LOG = Logger.get(ArtifactUploadQueue.class);
+
+  private final ArtifactCache artifactCache;
+  private final BuckEventBus eventBus;
+  private final ExecutorService executor;
+  private final int maxPendingUploads;
+  private final Semaphore permits;
+  private final Set<RuleKey> enqueuedRuleKeys;
+  private final AtomicLong bytesInFlight;
+
+  /**
+   * Guarded by {@code this}. Counts uploads that have been enqueued but not yet completed.
+   */
+  private int depth;
+
+  public ArtifactUploadQueue(
+      ArtifactCache artifactCache,
+      BuckEventBus eventBus,
+      int maxPendingUploads,
+      int numThreads) {
+    this(
+        artifactCache,
+        eventBus,
+        maxPendingUploads,
+        Executors.newFixedThreadPool(
+            numThreads,
+            new CommandThreadFactory("artifact-upload")));
+  }
+
+  @VisibleForTesting
+  ArtifactUploadQueue(
+      ArtifactCache artifactCache,
+      BuckEventBus eventBus,
+      int maxPendingUploads,
+      ExecutorService executor) {
+    Preconditions.checkArgument(maxPendingUploads > 0);
+    this.artifactCache = Preconditions.checkNotNull(artifactCache);
+    this.eventBus = Preconditions.checkNotNull(eventBus);
+    this.executor = Preconditions.checkNotNull(executor);
+    this.maxPendingUploads = maxPendingUploads;
+    this.permits = new Semaphore(maxPendingUploads);
+    this.enqueuedRuleKeys = Sets.newConcurrentHashSet();
+    this.bytesInFlight = new AtomicLong();
+  }
+
+  /**
+   * Schedules the artifact described by {@code buildInfoRecorder} to be zipped and stored. Blocks
+   * while the queue is full. This is a noop if the artifact cache does not support stores or if an
+   * artifact with the same {@link RuleKey} has already been enqueued.
+   */
+  public void enqueue(final BuildInfoRecorder buildInfoRecorder) throws InterruptedException {
+    if (!artifactCache.isStoreSupported()) {
+      return;
+    }
+
+    final RuleKey ruleKey = buildInfoRecorder.getRuleKey();
+    if (!enqueuedRuleKeys.add(ruleKey)) {
+      return;
+    }
+
+    permits.acquire();
+    synchronized (this) {
+      depth++;
+    }
+    postQueueEvent();
+
+    try {
+      executor.execute(
+          new Runnable() {
+            @Override
+            public void run() {
+              upload(ruleKey, buildInfoRecorder);
+            }
+          });
+    } catch (RuntimeException e) {
+      onUploadFinished();
+      throw e;
+    }
+  }
+
+  private void upload(RuleKey ruleKey, BuildInfoRecorder buildInfoRecorder) {
+    long size = 0;
+    try {
+      Optional<File> zip = buildInfoRecorder.createArtifactZip(eventBus);
+      if (!zip.isPresent()) {
+        return;
+      }
+      size = zip.get().length();
+      bytesInFlight.addAndGet(size);
+      postQueueEvent();
+      try {
+        artifactCache.store(ruleKey, zip.get());
+      } finally {
+        zip.get().delete();
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } catch (RuntimeException e) {
+      LOG.warn(e, "Failed to upload artifact for rule key %s", ruleKey);
+    } finally {
+      bytesInFlight.addAndGet(-size);
+      onUploadFinished();
+    }
+  }
+
+  private void onUploadFinished() {
+    synchronized (this) {
+      depth--;
+      notifyAll();
+    }
+    permits.release();
+    postQueueEvent();
+  }
+
+  private void postQueueEvent() {
+    eventBus.post(ArtifactUploadQueueEvent.of(getDepth(), bytesInFlight.get()));
+  }
+
+  public synchronized int getDepth() {
+    return depth;
+  }
+
+  public long getBytesInFlight() {
+    return bytesInFlight.get();
+  }
+
+  public int getMaxPendingUploads() {
+    return maxPendingUploads;
+  }
+
+  /**
+   * Blocks until every artifact that has been enqueued so far has been stored.
+   */
+  public synchronized void flush() throws InterruptedException {
+    while (depth > 0) {
+      wait();
+    }
+  }
+
+  /**
+   * Waits for outstanding uploads and then stops the upload threads.
+   */
+  @Override
+  public void close() {
+    try {
+      flush();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      executor.shutdown();
+    }
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.event.CoalescableEvent;
+
+/**
+ * Posted by {@link ArtifactUploadQueue} whenever an upload is enqueued, starts transferring or
+ * finishes, so that listeners can track how far uploads are lagging behind the build.
+ */
+public class ArtifactUploadQueueEvent extends AbstractBuckEvent implements CoalescableEvent {
+
+  private final int queueDepth;
+  private final long bytesInFlight;
+
+  protected ArtifactUploadQueueEvent(int queueDepth, long bytesInFlight) {
+    this.queueDepth = queueDepth;
+    this.bytesInFlight = bytesInFlight;
+  }
+
+  public static ArtifactUploadQueueEvent of(int queueDepth, long bytesInFlight) {
+    return new ArtifactUploadQueueEvent(queueDepth, bytesInFlight);
+  }
+
+  /**
+   * @return the number of artifacts that have been enqueued but not yet stored.
+   */
+  public int getQueueDepth() {
+    return queueDepth;
+  }
+
+  /**
+   * @return the total size of the zipped artifacts currently being stored.
+   */
+  public long getBytesInFlight() {
+    return bytesInFlight;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format("depth=%d bytes=%d", queueDepth, bytesInFlight);
+  }
+
+  @Override
+  public boolean isRelatedTo(BuckEvent event) {
+    return event instanceof ArtifactUploadQueueEvent;
+  }
+
+  @Override
+  public String getEventName() {
+    return "ArtifactUploadQueueEvent";
+  }
+
+  /**
+   * Each event describes the whole queue, so a listener which has fallen behind only needs the
+   * latest one.
+   */
+  @Override
+  public Object getCoalescingKey() {
+    return ArtifactUploadQueueEvent.class;
+  }
+}
@@ -47,6 +47,8 @@ public class BuildContext {
   private final ProjectFilesystem projectFilesystem;
   private final Clock clock;
   private final ArtifactCache artifactCache;
+  private final Optional<ArtifactUploadQueue> artifactUploadQueue;
+  private final Optional<CriticalPathEstimate> criticalPathEstimate;
   private final JavaPackageFinder javaPackageFinder;
   private final BuckEventBus events;
   private final Supplier<String> androidBootclasspathSupplier;
@@ -60,6 +62,8 @@ public class BuildContext {
       @Nullable ProjectFilesystem projectFilesystem,
       @Nullable Clock clock,
       @Nullable ArtifactCache artifactCache,
+      @Nullable Optional<ArtifactUploadQueue> artifactUploadQueue,
+      @Nullable Optional<CriticalPathEstimate> criticalPathEstimate,
       @Nullable JavaPackageFinder javaPackageFinder,
       @Nullable BuckEventBus events,
       @Nullable Supplier<String> androidBootclasspathSupplier,
@@ -72,6 +76,8 @@ public class BuildContext {
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.clock = Preconditions.checkNotNull(clock);
     this.artifactCache = Preconditions.checkNotNull(artifactCache);
+    this.artifactUploadQueue = Preconditions.checkNotNull(artifactUploadQueue);
+    this.criticalPathEstimate = Preconditions.checkNotNull(criticalPathEstimate);
     this.javaPackageFinder = Preconditions.checkNotNull(javaPackageFinder);
     this.events = Preconditions.checkNotNull(events);
     this.androidBootclasspathSupplier = Preconditions.checkNotNull(androidBootclasspathSupplier);
@@ -115,6 +121,22 @@ public class BuildContext {
     return artifactCache;
   }
 
+  /**
+   * @return the queue that artifacts should be uploaded through, or {@link Optional#absent()} if
+   *     they should be stored synchronously.
+   */
+  public Optional<ArtifactUploadQueue> getArtifactUploadQueue() {
+    return artifactUploadQueue;
+  }
+
+  /**
+   * @return the estimate used to run the rules on the critical path of the build first, or
+   *     {@link Optional#absent()} if rules should run in the order they become ready.
+   */
+  public Optional<CriticalPathEstimate> getCriticalPathEstimate() {
+    return criticalPathEstimate;
+  }
+
   public BuckEventBus getEventBus() {
     return events;
   }
@@ -185,6 +207,8 @@ public class BuildContext {
     private Clock clock = null;
     @Nullable
     private ArtifactCache artifactCache = null;
+    private Optional<ArtifactUploadQueue> artifactUploadQueue = Optional.absent();
+    private Optional<CriticalPathEstimate> criticalPathEstimate = Optional.absent();
     @Nullable
     private JavaPackageFinder javaPackgeFinder = null;
     @Nullable
@@ -209,6 +233,8 @@ public class BuildContext {
           projectFilesystem,
           clock,
           artifactCache,
+          artifactUploadQueue,
+          criticalPathEstimate,
           javaPackgeFinder,
           events,
           androidBootclasspathSupplier,
@@ -242,6 +268,17 @@ public class BuildContext {
       return this;
     }
 
+    public Builder setArtifactUploadQueue(Optional<ArtifactUploadQueue> artifactUploadQueue) {
+      this.artifactUploadQueue = artifactUploadQueue;
+      return this;
+    }
+
+    public Builder setCriticalPathEstimate(
+        Optional<CriticalPathEstimate> criticalPathEstimate) {
+      this.criticalPathEstimate = criticalPathEstimate;
+      return this;
+    }
+
     public Builder setJavaPackageFinder(JavaPackageFinder javaPackgeFinder) {
       this.javaPackgeFinder = javaPackgeFinder;
       return this;
@@ -20,6 +20,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.google.common.util.concurrent.ListenableFuture;
 
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A build engine is responsible for building a given build rule, which includes all its transitive
@@ -27,6 +28,20 @@ import java.util.concurrent.ExecutionException;
  */
 public interface BuildEngine {
 
+  /**
+   * Compute the rule keys of the given build rules and their transitive deps ahead of building
+   * them, using {@code pool} to compute independent rule keys in parallel.
+   */
+  void computeRuleKeys(Iterable<BuildRule> rules, ForkJoinPool pool);
+
+  /**
+   * Tell the {@link ArtifactCache} of {@code context} about every artifact that building
+   * {@code rules} and their transitive deps may fetch, so that it can look them up in batches
+   * rather than one at a time. This should be called after {@link #computeRuleKeys}; rules whose
+   * keys have not been computed are skipped.
+   */
+  void prefetchArtifacts(BuildContext context, Iterable<BuildRule> rules);
+
   /**
    * Build the given build rule and return a future to the build rule success.
    */
@@ -28,6 +28,7 @@ import com.facebook.buck.util.ProjectFilesystem;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
@@ -159,6 +160,10 @@ public class BuildInfoRecorder {
     addMetadata(key, values.toString());
   }
 
+  RuleKey getRuleKey() {
+    return ruleKey;
+  }
+
   /**
    * Creates a zip file of the metadata and recorded artifacts and stores it in the artifact cache.
    */
@@ -170,6 +175,19 @@ public class BuildInfoRecorder {
       return;
     }
 
+    Optional<File> zip = createArtifactZip(eventBus);
+    if (!zip.isPresent()) {
+      return;
+    }
+    artifactCache.store(ruleKey, zip.get());
+    zip.get().delete();
+  }
+
+  /**
+   * Creates a temporary zip file of the metadata and recorded artifacts. The caller is responsible
+   * for deleting it. Returns {@link Optional#absent()} if the zip could not be created.
+   */
+  Optional<File> createArtifactZip(BuckEventBus eventBus) {
     ImmutableSet.Builder<Path> pathsToIncludeInZipBuilder = ImmutableSet.<Path>builder()
         .addAll(Iterables.transform(metadataToWrite.keySet(),
             new Function<String, Path>() {
@@ -207,10 +225,9 @@ public class BuildInfoRecorder {
           buildTarget,
           Joiner.on('\n').join(ImmutableSortedSet.copyOf(pathsToIncludeInZip))));
       e.printStackTrace();
-      return;
+      return Optional.absent();
     }
-    artifactCache.store(ruleKey, zip);
-    zip.delete();
+    return Optional.of(zip);
   }
 
   private List<Path> getEntries(final Path outputDirectory) throws IOException {
@@ -227,13 +244,14 @@ public class BuildInfoRecorder {
   }
 
   /**
-   * Fetches the artifact associated with the {@link #buildTarget} for this class and writes it to
-   * the specified {@code outputFile}.
+   * Fetches the artifact associated with the {@link #buildTarget} for this class and streams it to
+   * the specified {@code consumer}.
    */
-  public CacheResult fetchArtifactForBuildable(File outputFile, ArtifactCache artifactCache)
-      throws InterruptedException {
-    Preconditions.checkNotNull(outputFile);
-    return artifactCache.fetch(ruleKey, outputFile);
+  public CacheResult fetchArtifactForBuildable(
+      ArtifactConsumer consumer,
+      ArtifactCache artifactCache) throws InterruptedException {
+    Preconditions.checkNotNull(consumer);
+    return artifactCache.fetchStreaming(ruleKey, consumer);
   }
 
   /**
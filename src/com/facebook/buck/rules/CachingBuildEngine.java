@@ -23,6 +23,7 @@ import com.facebook.buck.log.Logger;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.step.Step;
 import com.facebook.buck.step.StepRunner;
+import com.facebook.buck.util.MoreFiles;
 import com.facebook.buck.util.concurrent.MoreFutures;
 import com.facebook.buck.zip.Unzip;
 import com.google.common.annotations.VisibleForTesting;
@@ -31,19 +32,30 @@ import com.google.common.base.Preconditions;
 import com.google.common.base.Supplier;
 import com.google.common.base.Suppliers;
 import com.google.common.base.Throwables;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import com.google.common.util.concurrent.SettableFuture;
 
-import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.annotation.Nullable;
 
@@ -102,6 +114,119 @@ public class CachingBuildEngine implements BuildEngine {
     return ruleKeys.get(buildTarget);
   }
 
+  /**
+   * Computes the {@link RuleKey}s of {@code rules} and all of their transitive deps on {@code pool}
+   * and records them, so that {@link #build(BuildContext, BuildRule)} finds them already memoized.
+   * <p>
+   * The graph is walked bottom-up: a rule's key is computed once the keys of all of its deps are
+   * available, so independent subgraphs (and the input file hashing they require) proceed in
+   * parallel. Failures are not reported here: a rule whose key cannot be computed, and every rule
+   * that depends on it, is skipped so that {@link #build(BuildContext, BuildRule)} can report the
+   * failure exactly as it would have without this step.
+   */
+  @Override
+  public void computeRuleKeys(Iterable<BuildRule> rules, ForkJoinPool pool) {
+    ConcurrentMap<BuildTarget, RuleKeyTask> tasks = Maps.newConcurrentMap();
+    List<RuleKeyTask> rootTasks = Lists.newArrayList();
+    for (BuildRule rule : rules) {
+      RuleKeyTask task = new RuleKeyTask(rule, tasks);
+      if (tasks.putIfAbsent(rule.getBuildTarget(), task) == null) {
+        rootTasks.add(task);
+        pool.execute(task);
+      }
+    }
+    for (RuleKeyTask task : rootTasks) {
+      task.join();
+    }
+  }
+
+  /**
+   * Computes the {@link RuleKey} of a single rule once the tasks for its deps have completed.
+   * Tasks are shared through {@code tasks} so that each rule is visited exactly once, no matter how
+   * many rules depend on it.
+   */
+  @SuppressWarnings("serial")
+  private class RuleKeyTask extends RecursiveTask<Boolean> {
+
+    private final BuildRule rule;
+    private final ConcurrentMap<BuildTarget, RuleKeyTask> tasks;
+
+    private RuleKeyTask(BuildRule rule, ConcurrentMap<BuildTarget, RuleKeyTask> tasks) {
+      this.rule = rule;
+      this.tasks = tasks;
+    }
+
+    @Override
+    protected Boolean compute() {
+      List<RuleKeyTask> depTasks = Lists.newArrayListWithCapacity(rule.getDeps().size());
+      for (BuildRule dep : rule.getDeps()) {
+        RuleKeyTask depTask = new RuleKeyTask(dep, tasks);
+        RuleKeyTask existingTask = tasks.putIfAbsent(dep.getBuildTarget(), depTask);
+        if (existingTask == null) {
+          depTask.fork();
+        } else {
+          depTask = existingTask;
+        }
+        depTasks.add(depTask);
+      }
+
+      boolean depsSucceeded = true;
+      for (RuleKeyTask depTask : depTasks) {
+        depsSucceeded &= depTask.join();
+      }
+      if (!depsSucceeded) {
+        return false;
+      }
+
+      try {
+        // Both keys are memoized together by the rule, so this also computes the key without deps.
+        ruleKeys.putIfAbsent(rule.getBuildTarget(), rule.getRuleKey());
+        return true;
+      } catch (RuntimeException e) {
+        LOG.debug(e, "Failed to compute rule key for %s ahead of building it.", rule);
+        return false;
+      }
+    }
+  }
+
+  /**
+   * Collects the {@link RuleKey} of every rule that may be fetched from the cache, which is any
+   * cacheable rule whose output on disk was not built with its current key, and hands them to the
+   * {@link ArtifactCache} in one go. The cache may still be asked for a rule that turns out not to
+   * need fetching, for example because it has a matching ABI, which is harmless.
+   */
+  @Override
+  public void prefetchArtifacts(BuildContext context, Iterable<BuildRule> rules) {
+    ImmutableSet.Builder<RuleKey> ruleKeysToFetch = ImmutableSet.builder();
+    Set<BuildTarget> visited = Sets.newHashSet();
+    Deque<BuildRule> toVisit = new ArrayDeque<>();
+    Iterables.addAll(toVisit, rules);
+    while (!toVisit.isEmpty()) {
+      BuildRule rule = toVisit.pop();
+      if (!visited.add(rule.getBuildTarget())) {
+        continue;
+      }
+      toVisit.addAll(rule.getDeps());
+
+      RuleKey ruleKey = ruleKeys.get(rule.getBuildTarget());
+      if (ruleKey == null || rule.getCacheMode() == CacheMode.DISABLED) {
+        continue;
+      }
+      Optional<RuleKey> onDiskRuleKey =
+          context.createOnDiskBuildInfoFor(rule.getBuildTarget()).getRuleKey();
+      if (!ruleKey.equals(onDiskRuleKey.orNull())) {
+        ruleKeysToFetch.add(ruleKey);
+      }
+    }
+
+    try {
+      context.getArtifactCache().prefetch(ruleKeysToFetch.build());
+    } catch (InterruptedException e) {
+      // Let the build itself notice the interruption.
+      Thread.currentThread().interrupt();
+    }
+  }
+
   @Override
   public final ListenableFuture<BuildRuleSuccess> build(
       final BuildContext context,
@@ -129,7 +254,13 @@ public class CachingBuildEngine implements BuildEngine {
       }
       ListenableFuture<List<BuildRuleSuccess>> allBuiltDeps = Futures.allAsList(builtDeps);
 
-      // Schedule this rule to build itself once all of the deps are built.
+      // Schedule this rule to build itself once all of the deps are built, ahead of ready rules
+      // with less of the build waiting on them.
+      long priority = 0;
+      if (context.getCriticalPathEstimate().isPresent()) {
+        priority = context.getCriticalPathEstimate().get().getRemainingMillis(
+            rule.getBuildTarget());
+      }
       context.getStepRunner().addCallback(allBuiltDeps,
           new FutureCallback<List<BuildRuleSuccess>>() {
 
@@ -225,10 +356,16 @@ public class CachingBuildEngine implements BuildEngine {
               BuildRuleSuccess buildRuleSuccess = new BuildRuleSuccess(rule, result.getSuccess());
               newFuture.set(buildRuleSuccess);
 
-              // Finally, upload to the artifact cache.
+              // Finally, upload to the artifact cache. When an upload queue is available, the
+              // upload happens in the background so that this thread can move on to the next rule.
               if (success != null && success.shouldUploadResultingArtifact()) {
-                buildInfoRecorder.get().performUploadToArtifactCache(context.getArtifactCache(),
-                    eventBus);
+                Optional<ArtifactUploadQueue> uploadQueue = context.getArtifactUploadQueue();
+                if (uploadQueue.isPresent()) {
+                  uploadQueue.get().enqueue(buildInfoRecorder.get());
+                } else {
+                  buildInfoRecorder.get().performUploadToArtifactCache(context.getArtifactCache(),
+                      eventBus);
+                }
               }
             }
 
@@ -270,7 +407,8 @@ public class CachingBuildEngine implements BuildEngine {
                       result.getCacheResult(),
                       Optional.fromNullable(result.getSuccess())));
             }
-          });
+          },
+          priority);
     } catch (Throwable failure) {
       // This is a defensive catch block: if buildRuleResult is never satisfied, then Buck will
       // hang because a callback that is waiting for this rule's future to complete will never be
@@ -412,61 +550,75 @@ public class CachingBuildEngine implements BuildEngine {
       BuildRule rule,
       BuildInfoRecorder buildInfoRecorder,
       ArtifactCache artifactCache,
-      Path projectRoot,
+      final Path projectRoot,
       BuildContext buildContext) throws InterruptedException {
-    // Create a temp file whose extension must be ".zip" for Filesystems.newFileSystem() to infer
-    // that we are creating a zip-based FileSystem.
-    File zipFile;
-    try {
-      zipFile = File.createTempFile(rule.getFullyQualifiedName().replace('/', '_'), ".zip");
-    } catch (IOException e) {
-      throw new RuntimeException(e);
-    }
-
-    // TODO(mbolin): Change ArtifactCache.fetch() so that it returns a File instead of takes one.
-    // Then we could download directly from Cassandra into the on-disk cache and unzip it from
-    // there.
-    CacheResult cacheResult = buildInfoRecorder.fetchArtifactForBuildable(zipFile, artifactCache);
-    if (!cacheResult.isSuccess()) {
-      zipFile.delete();
-      return cacheResult;
-    }
-
-    // We unzip the file in the root of the project directory.
-    // Ideally, the following would work:
-    //
-    // Path pathToZip = Paths.get(zipFile.getAbsolutePath());
-    // FileSystem fs = FileSystems.newFileSystem(pathToZip, /* loader */ null);
-    // Path root = Iterables.getOnlyElement(fs.getRootDirectories());
-    // MoreFiles.copyRecursively(root, projectRoot);
-    //
-    // Unfortunately, this does not appear to work, in practice, because MoreFiles fails when trying
-    // to resolve a Path for a zip entry against a file Path on disk.
+    // Unzip the artifact in the root of the project directory as it is read from the cache, rather
+    // than downloading it to a temporary file and unzipping that in a second pass.
+    final AtomicReference<IOException> unzipFailure = new AtomicReference<>();
+    final AtomicReference<ImmutableList<Path>> extractedFiles = new AtomicReference<>();
+    CacheResult cacheResult = buildInfoRecorder.fetchArtifactForBuildable(
+        new ArtifactConsumer() {
+          @Override
+          public void consume(InputStream artifact) throws IOException {
+            try {
+              extractedFiles.set(
+                  Unzip.extractZipStream(
+                      artifact,
+                      projectRoot.toAbsolutePath(),
+                      /* overwriteExistingFiles */ true));
+            } catch (IOException e) {
+              unzipFailure.set(e);
+              throw e;
+            }
+          }
+        },
+        artifactCache);
 
-    try {
-      Unzip.extractZipFile(zipFile.toPath().toAbsolutePath(),
-          projectRoot.toAbsolutePath(),
-          /* overwriteExistingFiles */ true);
-    } catch (IOException e) {
+    if (unzipFailure.get() != null) {
+      // The unzip deletes whatever it had written before failing, which leaves the metadata.
+      discardExtractedArtifact(rule, projectRoot, /* extractedFiles */ null);
       // In the wild, we have seen some inexplicable failures during this step. For now, we try to
       // give the user as much information as we can to debug the issue, but return CacheResult.MISS
       // so that Buck will fall back on doing a local build.
       buildContext.getEventBus().post(ConsoleEvent.warning(
-              "Failed to unzip the artifact for %s at %s.\n" +
+              "Failed to unzip the artifact for %s.\n" +
                   "The rule will be built locally, " +
-                  "but here is the stacktrace of the failed unzip call:\n" +
-                  rule.getBuildTarget(),
-              zipFile.getAbsolutePath(),
-              Throwables.getStackTraceAsString(e)));
+                  "but here is the stacktrace of the failed unzip call:\n%s",
+              rule.getBuildTarget(),
+              Throwables.getStackTraceAsString(unzipFailure.get())));
       return CacheResult.MISS;
     }
 
-    // We only delete the ZIP file when it has been unzipped successfully. Otherwise, we leave it
-    // around for debugging purposes.
-    zipFile.delete();
+    if (!cacheResult.isSuccess() && extractedFiles.get() != null) {
+      // The artifact was unzipped before the cache found it to be corrupt (e.g. a checksum
+      // mismatch), so none of what was written can be trusted.
+      discardExtractedArtifact(rule, projectRoot, extractedFiles.get());
+    }
     return cacheResult;
   }
 
+  /**
+   * Deletes whatever was unzipped from a rejected artifact, along with the rule's metadata
+   * directory, so that a stale or corrupt {@code .metadata} cannot be mistaken for the output of
+   * the local build that follows.
+   */
+  private static void discardExtractedArtifact(
+      BuildRule rule,
+      Path projectRoot,
+      @Nullable ImmutableList<Path> extractedFiles) {
+    try {
+      if (extractedFiles != null) {
+        for (Path file : extractedFiles) {
+          Files.deleteIfExists(file);
+        }
+      }
+      MoreFiles.rmdir(
+          projectRoot.resolve(BuildInfo.getPathToMetadataDirectory(rule.getBuildTarget())));
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to discard the rejected artifact for %s.", rule);
+    }
+  }
+
   /**
    * Execute the commands for this build rule. Requires all dependent rules are already built
    * successfully.
@@ -24,8 +24,12 @@ import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.HumanReadableException;
 import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Functions;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
 import com.google.common.util.concurrent.FutureCallback;
@@ -45,6 +49,8 @@ import com.netflix.astyanax.impl.AstyanaxConfigurationImpl;
 import com.netflix.astyanax.model.Column;
 import com.netflix.astyanax.model.ColumnFamily;
 import com.netflix.astyanax.model.ColumnList;
+import com.netflix.astyanax.model.Row;
+import com.netflix.astyanax.model.Rows;
 import com.netflix.astyanax.serializers.StringSerializer;
 import com.netflix.astyanax.thrift.ThriftFamilyFactory;
 
@@ -63,6 +69,7 @@ import java.util.Set;
 import java.util.concurrent.Callable;
 import java.util.concurrent.CancellationException;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -72,8 +79,11 @@ import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 
+import javax.annotation.Nullable;
+
 public class CassandraArtifactCache implements ArtifactCache {
 
   /**
@@ -97,6 +107,18 @@ public class CassandraArtifactCache implements ArtifactCache {
       StringSerializer.get(),
       StringSerializer.get());
 
+  /**
+   * Number of rows requested by each multi-get issued by {@link #prefetch(ImmutableSet)}.
+   */
+  @VisibleForTesting
+  static final int MAX_KEYS_PER_MULTIGET = 100;
+
+  /**
+   * Upper bound on the memory used to hold artifacts returned by a multi-get until they are
+   * fetched.
+   */
+  private static final long MAX_PREFETCHED_BYTES = 64L * 1024 * 1024;
+
   private static final String ARTIFACT_COLUMN_FAMILY_NAME = "Artifacts";
   private static final String ARTIFACT_COLUMN_NAME = "artifact";
   private static final ColumnFamily<String, String> CF_ARTIFACT = new ColumnFamily<String, String>(
@@ -123,6 +145,34 @@ public class CassandraArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * The value of an artifact column along with the time it was written.
+   */
+  private static final class ArtifactColumn {
+    private final byte[] data;
+    private final long timestamp;
+
+    private byte[] getData() {
+      return data;
+    }
+
+    private long getTimestamp() {
+      return timestamp;
+    }
+
+    private ArtifactColumn(byte[] data, long timestamp) {
+      this.data = data;
+      this.timestamp = timestamp;
+    }
+
+    private static Optional<ArtifactColumn> from(@Nullable Column<String> column) {
+      if (column == null) {
+        return Optional.absent();
+      }
+      return Optional.of(new ArtifactColumn(column.getByteArrayValue(), column.getTimestamp()));
+    }
+  }
+
   private final int timeoutSeconds;
   private final Future<KeyspaceAndTtl> keyspaceAndTtlFuture;
   private final AtomicInteger numConnectionExceptionReports;
@@ -134,6 +184,10 @@ public class CassandraArtifactCache implements ArtifactCache {
   private final AtomicBoolean isWaitingToClose;
   private final AtomicBoolean isKilled;
 
+  private final ConcurrentMap<RuleKey, ArtifactColumn> prefetchedArtifacts;
+  private final AtomicLong prefetchedBytes;
+  private final Set<RuleKey> knownMisses;
+
   public CassandraArtifactCache(
       String hosts,
       int port,
@@ -195,6 +249,9 @@ public class CassandraArtifactCache implements ArtifactCache {
         new ConcurrentHashMap<ListenableFuture<OperationResult<Void>>, Boolean>());
     this.isWaitingToClose = new AtomicBoolean(false);
     this.isKilled = new AtomicBoolean(false);
+    this.prefetchedArtifacts = Maps.newConcurrentMap();
+    this.prefetchedBytes = new AtomicLong();
+    this.knownMisses = Sets.newConcurrentHashSet();
   }
 
   private static void verifyMagic(Keyspace keyspace) throws ConnectionException {
@@ -257,6 +314,16 @@ public class CassandraArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Artifacts are read from Cassandra as a single column value, so there is nothing to be gained
+   * from streaming them; this fetches to a temporary file instead.
+   */
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer)
+      throws InterruptedException {
+    return ArtifactCaches.fetchViaTempFile(this, ruleKey, consumer);
+  }
+
   @Override
   public CacheResult fetch(RuleKey ruleKey, File output)
       throws InterruptedException {
@@ -266,26 +333,33 @@ public class CassandraArtifactCache implements ArtifactCache {
       return CacheResult.MISS;
     }
 
-    // Execute the query to Cassandra.
-    OperationResult<ColumnList<String>> result;
-    int ttl;
-    try {
-      Keyspace keyspace = keyspaceAndTtl.get().getKeyspace();
-      ttl = keyspaceAndTtl.get().getTtl();
-
-      result = keyspace.prepareQuery(CF_ARTIFACT)
-          .getKey(ruleKey.toString())
-          .execute();
-    } catch (ConnectionException e) {
-      reportConnectionFailure("Attempting to fetch " + ruleKey + ".", e);
-      return CacheResult.MISS;
+    int ttl = keyspaceAndTtl.get().getTtl();
+    Optional<ArtifactColumn> artifact;
+    ArtifactColumn prefetched = prefetchedArtifacts.remove(ruleKey);
+    if (prefetched != null) {
+      prefetchedBytes.addAndGet(-prefetched.getData().length);
+      artifact = Optional.of(prefetched);
+    } else if (knownMisses.remove(ruleKey)) {
+      artifact = Optional.absent();
+    } else {
+      // Execute the query to Cassandra.
+      OperationResult<ColumnList<String>> result;
+      try {
+        Keyspace keyspace = keyspaceAndTtl.get().getKeyspace();
+        result = keyspace.prepareQuery(CF_ARTIFACT)
+            .getKey(ruleKey.toString())
+            .execute();
+      } catch (ConnectionException e) {
+        reportConnectionFailure("Attempting to fetch " + ruleKey + ".", e);
+        return CacheResult.MISS;
+      }
+      artifact = ArtifactColumn.from(result.getResult().getColumnByName(ARTIFACT_COLUMN_NAME));
     }
 
     CacheResult success = CacheResult.MISS;
     try {
-      Column<String> column = result.getResult().getColumnByName(ARTIFACT_COLUMN_NAME);
-      if (column != null) {
-        ByteArrayInputStream dataStream = new ByteArrayInputStream(column.getByteArrayValue());
+      if (artifact.isPresent()) {
+        ByteArrayInputStream dataStream = new ByteArrayInputStream(artifact.get().getData());
 
         // Setup an object input stream to deserialize the hash code.
         try (ObjectInputStream objectStream = new ObjectInputStream(dataStream)) {
@@ -325,7 +399,8 @@ public class CassandraArtifactCache implements ArtifactCache {
         }
 
         // Cassandra timestamps use microsecond resolution.
-        if (System.currentTimeMillis() * 1000L - column.getTimestamp() > ttl * 1000000L / 2L) {
+        if (System.currentTimeMillis() * 1000L - artifact.get().getTimestamp() >
+            ttl * 1000000L / 2L) {
           // The cache entry has lived for more than half of its total TTL, so rewrite it in order
           // to reset the TTL.
           store(ruleKey, output);
@@ -346,6 +421,52 @@ public class CassandraArtifactCache implements ArtifactCache {
     return success;
   }
 
+  /**
+   * Looks {@code ruleKeys} up with multi-get queries of {@link #MAX_KEYS_PER_MULTIGET} rows each.
+   * Misses are remembered so that fetching them does not query Cassandra again. Since a multi-get
+   * returns the artifacts themselves, hits are kept in memory to be handed out by the next fetch,
+   * up to {@link #MAX_PREFETCHED_BYTES} in total; beyond that they are fetched again as usual.
+   */
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) throws InterruptedException {
+    Optional<KeyspaceAndTtl> keyspaceAndTtl = getKeyspaceAndTtl();
+    if (!keyspaceAndTtl.isPresent()) {
+      return;
+    }
+    Keyspace keyspace = keyspaceAndTtl.get().getKeyspace();
+
+    for (List<RuleKey> batch : Iterables.partition(ruleKeys, MAX_KEYS_PER_MULTIGET)) {
+      OperationResult<Rows<String, String>> result;
+      try {
+        result = keyspace.prepareQuery(CF_ARTIFACT)
+            .getKeySlice(Iterables.transform(batch, Functions.toStringFunction()))
+            .withColumnSlice(ARTIFACT_COLUMN_NAME)
+            .execute();
+      } catch (ConnectionException e) {
+        reportConnectionFailure("Attempting to prefetch " + batch.size() + " artifacts.", e);
+        return;
+      }
+
+      Rows<String, String> rows = result.getResult();
+      for (RuleKey ruleKey : batch) {
+        Row<String, String> row = rows.getRow(ruleKey.toString());
+        Optional<ArtifactColumn> artifact = row == null ?
+            Optional.<ArtifactColumn>absent() :
+            ArtifactColumn.from(row.getColumns().getColumnByName(ARTIFACT_COLUMN_NAME));
+        if (!artifact.isPresent()) {
+          knownMisses.add(ruleKey);
+          continue;
+        }
+        int size = artifact.get().getData().length;
+        if (prefetchedBytes.addAndGet(size) > MAX_PREFETCHED_BYTES ||
+            prefetchedArtifacts.putIfAbsent(ruleKey, artifact.get()) != null) {
+          // Leave this one to be queried again when it is fetched.
+          prefetchedBytes.addAndGet(-size);
+        }
+      }
+    }
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) throws InterruptedException {
     if (!isStoreSupported()) {
@@ -356,6 +477,7 @@ public class CassandraArtifactCache implements ArtifactCache {
     if (!keyspaceAndTtl.isPresent()) {
       return;
     }
+    knownMisses.remove(ruleKey);
     try {
 
       // Prepare a byte stream to stage the data we're storing.
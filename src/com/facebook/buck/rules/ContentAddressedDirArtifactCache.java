@@ -0,0 +1,527 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.Hashing;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A local {@link ArtifactCache} that stores each distinct artifact once, no matter how many
+ * {@link RuleKey}s produce it.
+ * <p>
+ * The cache directory has the following layout:
+ * <pre>
+ *   keys/ab/abcdef...   a small file naming the blob stored for rule key abcdef...
+ *   blobs/12/123456...  an artifact, named by the SHA-1 of its contents
+ *   journal             an append-only log of stores, accesses and evictions
+ * </pre>
+ * Keys and blobs are sharded by the first two characters of their names so that no single
+ * directory grows too large to list. Fetches hard link the blob into place where the filesystem
+ * allows it, and fall back to a copy otherwise; blobs are made read-only so that a linked output
+ * cannot corrupt the cache.
+ * <p>
+ * The journal is replayed into an in-memory LRU index when the cache is created. Eviction walks
+ * that index from its least recently used end, so its cost is proportional to the number of blobs
+ * evicted rather than to the size of the cache.
+ */
+public class ContentAddressedDirArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(ContentAddressedDirArtifactCache.class);
+
+  @VisibleForTesting
+  static final String KEYS_DIR = "keys";
+
+  @VisibleForTesting
+  static final String BLOBS_DIR = "blobs";
+
+  @VisibleForTesting
+  static final String JOURNAL = "journal";
+
+  private static final char STORE = 'S';
+  private static final char ACCESS = 'A';
+  private static final char EVICT = 'E';
+
+  /**
+   * The journal is rewritten once it holds this many more records than there are live blobs.
+   */
+  private static final int JOURNAL_COMPACTION_SLACK = 10000;
+
+  /**
+   * Stands in for the key in a compacted journal record for a blob that no key refers to.
+   */
+  private static final String NO_KEY = "-";
+
+  private static final Splitter SPACE_SPLITTER = Splitter.on(' ');
+
+  private final Path cacheDir;
+  private final Path keysDir;
+  private final Path blobsDir;
+  private final Path journalPath;
+  private final boolean doStore;
+  private final Optional<Long> maxCacheSizeBytes;
+
+  /**
+   * All of the fields below are guarded by {@code this}.
+   * <p>
+   * Maps blob hashes to their entries in least to most recently used order.
+   */
+  private final LinkedHashMap<String, BlobEntry> blobs;
+  private final Map<String, String> keysToBlobs;
+  private long totalSizeBytes;
+  private int journalRecords;
+  private Writer journal;
+
+  public ContentAddressedDirArtifactCache(
+      File cacheDir,
+      boolean doStore,
+      Optional<Long> maxCacheSizeBytes) throws IOException {
+    this.cacheDir = cacheDir.toPath();
+    this.keysDir = this.cacheDir.resolve(KEYS_DIR);
+    this.blobsDir = this.cacheDir.resolve(BLOBS_DIR);
+    this.journalPath = this.cacheDir.resolve(JOURNAL);
+    this.doStore = doStore;
+    this.maxCacheSizeBytes = Preconditions.checkNotNull(maxCacheSizeBytes);
+    this.blobs = new LinkedHashMap<>(16, 0.75f, /* accessOrder */ true);
+    this.keysToBlobs = Maps.newHashMap();
+    Files.createDirectories(keysDir);
+    Files.createDirectories(blobsDir);
+    loadIndex();
+  }
+
+  @Override
+  public CacheResult fetch(RuleKey ruleKey, File output) {
+    String key = ruleKey.toString();
+    Optional<String> blobHash = readKey(key);
+    CacheResult result = CacheResult.MISS;
+    if (blobHash.isPresent()) {
+      Path blob = shardedPath(blobsDir, blobHash.get());
+      try {
+        Files.createDirectories(output.toPath().getParent());
+        linkOrCopy(blob, output.toPath());
+        recordAccess(blobHash.get());
+        result = CacheResult.DIR_HIT;
+      } catch (NoSuchFileException e) {
+        // The blob was evicted out from under the key.
+        forgetKey(key);
+      } catch (IOException e) {
+        LOG.warn(e, "Artifact fetch(%s, %s) error", ruleKey, output.getPath());
+      }
+    }
+    LOG.debug(
+        "Artifact fetch(%s, %s) cache %s",
+        ruleKey,
+        output.getPath(),
+        (result.isSuccess() ? "hit" : "miss"));
+    return result;
+  }
+
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+    String key = ruleKey.toString();
+    Optional<String> blobHash = readKey(key);
+    CacheResult result = CacheResult.MISS;
+    if (blobHash.isPresent()) {
+      File blob = shardedPath(blobsDir, blobHash.get()).toFile();
+      if (blob.exists()) {
+        result = ArtifactCaches.consume(ruleKey, blob, consumer, CacheResult.DIR_HIT);
+        if (result.isSuccess()) {
+          try {
+            recordAccess(blobHash.get());
+          } catch (IOException e) {
+            LOG.warn(e, "Unable to record access to %s", blobHash.get());
+          }
+        }
+      } else {
+        forgetKey(key);
+      }
+    }
+    LOG.debug(
+        "Artifact fetchStreaming(%s) cache %s",
+        ruleKey,
+        (result.isSuccess() ? "hit" : "miss"));
+    return result;
+  }
+
+  /** Lookups in a local directory are cheap, so there is nothing to batch. */
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+  }
+
+  @Override
+  public void store(RuleKey ruleKey, File output) {
+    if (!doStore) {
+      return;
+    }
+    Path tmp = null;
+    try {
+      String blobHash = com.google.common.io.Files.hash(output, Hashing.sha1()).toString();
+      Path blob = shardedPath(blobsDir, blobHash);
+      long size = output.length();
+      if (!Files.exists(blob)) {
+        // Copy to a temporary file and move it into place atomically so that a partial artifact
+        // can never be found under its content hash.
+        Files.createDirectories(blob.getParent());
+        tmp = Files.createTempFile(cacheDir, blobHash, ".tmp");
+        Files.copy(output.toPath(), tmp, REPLACE_EXISTING);
+        tmp.toFile().setReadOnly();
+        Files.move(tmp, blob, REPLACE_EXISTING, ATOMIC_MOVE);
+        tmp = null;
+      }
+
+      Path keyPath = shardedPath(keysDir, ruleKey.toString());
+      Files.createDirectories(keyPath.getParent());
+      tmp = Files.createTempFile(cacheDir, ruleKey.toString(), ".tmp");
+      Files.write(tmp, blobHash.getBytes(Charsets.US_ASCII));
+      Files.move(tmp, keyPath, REPLACE_EXISTING, ATOMIC_MOVE);
+      tmp = null;
+
+      recordStore(ruleKey.toString(), blobHash, size);
+    } catch (IOException e) {
+      LOG.warn(e, "Artifact store(%s, %s) error", ruleKey, output.getPath());
+      if (tmp != null) {
+        try {
+          Files.deleteIfExists(tmp);
+        } catch (IOException ignored) {
+          // Unable to delete a temporary file. Nothing sane to do.
+          LOG.debug(ignored, "Unable to delete temp cache file");
+        }
+      }
+    }
+  }
+
+  @Override
+  public boolean isStoreSupported() {
+    return doStore;
+  }
+
+  @Override
+  public synchronized void close() {
+    if (journal != null) {
+      try {
+        journal.close();
+      } catch (IOException e) {
+        LOG.warn(e, "Unable to close artifact cache journal");
+      }
+      journal = null;
+    }
+  }
+
+  /**
+   * @param finished Signals that the build has finished.
+   */
+  @Subscribe
+  public synchronized void buildFinished(BuildEvent.Finished finished) {
+    deleteOldFiles();
+    try {
+      if (journalRecords > blobs.size() + JOURNAL_COMPACTION_SLACK) {
+        compactJournal();
+      } else if (journal != null) {
+        journal.flush();
+      }
+    } catch (IOException e) {
+      LOG.warn(e, "Unable to write artifact cache journal");
+    }
+  }
+
+  /**
+   * Evicts least recently used blobs, and the keys that refer to them, until the cache fits in
+   * {@code maxCacheSizeBytes}.
+   */
+  @VisibleForTesting
+  synchronized void deleteOldFiles() {
+    if (!maxCacheSizeBytes.isPresent()) {
+      return;
+    }
+    Iterator<Map.Entry<String, BlobEntry>> iterator = blobs.entrySet().iterator();
+    while (totalSizeBytes > maxCacheSizeBytes.get() && iterator.hasNext()) {
+      Map.Entry<String, BlobEntry> entry = iterator.next();
+      String blobHash = entry.getKey();
+      BlobEntry blobEntry = entry.getValue();
+      iterator.remove();
+      totalSizeBytes -= blobEntry.size;
+      try {
+        for (String key : blobEntry.keys) {
+          keysToBlobs.remove(key);
+          Files.deleteIfExists(shardedPath(keysDir, key));
+        }
+        Files.deleteIfExists(shardedPath(blobsDir, blobHash));
+        appendToJournal(EVICT, blobHash);
+      } catch (IOException e) {
+        // Eat any IOExceptions while attempting to clean up the cache directory. If the file is
+        // now in use, we no longer want to delete it.
+        LOG.debug(e, "Unable to evict %s", blobHash);
+      }
+    }
+  }
+
+  @VisibleForTesting
+  synchronized long getTotalSizeBytes() {
+    return totalSizeBytes;
+  }
+
+  @VisibleForTesting
+  synchronized int getBlobCount() {
+    return blobs.size();
+  }
+
+  private synchronized void recordStore(String key, String blobHash, long size)
+      throws IOException {
+    applyStore(key, blobHash, size);
+    appendToJournal(STORE, key, blobHash, String.valueOf(size));
+  }
+
+  private synchronized void recordAccess(String blobHash) throws IOException {
+    if (blobs.get(blobHash) != null) {
+      appendToJournal(ACCESS, blobHash);
+    }
+  }
+
+  private synchronized void forgetKey(String key) {
+    String blobHash = keysToBlobs.remove(key);
+    if (blobHash != null) {
+      BlobEntry blobEntry = blobs.get(blobHash);
+      if (blobEntry != null) {
+        blobEntry.keys.remove(key);
+      }
+    }
+    try {
+      Files.deleteIfExists(shardedPath(keysDir, key));
+    } catch (IOException e) {
+      LOG.debug(e, "Unable to delete dangling key %s", key);
+    }
+  }
+
+  private void applyStore(String key, String blobHash, long size) {
+    BlobEntry blobEntry = blobs.get(blobHash);
+    if (blobEntry == null) {
+      blobEntry = new BlobEntry(size);
+      blobs.put(blobHash, blobEntry);
+      totalSizeBytes += size;
+    }
+    if (NO_KEY.equals(key)) {
+      return;
+    }
+
+    String previousBlob = keysToBlobs.put(key, blobHash);
+    if (previousBlob != null && !previousBlob.equals(blobHash)) {
+      BlobEntry previousEntry = blobs.get(previousBlob);
+      if (previousEntry != null) {
+        previousEntry.keys.remove(key);
+      }
+    }
+    blobEntry.keys.add(key);
+  }
+
+  private void applyEvict(String blobHash) {
+    BlobEntry blobEntry = blobs.remove(blobHash);
+    if (blobEntry != null) {
+      totalSizeBytes -= blobEntry.size;
+      for (String key : blobEntry.keys) {
+        keysToBlobs.remove(key);
+      }
+    }
+  }
+
+  private Optional<String> readKey(String key) {
+    Path keyPath = shardedPath(keysDir, key);
+    try {
+      return Optional.of(new String(Files.readAllBytes(keyPath), Charsets.US_ASCII));
+    } catch (IOException e) {
+      return Optional.absent();
+    }
+  }
+
+  /**
+   * Replays the journal into the in-memory index. Blobs that predate the journal, for example
+   * because it was deleted, are added as least recently used so that they are evicted first.
+   */
+  private synchronized void loadIndex() throws IOException {
+    if (Files.exists(journalPath)) {
+      try (BufferedReader reader = Files.newBufferedReader(journalPath, Charsets.UTF_8)) {
+        String line;
+        while ((line = reader.readLine()) != null) {
+          replay(line);
+          journalRecords++;
+        }
+      }
+    } else {
+      rebuildIndexFromDisk();
+      compactJournal();
+    }
+  }
+
+  private void replay(String line) {
+    List<String> parts = SPACE_SPLITTER.splitToList(line);
+    if (parts.isEmpty() || parts.get(0).length() != 1) {
+      return;
+    }
+    try {
+      switch (parts.get(0).charAt(0)) {
+        case STORE:
+          applyStore(parts.get(1), parts.get(2), Long.parseLong(parts.get(3)));
+          break;
+        case ACCESS:
+          blobs.get(parts.get(1));
+          break;
+        case EVICT:
+          applyEvict(parts.get(1));
+          break;
+        default:
+          break;
+      }
+    } catch (IndexOutOfBoundsException | NumberFormatException e) {
+      // A torn write at the end of the journal. Ignore it.
+      LOG.debug("Ignoring malformed artifact cache journal record: %s", line);
+    }
+  }
+
+  private void rebuildIndexFromDisk() throws IOException {
+    Map<String, Long> sizes = Maps.newHashMap();
+    for (Path blob : listShardedFiles(blobsDir)) {
+      sizes.put(blob.getFileName().toString(), Files.size(blob));
+    }
+    for (Path keyPath : listShardedFiles(keysDir)) {
+      String key = keyPath.getFileName().toString();
+      Optional<String> blobHash = readKey(key);
+      if (blobHash.isPresent() && sizes.containsKey(blobHash.get())) {
+        applyStore(key, blobHash.get(), sizes.get(blobHash.get()));
+      } else {
+        Files.deleteIfExists(keyPath);
+      }
+    }
+    for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+      if (!blobs.containsKey(entry.getKey())) {
+        blobs.put(entry.getKey(), new BlobEntry(entry.getValue()));
+        totalSizeBytes += entry.getValue();
+      }
+    }
+  }
+
+  private static Iterable<Path> listShardedFiles(Path dir) throws IOException {
+    ImmutableList.Builder<Path> files = ImmutableList.builder();
+    try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir)) {
+      for (Path shard : shards) {
+        if (!Files.isDirectory(shard)) {
+          continue;
+        }
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(shard)) {
+          files.addAll(entries);
+        }
+      }
+    }
+    return files.build();
+  }
+
+  /**
+   * Rewrites the journal so that it holds exactly one record per live key, in LRU order.
+   */
+  private void compactJournal() throws IOException {
+    close();
+    Path tmp = Files.createTempFile(cacheDir, JOURNAL, ".tmp");
+    try (BufferedWriter writer = Files.newBufferedWriter(tmp, Charsets.UTF_8)) {
+      journalRecords = 0;
+      for (Map.Entry<String, BlobEntry> entry : blobs.entrySet()) {
+        String size = String.valueOf(entry.getValue().size);
+        if (entry.getValue().keys.isEmpty()) {
+          writeRecord(writer, STORE, NO_KEY, entry.getKey(), size);
+        }
+        for (String key : entry.getValue().keys) {
+          writeRecord(writer, STORE, key, entry.getKey(), size);
+        }
+      }
+    }
+    Files.move(tmp, journalPath, REPLACE_EXISTING, ATOMIC_MOVE);
+  }
+
+  private void appendToJournal(char type, String... fields) throws IOException {
+    if (journal == null) {
+      journal = Files.newBufferedWriter(
+          journalPath,
+          Charsets.UTF_8,
+          StandardOpenOption.CREATE,
+          StandardOpenOption.APPEND);
+    }
+    writeRecord(journal, type, fields);
+  }
+
+  private void writeRecord(Writer writer, char type, String... fields) throws IOException {
+    writer.write(type);
+    for (String field : fields) {
+      writer.write(' ');
+      writer.write(field);
+    }
+    writer.write('\n');
+    journalRecords++;
+  }
+
+  private static Path shardedPath(Path root, String name) {
+    return root.resolve(name.substring(0, 2)).resolve(name);
+  }
+
+  private static void linkOrCopy(Path source, Path target) throws IOException {
+    Files.deleteIfExists(target);
+    try {
+      Files.createLink(target, source);
+    } catch (UnsupportedOperationException | IOException e) {
+      if (!Files.exists(source)) {
+        throw new NoSuchFileException(source.toString());
+      }
+      // Most likely the output is on a different filesystem than the cache.
+      Files.copy(source, target, REPLACE_EXISTING);
+      target.toFile().setWritable(true);
+    }
+  }
+
+  private static class BlobEntry {
+    private final long size;
+    private final Set<String> keys;
+
+    BlobEntry(long size) {
+      this.size = size;
+      this.keys = Sets.newHashSet();
+    }
+  }
+}
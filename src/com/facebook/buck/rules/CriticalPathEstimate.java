@@ -0,0 +1,136 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.graph.TopologicalSort;
+import com.facebook.buck.model.BuildTarget;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Predicates;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import java.util.Map;
+
+/**
+ * For each rule in an {@link ActionGraph}, estimates how much of the build is left once the rule
+ * is ready to run: the rule's own duration plus that of the longest chain of rules which depend on
+ * it, using the durations recorded by previous builds. Running the ready rule with the longest
+ * remaining chain first keeps the critical path of the build moving, rather than letting cheap
+ * rules that nothing is waiting on occupy every thread.
+ */
+public class CriticalPathEstimate {
+
+  /**
+   * The duration assumed for every rule when no rule in the graph has been built before, in which
+   * case the remaining chain of a rule is simply the number of rules in it.
+   */
+  private static final long DEFAULT_DURATION_MILLIS = 1;
+
+  private final ImmutableMap<BuildTarget, Long> remainingMillis;
+  private final long criticalPathMillis;
+  private final long totalMillis;
+  private final int rulesWithRecordedDurations;
+
+  private CriticalPathEstimate(
+      ImmutableMap<BuildTarget, Long> remainingMillis,
+      long criticalPathMillis,
+      long totalMillis,
+      int rulesWithRecordedDurations) {
+    this.remainingMillis = remainingMillis;
+    this.criticalPathMillis = criticalPathMillis;
+    this.totalMillis = totalMillis;
+    this.rulesWithRecordedDurations = rulesWithRecordedDurations;
+  }
+
+  public static CriticalPathEstimate compute(ActionGraph graph, RuleDurationHistory history) {
+    // Rules that have never been built locally are assumed to take as long as the average rule
+    // that has.
+    Map<BuildTarget, Long> durations = Maps.newHashMap();
+    long recordedTotal = 0;
+    for (BuildRule rule : graph.getNodes()) {
+      Optional<Long> duration = history.getDurationMillis(rule.getBuildTarget());
+      if (duration.isPresent()) {
+        durations.put(rule.getBuildTarget(), duration.get());
+        recordedTotal += duration.get();
+      }
+    }
+    long defaultDuration = durations.isEmpty() ?
+        DEFAULT_DURATION_MILLIS :
+        Math.max(DEFAULT_DURATION_MILLIS, recordedTotal / durations.size());
+
+    // Visit every rule after all of the rules that depend on it.
+    ImmutableList<BuildRule> rulesDependentsFirst =
+        TopologicalSort.sort(graph, Predicates.<BuildRule>alwaysTrue()).reverse();
+    Map<BuildTarget, Long> remainingMillis = Maps.newHashMap();
+    long criticalPathMillis = 0;
+    long totalMillis = 0;
+    for (BuildRule rule : rulesDependentsFirst) {
+      long longestDependentChain = 0;
+      for (BuildRule dependent : graph.getIncomingNodesFor(rule)) {
+        longestDependentChain = Math.max(
+            longestDependentChain,
+            Preconditions.checkNotNull(remainingMillis.get(dependent.getBuildTarget())));
+      }
+      Long recordedDuration = durations.get(rule.getBuildTarget());
+      long duration = recordedDuration == null ? defaultDuration : recordedDuration;
+      long remaining = duration + longestDependentChain;
+      remainingMillis.put(rule.getBuildTarget(), remaining);
+      criticalPathMillis = Math.max(criticalPathMillis, remaining);
+      totalMillis += duration;
+    }
+
+    return new CriticalPathEstimate(
+        ImmutableMap.copyOf(remainingMillis),
+        criticalPathMillis,
+        totalMillis,
+        durations.size());
+  }
+
+  /**
+   * @return the estimated length of the longest chain of work, starting with {@code buildTarget}
+   *     itself, which cannot finish until {@code buildTarget} has been built. Rules with a higher
+   *     value should be run first. Zero for rules which were not in the graph.
+   */
+  public long getRemainingMillis(BuildTarget buildTarget) {
+    Long remaining = remainingMillis.get(buildTarget);
+    return remaining == null ? 0 : remaining;
+  }
+
+  public long getCriticalPathMillis() {
+    return criticalPathMillis;
+  }
+
+  /**
+   * @return how long a build of every rule in the graph is expected to take on {@code numThreads}
+   *     threads, assuming that every rule has to be built. Neither the critical path nor the total
+   *     work spread evenly across the threads can be beaten, so this is the longer of the two.
+   */
+  public long getPredictedBuildMillis(int numThreads) {
+    Preconditions.checkArgument(numThreads > 0);
+    return Math.max(criticalPathMillis, totalMillis / numThreads);
+  }
+
+  public int getRulesWithRecordedDurations() {
+    return rulesWithRecordedDurations;
+  }
+
+  public int getRuleCount() {
+    return remainingMillis.size();
+  }
+}
@@ -25,6 +25,7 @@ import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.eventbus.Subscribe;
 
 import java.io.File;
@@ -73,6 +74,25 @@ public class DirArtifactCache implements ArtifactCache {
     return success;
   }
 
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+    CacheResult success = CacheResult.MISS;
+    File cacheEntry = new File(cacheDir, ruleKey.toString());
+    if (cacheEntry.exists()) {
+      success = ArtifactCaches.consume(ruleKey, cacheEntry, consumer, CacheResult.DIR_HIT);
+    }
+    LOG.debug(
+        "Artifact fetchStreaming(%s) cache %s",
+        ruleKey,
+        (success.isSuccess() ? "hit" : "miss"));
+    return success;
+  }
+
+  /** Lookups in a local directory are cheap, so there is nothing to batch. */
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) {
     if (!doStore) {
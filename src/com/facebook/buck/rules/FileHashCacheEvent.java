@@ -0,0 +1,68 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.event.AbstractBuckEvent;
+import com.facebook.buck.event.BuckEvent;
+import com.facebook.buck.util.PersistentFileHashCache;
+
+/**
+ * Summarizes how effective the persistent file hash index was over the course of a command.
+ */
+public class FileHashCacheEvent extends AbstractBuckEvent {
+
+  private final int hits;
+  private final int misses;
+  private final int rehashes;
+
+  protected FileHashCacheEvent(int hits, int misses, int rehashes) {
+    this.hits = hits;
+    this.misses = misses;
+    this.rehashes = rehashes;
+  }
+
+  public static FileHashCacheEvent of(PersistentFileHashCache.Stats stats) {
+    return new FileHashCacheEvent(stats.hits, stats.misses, stats.rehashes);
+  }
+
+  public int getHits() {
+    return hits;
+  }
+
+  public int getMisses() {
+    return misses;
+  }
+
+  public int getRehashes() {
+    return rehashes;
+  }
+
+  @Override
+  protected String getValueString() {
+    return String.format("hits=%d misses=%d rehashes=%d", hits, misses, rehashes);
+  }
+
+  @Override
+  public boolean isRelatedTo(BuckEvent event) {
+    return event instanceof FileHashCacheEvent;
+  }
+
+  @Override
+  public String getEventName() {
+    return "FileHashCacheEvent";
+  }
+}
@@ -21,14 +21,25 @@ import com.facebook.buck.event.ConsoleEvent;
 import com.facebook.buck.log.Logger;
 import com.facebook.buck.util.FileHashCache;
 import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Splitter;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Sets;
 import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.hash.HashingInputStream;
 import com.google.common.io.ByteStreams;
+import com.google.common.io.CharStreams;
 
 import java.io.BufferedOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.InputStreamReader;
 import java.io.NotSerializableException;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
@@ -41,6 +52,9 @@ import java.net.URL;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 public class HttpArtifactCache implements ArtifactCache {
@@ -52,9 +66,17 @@ public class HttpArtifactCache implements ArtifactCache {
   private static final int MAX_CONNECTION_FAILURE_REPORTS = 1;
   private static final String URL_TEMPLATE_FETCH = "http://%s:%d/artifact/key/%s";
   private static final String URL_TEMPLATE_STORE = "http://%s:%d/artifact/";
+  private static final String URL_TEMPLATE_CONTAINS = "http://%s:%d/artifact/contains";
   private static final Logger logger = Logger.get(HttpArtifactCache.class);
   private static final String BOUNDARY = "buckcacheFormPartBoundaryCHk4TK4bRHXDX0cICpSAbBXWzkXbtt";
 
+  /**
+   * Upper bound on the number of keys sent in a single batched lookup, so that the request and
+   * response bodies stay small even when prefetching a very large build.
+   */
+  @VisibleForTesting
+  static final int MAX_KEYS_PER_BATCH = 500;
+
   private final AtomicInteger numConnectionExceptionReports;
   private final String hostname;
   private final int port;
@@ -64,6 +86,19 @@ public class HttpArtifactCache implements ArtifactCache {
   private final BuckEventBus buckEventBus;
   private final FileHashCache fileHashCache;
   private final String urlStore;
+  private final String urlContains;
+
+  /**
+   * Keys that a batched lookup reported as absent, so that fetching them does not need a
+   * round-trip of its own.
+   */
+  private final Set<RuleKey> knownMisses;
+
+  /**
+   * Cleared if the server turns out not to implement batched lookups, in which case every fetch
+   * makes its own request as before.
+   */
+  private final AtomicBoolean isBatchLookupSupported;
 
   public HttpArtifactCache(
       String hostname,
@@ -87,6 +122,9 @@ public class HttpArtifactCache implements ArtifactCache {
     this.fileHashCache = Preconditions.checkNotNull(fileHashCache);
     this.numConnectionExceptionReports = new AtomicInteger(0);
     this.urlStore = String.format(URL_TEMPLATE_STORE, hostname, port);
+    this.urlContains = String.format(URL_TEMPLATE_CONTAINS, hostname, port);
+    this.knownMisses = Sets.newConcurrentHashSet();
+    this.isBatchLookupSupported = new AtomicBoolean(true);
   }
 
   protected HttpURLConnection getConnection(String url) throws MalformedURLException, IOException {
@@ -94,7 +132,68 @@ public class HttpArtifactCache implements ArtifactCache {
   }
 
   @Override
-  public CacheResult fetch(RuleKey ruleKey, File file) {
+  public CacheResult fetch(final RuleKey ruleKey, final File file) {
+    return fetchImpl(ruleKey, new ResponseReader() {
+      @Override
+      public boolean read(HashCode expectedHashCode, InputStream input) throws IOException {
+        // Setup a temporary file, which sits next to the destination, to write to and
+        // make sure all parent dirs exist.
+        Path path = file.toPath();
+        projectFilesystem.createParentDirs(path);
+        Path temp = projectFilesystem.createTempFile(
+            path.getParent(),
+            path.getFileName().toString(),
+            ".tmp");
+
+        // Write the remaining response data to the temp file.
+        projectFilesystem.copyToPath(input, temp, StandardCopyOption.REPLACE_EXISTING);
+
+        // Now form the checksum on the file we got and compare it to the checksum form the
+        // the HTTP header.  If it's incorrect, log this and return a miss.
+        HashCode actualHashCode = fileHashCache.get(temp);
+        if (!expectedHashCode.equals(actualHashCode)) {
+          logger.warn("fetch(%s): artifact had invalid checksum", ruleKey);
+          projectFilesystem.deleteFileAtPath(temp);
+          return false;
+        }
+
+        // Finally, move the temp file into it's final place.
+        projectFilesystem.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        return true;
+      }
+    });
+  }
+
+  /**
+   * Hands the response body to {@code consumer} as it arrives, computing its checksum along the
+   * way. The checksum can only be verified once the whole body has been read, so a corrupt
+   * artifact is reported as a miss after the consumer has already seen it.
+   */
+  @Override
+  public CacheResult fetchStreaming(final RuleKey ruleKey, final ArtifactConsumer consumer) {
+    return fetchImpl(ruleKey, new ResponseReader() {
+      @Override
+      public boolean read(HashCode expectedHashCode, InputStream input) throws IOException {
+        HashingInputStream hashingInput = new HashingInputStream(Hashing.sha1(), input);
+        consumer.consume(hashingInput);
+
+        // Drain anything the consumer did not read so that the checksum covers the whole body.
+        ByteStreams.copy(hashingInput, ByteStreams.nullOutputStream());
+        if (!expectedHashCode.equals(hashingInput.hash())) {
+          logger.warn("fetchStreaming(%s): artifact had invalid checksum", ruleKey);
+          return false;
+        }
+        return true;
+      }
+    });
+  }
+
+  private CacheResult fetchImpl(RuleKey ruleKey, ResponseReader reader) {
+    if (knownMisses.contains(ruleKey)) {
+      logger.info("fetch(%s): cache miss (batched lookup)", ruleKey);
+      return CacheResult.MISS;
+    }
+
     String url = String.format(URL_TEMPLATE_FETCH, hostname, port, ruleKey.toString());
     HttpURLConnection connection;
     try {
@@ -132,30 +231,10 @@ public class HttpArtifactCache implements ArtifactCache {
               return CacheResult.MISS;
             }
 
-            // Setup a temporary file, which sits next to the destination, to write to and
-            // make sure all parent dirs exist.
-            Path path = file.toPath();
-            projectFilesystem.createParentDirs(path);
-            Path temp = projectFilesystem.createTempFile(
-                path.getParent(),
-                path.getFileName().toString(),
-                ".tmp");
-
-            // Write the remaining response data to the temp file.
-            projectFilesystem.copyToPath(input, temp, StandardCopyOption.REPLACE_EXISTING);
-
-            // Now form the checksum on the file we got and compare it to the checksum form the
-            // the HTTP header.  If it's incorrect, log this and return a miss.
-            HashCode actualHashCode = fileHashCache.get(temp);
-            if (!expectedHashCode.equals(actualHashCode)) {
-              logger.warn("fetch(%s): artifact had invalid checksum", ruleKey);
-              projectFilesystem.deleteFileAtPath(temp);
+            // The rest of the response is the artifact itself.
+            if (!reader.read(expectedHashCode, input)) {
               return CacheResult.MISS;
             }
-
-            // Finally, move the temp file into it's final place.
-            projectFilesystem.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
-
           }
         } catch (IOException e) {
           logger.warn(e, "fetch(%s): [write] IOException: %s", ruleKey, e.getMessage());
@@ -172,11 +251,94 @@ public class HttpArtifactCache implements ArtifactCache {
     }
   }
 
+  /**
+   * Asks the server which of {@code ruleKeys} it has, {@link #MAX_KEYS_PER_BATCH} keys per
+   * request, and remembers the ones it does not have so that fetching them is free.
+   * <p>
+   * The request is a {@code POST} to {@code /artifact/contains} whose body lists one key per line.
+   * The server responds with the subset of those keys that it can serve, also one per line.
+   */
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+    for (List<RuleKey> batch : Iterables.partition(ruleKeys, MAX_KEYS_PER_BATCH)) {
+      if (!isBatchLookupSupported.get()) {
+        return;
+      }
+      Optional<ImmutableSet<String>> presentKeys = multiContains(batch);
+      if (!presentKeys.isPresent()) {
+        return;
+      }
+      for (RuleKey ruleKey : batch) {
+        if (!presentKeys.get().contains(ruleKey.toString())) {
+          knownMisses.add(ruleKey);
+        }
+      }
+    }
+  }
+
+  private Optional<ImmutableSet<String>> multiContains(List<RuleKey> ruleKeys) {
+    String context = String.format("multiContains(%d keys)", ruleKeys.size());
+    HttpURLConnection connection;
+    try {
+      connection = getConnection(urlContains);
+      connection.setConnectTimeout(1000 * timeoutSeconds);
+      connection.setRequestMethod("POST");
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "text/plain; charset=utf-8");
+      try (OutputStream os = new BufferedOutputStream(connection.getOutputStream())) {
+        os.write(Joiner.on('\n').join(ruleKeys).getBytes(StandardCharsets.UTF_8));
+      }
+    } catch (MalformedURLException e) {
+      logger.error(e, "%s: malformed URL: %s", context, urlContains);
+      return Optional.absent();
+    } catch (ConnectException e) {
+      reportConnectionFailure(context, e);
+      return Optional.absent();
+    } catch (IOException e) {
+      logger.warn(e, "%s: IOException: %s", context, e.getMessage());
+      return Optional.absent();
+    }
+
+    int responseCode;
+    try {
+      responseCode = connection.getResponseCode();
+    } catch (IOException e) {
+      reportConnectionFailure(context, e);
+      return Optional.absent();
+    }
+
+    switch (responseCode) {
+      case HttpURLConnection.HTTP_OK:
+        return readLookupResponse(context, connection);
+      case HttpURLConnection.HTTP_NOT_FOUND:
+        logger.info("%s: server does not support batched lookups", context);
+        isBatchLookupSupported.set(false);
+        return Optional.absent();
+      default:
+        logger.warn("%s: unexpected response: %d", context, responseCode);
+        return Optional.absent();
+    }
+  }
+
+  private Optional<ImmutableSet<String>> readLookupResponse(
+      String context,
+      HttpURLConnection connection) {
+    try (InputStream input = connection.getInputStream()) {
+      String body = CharStreams.toString(new InputStreamReader(input, StandardCharsets.UTF_8));
+      return Optional.of(
+          ImmutableSet.copyOf(Splitter.on('\n').trimResults().omitEmptyStrings().split(body)));
+    } catch (IOException e) {
+      logger.warn(e, "%s: [read] IOException: %s", context, e.getMessage());
+      return Optional.absent();
+    }
+  }
+
   @Override
   public void store(RuleKey ruleKey, File file) {
     if (!isStoreSupported()) {
       return;
     }
+    knownMisses.remove(ruleKey);
     String method = "POST";
     HttpURLConnection connection;
     try {
@@ -266,4 +428,14 @@ public class HttpArtifactCache implements ArtifactCache {
       }
     }
   }
+
+  /**
+   * Reads the artifact that follows the checksum in a successful fetch response.
+   */
+  private interface ResponseReader {
+    /**
+     * @return whether the artifact matched {@code expectedHashCode}.
+     */
+    boolean read(HashCode expectedHashCode, InputStream input) throws IOException;
+  }
 }
@@ -17,6 +17,7 @@ package com.facebook.buck.rules;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
 
 import java.io.File;
 import java.io.IOException;
@@ -46,6 +47,23 @@ public class LoggingArtifactCacheDecorator {
         return fetchResult;
       }
 
+      @Override
+      public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer)
+          throws InterruptedException {
+        eventBus.post(ArtifactCacheEvent.started(ArtifactCacheEvent.Operation.FETCH,
+            ruleKey));
+        CacheResult fetchResult = delegate.fetchStreaming(ruleKey, consumer);
+        eventBus.post(ArtifactCacheEvent.finished(ArtifactCacheEvent.Operation.FETCH,
+            ruleKey,
+            fetchResult));
+        return fetchResult;
+      }
+
+      @Override
+      public void prefetch(ImmutableSet<RuleKey> ruleKeys) throws InterruptedException {
+        delegate.prefetch(ruleKeys);
+      }
+
       @Override
       public void store(RuleKey ruleKey, File output)
           throws InterruptedException {
@@ -16,23 +16,87 @@
 
 package com.facebook.buck.rules;
 
+import com.facebook.buck.log.CommandThreadFactory;
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.annotation.Nullable;
 
 /**
  * MultiArtifactCache encapsulates a set of ArtifactCache instances such that fetch() succeeds if
  * any of the ArtifactCaches contain the desired artifact, and store() applies to all
  * ArtifactCaches.
+ * <p>
+ * By default, the encapsulated caches are queried one after the other and a hit is written back to
+ * the earlier caches on the calling thread. A cache created with
+ * {@link #createConcurrent(ImmutableList, long, int)} instead races the caches against each other
+ * and writes hits back in the background; see {@link #fetch(RuleKey, File)}.
  */
 public class MultiArtifactCache implements ArtifactCache {
+
+  private static final Logger LOG = Logger.get(MultiArtifactCache.class);
+
+  /**
+   * Maximum number of write-backs waiting for an I/O thread. Once this many are queued, the
+   * fetching thread performs its own write-back, which bounds the number of artifacts held on disk
+   * waiting to be stored.
+   */
+  private static final int MAX_QUEUED_WRITE_BACKS = 64;
+
   private final ImmutableList<ArtifactCache> artifactCaches;
   private final boolean isStoreSupported;
+  private final Optional<ListeningExecutorService> fetchExecutor;
+  private final Optional<ExecutorService> writeBackExecutor;
+  private final long gracePeriodMillis;
 
   public MultiArtifactCache(ImmutableList<ArtifactCache> artifactCaches) {
+    this(
+        artifactCaches,
+        Optional.<ListeningExecutorService>absent(),
+        Optional.<ExecutorService>absent(),
+        /* gracePeriodMillis */ 0);
+  }
+
+  @VisibleForTesting
+  MultiArtifactCache(
+      ImmutableList<ArtifactCache> artifactCaches,
+      Optional<ListeningExecutorService> fetchExecutor,
+      Optional<ExecutorService> writeBackExecutor,
+      long gracePeriodMillis) {
     this.artifactCaches = Preconditions.checkNotNull(artifactCaches);
+    this.fetchExecutor = Preconditions.checkNotNull(fetchExecutor);
+    this.writeBackExecutor = Preconditions.checkNotNull(writeBackExecutor);
+    Preconditions.checkArgument(gracePeriodMillis >= 0);
+    this.gracePeriodMillis = gracePeriodMillis;
 
     boolean isStoreSupported = false;
     for (ArtifactCache artifactCache : artifactCaches) {
@@ -44,14 +108,50 @@ public class MultiArtifactCache implements ArtifactCache {
     this.isStoreSupported = isStoreSupported;
   }
 
+  /**
+   * Creates a MultiArtifactCache that queries its caches concurrently.
+   * @param gracePeriodMillis how long the first cache, typically the local
+   *     {@link DirArtifactCache}, is queried on its own before the other caches are raced
+   *     against it.
+   * @param numWriteBackThreads number of threads used to write hits back to earlier caches.
+   */
+  public static MultiArtifactCache createConcurrent(
+      ImmutableList<ArtifactCache> artifactCaches,
+      long gracePeriodMillis,
+      int numWriteBackThreads) {
+    ListeningExecutorService fetchExecutor = MoreExecutors.listeningDecorator(
+        Executors.newCachedThreadPool(new CommandThreadFactory("artifact-cache-fetch")));
+    ExecutorService writeBackExecutor = new ThreadPoolExecutor(
+        /* corePoolSize */ numWriteBackThreads,
+        /* maximumPoolSize */ numWriteBackThreads,
+        /* keepAliveTime */ 0L, TimeUnit.MILLISECONDS,
+        /* workQueue */ new ArrayBlockingQueue<Runnable>(MAX_QUEUED_WRITE_BACKS),
+        /* threadFactory */ new CommandThreadFactory("artifact-cache-write-back"),
+        /* handler */ new ThreadPoolExecutor.CallerRunsPolicy());
+    return new MultiArtifactCache(
+        artifactCaches,
+        Optional.of(fetchExecutor),
+        Optional.of(writeBackExecutor),
+        gracePeriodMillis);
+  }
+
   /**
    * Fetch the artifact matching ruleKey and store it to output. If any of the encapsulated
    * ArtifactCaches contains the desired artifact, this method succeeds, and it may store the
    * artifact to one or more of the other encapsulated ArtifactCaches as a side effect.
+   * <p>
+   * In concurrent mode, the first cache is queried on its own for up to the grace period. If it has
+   * not hit by then, every other cache is queried at the same time, each into its own temporary
+   * file, and the first hit wins: the remaining queries are cancelled and the winning artifact is
+   * written back to the caches that precede its cache asynchronously.
    */
   @Override
   public CacheResult fetch(RuleKey ruleKey, File output)
       throws InterruptedException {
+    if (fetchExecutor.isPresent() && artifactCaches.size() > 1) {
+      return fetchConcurrently(ruleKey, output);
+    }
+
     for (ArtifactCache artifactCache : artifactCaches) {
       CacheResult cacheResult = artifactCache.fetch(ruleKey, output);
       if (cacheResult.isSuccess()) {
@@ -69,6 +169,273 @@ public class MultiArtifactCache implements ArtifactCache {
     return CacheResult.MISS;
   }
 
+  /**
+   * Like {@link #fetch(RuleKey, File)}, but streams the artifact to {@code consumer}. When a cache
+   * other than the first one hits, the artifact is also copied to a temporary file as it is read so
+   * that it can be written back to the earlier caches. In concurrent mode the caches are still
+   * raced into temporary files, and the winning artifact is then streamed from disk.
+   */
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer)
+      throws InterruptedException {
+    if (fetchExecutor.isPresent() && artifactCaches.size() > 1) {
+      return ArtifactCaches.fetchViaTempFile(this, ruleKey, consumer);
+    }
+
+    boolean isWriteBackNeeded = false;
+    for (int i = 0; i < artifactCaches.size(); i++) {
+      ArtifactCache artifactCache = artifactCaches.get(i);
+      CacheResult cacheResult;
+      if (isWriteBackNeeded) {
+        cacheResult = fetchStreamingAndWriteBack(
+            ruleKey,
+            consumer,
+            artifactCache,
+            artifactCaches.subList(0, i));
+      } else {
+        cacheResult = artifactCache.fetchStreaming(ruleKey, consumer);
+      }
+      if (cacheResult.isSuccess()) {
+        return cacheResult;
+      }
+      isWriteBackNeeded |= artifactCache.isStoreSupported();
+    }
+    return CacheResult.MISS;
+  }
+
+  private CacheResult fetchStreamingAndWriteBack(
+      RuleKey ruleKey,
+      final ArtifactConsumer consumer,
+      ArtifactCache artifactCache,
+      List<ArtifactCache> priorArtifactCaches) throws InterruptedException {
+    final File copy;
+    try {
+      copy = File.createTempFile(ruleKey.toString(), ".zip");
+    } catch (IOException e) {
+      LOG.warn(e, "fetchStreaming(%s): unable to create a file to write back from", ruleKey);
+      return artifactCache.fetchStreaming(ruleKey, consumer);
+    }
+
+    try {
+      CacheResult cacheResult = artifactCache.fetchStreaming(
+          ruleKey,
+          new ArtifactConsumer() {
+            @Override
+            public void consume(InputStream artifact) throws IOException {
+              try (OutputStream output = new FileOutputStream(copy)) {
+                TeeInputStream tee = new TeeInputStream(artifact, output);
+                consumer.consume(tee);
+                // Copy whatever the consumer did not read so that the write-back is complete.
+                ByteStreams.copy(tee, ByteStreams.nullOutputStream());
+              }
+            }
+          });
+      if (cacheResult.isSuccess()) {
+        for (ArtifactCache priorArtifactCache : priorArtifactCaches) {
+          priorArtifactCache.store(ruleKey, copy);
+        }
+      }
+      return cacheResult;
+    } finally {
+      copy.delete();
+    }
+  }
+
+  private CacheResult fetchConcurrently(RuleKey ruleKey, File output)
+      throws InterruptedException {
+    final BlockingQueue<Integer> completed = new LinkedBlockingQueue<>();
+    List<TierFetch> fetches = Lists.newArrayListWithCapacity(artifactCaches.size());
+    List<ListenableFuture<CacheResult>> futures =
+        Lists.newArrayListWithCapacity(artifactCaches.size());
+
+    int winner = -1;
+    CacheResult winningResult = CacheResult.MISS;
+    try {
+      int misses = 0;
+      while (winner == -1 && misses < artifactCaches.size()) {
+        // Start the first cache on its own, and the rest once its grace period has expired.
+        if (fetches.isEmpty() ||
+            (fetches.size() == 1 && completed.isEmpty())) {
+          int first = fetches.size();
+          int last = fetches.isEmpty() ? 1 : artifactCaches.size();
+          for (int i = first; i < last; i++) {
+            TierFetch fetch = new TierFetch(artifactCaches.get(i), ruleKey);
+            fetches.add(fetch);
+            futures.add(submit(fetch, i, completed));
+          }
+        }
+
+        Integer index = fetches.size() == 1 ?
+            completed.poll(gracePeriodMillis, TimeUnit.MILLISECONDS) :
+            completed.take();
+        if (index == null) {
+          continue;
+        }
+
+        CacheResult result = getResult(futures.get(index), ruleKey);
+        if (result.isSuccess()) {
+          winner = index;
+          winningResult = result;
+        } else {
+          misses++;
+        }
+      }
+    } finally {
+      for (int i = 0; i < fetches.size(); i++) {
+        if (i != winner) {
+          futures.get(i).cancel(/* mayInterruptIfRunning */ true);
+          fetches.get(i).release();
+        }
+      }
+    }
+
+    if (winner == -1) {
+      return CacheResult.MISS;
+    }
+
+    File artifact = Preconditions.checkNotNull(fetches.get(winner).getTempFile());
+    try {
+      if (writeBack(ruleKey, winner, artifact, output)) {
+        return winningResult;
+      }
+      Files.move(artifact.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      LOG.warn(e, "Failed to copy fetched artifact for %s to %s.", ruleKey, output);
+      artifact.delete();
+      return CacheResult.MISS;
+    }
+    return winningResult;
+  }
+
+  private ListenableFuture<CacheResult> submit(
+      TierFetch fetch,
+      final int index,
+      final BlockingQueue<Integer> completed) {
+    ListenableFuture<CacheResult> future = fetchExecutor.get().submit(fetch);
+    future.addListener(
+        new Runnable() {
+          @Override
+          public void run() {
+            completed.add(index);
+          }
+        },
+        MoreExecutors.directExecutor());
+    return future;
+  }
+
+  private static CacheResult getResult(ListenableFuture<CacheResult> future, RuleKey ruleKey)
+      throws InterruptedException {
+    try {
+      return future.get();
+    } catch (ExecutionException e) {
+      LOG.warn(e.getCause(), "Concurrent artifact cache fetch failed for %s.", ruleKey);
+      return CacheResult.MISS;
+    }
+  }
+
+  /**
+   * Copies {@code artifact} to {@code output} and schedules it to be stored in every cache that
+   * precedes the cache at {@code winner}. The scheduled task owns {@code artifact} and deletes it
+   * once it is done.
+   * @return {@code false} if there is nothing to write back, in which case {@code artifact} has not
+   *     been touched.
+   */
+  private boolean writeBack(
+      final RuleKey ruleKey,
+      int winner,
+      final File artifact,
+      File output) throws IOException {
+    final ImmutableList.Builder<ArtifactCache> builder = ImmutableList.builder();
+    for (ArtifactCache artifactCache : artifactCaches.subList(0, winner)) {
+      if (artifactCache.isStoreSupported()) {
+        builder.add(artifactCache);
+      }
+    }
+    final ImmutableList<ArtifactCache> priorArtifactCaches = builder.build();
+    if (priorArtifactCaches.isEmpty()) {
+      return false;
+    }
+
+    Files.copy(artifact.toPath(), output.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    writeBackExecutor.get().execute(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          for (ArtifactCache artifactCache : priorArtifactCaches) {
+            artifactCache.store(ruleKey, artifact);
+          }
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        } finally {
+          artifact.delete();
+        }
+      }
+    });
+    return true;
+  }
+
+  /**
+   * Fetches from a single cache into a temporary file of its own, so that concurrent fetches of the
+   * same artifact never write to the same file.
+   * <p>
+   * Both the fetch itself and {@link MultiArtifactCache} call {@link #release()} when they are done
+   * with the temporary file, and whichever of them does so second deletes it. This guarantees the
+   * file is cleaned up when a fetch loses the race, no matter how its completion interleaves with
+   * its cancellation.
+   */
+  private static class TierFetch implements Callable<CacheResult> {
+
+    private final ArtifactCache artifactCache;
+    private final RuleKey ruleKey;
+    private final AtomicBoolean isReleased = new AtomicBoolean(false);
+    @Nullable private volatile File tempFile;
+
+    private TierFetch(ArtifactCache artifactCache, RuleKey ruleKey) {
+      this.artifactCache = artifactCache;
+      this.ruleKey = ruleKey;
+    }
+
+    @Override
+    public CacheResult call() throws IOException, InterruptedException {
+      CacheResult result = CacheResult.MISS;
+      File file = File.createTempFile("buck_artifact_" + ruleKey, ".zip");
+      tempFile = file;
+      try {
+        result = artifactCache.fetch(ruleKey, file);
+        return result;
+      } finally {
+        if (!result.isSuccess()) {
+          file.delete();
+        } else {
+          release();
+        }
+      }
+    }
+
+    @Nullable
+    private File getTempFile() {
+      return tempFile;
+    }
+
+    private void release() {
+      File file = tempFile;
+      if (isReleased.getAndSet(true) && file != null) {
+        file.delete();
+      }
+    }
+  }
+
+  /**
+   * Passes the keys to every cache in turn, since any of them may end up being asked for a key
+   * that misses in the caches before it.
+   */
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) throws InterruptedException {
+    for (ArtifactCache artifactCache : artifactCaches) {
+      artifactCache.prefetch(ruleKeys);
+    }
+  }
+
   /**
    * Store the artifact to all encapsulated ArtifactCaches.
    */
@@ -87,6 +454,20 @@ public class MultiArtifactCache implements ArtifactCache {
 
   @Override
   public void close() throws IOException {
+    if (fetchExecutor.isPresent()) {
+      fetchExecutor.get().shutdownNow();
+    }
+    // Let pending write-backs finish before the caches they write to are closed.
+    if (writeBackExecutor.isPresent()) {
+      writeBackExecutor.get().shutdown();
+      try {
+        writeBackExecutor.get().awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        writeBackExecutor.get().shutdownNow();
+      }
+    }
+
     // TODO(natthu): It's possible for this to be interrupted before it gets to call close() on all
     // the individual caches. This is acceptable for now since every ArtifactCache.close() is a
     // no-op in every cache except CassandraArtifactCache.
@@ -94,4 +475,47 @@ public class MultiArtifactCache implements ArtifactCache {
       artifactCache.close();
     }
   }
+
+  /**
+   * Copies every byte read from it to an {@link OutputStream}.
+   */
+  private static class TeeInputStream extends FilterInputStream {
+
+    private final OutputStream copy;
+
+    TeeInputStream(InputStream in, OutputStream copy) {
+      super(in);
+      this.copy = copy;
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        copy.write(b);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        copy.write(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Skipped bytes still have to reach the copy.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      return Math.max(read(buffer, 0, buffer.length), 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+  }
 }
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.rules;
 
+import com.google.common.collect.ImmutableSet;
+
 import java.io.File;
 
 public class NoopArtifactCache implements ArtifactCache {
@@ -26,6 +28,17 @@ public class NoopArtifactCache implements ArtifactCache {
     return CacheResult.MISS;
   }
 
+  @Override
+  public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+    // Do nothing.
+    return CacheResult.MISS;
+  }
+
+  @Override
+  public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+    // Do nothing.
+  }
+
   @Override
   public void store(RuleKey ruleKey, File output) {
     // Do nothing.
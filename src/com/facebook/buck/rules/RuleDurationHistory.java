@@ -0,0 +1,126 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import com.facebook.buck.log.Logger;
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.util.BuckConstant;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+import com.google.gson.Gson;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+
+/**
+ * How long, in milliseconds, each build rule took to build locally in recent builds, keyed by the
+ * fully qualified name of its target. Rules that were fetched from the cache or were already up to
+ * date are not recorded, as they say nothing about how long the rule takes to build.
+ */
+public class RuleDurationHistory {
+
+  private static final Logger LOG = Logger.get(RuleDurationHistory.class);
+
+  private final ImmutableMap<String, Long> durations;
+
+  @VisibleForTesting
+  RuleDurationHistory(ImmutableMap<String, Long> durations) {
+    this.durations = Preconditions.checkNotNull(durations);
+  }
+
+  /**
+   * @return the durations recorded under {@link BuckConstant#RULE_DURATIONS_PATH}, or no durations
+   *     if there are none or they cannot be read.
+   */
+  public static RuleDurationHistory load(ProjectFilesystem projectFilesystem) {
+    Optional<String> contents =
+        projectFilesystem.readFileIfItExists(BuckConstant.RULE_DURATIONS_PATH);
+    ImmutableMap.Builder<String, Long> durations = ImmutableMap.builder();
+    if (contents.isPresent()) {
+      try {
+        JsonObject json = new JsonParser().parse(contents.get()).getAsJsonObject();
+        for (Map.Entry<String, JsonElement> entry : json.entrySet()) {
+          durations.put(entry.getKey(), entry.getValue().getAsLong());
+        }
+      } catch (JsonParseException | IllegalStateException | ClassCastException |
+          NumberFormatException e) {
+        LOG.warn(e, "Ignoring unreadable rule durations in %s.", BuckConstant.RULE_DURATIONS_PATH);
+        return new RuleDurationHistory(ImmutableMap.<String, Long>of());
+      }
+    }
+    return new RuleDurationHistory(durations.build());
+  }
+
+  public Optional<Long> getDurationMillis(BuildTarget buildTarget) {
+    return Optional.fromNullable(durations.get(buildTarget.getFullyQualifiedName()));
+  }
+
+  public boolean isEmpty() {
+    return durations.isEmpty();
+  }
+
+  /**
+   * @return a history which also includes {@code latestDurations}. A rule that already had a
+   *     duration is given the average of the old and the latest ones, so that one unusually slow
+   *     or fast build does not throw off the estimate for the next.
+   */
+  public RuleDurationHistory withLatestDurations(Map<BuildTarget, Long> latestDurations) {
+    Map<String, Long> merged = Maps.newTreeMap();
+    merged.putAll(durations);
+    for (Map.Entry<BuildTarget, Long> entry : latestDurations.entrySet()) {
+      String target = entry.getKey().getFullyQualifiedName();
+      Long previous = merged.get(target);
+      long latest = entry.getValue();
+      merged.put(target, previous == null ? latest : (previous + latest) / 2);
+    }
+    return new RuleDurationHistory(ImmutableMap.copyOf(merged));
+  }
+
+  /**
+   * Writes the history to {@link BuckConstant#RULE_DURATIONS_PATH}, replacing it atomically so
+   * that a concurrent build never reads a partial file.
+   */
+  public void save(ProjectFilesystem projectFilesystem) throws IOException {
+    Path path = BuckConstant.RULE_DURATIONS_PATH;
+    projectFilesystem.mkdirs(path.getParent());
+    Path tempFile = projectFilesystem.createTempFile(
+        projectFilesystem.getPathForRelativePath(path.getParent()),
+        path.getFileName().toString(),
+        ".tmp");
+    try {
+      projectFilesystem.writeContentsToPath(new Gson().toJson(durations), tempFile);
+      projectFilesystem.move(
+          tempFile,
+          path,
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } finally {
+      // Only still there if the move failed.
+      projectFilesystem.deleteFileAtPath(tempFile);
+    }
+  }
+}
@@ -16,7 +16,6 @@
 
 package com.facebook.buck.step;
 
-import static com.facebook.buck.util.concurrent.MoreExecutors.newMultiThreadExecutor;
 import static com.google.common.util.concurrent.MoreExecutors.listeningDecorator;
 
 import com.facebook.buck.log.CommandThreadFactory;
@@ -25,6 +24,7 @@ import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.util.InterruptionFailedException;
 import com.facebook.buck.util.concurrent.MoreExecutors;
 import com.facebook.buck.util.concurrent.MoreFutures;
+import com.facebook.buck.util.concurrent.PriorityThreadPoolExecutor;
 import com.google.common.annotations.VisibleForTesting;
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
@@ -54,22 +54,40 @@ public final class DefaultStepRunner implements StepRunner, Closeable {
   private final ExecutionContext context;
   private final ListeningExecutorService listeningExecutorService;
 
+  /** Absent when running on an executor supplied by a test, which ignores priorities. */
+  private final Optional<PriorityThreadPoolExecutor> priorityExecutor;
+
   public DefaultStepRunner(ExecutionContext context,
                            int numThreads) {
     this(context,
-        listeningDecorator(
-            newMultiThreadExecutor(
-                new CommandThreadFactory("DefaultStepRunner"),
-                numThreads)));
+        new PriorityThreadPoolExecutor(
+            new CommandThreadFactory("DefaultStepRunner"),
+            numThreads));
+  }
+
+  private DefaultStepRunner(
+      ExecutionContext executionContext,
+      PriorityThreadPoolExecutor priorityExecutor) {
+    this(executionContext, listeningDecorator(priorityExecutor), Optional.of(priorityExecutor));
   }
 
   @VisibleForTesting
   public DefaultStepRunner(
       ExecutionContext executionContext,
       ListeningExecutorService listeningExecutorService) {
+    this(
+        executionContext,
+        listeningExecutorService,
+        Optional.<PriorityThreadPoolExecutor>absent());
+  }
+
+  private DefaultStepRunner(
+      ExecutionContext executionContext,
+      ListeningExecutorService listeningExecutorService,
+      Optional<PriorityThreadPoolExecutor> priorityExecutor) {
     this.context = Preconditions.checkNotNull(executionContext);
     this.listeningExecutorService = Preconditions.checkNotNull(listeningExecutorService);
-
+    this.priorityExecutor = Preconditions.checkNotNull(priorityExecutor);
   }
 
   @Override
@@ -173,6 +191,19 @@ public final class DefaultStepRunner implements StepRunner, Closeable {
     Futures.addCallback(dependencies, callback, listeningExecutorService);
   }
 
+  @Override
+  public <T> void addCallback(
+      ListenableFuture<List<T>> dependencies,
+      FutureCallback<List<T>> callback,
+      long priority) {
+    Preconditions.checkState(!listeningExecutorService.isShutdown());
+    if (priorityExecutor.isPresent()) {
+      Futures.addCallback(dependencies, callback, priorityExecutor.get().withPriority(priority));
+    } else {
+      Futures.addCallback(dependencies, callback, listeningExecutorService);
+    }
+  }
+
   @Override
   public void close() throws IOException {
     close(SHUTDOWN_TIMEOUT_MINUTES, TimeUnit.MINUTES);
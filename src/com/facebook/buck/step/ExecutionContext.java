@@ -21,6 +21,7 @@ import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.ThrowableConsoleEvent;
 import com.facebook.buck.java.JavaPackageFinder;
+import com.facebook.buck.java.TestRunnerWorkerPool;
 import com.facebook.buck.model.BuildId;
 import com.facebook.buck.util.AndroidPlatformTarget;
 import com.facebook.buck.util.Ansi;
@@ -55,6 +56,9 @@ public class ExecutionContext {
   private final ImmutableMap<String, String> environment;
   private final JavaPackageFinder javaPackageFinder;
   private final ObjectMapper objectMapper;
+  private final int numThreads;
+  private final Optional<TestRunnerWorkerPool> testRunnerWorkerPool;
+  private final boolean isRunningAffectedTestsOnly;
 
   private ExecutionContext(
       @Nullable ProjectFilesystem projectFilesystem,
@@ -68,7 +72,10 @@ public class ExecutionContext {
       @Nullable Platform platform,
       @Nullable ImmutableMap<String, String> environment,
       @Nullable JavaPackageFinder javaPackageFinder,
-      @Nullable ObjectMapper objectMapper) {
+      @Nullable ObjectMapper objectMapper,
+      int numThreads,
+      Optional<TestRunnerWorkerPool> testRunnerWorkerPool,
+      boolean isRunningAffectedTestsOnly) {
     this.verbosity = Preconditions.checkNotNull(console).getVerbosity();
     this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
     this.console = Preconditions.checkNotNull(console);
@@ -83,6 +90,10 @@ public class ExecutionContext {
     this.environment = Preconditions.checkNotNull(environment);
     this.javaPackageFinder = Preconditions.checkNotNull(javaPackageFinder);
     this.objectMapper = Preconditions.checkNotNull(objectMapper);
+    Preconditions.checkArgument(numThreads > 0, "numThreads must be positive: %s", numThreads);
+    this.numThreads = numThreads;
+    this.testRunnerWorkerPool = Preconditions.checkNotNull(testRunnerWorkerPool);
+    this.isRunningAffectedTestsOnly = isRunningAffectedTestsOnly;
   }
 
   /**
@@ -102,7 +113,10 @@ public class ExecutionContext {
         platform,
         this.environment,
         this.javaPackageFinder,
-        this.objectMapper);
+        this.objectMapper,
+        this.numThreads,
+        this.testRunnerWorkerPool,
+        this.isRunningAffectedTestsOnly);
   }
 
   public void logError(Throwable error, String msg, Object... formatArgs) {
@@ -153,6 +167,30 @@ public class ExecutionContext {
     return javaPackageFinder;
   }
 
+  /**
+   * @return the number of threads the build runs steps on, which steps that do their own work in
+   *     parallel can use to size their pools.
+   */
+  public int getNumThreads() {
+    return numThreads;
+  }
+
+  /**
+   * @return the pool of warm JVMs that Java tests run in, if {@code buck test} was configured to
+   *     use one. Otherwise, each test rule forks a JVM of its own.
+   */
+  public Optional<TestRunnerWorkerPool> getTestRunnerWorkerPool() {
+    return testRunnerWorkerPool;
+  }
+
+  /**
+   * @return whether tests may skip the test classes that passed last time, and that have not loaded
+   *     any class that has changed since.
+   */
+  public boolean isRunningAffectedTestsOnly() {
+    return isRunningAffectedTestsOnly;
+  }
+
   public ObjectMapper getObjectMapper() {
     return objectMapper;
   }
@@ -234,6 +272,9 @@ public class ExecutionContext {
     @Nullable private ImmutableMap<String, String> environment = null;
     @Nullable private JavaPackageFinder javaPackageFinder = null;
     @Nullable private ObjectMapper objectMapper = null;
+    private int numThreads = Runtime.getRuntime().availableProcessors();
+    private Optional<TestRunnerWorkerPool> testRunnerWorkerPool = Optional.absent();
+    private boolean isRunningAffectedTestsOnly = false;
 
     private Builder() {}
 
@@ -250,7 +291,10 @@ public class ExecutionContext {
           platform,
           environment,
           javaPackageFinder,
-          objectMapper);
+          objectMapper,
+          numThreads,
+          testRunnerWorkerPool,
+          isRunningAffectedTestsOnly);
     }
 
     public Builder setExecutionContext(ExecutionContext executionContext) {
@@ -266,6 +310,9 @@ public class ExecutionContext {
       setEnvironment(executionContext.getEnvironment());
       setJavaPackageFinder(executionContext.getJavaPackageFinder());
       setObjectMapper(executionContext.getObjectMapper());
+      setNumThreads(executionContext.getNumThreads());
+      setTestRunnerWorkerPool(executionContext.getTestRunnerWorkerPool());
+      setRunningAffectedTestsOnly(executionContext.isRunningAffectedTestsOnly());
       return this;
     }
 
@@ -331,5 +378,21 @@ public class ExecutionContext {
       this.objectMapper = Preconditions.checkNotNull(objectMapper);
       return this;
     }
+
+    public Builder setNumThreads(int numThreads) {
+      Preconditions.checkArgument(numThreads > 0, "numThreads must be positive: %s", numThreads);
+      this.numThreads = numThreads;
+      return this;
+    }
+
+    public Builder setTestRunnerWorkerPool(Optional<TestRunnerWorkerPool> testRunnerWorkerPool) {
+      this.testRunnerWorkerPool = Preconditions.checkNotNull(testRunnerWorkerPool);
+      return this;
+    }
+
+    public Builder setRunningAffectedTestsOnly(boolean isRunningAffectedTestsOnly) {
+      this.isRunningAffectedTestsOnly = isRunningAffectedTestsOnly;
+      return this;
+    }
   }
 }
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import com.google.common.base.Function;
+import com.google.common.base.Joiner;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * {@link Step} that runs a number of independent steps at the same time, each on a thread of its
+ * own, and waits for all of them to finish. It fails if any of them fails.
+ * <p>
+ * The threads are in addition to those of the build, so steps that start processes should bound
+ * how many run across the whole build themselves, as {@code JUnitStep} does.
+ */
+public class ParallelStep implements Step {
+
+  private final ImmutableList<Step> steps;
+
+  public ParallelStep(List<? extends Step> steps) {
+    Preconditions.checkArgument(!steps.isEmpty(), "Must have at least one step");
+    this.steps = ImmutableList.copyOf(steps);
+  }
+
+  @Override
+  public int execute(ExecutionContext context) throws InterruptedException {
+    // Closing the runner waits for the steps that are still running, even if one of them failed.
+    try (DefaultStepRunner stepRunner = new DefaultStepRunner(context, steps.size())) {
+      stepRunner.runStepsInParallelAndWait(steps);
+    } catch (StepFailedException e) {
+      context.logError(e, "Failed to run %s.", e.getStep().getShortName());
+      return e.getExitCode() == 0 ? 1 : e.getExitCode();
+    } catch (IOException e) {
+      context.logError(e, "Failed to run steps in parallel.");
+      return 1;
+    }
+    return 0;
+  }
+
+  public ImmutableList<Step> getSteps() {
+    return steps;
+  }
+
+  @Override
+  public String getShortName() {
+    // Steps that run in parallel are usually of the same kind, so group them under its name.
+    return steps.get(0).getShortName();
+  }
+
+  @Override
+  public String getDescription(final ExecutionContext context) {
+    return Joiner.on(" & ").join(Iterables.transform(steps,
+        new Function<Step, String>() {
+          @Override
+          public String apply(Step step) {
+            return step.getDescription(context);
+          }
+        }));
+  }
+}
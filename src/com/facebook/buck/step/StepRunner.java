@@ -54,4 +54,13 @@ public interface StepRunner {
   public <T> void addCallback(
       ListenableFuture<List<T>> dependencies,
       FutureCallback<List<T>> callback);
+
+  /**
+   * Execute callback in a new thread, once dependencies have completed. If every thread is busy at
+   * that point, the callback runs ahead of queued work with a lower {@code priority}.
+   */
+  public <T> void addCallback(
+      ListenableFuture<List<T>> dependencies,
+      FutureCallback<List<T>> callback,
+      long priority);
 }
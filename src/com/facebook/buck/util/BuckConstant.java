@@ -50,6 +50,21 @@ public class BuckConstant {
 
   public static final Path BUCK_TRACE_DIR = BUCK_OUTPUT_PATH.resolve("log/traces");
 
+  /**
+   * Index of file content hashes kept by {@link PersistentFileHashCache}.
+   */
+  public static final Path FILE_HASH_CACHE_PATH = BUCK_OUTPUT_PATH.resolve("file_hashes");
+
+  /**
+   * Directory of build file rules persisted between runs of the parser.
+   */
+  public static final Path PARSE_CACHE_PATH = BUCK_OUTPUT_PATH.resolve("parse_cache");
+
+  /**
+   * How long each build rule took to build in recent builds, kept by {@link RuleDurationHistory}.
+   */
+  public static final Path RULE_DURATIONS_PATH = LOG_PATH.resolve("rule_durations.json");
+
   /**
    * This variable is package-private because conceptually, only parsing logic should be concerned
    * with the files that define build rules. Note that if the value of this variable changes, the
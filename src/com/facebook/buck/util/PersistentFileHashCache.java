@@ -0,0 +1,350 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import com.facebook.buck.log.Logger;
+import com.google.common.annotations.VisibleForTesting;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteSource;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.WatchEvent;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A {@link FileHashCache} whose contents survive restarts of the Buck daemon and invocations of
+ * Buck without a daemon.
+ * <p>
+ * Hashes are stored in a compact index under {@code buck-out} along with the size, modification
+ * time and inode of the file they were computed from. A stored hash is only reused when all of
+ * these still match the file on disk, so validating an entry costs a single {@code stat} rather
+ * than reading the file. Within a single process, validated hashes are additionally kept in memory
+ * and invalidated by file change events, exactly as in {@link DefaultFileHashCache}.
+ */
+public class PersistentFileHashCache implements FileHashCache {
+
+  private static final Logger LOG = Logger.get(PersistentFileHashCache.class);
+
+  /** Identifies the index format. Bump {@link #VERSION} whenever the record layout changes. */
+  private static final int MAGIC = 0xB0CF11E5;
+  private static final int VERSION = 2;
+
+  private static final int SHA1_NUM_BYTES = 20;
+
+  /**
+   * Files modified this recently are not written to the index: a subsequent write within the
+   * granularity of the filesystem's timestamps could otherwise go unnoticed by the stat check.
+   */
+  @VisibleForTesting
+  static final long RACY_WINDOW_MILLIS = 2000;
+
+  private final ProjectFilesystem projectFilesystem;
+  private final Path pathToIndex;
+  private final ConcurrentMap<Path, Entry> entries;
+  private final AtomicBoolean isDirty;
+
+  private final AtomicInteger hits;
+  private final AtomicInteger misses;
+  private final AtomicInteger rehashes;
+
+  @VisibleForTesting
+  final LoadingCache<Path, HashCode> loadingCache;
+
+  private PersistentFileHashCache(
+      ProjectFilesystem projectFilesystem,
+      Path pathToIndex,
+      ConcurrentMap<Path, Entry> entries) {
+    this.projectFilesystem = Preconditions.checkNotNull(projectFilesystem);
+    this.pathToIndex = Preconditions.checkNotNull(pathToIndex);
+    this.entries = Preconditions.checkNotNull(entries);
+    this.isDirty = new AtomicBoolean(false);
+    this.hits = new AtomicInteger();
+    this.misses = new AtomicInteger();
+    this.rehashes = new AtomicInteger();
+
+    this.loadingCache = CacheBuilder.newBuilder()
+        .build(new CacheLoader<Path, HashCode>() {
+          @Override
+          public HashCode load(Path path) throws Exception {
+            return getValidatedHashCode(path);
+          }
+        });
+  }
+
+  /**
+   * Creates a cache primed with the index at {@code pathToIndex}. A missing, stale or corrupt
+   * index is not an error: the cache simply starts empty and the index is rewritten by
+   * {@link #save()}.
+   * @param pathToIndex Location of the index, relative to the project root.
+   */
+  public static PersistentFileHashCache load(
+      ProjectFilesystem projectFilesystem,
+      Path pathToIndex) {
+    ConcurrentMap<Path, Entry> entries = new ConcurrentHashMap<>();
+    try {
+      readIndex(projectFilesystem.resolve(pathToIndex), entries);
+      LOG.debug("Loaded %d file hashes from %s.", entries.size(), pathToIndex);
+    } catch (NoSuchFileException e) {
+      LOG.debug("No file hash index at %s.", pathToIndex);
+    } catch (IOException | BufferUnderflowException | IllegalArgumentException e) {
+      LOG.warn(e, "Ignoring unreadable file hash index at %s.", pathToIndex);
+      entries.clear();
+    }
+    return new PersistentFileHashCache(projectFilesystem, pathToIndex, entries);
+  }
+
+  private static void readIndex(Path absolutePathToIndex, Map<Path, Entry> entries)
+      throws IOException {
+    try (FileChannel channel = FileChannel.open(absolutePathToIndex, StandardOpenOption.READ)) {
+      MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      Preconditions.checkArgument(buffer.getInt() == MAGIC, "Bad magic number.");
+      int version = buffer.getInt();
+      if (version != VERSION) {
+        LOG.debug("Discarding file hash index with version %d.", version);
+        return;
+      }
+      int numEntries = buffer.getInt();
+      Preconditions.checkArgument(numEntries >= 0, "Bad entry count %s.", numEntries);
+      for (int i = 0; i < numEntries; i++) {
+        int pathLength = buffer.getInt();
+        Preconditions.checkArgument(
+            pathLength >= 0 && pathLength <= buffer.remaining(),
+            "Bad path length %s.",
+            pathLength);
+        byte[] pathBytes = new byte[pathLength];
+        buffer.get(pathBytes);
+        Path path = Paths.get(new String(pathBytes, Charsets.UTF_8));
+        long size = buffer.getLong();
+        long lastModifiedTime = buffer.getLong();
+        long inode = buffer.getLong();
+        byte[] sha1 = new byte[SHA1_NUM_BYTES];
+        buffer.get(sha1);
+        entries.put(
+            path,
+            new Entry(size, lastModifiedTime, inode, HashCode.fromBytes(sha1)));
+      }
+    }
+  }
+
+  /**
+   * Writes the index back to disk if any hashes were added or replaced since it was loaded.
+   * The index is written to a temporary file and moved into place so that a concurrent or
+   * interrupted Buck never observes a partially written index.
+   */
+  public synchronized void save() throws IOException {
+    if (!isDirty.getAndSet(false)) {
+      return;
+    }
+    projectFilesystem.createParentDirs(pathToIndex);
+    Path absolutePathToIndex = projectFilesystem.resolve(pathToIndex);
+    Path tempFile = Files.createTempFile(
+        absolutePathToIndex.getParent(),
+        absolutePathToIndex.getFileName().toString(),
+        ".tmp");
+    int numEntries = 0;
+    try (OutputStream outputStream = new BufferedOutputStream(
+             Files.newOutputStream(tempFile));
+         DataOutputStream output = new DataOutputStream(outputStream)) {
+      // Snapshot the entries first, as the count must precede the records.
+      Map<Path, Entry> snapshot = ImmutableMap.copyOf(entries);
+      output.writeInt(MAGIC);
+      output.writeInt(VERSION);
+      output.writeInt(snapshot.size());
+      for (Map.Entry<Path, Entry> mapEntry : snapshot.entrySet()) {
+        byte[] pathBytes = mapEntry.getKey().toString().getBytes(Charsets.UTF_8);
+        Entry entry = mapEntry.getValue();
+        output.writeInt(pathBytes.length);
+        output.write(pathBytes);
+        output.writeLong(entry.size);
+        output.writeLong(entry.lastModifiedTime);
+        output.writeLong(entry.inode);
+        output.write(entry.sha1.asBytes());
+        numEntries++;
+      }
+    } catch (IOException e) {
+      Files.deleteIfExists(tempFile);
+      throw e;
+    }
+    Files.move(
+        tempFile,
+        absolutePathToIndex,
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    LOG.debug("Saved %d file hashes to %s.", numEntries, pathToIndex);
+  }
+
+  private HashCode getValidatedHashCode(Path path) throws IOException {
+    Path absolutePath = projectFilesystem.resolve(path);
+    BasicFileAttributes attributes =
+        Files.readAttributes(absolutePath, BasicFileAttributes.class);
+    long size = attributes.size();
+    long lastModifiedTime = attributes.lastModifiedTime().toMillis();
+    long inode = getInode(absolutePath);
+
+    Entry entry = entries.get(path);
+    if (entry != null && entry.matches(size, lastModifiedTime, inode)) {
+      hits.incrementAndGet();
+      return entry.sha1;
+    }
+
+    if (entry == null) {
+      misses.incrementAndGet();
+    } else {
+      rehashes.incrementAndGet();
+    }
+    HashCode sha1 = getHashCode(absolutePath);
+    if (System.currentTimeMillis() - lastModifiedTime > RACY_WINDOW_MILLIS) {
+      entries.put(path, new Entry(size, lastModifiedTime, inode, sha1));
+      isDirty.set(true);
+    } else if (entry != null) {
+      entries.remove(path);
+      isDirty.set(true);
+    }
+    return sha1;
+  }
+
+  private static long getInode(Path absolutePath) throws IOException {
+    try {
+      Object inode = Files.getAttribute(absolutePath, "unix:ino");
+      return inode instanceof Number ? ((Number) inode).longValue() : 0;
+    } catch (UnsupportedOperationException | IllegalArgumentException e) {
+      // Not a POSIX filesystem: fall back to size and modification time alone.
+      return 0;
+    }
+  }
+
+  private static HashCode getHashCode(Path absolutePath) throws IOException {
+    File file = absolutePath.toFile();
+    ByteSource source = com.google.common.io.Files.asByteSource(file);
+    return source.hash(Hashing.sha1());
+  }
+
+  @Override
+  public boolean contains(Path path) {
+    return loadingCache.getIfPresent(path) != null;
+  }
+
+  /**
+   * @return The {@link com.google.common.hash.HashCode} of the contents of path.
+   */
+  @Override
+  public HashCode get(Path path) {
+    HashCode sha1;
+    try {
+      // As in DefaultFileHashCache, ignored paths are not invalidated by file change events and are
+      // usually build outputs, so they are neither cached in memory nor persisted.
+      if (projectFilesystem.isIgnored(path)) {
+        sha1 = getHashCode(projectFilesystem.resolve(path));
+      } else {
+        sha1 = loadingCache.get(path.normalize());
+      }
+    } catch (ExecutionException | IOException e) {
+      throw new RuntimeException(e);
+    }
+    return Preconditions.checkNotNull(sha1, "Failed to find a HashCode for %s.", path);
+  }
+
+  /**
+   * Called when file change events are posted to the file change EventBus. Only the in-memory
+   * layer is invalidated: persisted entries are revalidated against the file's metadata on their
+   * next lookup, so even an overflow event does not force every file to be rehashed.
+   */
+  @Subscribe
+  public synchronized void onFileSystemChange(WatchEvent<?> event) throws IOException {
+    if (projectFilesystem.isPathChangeEvent(event)) {
+      Path path = ((Path) event.context()).normalize();
+      LOG.verbose("Invalidating %s", path);
+      loadingCache.invalidate(path);
+    } else {
+      LOG.debug("Invalidating all");
+      loadingCache.invalidateAll();
+    }
+  }
+
+  /**
+   * @return the hit, miss and rehash counts since this method was last called, resetting them.
+   */
+  public Stats getAndResetStats() {
+    return new Stats(hits.getAndSet(0), misses.getAndSet(0), rehashes.getAndSet(0));
+  }
+
+  /**
+   * Counts of persisted-index lookups. Lookups served by the in-memory layer are not counted.
+   */
+  public static class Stats {
+    /** Lookups answered from the index after a successful metadata check. */
+    public final int hits;
+    /** Lookups for paths that were not in the index. */
+    public final int misses;
+    /** Lookups for paths whose metadata changed, forcing the file to be hashed again. */
+    public final int rehashes;
+
+    @VisibleForTesting
+    Stats(int hits, int misses, int rehashes) {
+      this.hits = hits;
+      this.misses = misses;
+      this.rehashes = rehashes;
+    }
+  }
+
+  private static class Entry {
+    private final long size;
+    private final long lastModifiedTime;
+    private final long inode;
+    private final HashCode sha1;
+
+    private Entry(long size, long lastModifiedTime, long inode, HashCode sha1) {
+      this.size = size;
+      this.lastModifiedTime = lastModifiedTime;
+      this.inode = inode;
+      this.sha1 = sha1;
+    }
+
+    private boolean matches(long size, long lastModifiedTime, long inode) {
+      return this.size == size &&
+          this.lastModifiedTime == lastModifiedTime &&
+          this.inode == inode;
+    }
+  }
+}
@@ -16,6 +16,8 @@
 
 package com.facebook.buck.util;
 
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION;
+
 import com.facebook.buck.util.environment.Platform;
 import com.facebook.buck.zip.CustomZipEntry;
 import com.facebook.buck.zip.CustomZipOutputStream;
@@ -683,7 +685,8 @@ public class ProjectFilesystem {
       File out,
       ImmutableMap<Path, String> additionalFileContents) throws IOException {
     Preconditions.checkState(!Iterables.isEmpty(pathsToIncludeInZip));
-    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(out)) {
+    try (CustomZipOutputStream zip =
+             ZipOutputStreams.newParallelOutputStream(out, THROW_EXCEPTION)) {
       for (Path path : pathsToIncludeInZip) {
         CustomZipEntry entry = new CustomZipEntry(path.toString());
 
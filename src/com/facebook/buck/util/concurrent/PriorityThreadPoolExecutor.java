@@ -0,0 +1,97 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A fixed-size thread pool which, when all of its threads are busy, runs the queued task with the
+ * highest priority next rather than the one that was queued first. Tasks queued without a
+ * priority, including everything submitted through the {@link java.util.concurrent.ExecutorService}
+ * methods, have a priority of zero. Tasks of equal priority run in the order they were queued, so
+ * a pool that is only ever given one priority behaves like
+ * {@link MoreExecutors#newMultiThreadExecutor(ThreadFactory, int)}.
+ */
+public class PriorityThreadPoolExecutor extends ThreadPoolExecutor {
+
+  private final AtomicLong nextSequenceNumber = new AtomicLong();
+
+  public PriorityThreadPoolExecutor(ThreadFactory threadFactory, int count) {
+    super(
+        /* corePoolSize */ count,
+        /* maximumPoolSize */ count,
+        /* keepAliveTime */ 0L, TimeUnit.MILLISECONDS,
+        /* workQueue */ new PriorityBlockingQueue<Runnable>(),
+        /* threadFactory */ threadFactory,
+        /* handler */ new ThreadPoolExecutor.DiscardPolicy());
+  }
+
+  @Override
+  public void execute(Runnable command) {
+    execute(command, 0);
+  }
+
+  public void execute(Runnable command, long priority) {
+    super.execute(
+        new PrioritizedRunnable(command, priority, nextSequenceNumber.getAndIncrement()));
+  }
+
+  /**
+   * @return an {@link Executor} which queues tasks on this pool with the given priority.
+   */
+  public Executor withPriority(final long priority) {
+    return new Executor() {
+      @Override
+      public void execute(Runnable command) {
+        PriorityThreadPoolExecutor.this.execute(command, priority);
+      }
+    };
+  }
+
+  private static class PrioritizedRunnable
+      implements Runnable, Comparable<PrioritizedRunnable> {
+
+    private final Runnable delegate;
+    private final long priority;
+    private final long sequenceNumber;
+
+    private PrioritizedRunnable(Runnable delegate, long priority, long sequenceNumber) {
+      this.delegate = delegate;
+      this.priority = priority;
+      this.sequenceNumber = sequenceNumber;
+    }
+
+    @Override
+    public void run() {
+      delegate.run();
+    }
+
+    @Override
+    public int compareTo(PrioritizedRunnable that) {
+      // Higher priorities come first, then earlier submissions.
+      if (this.priority != that.priority) {
+        return this.priority > that.priority ? -1 : 1;
+      }
+      return Long.compare(this.sequenceNumber, that.sequenceNumber);
+    }
+  }
+}
@@ -0,0 +1,131 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import com.google.common.base.Preconditions;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import javax.annotation.Nullable;
+
+/**
+ * A bounded FIFO queue that any number of threads may add to and remove from without taking a
+ * lock, and which allocates nothing once created. Each slot carries a sequence number which tells
+ * producers whether it is free and consumers whether it has been filled, so threads only contend
+ * on the position they are claiming.
+ * <p>
+ * Unlike a {@link java.util.concurrent.BlockingQueue}, a full buffer does not block:
+ * {@link #offer(Object)} returns {@code false} and the caller decides what to do instead.
+ */
+public class RingBuffer<T> {
+
+  private final int mask;
+  private final Object[] elements;
+  private final AtomicLongArray sequences;
+  private final AtomicLong enqueuePosition = new AtomicLong();
+  private final AtomicLong dequeuePosition = new AtomicLong();
+
+  /**
+   * @param capacity must be a power of two.
+   */
+  public RingBuffer(int capacity) {
+    Preconditions.checkArgument(
+        capacity > 0 && Integer.bitCount(capacity) == 1,
+        "Capacity must be a power of two: %s",
+        capacity);
+    this.mask = capacity - 1;
+    this.elements = new Object[capacity];
+    this.sequences = new AtomicLongArray(capacity);
+    for (int i = 0; i < capacity; i++) {
+      sequences.set(i, i);
+    }
+  }
+
+  /**
+   * @return {@code false}, without adding {@code element}, if the buffer is full.
+   */
+  public boolean offer(T element) {
+    Preconditions.checkNotNull(element);
+    long position = enqueuePosition.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - position;
+      if (difference == 0) {
+        // The slot is free; claim it.
+        if (enqueuePosition.compareAndSet(position, position + 1)) {
+          elements[index] = element;
+          // Publishes the element to consumers.
+          sequences.set(index, position + 1);
+          return true;
+        }
+        position = enqueuePosition.get();
+      } else if (difference < 0) {
+        // The slot still holds the element from the previous lap.
+        return false;
+      } else {
+        // Another producer claimed this position first.
+        position = enqueuePosition.get();
+      }
+    }
+  }
+
+  /**
+   * @return the oldest element, or {@code null} if the buffer is empty.
+   */
+  @Nullable
+  @SuppressWarnings("unchecked")
+  public T poll() {
+    long position = dequeuePosition.get();
+    while (true) {
+      int index = (int) (position & mask);
+      long difference = sequences.get(index) - (position + 1);
+      if (difference == 0) {
+        if (dequeuePosition.compareAndSet(position, position + 1)) {
+          T element = (T) elements[index];
+          elements[index] = null;
+          // Frees the slot for the producer one lap ahead.
+          sequences.set(index, position + mask + 1);
+          return element;
+        }
+        position = dequeuePosition.get();
+      } else if (difference < 0) {
+        return null;
+      } else {
+        position = dequeuePosition.get();
+      }
+    }
+  }
+
+  /**
+   * @return the number of elements in the buffer. Only a snapshot if other threads are using it.
+   */
+  public int size() {
+    // Read the consumer's position first so that the result is never negative.
+    long dequeued = dequeuePosition.get();
+    long enqueued = enqueuePosition.get();
+    return (int) Math.min(Math.max(enqueued - dequeued, 0), mask + 1);
+  }
+
+  public boolean isEmpty() {
+    return size() == 0;
+  }
+
+  public int getCapacity() {
+    return mask + 1;
+  }
+}
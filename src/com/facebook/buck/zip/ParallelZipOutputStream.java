@@ -0,0 +1,263 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.timing.Clock;
+import com.google.common.base.Preconditions;
+import com.google.common.base.Throwables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.Futures;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+
+import javax.annotation.Nullable;
+
+/**
+ * A {@link CustomZipOutputStream} that compresses entries in parallel on a {@link ForkJoinPool}.
+ * <p>
+ * The bytes of each entry are buffered in memory until the entry is closed, at which point the
+ * entry is compressed by the pool (or on the calling thread, if it is small). Entries are written
+ * to the underlying stream strictly in the order they were put, as soon as they and every entry
+ * before them have been compressed, so the zip is byte-for-byte the same as the one
+ * {@link AppendingZipOutputStream} or {@link OverwritingZipOutputStream} would write for the same
+ * entries. To bound memory use, the caller blocks once more than {@link #MAX_PENDING_BYTES} of
+ * uncompressed data is waiting on the pool.
+ */
+class ParallelZipOutputStream extends CustomZipOutputStream {
+
+  private static final long MAX_PENDING_BYTES = 64 * 1024 * 1024;
+  private static final int MIN_PARALLEL_BYTES = 8 * 1024;
+
+  private static final ForkJoinPool SHARED_POOL = new ForkJoinPool();
+
+  private final ForkJoinPool pool;
+  private final Clock clock;
+  private final ZipOutputStreams.HandleDuplicates mode;
+
+  /**
+   * Entries that have been put but not yet written to the delegate, in the order they were put.
+   * Only used when duplicate entries overwrite earlier ones.
+   */
+  private final Map<String, PendingEntry> pendingByName = Maps.newLinkedHashMap();
+  /** Entries that have been put but not yet written to the delegate, in the order they were put. */
+  private final List<PendingEntry> pending = Lists.newLinkedList();
+  private final Set<String> seenNames = Sets.newHashSet();
+  private final List<EntryAccounting> written = Lists.newArrayList();
+  private long currentOffset = 0;
+  private long pendingBytes = 0;
+
+  @Nullable private EntryAccounting currentEntry;
+  @Nullable private ByteArrayOutputStream currentBytes;
+
+  public ParallelZipOutputStream(
+      Clock clock,
+      OutputStream out,
+      ZipOutputStreams.HandleDuplicates mode) {
+    this(SHARED_POOL, clock, out, mode);
+  }
+
+  ParallelZipOutputStream(
+      ForkJoinPool pool,
+      Clock clock,
+      OutputStream out,
+      ZipOutputStreams.HandleDuplicates mode) {
+    super(out);
+    this.pool = Preconditions.checkNotNull(pool);
+    this.clock = Preconditions.checkNotNull(clock);
+    this.mode = Preconditions.checkNotNull(mode);
+  }
+
+  @Override
+  protected void actuallyPutNextEntry(ZipEntry entry) throws IOException {
+    if (mode == ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION &&
+        !seenNames.add(entry.getName())) {
+      // Same exception as ZipOutputStream.
+      throw new ZipException("duplicate entry: " + entry.getName());
+    }
+
+    // The offset is only known once every entry before this one has been compressed, so it's set
+    // when the entry is written.
+    currentEntry = new EntryAccounting(clock, entry, /* currentOffset */ 0);
+    currentBytes = new ByteArrayOutputStream();
+  }
+
+  @Override
+  protected void actuallyWrite(byte[] b, int off, int len) throws IOException {
+    Preconditions.checkNotNull(currentBytes);
+    currentBytes.write(b, off, len);
+  }
+
+  @Override
+  protected void actuallyCloseEntry() throws IOException {
+    Preconditions.checkNotNull(currentEntry);
+    Preconditions.checkNotNull(currentBytes);
+
+    EntryAccounting entry = currentEntry;
+    byte[] bytes = currentBytes.toByteArray();
+    currentEntry = null;
+    currentBytes = null;
+
+    CompressEntry compressEntry = new CompressEntry(entry, bytes);
+    Future<byte[]> compressed;
+    if (bytes.length < MIN_PARALLEL_BYTES) {
+      // Handing tiny entries to the pool costs more than compressing them here.
+      compressed = Futures.immediateFuture(compressEntry.call());
+    } else {
+      compressed = pool.submit(compressEntry);
+    }
+    PendingEntry pendingEntry = new PendingEntry(entry, compressed, bytes.length);
+    pendingBytes += pendingEntry.uncompressedSize;
+
+    if (mode == ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING) {
+      // A later entry with the same name replaces the contents of the earlier one, but keeps its
+      // position in the zip, so nothing can be written until the stream is closed.
+      PendingEntry replaced = pendingByName.put(entry.getName(), pendingEntry);
+      if (replaced != null) {
+        replaced.compressed.cancel(false);
+        pendingBytes -= replaced.uncompressedSize;
+      }
+      while (pendingBytes > MAX_PENDING_BYTES && waitForOldestUncompressedEntry()) {
+        // Keep waiting.
+      }
+    } else {
+      pending.add(pendingEntry);
+      writeCompressedEntries(/* block */ false);
+    }
+  }
+
+  @Override
+  protected void actuallyClose() throws IOException {
+    writeCompressedEntries(/* block */ true);
+
+    new CentralDirectory().writeCentralDirectory(delegate, currentOffset, written);
+
+    delegate.close();
+  }
+
+  /**
+   * Writes entries to the delegate, in order, for as long as the oldest pending entry has been
+   * compressed. If {@code block} is set, or too much data is waiting to be compressed, this waits
+   * for the oldest entry rather than stopping.
+   */
+  private void writeCompressedEntries(boolean block) throws IOException {
+    Iterator<PendingEntry> iterator = getPendingEntries().iterator();
+    while (iterator.hasNext()) {
+      PendingEntry next = iterator.next();
+      if (!next.compressed.isDone() && !block && pendingBytes <= MAX_PENDING_BYTES) {
+        return;
+      }
+
+      byte[] compressed = join(next.compressed);
+      EntryAccounting entry = next.entry;
+      entry.setOffset(currentOffset);
+      currentOffset += entry.writeLocalFileHeader(delegate);
+      delegate.write(compressed);
+      currentOffset += compressed.length;
+
+      written.add(entry);
+      pendingBytes -= next.uncompressedSize;
+      iterator.remove();
+    }
+  }
+
+  /**
+   * Used when entries can't be written yet to wait for the oldest entry that's still being
+   * compressed.
+   *
+   * @return whether there was such an entry to wait for.
+   */
+  private boolean waitForOldestUncompressedEntry() throws IOException {
+    for (PendingEntry entry : getPendingEntries()) {
+      if (entry.uncompressedSize > 0) {
+        join(entry.compressed);
+        pendingBytes -= entry.uncompressedSize;
+        // The buffered bytes are no longer referenced, so don't count them again.
+        entry.uncompressedSize = 0;
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private Iterable<PendingEntry> getPendingEntries() {
+    return mode == ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING ?
+        pendingByName.values() :
+        pending;
+  }
+
+  private static byte[] join(Future<byte[]> task) throws IOException {
+    try {
+      return task.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while compressing zip entries", e);
+    } catch (ExecutionException e) {
+      Throwables.propagateIfInstanceOf(e.getCause(), IOException.class);
+      throw Throwables.propagate(e.getCause());
+    }
+  }
+
+  /**
+   * Compresses a single entry. The uncompressed bytes are dropped once they've been compressed,
+   * since the pool keeps a reference to the task until it's been written.
+   */
+  private static class CompressEntry implements Callable<byte[]> {
+    private final EntryAccounting entry;
+    @Nullable private byte[] bytes;
+
+    public CompressEntry(EntryAccounting entry, byte[] bytes) {
+      this.entry = entry;
+      this.bytes = bytes;
+    }
+
+    @Override
+    public byte[] call() throws IOException {
+      byte[] toCompress = Preconditions.checkNotNull(bytes);
+      bytes = null;
+      ByteArrayOutputStream out = new ByteArrayOutputStream(toCompress.length / 2 + 64);
+      entry.write(out, toCompress, 0, toCompress.length);
+      entry.close(out);
+      return out.toByteArray();
+    }
+  }
+
+  private static class PendingEntry {
+    private final EntryAccounting entry;
+    private final Future<byte[]> compressed;
+    private long uncompressedSize;
+
+    public PendingEntry(EntryAccounting entry, Future<byte[]> compressed, long size) {
+      this.entry = entry;
+      this.compressed = compressed;
+      this.uncompressedSize = size;
+    }
+  }
+}
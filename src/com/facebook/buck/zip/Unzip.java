@@ -18,22 +18,38 @@ package com.facebook.buck.zip;
 
 import com.facebook.buck.util.MoreFiles;
 import com.facebook.buck.util.MorePosixFilePermissions;
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Maps;
 import com.google.common.io.ByteStreams;
 
 import org.apache.commons.compress.archivers.zip.ZipArchiveEntry;
+import org.apache.commons.compress.archivers.zip.ZipArchiveInputStream;
 import org.apache.commons.compress.archivers.zip.ZipFile;
 
+import java.io.ByteArrayOutputStream;
 import java.io.FileOutputStream;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermission;
 import java.util.Enumeration;
+import java.util.Map;
 import java.util.Set;
 
+import javax.annotation.Nullable;
+
 public class Unzip {
 
+  private static final int END_OF_CENTRAL_DIRECTORY_SIGNATURE = 0x06054b50;
+  private static final int END_OF_CENTRAL_DIRECTORY_SIZE = 22;
+  private static final int CENTRAL_DIRECTORY_ENTRY_SIGNATURE = 0x02014b50;
+
   /** Utility class: do not instantiate. */
   private Unzip() {}
 
@@ -159,4 +175,214 @@ public class Unzip {
     return filesWritten.build();
   }
 
+  /**
+   * Unzips a zip archive as it is read from {@code input}, without first saving it to disk, and
+   * returns the paths of the written files. The stream is read to its end.
+   * <p>
+   * The executable bit of an entry is only recorded in the archive's central directory, which comes
+   * after all of the entry data. It is therefore applied to the written files once the whole
+   * archive has been read.
+   * <p>
+   * If the archive cannot be read to its end, for example because the stream is truncated, the
+   * files written so far are deleted before the exception is thrown, so that no partial output is
+   * left in {@code destination}.
+   */
+  public static ImmutableList<Path> extractZipStream(
+      InputStream input,
+      Path destination,
+      boolean overwriteExistingFiles) throws IOException {
+    Files.createDirectories(destination);
+
+    TailRecordingInputStream recordingInput = new TailRecordingInputStream(input);
+    Map<String, Path> filesWritten = Maps.newLinkedHashMap();
+    try {
+      extractZipStream(recordingInput, destination, overwriteExistingFiles, filesWritten);
+    } catch (IOException | RuntimeException e) {
+      for (Path target : filesWritten.values()) {
+        try {
+          Files.deleteIfExists(target);
+        } catch (IOException deleteException) {
+          e.addSuppressed(deleteException);
+        }
+      }
+      throw e;
+    }
+    return ImmutableList.copyOf(filesWritten.values());
+  }
+
+  /**
+   * Does the work of {@link #extractZipStream(InputStream, Path, boolean)}, recording each file in
+   * {@code filesWritten} before it is written.
+   */
+  private static void extractZipStream(
+      TailRecordingInputStream recordingInput,
+      Path destination,
+      boolean overwriteExistingFiles,
+      Map<String, Path> filesWritten) throws IOException {
+    // The stream is deliberately not closed here: the caller owns the underlying input.
+    ZipArchiveInputStream zip = new ZipArchiveInputStream(
+        recordingInput,
+        Charsets.UTF_8.name(),
+        /* useUnicodeExtraFields */ true,
+        /* allowStoredEntriesWithDataDescriptor */ true);
+    ZipArchiveEntry entry;
+    while ((entry = zip.getNextZipEntry()) != null) {
+      String fileName = entry.getName();
+      Path target = destination.resolve(fileName);
+      if (Files.exists(target) && !overwriteExistingFiles) {
+        continue;
+      }
+      if (entry.isDirectory()) {
+        Files.createDirectories(target);
+      } else {
+        Files.createDirectories(target.getParent());
+        filesWritten.put(fileName, target);
+        try (FileOutputStream out = new FileOutputStream(target.toFile())) {
+          ByteStreams.copy(zip, out);
+        }
+      }
+    }
+
+    // Everything from here on is the central directory, so keep hold of it while draining the
+    // rest of the stream.
+    recordingInput.startRecording();
+    ByteStreams.copy(recordingInput, ByteStreams.nullOutputStream());
+
+    for (Map.Entry<String, Long> attributes :
+        readExternalAttributes(recordingInput).entrySet()) {
+      Path target = filesWritten.get(attributes.getKey());
+      if (target == null) {
+        continue;
+      }
+      Set<PosixFilePermission> permissions =
+          MorePosixFilePermissions.fromMode(attributes.getValue() >> 16);
+      if (permissions.contains(PosixFilePermission.OWNER_EXECUTE)) {
+        MoreFiles.makeExecutable(target.toFile());
+      }
+    }
+  }
+
+  /**
+   * Parses the central directory at the end of the recorded stream and returns the external
+   * attributes of each entry, keyed by entry name.
+   */
+  private static Map<String, Long> readExternalAttributes(TailRecordingInputStream input)
+      throws IOException {
+    byte[] tail = input.getRecording();
+    ByteBuffer buffer = ByteBuffer.wrap(tail).order(ByteOrder.LITTLE_ENDIAN);
+
+    int endOfCentralDirectory = -1;
+    for (int i = tail.length - END_OF_CENTRAL_DIRECTORY_SIZE; i >= 0; i--) {
+      if (buffer.getInt(i) == END_OF_CENTRAL_DIRECTORY_SIGNATURE) {
+        endOfCentralDirectory = i;
+        break;
+      }
+    }
+    if (endOfCentralDirectory < 0) {
+      throw new IOException("Could not find the end of the zip central directory.");
+    }
+
+    long centralDirectoryOffset = buffer.getInt(endOfCentralDirectory + 16) & 0xffffffffL;
+    long tailOffset = input.getBytesRead() - tail.length;
+    if (centralDirectoryOffset < tailOffset) {
+      throw new IOException("The zip central directory was not recorded.");
+    }
+
+    Map<String, Long> attributes = Maps.newHashMap();
+    int position = (int) (centralDirectoryOffset - tailOffset);
+    while (position < endOfCentralDirectory &&
+        buffer.getInt(position) == CENTRAL_DIRECTORY_ENTRY_SIGNATURE) {
+      int nameLength = buffer.getShort(position + 28) & 0xffff;
+      int extraLength = buffer.getShort(position + 30) & 0xffff;
+      int commentLength = buffer.getShort(position + 32) & 0xffff;
+      long externalAttributes = buffer.getInt(position + 38) & 0xffffffffL;
+      String name = new String(tail, position + 46, nameLength, Charsets.UTF_8);
+      attributes.put(name, externalAttributes);
+      position += 46 + nameLength + extraLength + commentLength;
+    }
+    return attributes;
+  }
+
+  /**
+   * Remembers the last bytes that were read through it and, once {@link #startRecording()} has
+   * been called, every byte read after that. {@link ZipArchiveInputStream} reads ahead, so the
+   * start of the central directory may already have been consumed by the time the last entry is
+   * returned.
+   */
+  private static class TailRecordingInputStream extends FilterInputStream {
+
+    private static final int READ_AHEAD_ALLOWANCE = 64 * 1024;
+
+    private final byte[] ring = new byte[READ_AHEAD_ALLOWANCE];
+    private long bytesRead;
+    @Nullable
+    private ByteArrayOutputStream recording;
+
+    TailRecordingInputStream(InputStream in) {
+      super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+      int b = super.read();
+      if (b != -1) {
+        record(new byte[] {(byte) b}, 0, 1);
+      }
+      return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+      int read = super.read(b, off, len);
+      if (read > 0) {
+        record(b, off, read);
+      }
+      return read;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+      // Route skips through read() so that nothing escapes the recording.
+      byte[] buffer = new byte[(int) Math.min(n, 8192)];
+      int read = read(buffer, 0, buffer.length);
+      return Math.max(read, 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+      return false;
+    }
+
+    private void record(byte[] b, int off, int len) {
+      if (recording != null) {
+        recording.write(b, off, len);
+      } else {
+        // Only the last ring.length bytes can survive, and they wrap at most once.
+        int toCopy = Math.min(len, ring.length);
+        int srcPos = off + len - toCopy;
+        int ringPos = (int) ((bytesRead + len - toCopy) % ring.length);
+        int firstPart = Math.min(toCopy, ring.length - ringPos);
+        System.arraycopy(b, srcPos, ring, ringPos, firstPart);
+        System.arraycopy(b, srcPos + firstPart, ring, 0, toCopy - firstPart);
+      }
+      bytesRead += len;
+    }
+
+    void startRecording() {
+      int length = (int) Math.min(bytesRead, ring.length);
+      recording = new ByteArrayOutputStream(Math.max(length, 1024));
+      int start = (int) ((bytesRead - length) % ring.length);
+      int firstPart = Math.min(length, ring.length - start);
+      recording.write(ring, start, firstPart);
+      recording.write(ring, 0, length - firstPart);
+    }
+
+    byte[] getRecording() {
+      return Preconditions.checkNotNull(recording).toByteArray();
+    }
+
+    long getBytesRead() {
+      return bytesRead;
+    }
+  }
 }
@@ -100,6 +100,37 @@ public class ZipOutputStreams {
     }
   }
 
+  /**
+   * Create a new {@link CustomZipOutputStream} that compresses entries in parallel, handling
+   * duplicate entries in the way dictated by {@code mode}. The zip that is written is identical to
+   * the one {@link #newOutputStream(OutputStream, HandleDuplicates)} would write, but the contents
+   * of each entry are held in memory until they are compressed.
+   *
+   * @param zipFile The file to write to.
+   * @param mode How to handle duplicate entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(File zipFile, HandleDuplicates mode)
+      throws FileNotFoundException {
+    Preconditions.checkNotNull(zipFile);
+
+    return newParallelOutputStream(
+        new BufferedOutputStream(new FileOutputStream(zipFile)),
+        mode);
+  }
+
+  /**
+   * Create a new {@link CustomZipOutputStream} that compresses entries in parallel, handling
+   * duplicate entries in the way dictated by {@code mode}.
+   *
+   * @param out The output stream to write to.
+   * @param mode How to handle duplicate entries.
+   */
+  public static CustomZipOutputStream newParallelOutputStream(
+      OutputStream out,
+      HandleDuplicates mode) {
+    return new ParallelZipOutputStream(new DefaultClock(), out, mode);
+  }
+
   public static enum HandleDuplicates {
     /** Duplicate entries are simply appended to the zip. */
     APPEND_TO_ZIP,
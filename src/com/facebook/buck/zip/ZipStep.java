@@ -99,7 +99,7 @@ public class ZipStep implements Step {
       BufferedOutputStream baseOut =
           new BufferedOutputStream(filesystem.newFileOutputStream(pathToZipFile));
       final CustomZipOutputStream out =
-          ZipOutputStreams.newOutputStream(baseOut, OVERWRITE_EXISTING)) {
+          ZipOutputStreams.newParallelOutputStream(baseOut, OVERWRITE_EXISTING)) {
 
       final FileVisitor<Path> pathFileVisitor = new SimpleFileVisitor<Path>() {
         @Override
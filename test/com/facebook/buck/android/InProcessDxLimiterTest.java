@@ -0,0 +1,133 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.android;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class InProcessDxLimiterTest {
+
+  private static final long MEGABYTE = 1024 * 1024;
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void memoryEstimateGrowsWithTheInputUpToTheBudget() {
+    InProcessDxLimiter limiter = new InProcessDxLimiter(4, 1024 * MEGABYTE);
+    assertEquals(
+        InProcessDxLimiter.MIN_ESTIMATED_BYTES / MEGABYTE,
+        limiter.getEstimatedMegabytes(1024));
+    assertEquals(
+        10 * InProcessDxLimiter.ESTIMATED_BYTES_PER_INPUT_BYTE,
+        limiter.getEstimatedMegabytes(10 * MEGABYTE));
+    assertEquals(1024, limiter.getEstimatedMegabytes(1024 * MEGABYTE));
+  }
+
+  @Test
+  public void invocationsAreLimitedToTheNumberOfThreads() throws Exception {
+    InProcessDxLimiter limiter = new InProcessDxLimiter(2, 1024 * MEGABYTE);
+    InProcessDxLimiter.Permit first = limiter.acquire(0);
+    InProcessDxLimiter.Permit second = limiter.acquire(0);
+
+    Future<InProcessDxLimiter.Permit> third = acquireInBackground(limiter, 0);
+    assertBlocked(third);
+
+    first.close();
+    third.get(5, TimeUnit.SECONDS).close();
+    second.close();
+  }
+
+  @Test
+  public void invocationsAreLimitedByTheirEstimatedMemory() throws Exception {
+    long inputBytes = 10 * MEGABYTE;
+    long budget = 15 * InProcessDxLimiter.ESTIMATED_BYTES_PER_INPUT_BYTE * MEGABYTE;
+    InProcessDxLimiter limiter = new InProcessDxLimiter(4, budget);
+    InProcessDxLimiter.Permit first = limiter.acquire(inputBytes);
+
+    Future<InProcessDxLimiter.Permit> second = acquireInBackground(limiter, inputBytes);
+    assertBlocked(second);
+
+    first.close();
+    second.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  public void invocationLargerThanTheBudgetRunsOnItsOwn() throws Exception {
+    InProcessDxLimiter limiter = new InProcessDxLimiter(4, 64 * MEGABYTE);
+    InProcessDxLimiter.Permit huge = limiter.acquire(1024 * MEGABYTE);
+
+    Future<InProcessDxLimiter.Permit> small = acquireInBackground(limiter, 0);
+    assertBlocked(small);
+
+    huge.close();
+    // Releasing twice must not hand out more permits than there are.
+    huge.close();
+    small.get(5, TimeUnit.SECONDS).close();
+  }
+
+  @Test
+  public void limiterIsSharedUntilTheNumberOfThreadsChanges() {
+    InProcessDxLimiter limiter = InProcessDxLimiter.forNumThreads(3);
+    assertSame(limiter, InProcessDxLimiter.forNumThreads(3));
+    assertNotSame(limiter, InProcessDxLimiter.forNumThreads(5));
+  }
+
+  private Future<InProcessDxLimiter.Permit> acquireInBackground(
+      final InProcessDxLimiter limiter,
+      final long inputBytes) {
+    return executor.submit(
+        new Callable<InProcessDxLimiter.Permit>() {
+          @Override
+          public InProcessDxLimiter.Permit call() throws InterruptedException {
+            return limiter.acquire(inputBytes);
+          }
+        });
+  }
+
+  private static void assertBlocked(Future<?> future) throws Exception {
+    try {
+      future.get(100, TimeUnit.MILLISECONDS);
+      fail("Expected to be blocked.");
+    } catch (TimeoutException e) {
+      assertFalse(future.isDone());
+    }
+  }
+}
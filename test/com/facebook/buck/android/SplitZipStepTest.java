@@ -32,6 +32,7 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.hash.HashCode;
 import com.google.common.io.CharStreams;
 
 import org.easymock.EasyMock;
@@ -119,7 +120,10 @@ public class SplitZipStepTest {
             /* isPrimaryDexScenarioOverflowAllowed */ false),
         Optional.<Path>absent(),
         Optional.of(Paths.get("the/manifest.txt")),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        Suppliers.<Map<String, HashCode>>ofInstance(ImmutableMap.<String, HashCode>of()),
+        /* pathToDalvikStatsStore */ Paths.get(""),
+        /* pathToSecondaryZipLayout */ Optional.<Path>absent());
     List<String> linesInManifestFile = ImmutableList.of(
         "com/google/common/collect/ImmutableSortedSet",
         "  com/google/common/collect/ImmutableSet",
@@ -190,7 +194,10 @@ public class SplitZipStepTest {
             /* isPrimaryDexScenarioOverflowAllowed */ false),
         Optional.<Path>absent(),
         Optional.of(Paths.get("the/manifest.txt")),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        Suppliers.<Map<String, HashCode>>ofInstance(ImmutableMap.<String, HashCode>of()),
+        /* pathToDalvikStatsStore */ Paths.get(""),
+        /* pathToSecondaryZipLayout */ Optional.<Path>absent());
     List<String> linesInMappingFile = ImmutableList.of(
         "foo.bar.MappedPrimary -> foo.bar.a:",
         "foo.bar.MappedSecondary -> foo.bar.b:",
@@ -275,7 +282,10 @@ public class SplitZipStepTest {
             /* isPrimaryDexScenarioOverflowAllowed */ false),
         Optional.<Path>absent(),
         Optional.<Path>absent(),
-        /* pathToReportDir */ Paths.get(""));
+        /* pathToReportDir */ Paths.get(""),
+        Suppliers.<Map<String, HashCode>>ofInstance(ImmutableMap.<String, HashCode>of()),
+        /* pathToDalvikStatsStore */ Paths.get(""),
+        /* pathToSecondaryZipLayout */ Optional.<Path>absent());
 
     ProjectFilesystem projectFilesystem = EasyMock.createMock(ProjectFilesystem.class);
     EasyMock.expect(projectFilesystem.readLines(proguardConfigFile))
@@ -0,0 +1,163 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.java.classes.AbstractFileLike;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class PersistentDalvikStatsStoreTest {
+
+  private static final Path STORE = Paths.get("buck-out/bin/dalvik_stats");
+
+  private static final DalvikStatsTool.Stats FOO_STATS = new DalvikStatsTool.Stats(
+      100,
+      ImmutableSet.of(
+          new DalvikStatsTool.MethodReference("com/example/Foo", "<init>", "()V"),
+          new DalvikStatsTool.MethodReference("java/lang/Object", "<init>", "()V")));
+  private static final DalvikStatsTool.Stats BAR_STATS = new DalvikStatsTool.Stats(
+      200,
+      ImmutableSet.of(
+          new DalvikStatsTool.MethodReference("com/example/Bar", "<init>", "()V"),
+          new DalvikStatsTool.MethodReference("java/lang/Object", "<init>", "()V")));
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+  }
+
+  @Test
+  public void statsAreReusedAfterReload() throws IOException {
+    PersistentDalvikStatsStore store = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertFalse(store.get(sha1("Foo")).isPresent());
+    store.put(sha1("Foo"), FOO_STATS);
+    store.put(sha1("Bar"), BAR_STATS);
+    store.save();
+
+    PersistentDalvikStatsStore reloaded = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertStatsEqual(FOO_STATS, reloaded.get(sha1("Foo")).get());
+    assertStatsEqual(BAR_STATS, reloaded.get(sha1("Bar")).get());
+  }
+
+  @Test
+  public void onlyStatsUsedSinceLoadingAreSaved() throws IOException {
+    PersistentDalvikStatsStore store = PersistentDalvikStatsStore.load(filesystem, STORE);
+    store.put(sha1("Foo"), FOO_STATS);
+    store.put(sha1("Bar"), BAR_STATS);
+    store.save();
+
+    PersistentDalvikStatsStore reloaded = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertTrue(reloaded.get(sha1("Foo")).isPresent());
+    reloaded.save();
+
+    PersistentDalvikStatsStore pruned = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertTrue(pruned.get(sha1("Foo")).isPresent());
+    assertFalse(pruned.get(sha1("Bar")).isPresent());
+  }
+
+  @Test
+  public void unreadableStoreIsIgnored() throws IOException {
+    filesystem.createParentDirs(STORE);
+    Files.write(filesystem.resolve(STORE), "not a store".getBytes(Charsets.UTF_8));
+
+    PersistentDalvikStatsStore store = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertFalse(store.get(sha1("Foo")).isPresent());
+    store.put(sha1("Foo"), FOO_STATS);
+    store.save();
+
+    PersistentDalvikStatsStore reloaded = PersistentDalvikStatsStore.load(filesystem, STORE);
+    assertStatsEqual(FOO_STATS, reloaded.get(sha1("Foo")).get());
+  }
+
+  @Test
+  public void cacheOnlyParsesClassesThatAreNotInTheStore() throws IOException {
+    PersistentDalvikStatsStore store = PersistentDalvikStatsStore.load(filesystem, STORE);
+    store.put(sha1("Foo"), FOO_STATS);
+    DalvikStatsCache cache = new DalvikStatsCache(
+        Optional.of(store),
+        ImmutableMap.of("com/example/Foo", sha1("Foo")));
+
+    // Reading the contents of the class would fail, so the stats must come from the store.
+    assertSame(FOO_STATS, cache.getStats(new UnreadableFileLike("com/example/Foo.class")));
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, Charsets.UTF_8);
+  }
+
+  private static void assertStatsEqual(
+      DalvikStatsTool.Stats expected,
+      DalvikStatsTool.Stats actual) {
+    assertEquals(expected.estimatedLinearAllocSize, actual.estimatedLinearAllocSize);
+    assertEquals(expected.methodReferences, actual.methodReferences);
+  }
+
+  private static class UnreadableFileLike extends AbstractFileLike {
+    private final String relativePath;
+
+    public UnreadableFileLike(String relativePath) {
+      this.relativePath = relativePath;
+    }
+
+    @Override
+    public File getContainer() {
+      return new File("classes.jar");
+    }
+
+    @Override
+    public String getRelativePath() {
+      return relativePath;
+    }
+
+    @Override
+    public long getSize() {
+      return 0;
+    }
+
+    @Override
+    public InputStream getInput() throws IOException {
+      throw new IOException("Should not be read.");
+    }
+  }
+}
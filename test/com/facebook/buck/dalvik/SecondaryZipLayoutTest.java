@@ -0,0 +1,189 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.dalvik;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Charsets;
+import com.google.common.base.Predicate;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+public class SecondaryZipLayoutTest {
+
+  private static final Path LAYOUT = Paths.get("buck-out/bin/layout.txt");
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
+  }
+
+  @Test
+  public void layoutIsTheSameAfterReload() throws IOException {
+    SecondaryZipLayout layout = new SecondaryZipLayout(ImmutableList.<Set<String>>of(
+        ImmutableSet.of("a.class", "b.class"),
+        ImmutableSet.<String>of(),
+        ImmutableSet.of("assets/with space.txt")));
+    layout.save(filesystem, LAYOUT);
+
+    SecondaryZipLayout reloaded = SecondaryZipLayout.load(filesystem, LAYOUT);
+    assertEquals(3, reloaded.getSecondaryZipCount());
+    assertEquals(layout.getEntries(1), reloaded.getEntries(1));
+    assertEquals(ImmutableSet.of(), reloaded.getEntries(2));
+    assertEquals(3, reloaded.getSecondaryZipIndex("assets/with space.txt").get().intValue());
+    assertFalse(reloaded.getSecondaryZipIndex("c.class").isPresent());
+    assertTrue(reloaded.hasEmptySecondaryZips());
+  }
+
+  @Test
+  public void missingOrUnreadableLayoutIsEmpty() throws IOException {
+    assertSame(SecondaryZipLayout.EMPTY, SecondaryZipLayout.load(filesystem, LAYOUT));
+
+    filesystem.createParentDirs(LAYOUT);
+    Files.write(filesystem.resolve(LAYOUT), "not a layout".getBytes(Charsets.UTF_8));
+    assertSame(SecondaryZipLayout.EMPTY, SecondaryZipLayout.load(filesystem, LAYOUT));
+  }
+
+  @Test
+  public void entriesStayInTheZipTheyWereInBefore() throws IOException {
+    SecondaryZipLayout first =
+        split("first", ImmutableList.of("a", "b", "c", "d", "e", "f"), SecondaryZipLayout.EMPTY);
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSet.of("a", "b"),
+            ImmutableSet.of("c", "d"),
+            ImmutableSet.of("e", "f")),
+        entriesOf(first));
+
+    // Without the previous layout, removing c would move everything after it.
+    List<String> changedInputs = ImmutableList.of("a", "b", "d", "e", "f", "g");
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSet.of("a", "b"),
+            ImmutableSet.of("d", "e"),
+            ImmutableSet.of("f", "g")),
+        entriesOf(split("fresh", changedInputs, SecondaryZipLayout.EMPTY)));
+
+    SecondaryZipLayout second = split("second", changedInputs, first);
+    assertEquals(
+        ImmutableList.of(
+            ImmutableSet.of("a", "b"),
+            ImmutableSet.of("d"),
+            ImmutableSet.of("e", "f"),
+            ImmutableSet.of("g")),
+        entriesOf(second));
+    assertFalse(second.hasEmptySecondaryZips());
+
+    // A new entry fills up the last zip of the previous layout before a new zip is started.
+    SecondaryZipLayout third = split(
+        "third",
+        ImmutableList.of("a", "b", "d", "e", "f", "g", "h"),
+        second);
+    assertEquals(ImmutableSet.of("g", "h"), third.getEntries(4));
+  }
+
+  @Test
+  public void zipsWithoutEntriesAreStillWritten() throws IOException {
+    SecondaryZipLayout first =
+        split("first", ImmutableList.of("a", "b", "c", "d", "e", "f"), SecondaryZipLayout.EMPTY);
+
+    SecondaryZipLayout second = split("second", ImmutableList.of("a", "b", "e", "f"), first);
+    assertEquals(3, second.getSecondaryZipCount());
+    assertEquals(ImmutableSet.of(), second.getEntries(2));
+    assertTrue(second.hasEmptySecondaryZips());
+    assertTrue(new File(tmpDir.getRoot(), "second/secondary-2.zip").exists());
+  }
+
+  /**
+   * Splits zip entries with the given names, each 4 bytes long, so that two of them fit in each
+   * secondary zip.
+   */
+  private SecondaryZipLayout split(
+      String name,
+      List<String> entries,
+      SecondaryZipLayout previousLayout) throws IOException {
+    File outDir = tmpDir.newFolder(name);
+    File reportDir = new File(outDir, "report");
+    assertTrue(reportDir.mkdir());
+    File inZip = new File(outDir, "in.zip");
+    try (ZipOutputStream zipOut = new ZipOutputStream(new FileOutputStream(inZip))) {
+      zipOut.putNextEntry(new ZipEntry("primary"));
+      zipOut.write(new byte[4]);
+      for (String entry : entries) {
+        zipOut.putNextEntry(new ZipEntry(entry));
+        zipOut.write(new byte[4]);
+      }
+    }
+
+    ZipSplitter splitter = DefaultZipSplitter.splitZip(
+        filesystem,
+        Collections.singleton(inZip.toPath()),
+        new File(outDir, "primary.zip"),
+        outDir,
+        "secondary-%d.zip",
+        8 /* soft limit */,
+        8 /* hard limit */,
+        new Predicate<String>() {
+          @Override
+          public boolean apply(String entry) {
+            return entry.equals("primary");
+          }
+        },
+        ZipSplitter.DexSplitStrategy.MINIMIZE_PRIMARY_DEX_SIZE,
+        ZipSplitter.CanaryStrategy.DONT_INCLUDE_CANARIES,
+        reportDir,
+        previousLayout);
+    List<File> secondaryZips = splitter.execute();
+    SecondaryZipLayout layout = splitter.getSecondaryZipLayout();
+    assertEquals(layout.getSecondaryZipCount(), secondaryZips.size());
+    return layout;
+  }
+
+  private static List<Set<String>> entriesOf(SecondaryZipLayout layout) {
+    ImmutableList.Builder<Set<String>> entries = ImmutableList.builder();
+    for (int i = 1; i <= layout.getSecondaryZipCount(); i++) {
+      entries.add(layout.getEntries(i));
+    }
+    return entries.build();
+  }
+}
@@ -24,7 +24,6 @@ import com.google.common.base.Functions;
 import com.google.common.base.Supplier;
 import com.google.common.collect.FluentIterable;
 import com.google.common.collect.Lists;
-import com.google.common.eventbus.EventBus;
 import com.google.common.eventbus.Subscribe;
 import com.google.common.util.concurrent.MoreExecutors;
 
@@ -67,14 +66,30 @@ public class BuckEventBusFactory {
     return buckEventBus;
   }
 
-  public static EventBus getEventBusFor(BuckEventBus buckEventBus) {
-    return buckEventBus.getEventBus();
+  /**
+   * @return a view of {@code buckEventBus} which posts events as they are, so that tests can post
+   *     events configured with {@link TestEventConfigerator}.
+   */
+  public static RawEventBus getEventBusFor(BuckEventBus buckEventBus) {
+    return new RawEventBus(buckEventBus);
   }
 
   public static Supplier<Long> getThreadIdSupplierFor(BuckEventBus buckEventBus) {
     return buckEventBus.getThreadIdSupplier();
   }
 
+  public static class RawEventBus {
+    private final BuckEventBus buckEventBus;
+
+    private RawEventBus(BuckEventBus buckEventBus) {
+      this.buckEventBus = buckEventBus;
+    }
+
+    public void post(BuckEvent event) {
+      buckEventBus.postWithoutConfiguring(event);
+    }
+  }
+
   /**
    * Error listener that prints events at level {@link Level#WARNING} or higher.
    */
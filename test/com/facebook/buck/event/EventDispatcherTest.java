@@ -0,0 +1,248 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event;
+
+import static com.facebook.buck.event.TestEventConfigerator.configureTestEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.timing.FakeClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMultiset;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.eventbus.Subscribe;
+import com.google.common.util.concurrent.MoreExecutors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class EventDispatcherTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws InterruptedException {
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+  }
+
+  @Test
+  public void eventsSpillWhenTheRingBufferIsFullButStayInOrder() throws InterruptedException {
+    EventDispatcher dispatcher = new EventDispatcher(executor, new FakeClock(0), 4);
+    BlockingListener listener = new BlockingListener();
+    dispatcher.register(listener);
+
+    for (int i = 0; i < 20; i++) {
+      dispatcher.post(configureTestEvent(new NumberedEvent(i)));
+    }
+    listener.release.countDown();
+    listener.awaitEvents(20);
+
+    List<Integer> expected = Lists.newArrayList();
+    for (int i = 0; i < 20; i++) {
+      expected.add(i);
+    }
+    assertEquals(expected, listener.getNumbers());
+
+    // The counters are updated after the handler returns, so wait for them to catch up.
+    ListenerQueueStats stats = Iterables.getOnlyElement(dispatcher.getStats());
+    long deadline = System.currentTimeMillis() + 10000;
+    while (stats.getEventsDelivered() < 20 && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+      stats = Iterables.getOnlyElement(dispatcher.getStats());
+    }
+    assertEquals(20, stats.getEventsDelivered());
+    assertTrue(stats.getEventsSpilled() > 0);
+    assertTrue(stats.getMaxDepth() > 4);
+  }
+
+  @Test
+  public void aSlowListenerDoesNotHoldUpOtherListeners() throws InterruptedException {
+    EventDispatcher dispatcher = new EventDispatcher(executor, new FakeClock(0), 16);
+    BlockingListener slowListener = new BlockingListener();
+    BlockingListener fastListener = new BlockingListener();
+    fastListener.release.countDown();
+    dispatcher.register(slowListener);
+    dispatcher.register(fastListener);
+
+    dispatcher.post(configureTestEvent(new NumberedEvent(1)));
+    dispatcher.post(configureTestEvent(new NumberedEvent(2)));
+    fastListener.awaitEvents(2);
+    assertEquals(ImmutableList.of(1, 2), fastListener.getNumbers());
+
+    slowListener.release.countDown();
+    slowListener.awaitEvents(2);
+    assertEquals(ImmutableList.of(1, 2), slowListener.getNumbers());
+  }
+
+  @Test
+  public void pendingCoalescableEventsAreReplacedByNewerOnes() throws InterruptedException {
+    EventDispatcher dispatcher = new EventDispatcher(executor, new FakeClock(0), 16);
+    BlockingListener listener = new BlockingListener();
+    dispatcher.register(listener);
+
+    // The first event is delivered, but blocks the listener until it is released.
+    dispatcher.post(configureTestEvent(new NumberedEvent(0)));
+    listener.delivering.await();
+    dispatcher.post(configureTestEvent(new ProgressEvent(1)));
+    dispatcher.post(configureTestEvent(new NumberedEvent(2)));
+    dispatcher.post(configureTestEvent(new ProgressEvent(3)));
+    dispatcher.post(configureTestEvent(new ProgressEvent(4)));
+    listener.release.countDown();
+    listener.awaitEvents(3);
+
+    // The latest progress is delivered where the first pending one was posted.
+    assertEquals(ImmutableList.of(0, 4, 2), listener.getNumbers());
+    assertEquals(2, Iterables.getOnlyElement(dispatcher.getStats()).getEventsCoalesced());
+  }
+
+  @Test
+  public void handlersOfSupertypesAndSuperclassesReceiveEvents() {
+    EventDispatcher dispatcher =
+        new EventDispatcher(MoreExecutors.directExecutor(), new FakeClock(0), 16);
+    SubclassListener listener = new SubclassListener();
+    dispatcher.register(listener);
+    // Registering twice must not deliver events twice.
+    dispatcher.register(listener);
+
+    dispatcher.post(configureTestEvent(new NumberedEvent(7)));
+    assertEquals(
+        ImmutableSet.of("any 7", "numbered 7"),
+        ImmutableMultiset.copyOf(listener.received).elementSet());
+    assertEquals(2, listener.received.size());
+  }
+
+  @Test
+  public void anExceptionFromOneHandlerDoesNotStopDelivery() {
+    EventDispatcher dispatcher =
+        new EventDispatcher(MoreExecutors.directExecutor(), new FakeClock(0), 16);
+    ThrowingListener listener = new ThrowingListener();
+    dispatcher.register(listener);
+
+    dispatcher.post(configureTestEvent(new NumberedEvent(1)));
+    dispatcher.post(configureTestEvent(new NumberedEvent(2)));
+    assertEquals(2, listener.calls);
+
+    dispatcher.unregister(listener);
+    dispatcher.post(configureTestEvent(new NumberedEvent(3)));
+    assertEquals(2, listener.calls);
+  }
+
+  private static class NumberedEvent extends AbstractBuckEvent {
+    private final int number;
+
+    private NumberedEvent(int number) {
+      this.number = number;
+    }
+
+    @Override
+    protected String getValueString() {
+      return Integer.toString(number);
+    }
+
+    @Override
+    public boolean isRelatedTo(BuckEvent event) {
+      return false;
+    }
+
+    @Override
+    public String getEventName() {
+      return "NumberedEvent";
+    }
+  }
+
+  private static class ProgressEvent extends NumberedEvent implements CoalescableEvent {
+    private ProgressEvent(int number) {
+      super(number);
+    }
+
+    @Override
+    public Object getCoalescingKey() {
+      return "progress";
+    }
+  }
+
+  private static class BlockingListener {
+    private final CountDownLatch delivering = new CountDownLatch(1);
+    private final CountDownLatch release = new CountDownLatch(1);
+    private final List<Integer> numbers =
+        Collections.synchronizedList(Lists.<Integer>newArrayList());
+
+    @Subscribe
+    public void numbered(NumberedEvent event) throws InterruptedException {
+      delivering.countDown();
+      release.await();
+      numbers.add(event.number);
+      synchronized (this) {
+        notifyAll();
+      }
+    }
+
+    private synchronized void awaitEvents(int count) throws InterruptedException {
+      long deadline = System.currentTimeMillis() + 10000;
+      while (numbers.size() < count && System.currentTimeMillis() < deadline) {
+        wait(100);
+      }
+      assertEquals(count, numbers.size());
+    }
+
+    private List<Integer> getNumbers() {
+      return ImmutableList.copyOf(numbers);
+    }
+  }
+
+  private static class BaseListener {
+    protected final List<String> received = Lists.newArrayList();
+
+    @Subscribe
+    public void any(BuckEvent event) {
+      received.add("any " + ((NumberedEvent) event).number);
+    }
+  }
+
+  private static class SubclassListener extends BaseListener {
+    @Subscribe
+    public void numbered(NumberedEvent event) {
+      received.add("numbered " + event.number);
+    }
+  }
+
+  private static class ThrowingListener {
+    private int calls;
+
+    @Subscribe
+    public void numbered(NumberedEvent event) {
+      calls++;
+      throw new IllegalStateException("Expected by the test.");
+    }
+  }
+}
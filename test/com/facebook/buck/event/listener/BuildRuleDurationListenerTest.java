@@ -0,0 +1,82 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.rules.BuildRule;
+import com.facebook.buck.rules.BuildRuleEvent;
+import com.facebook.buck.rules.BuildRuleResolver;
+import com.facebook.buck.rules.BuildRuleStatus;
+import com.facebook.buck.rules.BuildRuleSuccess;
+import com.facebook.buck.rules.CacheResult;
+import com.facebook.buck.rules.FakeBuildRule;
+import com.facebook.buck.rules.RuleDurationHistory;
+import com.facebook.buck.rules.SourcePathResolver;
+import com.facebook.buck.timing.SettableFakeClock;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildRuleDurationListenerTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void onlyRulesThatWereBuiltLocallyAreRecorded() {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    SourcePathResolver pathResolver = new SourcePathResolver(new BuildRuleResolver());
+    BuildRule built = new FakeBuildRule("//:built", pathResolver);
+    BuildRule fetched = new FakeBuildRule("//:fetched", pathResolver);
+
+    SettableFakeClock clock = new SettableFakeClock(0, 0);
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance(clock);
+    BuildRuleDurationListener listener = new BuildRuleDurationListener(filesystem);
+    eventBus.register(listener);
+
+    clock.setCurrentTimeMillis(1000);
+    eventBus.post(BuildRuleEvent.started(built));
+    eventBus.post(BuildRuleEvent.started(fetched));
+    clock.setCurrentTimeMillis(1250);
+    eventBus.post(
+        BuildRuleEvent.finished(
+            fetched,
+            BuildRuleStatus.SUCCESS,
+            CacheResult.DIR_HIT,
+            Optional.of(BuildRuleSuccess.Type.FETCHED_FROM_CACHE)));
+    clock.setCurrentTimeMillis(1400);
+    eventBus.post(
+        BuildRuleEvent.finished(
+            built,
+            BuildRuleStatus.SUCCESS,
+            CacheResult.MISS,
+            Optional.of(BuildRuleSuccess.Type.BUILT_LOCALLY)));
+    listener.outputTrace(new BuildId());
+
+    RuleDurationHistory history = RuleDurationHistory.load(filesystem);
+    assertEquals(Optional.of(400L), history.getDurationMillis(built.getBuildTarget()));
+    assertFalse(history.getDurationMillis(fetched.getBuildTarget()).isPresent());
+  }
+}
@@ -70,12 +70,15 @@ import org.junit.rules.TemporaryFolder;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Locale;
 import java.util.TimeZone;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
 
 
 public class ChromeTraceBuildListenerTest {
@@ -125,7 +128,7 @@ public class ChromeTraceBuildListenerTest {
   }
 
   @Test
-  public void testBuildJson() throws IOException {
+  public void testBuildJson() throws InterruptedException, IOException {
     ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
 
     ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
@@ -289,7 +292,7 @@ public class ChromeTraceBuildListenerTest {
   }
 
   @Test
-  public void testOutputFailed() throws IOException {
+  public void testOutputFailed() throws InterruptedException, IOException {
     ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
 
     ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
@@ -313,7 +316,7 @@ public class ChromeTraceBuildListenerTest {
   }
 
   @Test
-  public void outputFileUsesCurrentTime() throws IOException {
+  public void outputFileUsesCurrentTime() throws InterruptedException, IOException {
     ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
 
     ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
@@ -327,4 +330,41 @@ public class ChromeTraceBuildListenerTest {
         projectFilesystem.exists(
             Paths.get("buck-out/log/traces/build.2014-09-02.16-55-51.BUILD_ID.trace")));
   }
+
+  @Test
+  public void streamingModeWritesACompressedTrace() throws InterruptedException, IOException {
+    ProjectFilesystem projectFilesystem = new ProjectFilesystem(tmpDir.getRoot().toPath());
+    ChromeTraceBuildListener listener = new ChromeTraceBuildListener(
+        projectFilesystem,
+        new FakeClock(1409702151000000000L),
+        Locale.US,
+        TimeZone.getTimeZone("America/Los_Angeles"),
+        /* tracesToKeep */ 1,
+        Optional.of(new BuildId("BUILD_ID")));
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance(
+        new IncrementingFakeClock(TimeUnit.MILLISECONDS.toNanos(1)));
+    eventBus.register(listener);
+
+    ImmutableSet<BuildTarget> buildTargets =
+        ImmutableSet.of(BuildTargetFactory.newInstance("//fake:rule"));
+    eventBus.post(BuildEvent.started(buildTargets));
+    eventBus.post(BuildEvent.finished(buildTargets, 0));
+    listener.outputTrace(new BuildId("BUILD_ID"));
+
+    Path tracePath = Paths.get("buck-out/log/traces/build.2014-09-02.16-55-51.BUILD_ID.trace.gz");
+    assertTrue(projectFilesystem.exists(tracePath));
+    assertTrue(projectFilesystem.exists(Paths.get("buck-out/log/traces/build.trace.gz")));
+
+    List<ChromeTraceEvent> events;
+    try (InputStream input =
+             new GZIPInputStream(projectFilesystem.newFileInputStream(tracePath))) {
+      events = new ObjectMapper().readValue(
+          input,
+          new TypeReference<List<ChromeTraceEvent>>() {});
+    }
+    assertEquals(3, events.size());
+    assertEquals("process_name", events.get(0).getName());
+    assertEquals(ChromeTraceEvent.Phase.BEGIN, events.get(1).getPhase());
+    assertEquals(ChromeTraceEvent.Phase.END, events.get(2).getPhase());
+  }
 }
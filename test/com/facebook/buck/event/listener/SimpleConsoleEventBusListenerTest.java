@@ -42,7 +42,6 @@ import com.facebook.buck.timing.IncrementingFakeClock;
 import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.eventbus.EventBus;
 
 import org.junit.Test;
 
@@ -53,7 +52,7 @@ public class SimpleConsoleEventBusListenerTest {
   public void testSimpleBuild() {
     Clock fakeClock = new IncrementingFakeClock(TimeUnit.SECONDS.toNanos(1));
     BuckEventBus eventBus = BuckEventBusFactory.newInstance(fakeClock);
-    EventBus rawEventBus = BuckEventBusFactory.getEventBusFor(eventBus);
+    BuckEventBusFactory.RawEventBus rawEventBus = BuckEventBusFactory.getEventBusFor(eventBus);
     TestConsole console = new TestConsole();
 
     BuildTarget fakeTarget = BuildTargetFactory.newInstance("//banana:stand");
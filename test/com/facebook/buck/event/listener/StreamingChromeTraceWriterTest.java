@@ -0,0 +1,109 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.event.listener;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.ChromeTraceEvent;
+import com.fasterxml.jackson.core.type.TypeReference;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.ByteStreams;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.zip.GZIPInputStream;
+
+public class StreamingChromeTraceWriterTest {
+
+  @Test
+  public void writesEveryEventAndEndsTheTraceWhenClosed()
+      throws InterruptedException, IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    // A buffer smaller than the number of events, so that writing has to wait for the writer.
+    StreamingChromeTraceWriter writer = new StreamingChromeTraceWriter(
+        output,
+        /* bufferSize */ 2,
+        Executors.defaultThreadFactory());
+    for (int i = 0; i < 10; i++) {
+      writer.write(createEvent("event" + i));
+    }
+    writer.close();
+
+    List<ChromeTraceEvent> events = readEvents(decompress(output.toByteArray()));
+    assertEquals(10, events.size());
+    assertEquals("event0", events.get(0).getName());
+    assertEquals("event9", events.get(9).getName());
+  }
+
+  @Test
+  public void flushedEventsAreReadableBeforeTheTraceIsClosed()
+      throws InterruptedException, IOException {
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    StreamingChromeTraceWriter writer = new StreamingChromeTraceWriter(
+        output,
+        /* bufferSize */ 16,
+        Executors.defaultThreadFactory());
+    writer.write(createEvent("first"));
+    writer.write(createEvent("second"));
+    writer.flush();
+
+    // As if Buck had been killed: the gzip trailer and the closing bracket are both missing.
+    String truncated = decompress(output.toByteArray());
+    List<ChromeTraceEvent> events = readEvents(truncated + "]");
+    assertEquals(2, events.size());
+    assertEquals("second", events.get(1).getName());
+
+    writer.close();
+  }
+
+  private static ChromeTraceEvent createEvent(String name) {
+    return new ChromeTraceEvent(
+        "buck",
+        name,
+        ChromeTraceEvent.Phase.BEGIN,
+        /* processId */ 0,
+        /* threadId */ 1,
+        /* microTime */ 42,
+        ImmutableMap.of("key", "value"));
+  }
+
+  /**
+   * @return as much of the gzipped {@code bytes} as can be decompressed.
+   */
+  private static String decompress(byte[] bytes) throws IOException {
+    ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+    try (InputStream input = new GZIPInputStream(new ByteArrayInputStream(bytes))) {
+      ByteStreams.copy(input, decompressed);
+    } catch (EOFException e) {
+      // The stream was not finished; everything that was flushed has been read.
+    }
+    return new String(decompressed.toByteArray(), UTF_8);
+  }
+
+  private static List<ChromeTraceEvent> readEvents(String json) throws IOException {
+    return new ObjectMapper().readValue(json, new TypeReference<List<ChromeTraceEvent>>() {});
+  }
+}
@@ -52,7 +52,6 @@ import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
-import com.google.common.eventbus.EventBus;
 
 import org.junit.Test;
 
@@ -83,7 +82,7 @@ public class SuperConsoleEventBusListenerTest {
     SourcePathResolver pathResolver = new SourcePathResolver(new BuildRuleResolver());
     Clock fakeClock = new IncrementingFakeClock(TimeUnit.SECONDS.toNanos(1));
     BuckEventBus eventBus = BuckEventBusFactory.newInstance(fakeClock);
-    EventBus rawEventBus = BuckEventBusFactory.getEventBusFor(eventBus);
+    BuckEventBusFactory.RawEventBus rawEventBus = BuckEventBusFactory.getEventBusFor(eventBus);
     TestConsole console = new TestConsole();
 
     BuildTarget fakeTarget = BuildTargetFactory.newInstance("//banana:stand");
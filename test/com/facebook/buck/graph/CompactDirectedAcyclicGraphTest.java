@@ -0,0 +1,226 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+public class CompactDirectedAcyclicGraphTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newFixedThreadPool(4);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void hasTheSameNodesAndEdgesAsTheGraphItWasCopiedFrom() {
+    MutableDirectedGraph<String> mutableGraph = createCrissCrossGraph();
+    CompactDirectedAcyclicGraph<String> graph = CompactDirectedAcyclicGraph.copyOf(mutableGraph);
+
+    assertEquals(6, graph.getNodeCount());
+    assertEquals(mutableGraph.getEdgeCount(), graph.getEdgeCount());
+    for (String node : mutableGraph.getNodes()) {
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getOutgoingNodesFor(node)),
+          ImmutableSet.copyOf(graph.getOutgoingNodesFor(node)));
+      assertEquals(
+          ImmutableSet.copyOf(mutableGraph.getIncomingNodesFor(node)),
+          ImmutableSet.copyOf(graph.getIncomingNodesFor(node)));
+      assertEquals(node, graph.getNode(graph.getId(node)));
+    }
+    assertEquals(ImmutableList.of("A"), graph.getNodesWithNoIncomingEdges());
+    assertEquals(ImmutableList.of("F"), graph.getNodesWithNoOutgoingEdges());
+    assertFalse(graph.containsNode("G"));
+  }
+
+  @Test
+  public void duplicateEdgesAreOnlyStoredOnce() {
+    CompactDirectedAcyclicGraph<String> graph = CompactDirectedAcyclicGraph.<String>builder()
+        .addEdge("A", "C")
+        .addEdge("A", "B")
+        .addEdge("A", "C")
+        .build();
+
+    assertEquals(2, graph.getEdgeCount());
+    // Edges keep the order they were first added in.
+    assertEquals(ImmutableList.of("C", "B"), graph.getOutgoingNodesFor("A"));
+    assertEquals(ImmutableList.of("A"), graph.getIncomingNodesFor("C"));
+    assertEquals(2, graph.getOutDegree(graph.getId("A")));
+    assertEquals(graph.getId("B"), graph.getOutgoingNode(graph.getId("A"), 1));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void cyclesAreRejected() {
+    CompactDirectedAcyclicGraph.<String>builder()
+        .addEdge("A", "B")
+        .addEdge("B", "C")
+        .addEdge("C", "A")
+        .build();
+  }
+
+  @Test
+  public void bottomUpOrderVisitsEveryNodeAfterItsDependencies() {
+    CompactDirectedAcyclicGraph<String> graph =
+        CompactDirectedAcyclicGraph.copyOf(createCrissCrossGraph());
+
+    List<String> order = Lists.newArrayList();
+    for (int id : graph.getIdsInBottomUpOrder()) {
+      order.add(graph.getNode(id));
+    }
+    assertDependenciesComeFirst(graph, order);
+  }
+
+  @Test
+  public void worksWithTheExistingBottomUpTraversal() {
+    CompactDirectedAcyclicGraph<String> graph =
+        CompactDirectedAcyclicGraph.copyOf(createCrissCrossGraph());
+
+    final List<String> order = Lists.newArrayList();
+    new AbstractBottomUpTraversal<String, Void>(graph) {
+      @Override
+      public void visit(String node) {
+        order.add(node);
+      }
+
+      @Override
+      public Void getResult() {
+        return null;
+      }
+    }.traverse();
+    assertDependenciesComeFirst(graph, order);
+  }
+
+  @Test
+  public void parallelTraversalVisitsEveryNodeAfterItsDependencies() throws InterruptedException {
+    // A wide graph: every node depends on the two nodes before it, and on a few leaves.
+    CompactDirectedAcyclicGraph.Builder<Integer> builder = CompactDirectedAcyclicGraph.builder();
+    for (int i = 0; i < 1000; i++) {
+      builder.addNode(i);
+      if (i >= 2) {
+        builder.addEdge(i, i - 1);
+        builder.addEdge(i, i - 2);
+      }
+      builder.addEdge(i, 1000 + i % 10);
+    }
+    final CompactDirectedAcyclicGraph<Integer> graph = builder.build();
+
+    final List<Integer> order = Collections.synchronizedList(Lists.<Integer>newArrayList());
+    graph.traverseBottomUp(
+        executor,
+        new CompactDirectedAcyclicGraph.Visitor<Integer>() {
+          @Override
+          public void visit(Integer node) {
+            order.add(node);
+          }
+        });
+    assertDependenciesComeFirst(graph, order);
+  }
+
+  @Test
+  public void parallelTraversalStopsAtTheFirstFailure() throws InterruptedException {
+    CompactDirectedAcyclicGraph<String> graph =
+        CompactDirectedAcyclicGraph.copyOf(createCrissCrossGraph());
+
+    final Set<String> visited = Sets.newConcurrentHashSet();
+    try {
+      graph.traverseBottomUp(
+          executor,
+          new CompactDirectedAcyclicGraph.Visitor<String>() {
+            @Override
+            public void visit(String node) {
+              visited.add(node);
+              if (node.equals("D")) {
+                throw new IllegalStateException("Failed to visit D.");
+              }
+            }
+          });
+      fail("The failure should have been rethrown.");
+    } catch (IllegalStateException e) {
+      assertEquals("Failed to visit D.", e.getMessage());
+    }
+    assertFalse(visited.contains("B"));
+    assertFalse(visited.contains("A"));
+  }
+
+  private static void assertDependenciesComeFirst(
+      CompactDirectedAcyclicGraph<?> graph,
+      List<?> order) {
+    assertEquals(graph.getNodeCount(), order.size());
+    assertEquals(graph.getNodeCount(), ImmutableSet.copyOf(order).size());
+    int[] positions = new int[graph.getNodeCount()];
+    for (int i = 0; i < order.size(); i++) {
+      positions[graph.getNodes().indexOf(order.get(i))] = i;
+    }
+    for (int id = 0; id < graph.getNodeCount(); id++) {
+      for (int i = 0; i < graph.getOutDegree(id); i++) {
+        assertTrue(positions[graph.getOutgoingNode(id, i)] < positions[id]);
+      }
+    }
+  }
+
+  /**
+   * <pre>
+   *     A
+   *   /   \
+   *  B     C
+   *  | \ / |
+   *  | / \ |
+   *  D     E
+   *    \ /
+   *     F
+   * </pre>
+   */
+  private static MutableDirectedGraph<String> createCrissCrossGraph() {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    for (String node : ImmutableList.of("A", "B", "C", "D", "E", "F")) {
+      graph.addNode(node);
+    }
+    graph.addEdge("A", "B");
+    graph.addEdge("A", "C");
+    graph.addEdge("B", "D");
+    graph.addEdge("B", "E");
+    graph.addEdge("C", "D");
+    graph.addEdge("C", "E");
+    graph.addEdge("D", "F");
+    graph.addEdge("E", "F");
+    return graph;
+  }
+}
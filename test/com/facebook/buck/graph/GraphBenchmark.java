@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.graph;
+
+import com.google.common.base.Predicates;
+
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Compares the heap used by, and the time taken to build and traverse,
+ * {@link DefaultImmutableDirectedAcyclicGraph} and {@link CompactDirectedAcyclicGraph} holding the
+ * same randomly generated graph. This is not a test: run it with the test classpath, optionally
+ * passing the number of nodes (300000 by default) and the number of dependencies of each node (8
+ * by default). Give the JVM enough heap to hold both graphs, or the heap numbers will be skewed by
+ * collections.
+ */
+public class GraphBenchmark {
+
+  private static final int ITERATIONS = 5;
+
+  private GraphBenchmark() {}
+
+  public static void main(String... args) throws InterruptedException {
+    int numNodes = args.length > 0 ? Integer.parseInt(args[0]) : 300000;
+    int numDeps = args.length > 1 ? Integer.parseInt(args[1]) : 8;
+    String[] nodes = new String[numNodes];
+    for (int i = 0; i < numNodes; i++) {
+      nodes[i] = "//java/com/example/module" + (i / 100) + ":target" + i;
+    }
+
+    long before = usedHeap();
+    long start = System.nanoTime();
+    MutableDirectedGraph<String> mutableGraph = createGraph(nodes, numDeps);
+    DefaultImmutableDirectedAcyclicGraph<String> defaultGraph =
+        new DefaultImmutableDirectedAcyclicGraph<>(mutableGraph);
+    long defaultBuildNanos = System.nanoTime() - start;
+    mutableGraph = null;
+    long defaultHeap = usedHeap() - before;
+
+    before = usedHeap();
+    start = System.nanoTime();
+    CompactDirectedAcyclicGraph<String> compactGraph = createCompactGraph(nodes, numDeps);
+    long compactBuildNanos = System.nanoTime() - start;
+    long compactHeap = usedHeap() - before;
+
+    System.out.printf(
+        "%d nodes, %d edges.%n",
+        compactGraph.getNodeCount(),
+        compactGraph.getEdgeCount());
+    System.out.printf(
+        "%-46s %8s %8s%n",
+        "",
+        "default",
+        "compact");
+    System.out.printf(
+        "%-46s %8d %8d%n",
+        "build (ms)",
+        TimeUnit.NANOSECONDS.toMillis(defaultBuildNanos),
+        TimeUnit.NANOSECONDS.toMillis(compactBuildNanos));
+    System.out.printf(
+        "%-46s %8d %8d%n",
+        "retained heap (MB)",
+        defaultHeap / 1024 / 1024,
+        compactHeap / 1024 / 1024);
+
+    long defaultTraversal = Long.MAX_VALUE;
+    long compactTraversal = Long.MAX_VALUE;
+    long compactIdTraversal = Long.MAX_VALUE;
+    long defaultSort = Long.MAX_VALUE;
+    long compactParallel = Long.MAX_VALUE;
+    ForkJoinPool pool = new ForkJoinPool();
+    for (int i = 0; i < ITERATIONS; i++) {
+      start = System.nanoTime();
+      countBottomUp(defaultGraph);
+      defaultTraversal = Math.min(defaultTraversal, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      countBottomUp(compactGraph);
+      compactTraversal = Math.min(compactTraversal, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      check(compactGraph.getIdsInBottomUpOrder().length, numNodes);
+      compactIdTraversal = Math.min(compactIdTraversal, System.nanoTime() - start);
+
+      start = System.nanoTime();
+      check(TopologicalSort.sort(defaultGraph, Predicates.<String>alwaysTrue()).size(), numNodes);
+      defaultSort = Math.min(defaultSort, System.nanoTime() - start);
+
+      final AtomicInteger visited = new AtomicInteger();
+      start = System.nanoTime();
+      compactGraph.traverseBottomUp(
+          pool,
+          new CompactDirectedAcyclicGraph.Visitor<String>() {
+            @Override
+            public void visit(String node) {
+              visited.incrementAndGet();
+            }
+          });
+      compactParallel = Math.min(compactParallel, System.nanoTime() - start);
+      check(visited.get(), numNodes);
+    }
+    pool.shutdown();
+
+    printRow("AbstractBottomUpTraversal (ms)", defaultTraversal, compactTraversal);
+    printRow("TopologicalSort / getIdsInBottomUpOrder (ms)", defaultSort, compactIdTraversal);
+    printRow("parallel traverseBottomUp (ms)", -1, compactParallel);
+  }
+
+  private static MutableDirectedGraph<String> createGraph(String[] nodes, int numDeps) {
+    MutableDirectedGraph<String> graph = new MutableDirectedGraph<>();
+    Random random = new Random(42);
+    for (int i = 0; i < nodes.length; i++) {
+      graph.addNode(nodes[i]);
+      for (int j = 0; i > 0 && j < numDeps; j++) {
+        graph.addEdge(nodes[i], nodes[pickDependency(random, i)]);
+      }
+    }
+    return graph;
+  }
+
+  private static CompactDirectedAcyclicGraph<String> createCompactGraph(
+      String[] nodes,
+      int numDeps) {
+    CompactDirectedAcyclicGraph.Builder<String> builder = CompactDirectedAcyclicGraph.builder();
+    Random random = new Random(42);
+    for (int i = 0; i < nodes.length; i++) {
+      builder.addNode(nodes[i]);
+      for (int j = 0; i > 0 && j < numDeps; j++) {
+        builder.addEdge(nodes[i], nodes[pickDependency(random, i)]);
+      }
+    }
+    return builder.build();
+  }
+
+  /** Mostly depend on nearby nodes, as targets in the same package tend to, with a few far ones. */
+  private static int pickDependency(Random random, int node) {
+    if (random.nextInt(4) == 0) {
+      return random.nextInt(node);
+    }
+    return Math.max(0, node - 1 - random.nextInt(200));
+  }
+
+  private static void countBottomUp(TraversableGraph<String> graph) {
+    new AbstractBottomUpTraversal<String, Void>(graph) {
+      @Override
+      public void visit(String node) {}
+
+      @Override
+      public Void getResult() {
+        return null;
+      }
+    }.traverse();
+  }
+
+  private static long usedHeap() {
+    for (int i = 0; i < 3; i++) {
+      System.gc();
+    }
+    Runtime runtime = Runtime.getRuntime();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+  private static void check(int actual, int expected) {
+    if (actual != expected) {
+      throw new IllegalStateException("Expected " + expected + " nodes but got " + actual + ".");
+    }
+  }
+
+  private static void printRow(String name, long defaultNanos, long compactNanos) {
+    System.out.printf(
+        "%-46s %8s %8d%n",
+        name,
+        defaultNanos < 0 ? "-" : String.valueOf(TimeUnit.NANOSECONDS.toMillis(defaultNanos)),
+        TimeUnit.NANOSECONDS.toMillis(compactNanos));
+  }
+}
@@ -44,9 +44,15 @@ public class TracesHandlerTest extends EasyMockSupport {
     expect(tracesHelper.getTraceAttributesFor(BuckConstant.BUCK_TRACE_DIR.resolve("build.d.trace")))
         .andReturn(
             new TraceAttributes(Optional.of("buck test //test/com/facebook/buck/cli:cli"), 3000L));
+    // Traces streamed while the command ran are gzipped.
+    expect(
+        tracesHelper.getTraceAttributesFor(
+            BuckConstant.BUCK_TRACE_DIR.resolve("build.e.trace.gz")))
+        .andReturn(new TraceAttributes(Optional.of("buck build //:streamed"), 5000L));
 
     expect(tracesHelper.listTraceFilesByLastModified()).andReturn(
         ImmutableList.of(
+            BuckConstant.BUCK_TRACE_DIR.resolve("build.e.trace.gz"),
             BuckConstant.BUCK_TRACE_DIR.resolve("build.b.trace"),
             BuckConstant.BUCK_TRACE_DIR.resolve("build.d.trace"),
             BuckConstant.BUCK_TRACE_DIR.resolve("build.c.trace"),
@@ -60,10 +66,15 @@ public class TracesHandlerTest extends EasyMockSupport {
     TemplateHandler tracesHandler = new TemplateHandler(delegate);
     String html = tracesHandler.createHtmlForResponse(baseRequest);
 
+    int indexE = html.indexOf("<a href=\"/trace/e\"><tt>build.e.trace.gz</tt></a>");
+    assertTrue(indexE > 0);
+    int indexECommand = html.indexOf("buck build //:streamed");
+    assertTrue(indexECommand > 0);
+
     int indexB = html.indexOf("<a href=\"/trace/b\"><tt>build.b.trace</tt></a>");
-    assertTrue(indexB > 0);
+    assertTrue(indexB > indexE);
     int indexBCommand = html.indexOf("buck test --all --code-coverage");
-    assertTrue(indexBCommand > 0);
+    assertTrue(indexBCommand > indexECommand);
 
     int indexD = html.indexOf("<a href=\"/trace/d\"><tt>build.d.trace</tt></a>");
     assertTrue(indexD > indexB);
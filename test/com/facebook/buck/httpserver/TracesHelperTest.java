@@ -25,14 +25,20 @@ import com.facebook.buck.timing.FakeClock;
 import com.facebook.buck.timing.SettableFakeClock;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.HumanReadableException;
+import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.io.ByteStreams;
 
 import org.junit.Test;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
 import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
 
 public class TracesHelperTest {
 
@@ -148,6 +154,39 @@ public class TracesHelperTest {
         helper.listTraceFilesByLastModified());
   }
 
+  @Test
+  public void testGzippedTracesAreDecompressed() throws IOException {
+    FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem(
+        new FakeClock(TimeUnit.MILLISECONDS.toNanos(1000L)));
+    String trace =
+        "[" +
+          "{" +
+            "\"cat\":\"buck\"," +
+            "\"name\":\"build\"," +
+            "\"ph\":\"B\"," +
+            "\"pid\":0," +
+            "\"tid\":1," +
+            "\"ts\":5621911884918," +
+            "\"args\":{\"command_args\":\"buck\"}" +
+          "}" +
+        "]";
+    ByteArrayOutputStream gzipped = new ByteArrayOutputStream();
+    try (GZIPOutputStream output = new GZIPOutputStream(gzipped)) {
+      output.write(trace.getBytes(Charsets.UTF_8));
+    }
+    projectFilesystem.writeBytesToPath(
+        gzipped.toByteArray(),
+        BuckConstant.BUCK_TRACE_DIR.resolve("build.2014-09-02.16-55-51.e.trace.gz"));
+
+    TracesHelper helper = new TracesHelper(projectFilesystem);
+    assertEquals(
+        Optional.of("buck build buck"),
+        helper.getTraceAttributesFor("e").getCommand());
+    try (InputStream input = Iterables.getOnlyElement(helper.getInputsForTraces("e"))) {
+      assertEquals(trace, new String(ByteStreams.toByteArray(input), Charsets.UTF_8));
+    }
+  }
+
   @Test(expected = HumanReadableException.class)
   public void testInputsForTracesThrowsWhenEmpty() throws IOException {
     FakeProjectFilesystem projectFilesystem = new FakeProjectFilesystem(
@@ -427,6 +427,64 @@ public class DefaultJavaLibraryTest {
         javacStep.getClasspathEntries());
   }
 
+  @Test
+  public void testDependentsAreCompiledAgainstAbiJarsWhenEnabled() throws IOException {
+    JavaCompilerEnvironment javacEnv = new JavaCompilerEnvironment(
+        Optional.<Path>absent(),
+        Optional.<JavacVersion>absent(),
+        TARGETED_JAVA_VERSION,
+        TARGETED_JAVA_VERSION,
+        /* compileAgainstAbiJars */ true);
+    BuildRuleResolver ruleResolver = new BuildRuleResolver();
+
+    BuildTarget libraryOneTarget = BuildTargetFactory.newInstance("//:libone");
+    DefaultJavaLibrary libraryOne = (DefaultJavaLibrary) JavaLibraryBuilder
+        .createBuilder(libraryOneTarget, javacEnv)
+        .addSrc(Paths.get("java/src/com/libone/Bar.java"))
+        .build(ruleResolver);
+    BuildTarget libraryTwoTarget = BuildTargetFactory.newInstance("//:libtwo");
+    BuildRule libraryTwo = JavaLibraryBuilder
+        .createBuilder(libraryTwoTarget, javacEnv)
+        .addSrc(Paths.get("java/src/com/libtwo/Foo.java"))
+        .addDep(libraryOneTarget)
+        .build(ruleResolver);
+
+    Path abiJar = libraryOne.getAbiJar().get();
+    List<Step> libraryOneSteps = libraryOne.getBuildSteps(
+        createClasspathOnlyBuildContext(),
+        new FakeBuildableContext());
+    CreateAbiJarStep abiJarStep = FluentIterable.from(libraryOneSteps)
+        .filter(CreateAbiJarStep.class)
+        .first()
+        .get();
+    assertTrue(
+        abiJarStep.getDescription(TestExecutionContext.newInstance())
+            .endsWith(" " + abiJar));
+
+    List<Step> libraryTwoSteps = libraryTwo.getBuildSteps(
+        createClasspathOnlyBuildContext(),
+        new FakeBuildableContext());
+    JavacInMemoryStep javacStep = FluentIterable.from(libraryTwoSteps)
+        .filter(JavacInMemoryStep.class)
+        .first()
+        .get();
+    assertEquals(ImmutableSet.of(abiJar), javacStep.getClasspathEntries());
+    // Only compilation uses the ABI jar.
+    assertEquals(
+        ImmutableSet.of(libraryOne.getPathToOutputFile()),
+        ImmutableSet.copyOf(((JavaLibrary) libraryTwo).getDeclaredClasspathEntries().values()));
+  }
+
+  private static BuildContext createClasspathOnlyBuildContext() {
+    BuildContext buildContext = createNiceMock(BuildContext.class);
+    expect(buildContext.getBuildDependencies())
+        .andStubReturn(BuildDependencies.FIRST_ORDER_ONLY);
+    expect(buildContext.getJavaPackageFinder())
+        .andStubReturn(createNiceMock(JavaPackageFinder.class));
+    replay(buildContext);
+    return buildContext;
+  }
+
   /**
    * Verify adding an annotation processor java binary with options.
    */
@@ -26,7 +26,9 @@ import com.facebook.buck.testutil.MoreAsserts;
 import com.facebook.buck.testutil.TestConsole;
 import com.facebook.buck.util.Verbosity;
 import com.google.common.base.Joiner;
+import com.google.common.base.Optional;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import org.easymock.EasyMock;
 import org.junit.Test;
@@ -174,4 +176,70 @@ public class JUnitStepTest {
     assertEquals("Debugging. Suspending JVM. Connect a JDWP debugger to port 5005 to proceed.",
         console.getTextWrittenToStdErr().trim());
   }
+
+  @Test
+  public void systemPropertiesAreSetInWorkersInsteadOfOnTheCommandLine() {
+    BuildId pretendBuildId = new BuildId("pretend-build-id");
+    Path directoryForTemp = Paths.get("buck-out/gen/thetmp/");
+
+    assertEquals(
+        Optional.of(
+            ImmutableMap.of(
+                JUnitStep.BUILD_ID_PROPERTY, pretendBuildId.toString(),
+                "name1", "value=1",
+                "flag", "")),
+        createJUnitStep(
+            ImmutableList.of("-Dname1=value=1", "-Dflag"),
+            directoryForTemp,
+            pretendBuildId,
+            /* isDebugEnabled */ false)
+            .getSystemPropertiesForWorker());
+
+    // Anything other than a system property needs a JVM of its own.
+    assertEquals(
+        Optional.absent(),
+        createJUnitStep(
+            ImmutableList.of("-Dname1=value1", "-Xmx1g"),
+            directoryForTemp,
+            pretendBuildId,
+            /* isDebugEnabled */ false)
+            .getSystemPropertiesForWorker());
+    // The JDK would ignore a temporary directory set after the worker has started.
+    assertEquals(
+        Optional.absent(),
+        createJUnitStep(
+            ImmutableList.of("-Djava.io.tmpdir=/tmp/elsewhere"),
+            directoryForTemp,
+            pretendBuildId,
+            /* isDebugEnabled */ false)
+            .getSystemPropertiesForWorker());
+    assertEquals(
+        Optional.absent(),
+        createJUnitStep(
+            ImmutableList.<String>of(),
+            directoryForTemp,
+            pretendBuildId,
+            /* isDebugEnabled */ true)
+            .getSystemPropertiesForWorker());
+  }
+
+  private static JUnitStep createJUnitStep(
+      List<String> vmArgs,
+      Path directoryForTemp,
+      BuildId buildId,
+      boolean isDebugEnabled) {
+    return new JUnitStep(
+        ImmutableSet.of(Paths.get("foo")),
+        ImmutableList.of("com.facebook.buck.shell.JUnitCommandTest"),
+        vmArgs,
+        Paths.get("buck-out/gen/theresults/"),
+        directoryForTemp,
+        /* isCodeCoverageEnabled */ false,
+        isDebugEnabled,
+        buildId,
+        TestSelectorList.empty(),
+        /* isDryRun */ false,
+        TestType.JUNIT,
+        Paths.get("build/classes/junit"));
+  }
 }
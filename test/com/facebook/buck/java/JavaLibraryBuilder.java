@@ -27,13 +27,23 @@ import java.nio.file.Path;
 public class JavaLibraryBuilder extends AbstractNodeBuilder<JavaLibraryDescription.Arg> {
 
   protected JavaLibraryBuilder(BuildTarget target) {
-    super(new JavaLibraryDescription(JavaCompilerEnvironment.DEFAULT), target);
+    this(target, JavaCompilerEnvironment.DEFAULT);
+  }
+
+  protected JavaLibraryBuilder(BuildTarget target, JavaCompilerEnvironment javacEnv) {
+    super(new JavaLibraryDescription(javacEnv), target);
   }
 
   public static JavaLibraryBuilder createBuilder(BuildTarget target) {
     return new JavaLibraryBuilder(target);
   }
 
+  public static JavaLibraryBuilder createBuilder(
+      BuildTarget target,
+      JavaCompilerEnvironment javacEnv) {
+    return new JavaLibraryBuilder(target, javacEnv);
+  }
+
   public JavaLibraryBuilder addDep(BuildTarget rule) {
     arg.deps = amend(arg.deps, rule);
     return this;
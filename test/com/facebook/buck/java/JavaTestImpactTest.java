@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.model.BuildTarget;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.test.TestCaseSummary;
+import com.facebook.buck.test.TestResultSummary;
+import com.facebook.buck.test.result.type.ResultType;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedMap;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+
+public class JavaTestImpactTest {
+
+  private static final Path IMPACT = Paths.get("impact");
+  private static final Path OUTPUT = Paths.get("output");
+
+  private static final HashCode FOO_HASH = hash("foo");
+  private static final HashCode BAR_HASH = hash("bar");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    filesystem.mkdirs(OUTPUT);
+  }
+
+  @Test
+  public void passingClassIsUnaffectedUntilAClassItLoadedChanges() throws IOException {
+    Map<String, HashCode> hashes = ImmutableMap.of(
+        "com/example/FooTest", FOO_HASH,
+        "com/example/Bar", BAR_HASH,
+        "com/example/Unused", FOO_HASH);
+    writeRun("com.example.FooTest", "com/example/FooTest", "com/example/Bar");
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.SUCCESS), hashes);
+
+    assertEquals(ImmutableSet.of("com.example.FooTest"), getUnaffected(hashes));
+    assertTrue(
+        filesystem.isFile(
+            JavaTestImpact.getPathToSavedResults(IMPACT, "com.example.FooTest")));
+
+    // Changing a class the test did not load makes no difference...
+    assertEquals(
+        ImmutableSet.of("com.example.FooTest"),
+        getUnaffected(
+            ImmutableMap.of(
+                "com/example/FooTest", FOO_HASH,
+                "com/example/Bar", BAR_HASH,
+                "com/example/Unused", BAR_HASH)));
+    // ...but changing or deleting one that it did does.
+    assertEquals(
+        ImmutableSet.of(),
+        getUnaffected(
+            ImmutableMap.of(
+                "com/example/FooTest", FOO_HASH,
+                "com/example/Bar", FOO_HASH)));
+    assertEquals(
+        ImmutableSet.of(),
+        getUnaffected(ImmutableMap.of("com/example/FooTest", FOO_HASH)));
+  }
+
+  @Test
+  public void failingClassLosesItsRecord() throws IOException {
+    Map<String, HashCode> hashes = ImmutableMap.of("com/example/FooTest", FOO_HASH);
+    writeRun("com.example.FooTest", "com/example/FooTest");
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.SUCCESS), hashes);
+    assertEquals(ImmutableSet.of("com.example.FooTest"), getUnaffected(hashes));
+
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.FAILURE), hashes);
+    assertEquals(ImmutableSet.of(), getUnaffected(hashes));
+  }
+
+  @Test
+  public void classThatLoadedAClassWithoutAHashIsAlwaysAffected() throws IOException {
+    Map<String, HashCode> hashes = ImmutableMap.of("com/example/FooTest", FOO_HASH);
+    writeRun("com.example.FooTest", "com/example/FooTest", "android/app/Activity");
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.SUCCESS), hashes);
+
+    assertEquals(ImmutableSet.of(), getUnaffected(hashes));
+  }
+
+  @Test
+  public void classThatDidNotRecordWhatItLoadedKeepsItsRecord() throws IOException {
+    Map<String, HashCode> hashes = ImmutableMap.of("com/example/FooTest", FOO_HASH);
+    writeRun("com.example.FooTest", "com/example/FooTest");
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.SUCCESS), hashes);
+
+    // As happens when the saved results stood in for running the class.
+    filesystem.deleteFileAtPath(OUTPUT.resolve("com.example.FooTest.classes"));
+    JavaTestImpact.updateRecord(
+        filesystem, IMPACT, OUTPUT, summary("com.example.FooTest", ResultType.SUCCESS), hashes);
+
+    assertEquals(ImmutableSet.of("com.example.FooTest"), getUnaffected(hashes));
+  }
+
+  @Test
+  public void firstRuleWithAClassProvidesItsHash() {
+    assertEquals(
+        ImmutableMap.of("com/example/Foo", FOO_HASH, "com/example/Bar", BAR_HASH),
+        JavaTestImpact.getClassHashes(
+            ImmutableList.of(
+                rule("//:first", ImmutableSortedMap.of("com/example/Foo", FOO_HASH)),
+                rule(
+                    "//:second",
+                    ImmutableSortedMap.of(
+                        "com/example/Foo", BAR_HASH,
+                        "com/example/Bar", BAR_HASH)))));
+  }
+
+  private ImmutableSet<String> getUnaffected(Map<String, HashCode> hashes) {
+    return JavaTestImpact.getUnaffectedTestClasses(
+        filesystem,
+        IMPACT,
+        ImmutableList.of("com.example.FooTest"),
+        hashes);
+  }
+
+  private void writeRun(String testClass, String... loadedClasses) throws IOException {
+    filesystem.writeContentsToPath("<testcase />", OUTPUT.resolve(testClass + ".xml"));
+    filesystem.writeLinesToPath(
+        ImmutableList.copyOf(loadedClasses),
+        OUTPUT.resolve(testClass + JavaTestImpact.LOADED_CLASSES_SUFFIX));
+  }
+
+  private static TestCaseSummary summary(String testClass, ResultType resultType) {
+    return new TestCaseSummary(
+        testClass,
+        ImmutableList.of(
+            new TestResultSummary(testClass, "test", resultType, 0, null, null, null, null)));
+  }
+
+  private static HasJavaClassHashes rule(
+      final String target,
+      final ImmutableSortedMap<String, HashCode> classHashes) {
+    return new HasJavaClassHashes() {
+      @Override
+      public ImmutableSortedMap<String, HashCode> getClassNamesToHashes() {
+        return classHashes;
+      }
+
+      @Override
+      public BuildTarget getBuildTarget() {
+        return BuildTargetFactory.newInstance(target);
+      }
+    };
+  }
+
+  private static HashCode hash(String contents) {
+    return Hashing.sha1().hashString(contents, StandardCharsets.UTF_8);
+  }
+}
@@ -0,0 +1,119 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+public class JavaTestShardsTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @Test
+  public void longestClassesAreSpreadAcrossShards() {
+    ImmutableList<String> classes = ImmutableList.of("A", "B", "C", "D", "E");
+    ImmutableMap<String, Long> durations = ImmutableMap.of(
+        "A", 100L,
+        "B", 10L,
+        "C", 60L,
+        "D", 40L,
+        "E", 10L);
+
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("A", "B"),
+            ImmutableList.of("C", "D", "E")),
+        JavaTestShards.split(classes, durations, 2));
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("A"),
+            ImmutableList.of("C"),
+            ImmutableList.of("B", "D", "E")),
+        JavaTestShards.split(classes, durations, 3));
+  }
+
+  @Test
+  public void classesWithoutDurationsAreSpreadEvenly() {
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("A", "C"),
+            ImmutableList.of("B", "D")),
+        JavaTestShards.split(
+            ImmutableList.of("A", "B", "C", "D"),
+            ImmutableMap.<String, Long>of(),
+            2));
+  }
+
+  @Test
+  public void newClassesAreAssumedToTakeTheAverageTime() {
+    // C is new, so it is estimated at 50ms and goes with B rather than with A.
+    assertEquals(
+        ImmutableList.of(
+            ImmutableList.of("A"),
+            ImmutableList.of("B", "C")),
+        JavaTestShards.split(
+            ImmutableList.of("A", "B", "C"),
+            ImmutableMap.of("A", 90L, "B", 10L),
+            2));
+  }
+
+  @Test
+  public void thereAreNeverMoreShardsThanClasses() {
+    assertEquals(
+        ImmutableList.of(ImmutableList.of("A"), ImmutableList.of("B")),
+        JavaTestShards.split(
+            ImmutableList.of("A", "B"),
+            ImmutableMap.<String, Long>of(),
+            8));
+  }
+
+  @Test
+  public void durationsAreReadFromThePreviousResults() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    Path output = Paths.get("output");
+    filesystem.mkdirs(output);
+    filesystem.writeContentsToPath(
+        "<testcase name=\"com.example.FooTest\">" +
+            "<test name=\"testOne\" success=\"true\" time=\"1200\" type=\"SUCCESS\"/>" +
+            "<test name=\"testTwo\" success=\"true\" time=\"34\" type=\"SUCCESS\"/>" +
+            "</testcase>",
+        output.resolve("com.example.FooTest.xml"));
+    filesystem.writeContentsToPath("not xml", output.resolve("com.example.BrokenTest.xml"));
+
+    assertEquals(
+        ImmutableMap.of("com.example.FooTest", 1234L),
+        JavaTestShards.readDurations(
+            filesystem,
+            output,
+            ImmutableList.of(
+                "com.example.FooTest",
+                "com.example.BrokenTest",
+                "com.example.NewTest")));
+  }
+}
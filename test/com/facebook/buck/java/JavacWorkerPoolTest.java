@@ -0,0 +1,158 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Supplier;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.Files;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+
+public class JavacWorkerPoolTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private boolean isUnderMemoryPressure;
+  private JavacWorkerPool pool;
+
+  @Before
+  public void setUp() {
+    isUnderMemoryPressure = false;
+    pool = new JavacWorkerPool(
+        /* maxIdleWorkers */ 2,
+        /* maxIdleClassLoaders */ 1,
+        new Supplier<Boolean>() {
+          @Override
+          public Boolean get() {
+            return isUnderMemoryPressure;
+          }
+        });
+  }
+
+  @Test
+  public void workersAreReusedUntilAJarTheyReadChanges() throws IOException {
+    File jar = tmp.newFile("lib.jar");
+    Files.write("first", jar, Charsets.UTF_8);
+    ImmutableList<Path> classpath = ImmutableList.of(jar.toPath(), tmp.getRoot().toPath());
+
+    JavacWorkerPool.Worker worker = pool.borrowWorker(Optional.<String>absent());
+    pool.returnWorker(worker, classpath);
+    JavacWorkerPool.Worker reused = pool.borrowWorker(Optional.<String>absent());
+    assertSame(worker, reused);
+
+    pool.returnWorker(reused, classpath);
+    Files.write("second version", jar, Charsets.UTF_8);
+    JavacWorkerPool.Worker afterChange = pool.borrowWorker(Optional.<String>absent());
+    assertNotSame(worker, afterChange);
+    assertEquals(0, pool.getIdleWorkerCount());
+  }
+
+  @Test
+  public void workersAreOnlySharedBetweenCompilationsWithTheSameBootclasspath() {
+    JavacWorkerPool.Worker android = pool.borrowWorker(Optional.of("android.jar"));
+    pool.returnWorker(android, ImmutableList.<Path>of());
+
+    JavacWorkerPool.Worker noBootclasspath = pool.borrowWorker(Optional.<String>absent());
+    assertNotSame(android, noBootclasspath);
+    assertEquals(1, pool.getIdleWorkerCount());
+    assertSame(android, pool.borrowWorker(Optional.of("android.jar")));
+  }
+
+  @Test
+  public void onlyALimitedNumberOfWorkersAreKeptIdle() {
+    for (int i = 0; i < 3; i++) {
+      pool.returnWorker(pool.borrowWorker(Optional.<String>absent()), ImmutableList.<Path>of());
+    }
+    assertEquals(1, pool.getIdleWorkerCount());
+
+    JavacWorkerPool.Worker first = pool.borrowWorker(Optional.<String>absent());
+    JavacWorkerPool.Worker second = pool.borrowWorker(Optional.<String>absent());
+    JavacWorkerPool.Worker third = pool.borrowWorker(Optional.<String>absent());
+    pool.returnWorker(first, ImmutableList.<Path>of());
+    pool.returnWorker(second, ImmutableList.<Path>of());
+    pool.returnWorker(third, ImmutableList.<Path>of());
+    assertEquals(2, pool.getIdleWorkerCount());
+  }
+
+  @Test
+  public void processorClassLoadersAreSharedUntilTheProcessorPathChanges() throws IOException {
+    File jar = tmp.newFile("processor.jar");
+    Files.write("first", jar, Charsets.UTF_8);
+    ImmutableList<Path> processorPath = ImmutableList.of(jar.toPath());
+
+    JavacWorkerPool.ProcessorClassLoader first = pool.acquireProcessorClassLoader(processorPath);
+    JavacWorkerPool.ProcessorClassLoader second = pool.acquireProcessorClassLoader(processorPath);
+    assertSame(first, second);
+    first.release();
+    second.release();
+
+    Files.write("second version", jar, Charsets.UTF_8);
+    JavacWorkerPool.ProcessorClassLoader afterChange =
+        pool.acquireProcessorClassLoader(processorPath);
+    assertNotSame(first, afterChange);
+    // The classloader for the old jar was idle, so it was evicted to make room.
+    assertEquals(1, pool.getClassLoaderCount());
+    afterChange.release();
+  }
+
+  @Test
+  public void classLoadersInUseAreNotEvicted() throws IOException {
+    JavacWorkerPool.ProcessorClassLoader first =
+        pool.acquireProcessorClassLoader(ImmutableList.of(tmp.newFile("a.jar").toPath()));
+    JavacWorkerPool.ProcessorClassLoader second =
+        pool.acquireProcessorClassLoader(ImmutableList.of(tmp.newFile("b.jar").toPath()));
+    assertEquals(2, pool.getClassLoaderCount());
+
+    first.release();
+    second.release();
+    pool.acquireProcessorClassLoader(ImmutableList.of(tmp.newFile("c.jar").toPath())).release();
+    assertEquals(1, pool.getClassLoaderCount());
+  }
+
+  @Test
+  public void idleWorkersAndClassLoadersAreDroppedUnderMemoryPressure() throws IOException {
+    pool.returnWorker(pool.borrowWorker(Optional.<String>absent()), ImmutableList.<Path>of());
+    JavacWorkerPool.ProcessorClassLoader inUse =
+        pool.acquireProcessorClassLoader(ImmutableList.of(tmp.newFile("a.jar").toPath()));
+    assertEquals(1, pool.getIdleWorkerCount());
+
+    isUnderMemoryPressure = true;
+    JavacWorkerPool.Worker worker = pool.borrowWorker(Optional.<String>absent());
+    assertEquals(0, pool.getIdleWorkerCount());
+    assertEquals(1, pool.getClassLoaderCount());
+
+    inUse.release();
+    pool.returnWorker(worker, ImmutableList.<Path>of());
+    pool.evictIdle();
+    assertEquals(0, pool.getIdleWorkerCount());
+    assertEquals(0, pool.getClassLoaderCount());
+  }
+}
@@ -0,0 +1,96 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+public class TestJvmLimiterTest {
+
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    executor = Executors.newSingleThreadExecutor();
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void jvmsAreLimitedToTheNumberOfThreads() throws Exception {
+    TestJvmLimiter limiter = new TestJvmLimiter(2);
+    TestJvmLimiter.Permit first = limiter.acquire();
+    TestJvmLimiter.Permit second = limiter.acquire();
+
+    Future<TestJvmLimiter.Permit> third = acquireInBackground(limiter);
+    assertBlocked(third);
+
+    first.close();
+    // Releasing twice must not hand out more permits than there are.
+    first.close();
+    TestJvmLimiter.Permit thirdPermit = third.get(5, TimeUnit.SECONDS);
+
+    Future<TestJvmLimiter.Permit> fourth = acquireInBackground(limiter);
+    assertBlocked(fourth);
+
+    second.close();
+    fourth.get(5, TimeUnit.SECONDS).close();
+    thirdPermit.close();
+  }
+
+  @Test
+  public void limiterIsSharedUntilTheNumberOfThreadsChanges() {
+    TestJvmLimiter limiter = TestJvmLimiter.forNumThreads(3);
+    assertSame(limiter, TestJvmLimiter.forNumThreads(3));
+    assertNotSame(limiter, TestJvmLimiter.forNumThreads(5));
+  }
+
+  private Future<TestJvmLimiter.Permit> acquireInBackground(final TestJvmLimiter limiter) {
+    return executor.submit(
+        new Callable<TestJvmLimiter.Permit>() {
+          @Override
+          public TestJvmLimiter.Permit call() throws InterruptedException {
+            return limiter.acquire();
+          }
+        });
+  }
+
+  private static void assertBlocked(Future<?> future) throws Exception {
+    try {
+      future.get(100, TimeUnit.MILLISECONDS);
+      fail("Expected to be blocked.");
+    } catch (TimeoutException e) {
+      assertFalse(future.isDone());
+    }
+  }
+}
@@ -0,0 +1,168 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.java;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+public class TestRunnerWorkerPoolTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private TestRunnerWorkerPool pool;
+
+  @After
+  public void tearDown() {
+    if (pool != null) {
+      pool.close();
+    }
+  }
+
+  @Test
+  public void workersAreReusedWithFreshClassesAndProperties() throws Exception {
+    pool = createPool(/* maxRunsPerWorker */ 10);
+
+    List<String> first = run("first");
+    List<String> second = run("second");
+
+    // Same JVM...
+    assertEquals(first.get(0), second.get(0));
+    assertEquals(1, pool.getNumWorkers());
+    // ...but the properties of this run, and a runner with no static state left over.
+    assertEquals(ImmutableList.of("first", "1"), first.subList(1, 3));
+    assertEquals(ImmutableList.of("second", "1"), second.subList(1, 3));
+  }
+
+  @Test
+  public void tempFilesGoToTheWorkersOwnDirectoryWhichIsEmptiedBetweenRules() throws Exception {
+    pool = createPool(/* maxRunsPerWorker */ 10);
+
+    List<String> first = run("first");
+    Path firstTempFile = Paths.get(first.get(3));
+    assertFalse(
+        "The temp file of the first rule should be gone before the next one runs.",
+        Files.exists(firstTempFile));
+    List<String> second = run("second");
+    Path secondTempFile = Paths.get(second.get(3));
+
+    assertEquals(first.get(0), second.get(0));
+    Path workerTmpDirectory = getWorkerTmpDirectoryRoot().resolve("worker_0");
+    assertEquals(workerTmpDirectory, firstTempFile.getParent());
+    assertEquals(workerTmpDirectory, secondTempFile.getParent());
+    // TMP agrees with java.io.tmpdir, as it does when the tests run in a JVM of their own.
+    assertEquals(workerTmpDirectory.toString(), second.get(4));
+  }
+
+  @Test
+  public void workersAreReplacedAfterTheMaximumNumberOfRuns() throws Exception {
+    pool = createPool(/* maxRunsPerWorker */ 1);
+
+    List<String> first = run("first");
+    assertEquals(0, pool.getNumWorkers());
+    List<String> second = run("second");
+
+    assertNotEquals(first.get(0), second.get(0));
+  }
+
+  @Test
+  public void workerThatExitsIsReplaced() throws Exception {
+    pool = createPool(/* maxRunsPerWorker */ 10);
+
+    Path output = tmp.getRoot().toPath().resolve("exit");
+    assertEquals(
+        1,
+        pool.run(
+            FakeRunner.class.getName(),
+            getClasspath(),
+            ImmutableMap.<String, String>of(),
+            ImmutableList.of(output.toString(), "exit")));
+    assertEquals(0, pool.getNumWorkers());
+
+    assertEquals(ImmutableList.of("again", "1"), run("again").subList(1, 3));
+  }
+
+  private TestRunnerWorkerPool createPool(int maxRunsPerWorker) {
+    return new TestRunnerWorkerPool(
+        JUnitStep.getDefaultTestRunnerClassesDirectory(),
+        tmp.getRoot().toPath(),
+        getWorkerTmpDirectoryRoot(),
+        tmp.getRoot().toPath().resolve("workers.log"),
+        maxRunsPerWorker);
+  }
+
+  private Path getWorkerTmpDirectoryRoot() {
+    return tmp.getRoot().toPath().resolve("worker_tmp");
+  }
+
+  private List<String> run(String propertyValue) throws Exception {
+    Path output = tmp.getRoot().toPath().resolve(propertyValue);
+    assertEquals(
+        0,
+        pool.run(
+            FakeRunner.class.getName(),
+            getClasspath(),
+            ImmutableMap.of("test.property", propertyValue),
+            ImmutableList.of(output.toString())));
+    return Files.readAllLines(output, StandardCharsets.UTF_8);
+  }
+
+  private static ImmutableList<Path> getClasspath() throws URISyntaxException {
+    return ImmutableList.of(
+        Paths.get(FakeRunner.class.getProtectionDomain().getCodeSource().getLocation().toURI()));
+  }
+
+  /**
+   * Stands in for a test runner. It is loaded in the worker's classloader for the run, so it may
+   * only use JDK types.
+   */
+  public static class FakeRunner {
+    private static int numRuns = 0;
+
+    public void parseArgsAndRun(String... args) throws IOException {
+      numRuns++;
+      if (args.length > 1 && args[1].equals("exit")) {
+        System.exit(3);
+      }
+      String contents = ManagementFactory.getRuntimeMXBean().getName() + "\n" +
+          System.getProperty("test.property") + "\n" +
+          numRuns + "\n" +
+          File.createTempFile("fake", ".tmp") + "\n" +
+          System.getenv("TMP") + "\n";
+      Files.write(Paths.get(args[0]), contents.getBytes(StandardCharsets.UTF_8));
+    }
+  }
+}
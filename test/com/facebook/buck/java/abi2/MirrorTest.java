@@ -479,6 +479,77 @@ public class MirrorTest {
     return jar.toPath().toAbsolutePath();
   }
 
+  @Test
+  public void preservesFieldsOfTheSameType() throws IOException {
+    Path jar = compileToJar(
+        EMPTY_CLASSPATH,
+        "A.java",
+        Joiner.on("\n").join(ImmutableList.of(
+                "package com.example.buck;",
+                "public class A {",
+                "  public int first;",
+                "  public int second;",
+                "}")));
+
+    new StubJar(jar).writeTo(stubJar);
+
+    ClassNode stubbed = readClass(stubJar, "com/example/buck/A.class");
+    assertEquals(2, stubbed.fields.size());
+    findField(stubbed, "first");
+    findField(stubbed, "second");
+  }
+
+  @Test
+  public void nestedClassesCanBeReferencedFromTheStub() throws IOException {
+    Path jar = compileToJar(
+        EMPTY_CLASSPATH,
+        "A.java",
+        Joiner.on("\n").join(ImmutableList.of(
+                "package com.example.buck;",
+                "public class A {",
+                "  public static class B {",
+                "    public void foo() {}",
+                "  }",
+                "}")));
+
+    new StubJar(jar).writeTo(stubJar);
+
+    // Resolving "A.B" relies on the InnerClasses attribute of A.
+    compileToJar(
+        ImmutableSortedSet.of(stubJar),
+        "C.java",
+        "package com.example.buck; public class C { void bar(A.B b) { b.foo(); } }");
+  }
+
+  @Test
+  public void preservesAnnotationValuesAndDefaults() throws IOException {
+    Path jar = compileToJar(
+        EMPTY_CLASSPATH,
+        "Bar.java",
+        Joiner.on("\n").join(ImmutableList.of(
+                "package com.example.buck;",
+                "import java.lang.annotation.*;",
+                "@Retention(RetentionPolicy.RUNTIME)",
+                "public @interface Bar {",
+                "  String value() default \"cheese\";",
+                "}")));
+
+    new StubJar(jar).writeTo(stubJar);
+
+    MethodNode value = findMethod(readClass(stubJar, "com/example/buck/Bar.class"), "value");
+    assertEquals("cheese", value.annotationDefault);
+
+    // Using the element's default only compiles if the stub has it, and the annotation is only
+    // visible at runtime if the stub kept the annotation type's retention.
+    Path dependent = compileToJar(
+        ImmutableSortedSet.of(stubJar),
+        "C.java",
+        "package com.example.buck; @Bar public class C {}");
+    ClassNode classNode = readClass(dependent, "com/example/buck/C.class");
+    assertNotNull(classNode.visibleAnnotations);
+    assertEquals("Lcom/example/buck/Bar;", classNode.visibleAnnotations.get(0).desc);
+  }
+
   @Test
   public void stubJarIsEquallyAtHomeWalkingADirectoryOfClassFiles() throws IOException {
     Path jar = compileToJar(
@@ -0,0 +1,185 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.rules.DefaultKnownBuildRuleTypes;
+import com.facebook.buck.rules.Description;
+import com.facebook.buck.testutil.BuckTestConstant;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long Buck takes to get the rules of a set of build files from buck.py in each
+ * {@link BuildFileOutputFormat}. This is not a test: run it from the root of the Buck repository,
+ * with the test classpath, optionally passing the directories to search for build files. By
+ * default it uses every build file in a testdata directory under {@code test}.
+ * <p>
+ * Each format is timed with a single, already started buck.py process, so the numbers cover
+ * evaluating the build files, encoding the rules and decoding them in Buck.
+ */
+public class BuildFileOutputFormatBenchmark {
+
+  private static final int ITERATIONS = 5;
+
+  private BuildFileOutputFormatBenchmark() {}
+
+  public static void main(String... args) throws IOException, InterruptedException {
+    ProjectFilesystem filesystem =
+        new ProjectFilesystem(Paths.get("").toAbsolutePath().normalize());
+    ImmutableSet<Description<?>> descriptions =
+        DefaultKnownBuildRuleTypes.getDefaultKnownBuildRuleTypes(filesystem).getAllDescriptions();
+
+    ImmutableList.Builder<Path> candidates = ImmutableList.builder();
+    if (args.length == 0) {
+      findBuildFiles(
+          filesystem.getRootPath().resolve("test"),
+          /* requireTestData */ true,
+          candidates);
+    } else {
+      for (String arg : args) {
+        findBuildFiles(
+            filesystem.getRootPath().resolve(arg),
+            /* requireTestData */ false,
+            candidates);
+      }
+    }
+    ImmutableList<Path> buildFiles =
+        findParseableBuildFiles(filesystem, descriptions, candidates.build());
+    System.out.printf("Parsing %d build files.%n", buildFiles.size());
+
+    Map<BuildFileOutputFormat, List<List<Map<String, Object>>>> firstResults =
+        new EnumMap<>(BuildFileOutputFormat.class);
+    Map<BuildFileOutputFormat, Long> fastestNanos = new EnumMap<>(BuildFileOutputFormat.class);
+    for (int i = 0; i < ITERATIONS; i++) {
+      for (BuildFileOutputFormat format : BuildFileOutputFormat.values()) {
+        List<List<Map<String, Object>>> rules = Lists.newArrayList();
+        long nanos;
+        try (ProjectBuildFileParser parser = createParser(filesystem, descriptions, format)) {
+          parser.initIfNeeded();
+          long start = System.nanoTime();
+          for (Path buildFile : buildFiles) {
+            rules.add(parser.getAllRulesAndMetaRules(buildFile));
+          }
+          nanos = System.nanoTime() - start;
+        } catch (BuildFileParseException e) {
+          throw new IOException(e);
+        }
+        if (!firstResults.containsKey(format)) {
+          firstResults.put(format, rules);
+        }
+        Long fastest = fastestNanos.get(format);
+        fastestNanos.put(format, fastest == null ? nanos : Math.min(fastest, nanos));
+      }
+    }
+
+    if (!firstResults.get(BuildFileOutputFormat.JSON).equals(
+            firstResults.get(BuildFileOutputFormat.BINARY))) {
+      throw new IllegalStateException("The formats produced different rules.");
+    }
+    for (Map.Entry<BuildFileOutputFormat, Long> entry : fastestNanos.entrySet()) {
+      System.out.printf(
+          "%-6s %6d ms (fastest of %d)%n",
+          entry.getKey(),
+          TimeUnit.NANOSECONDS.toMillis(entry.getValue()),
+          ITERATIONS);
+    }
+  }
+
+  private static void findBuildFiles(
+      Path root,
+      final boolean requireTestData,
+      final ImmutableList.Builder<Path> buildFiles) throws IOException {
+    Files.walkFileTree(
+        root,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+            if (file.getFileName().toString().equals("BUCK") &&
+                (!requireTestData || file.toString().contains("/testdata/"))) {
+              buildFiles.add(file);
+            }
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /**
+   * Some build files under testdata are broken on purpose, or include files relative to the
+   * project they are copied into, so only those that parse from here are timed.
+   */
+  private static ImmutableList<Path> findParseableBuildFiles(
+      ProjectFilesystem filesystem,
+      ImmutableSet<Description<?>> descriptions,
+      ImmutableList<Path> candidates) throws InterruptedException {
+    ImmutableList.Builder<Path> buildFiles = ImmutableList.builder();
+    ProjectBuildFileParser parser =
+        createParser(filesystem, descriptions, BuildFileOutputFormat.JSON);
+    for (Path candidate : candidates) {
+      try {
+        parser.getAllRulesAndMetaRules(candidate);
+        buildFiles.add(candidate);
+      } catch (BuildFileParseException e) {
+        // buck.py exits after a failure, so start another one for the remaining build files.
+        closeQuietly(parser);
+        parser = createParser(filesystem, descriptions, BuildFileOutputFormat.JSON);
+      }
+    }
+    closeQuietly(parser);
+    return buildFiles.build();
+  }
+
+  private static ProjectBuildFileParser createParser(
+      ProjectFilesystem filesystem,
+      ImmutableSet<Description<?>> descriptions,
+      BuildFileOutputFormat format) {
+    return new DefaultProjectBuildFileParserFactory(
+        filesystem,
+        BuckTestConstant.PYTHON_INTERPRETER,
+        format,
+        descriptions)
+        .createParser(
+            ImmutableList.<String>of(),
+            new TestConsole(),
+            ImmutableMap.copyOf(System.getenv()),
+            BuckEventBusFactory.newInstance());
+  }
+
+  private static void closeQuietly(ProjectBuildFileParser parser) throws InterruptedException {
+    try {
+      parser.close();
+    } catch (BuildFileParseException e) {
+      // The parser has already failed, which is why it is being closed.
+    }
+  }
+}
@@ -0,0 +1,229 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Maps;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Unit test for {@link BuildFileToBinaryParser}.
+ */
+public class BuildFileToBinaryParserTest {
+
+  @Test
+  public void testServerModeParse() throws IOException {
+    MessageWriter writer = new MessageWriter();
+    writer.beginMessage().list(2)
+        .map(2).newString("name").newString("a").newString("deps").list(1).newString(":b")
+        .map(2).stringReference(0).stringReference(3).stringReference(2).list(0)
+        .endMessage();
+    // Strings from earlier build files can be referred to by later ones.
+    writer.beginMessage().list(1)
+        .map(1).stringReference(0).newString("c")
+        .endMessage();
+
+    try (BuildFileToBinaryParser parser = writer.createParser(/* isServerMode */ true)) {
+      assertEquals(
+          ImmutableList.of(
+              ImmutableMap.of("name", "a", "deps", ImmutableList.of(":b")),
+              ImmutableMap.of("name", ":b", "deps", ImmutableList.of())),
+          parser.nextRules());
+      assertEquals(
+          ImmutableList.of(ImmutableMap.of("name", "c")),
+          parser.nextRules());
+    }
+  }
+
+  @Test
+  public void testNonServerModeReadsRulesUntilTheEndOfTheStream() throws IOException {
+    MessageWriter writer = new MessageWriter();
+    writer.beginMessage().map(1).newString("name").newString("a").endMessage();
+    writer.beginMessage().map(1).stringReference(0).newString("b").endMessage();
+
+    try (BuildFileToBinaryParser parser = writer.createParser(/* isServerMode */ false)) {
+      assertEquals(
+          ImmutableList.of(ImmutableMap.of("name", "a"), ImmutableMap.of("name", "b")),
+          parser.nextRules());
+    }
+  }
+
+  @Test
+  public void testValuesHaveTheSameTypesAsTheJsonParserProduces() throws IOException {
+    MessageWriter writer = new MessageWriter();
+    writer.beginMessage().list(1).map(6)
+        .newString("null").nullValue()
+        .newString("true").trueValue()
+        .newString("false").falseValue()
+        .newString("long").integer(27)
+        .newString("double").floatingPoint(2.5)
+        .newString("whole").floatingPoint(3.0)
+        .endMessage();
+
+    List<Map<String, Object>> rules;
+    try (BuildFileToBinaryParser parser = writer.createParser(/* isServerMode */ true)) {
+      rules = parser.nextRules();
+    }
+
+    Map<String, Object> expected = Maps.newHashMap();
+    expected.put("null", null);
+    expected.put("true", true);
+    expected.put("false", false);
+    expected.put("long", 27L);
+    expected.put("double", 2.5);
+    expected.put("whole", 3L);
+    assertEquals(ImmutableList.of(expected), rules);
+  }
+
+  @Test
+  public void testKeysAreInternedAndRepeatedStringsAreShared() throws IOException {
+    MessageWriter writer = new MessageWriter();
+    writer.beginMessage().list(2)
+        .map(1).newString("deps").list(1).newString("//foo:bar")
+        .map(1).stringReference(0).list(1).stringReference(1)
+        .endMessage();
+
+    List<Map<String, Object>> rules;
+    try (BuildFileToBinaryParser parser = writer.createParser(/* isServerMode */ true)) {
+      rules = parser.nextRules();
+    }
+
+    String key = rules.get(0).keySet().iterator().next();
+    assertSame("deps", key);
+    assertSame(key, rules.get(1).keySet().iterator().next());
+    assertSame(
+        ((List<?>) rules.get(0).get("deps")).get(0),
+        ((List<?>) rules.get(1).get("deps")).get(0));
+  }
+
+  @Test
+  public void testMalformedOutputIsAnIOException() throws IOException {
+    assertParseFails(new MessageWriter().beginMessage().list(1).stringReference(0).endMessage());
+    assertParseFails(new MessageWriter().beginMessage().list(1).tag('?').endMessage());
+    assertParseFails(new MessageWriter().beginMessage().list(2).nullValue().endMessage());
+    // buck.py exiting before it replies.
+    assertParseFails(new MessageWriter());
+  }
+
+  private static void assertParseFails(MessageWriter writer) throws IOException {
+    try (BuildFileToBinaryParser parser = writer.createParser(/* isServerMode */ true)) {
+      parser.nextRules();
+      fail("Expected the output to be rejected.");
+    } catch (IOException e) {
+      // Expected.
+    }
+  }
+
+  /**
+   * Writes messages as buck.py's {@code BinaryEncoder} would.
+   */
+  private static class MessageWriter {
+
+    private final ByteArrayOutputStream output = new ByteArrayOutputStream();
+    private ByteArrayOutputStream messageBytes = new ByteArrayOutputStream();
+    private DataOutputStream message = new DataOutputStream(messageBytes);
+
+    MessageWriter beginMessage() {
+      messageBytes = new ByteArrayOutputStream();
+      message = new DataOutputStream(messageBytes);
+      return this;
+    }
+
+    MessageWriter endMessage() throws IOException {
+      byte[] payload = messageBytes.toByteArray();
+      DataOutputStream out = new DataOutputStream(output);
+      out.writeInt(payload.length);
+      out.write(payload);
+      return this;
+    }
+
+    MessageWriter tag(char tag) throws IOException {
+      message.writeByte(tag);
+      return this;
+    }
+
+    MessageWriter nullValue() throws IOException {
+      return tag('N');
+    }
+
+    MessageWriter trueValue() throws IOException {
+      return tag('T');
+    }
+
+    MessageWriter falseValue() throws IOException {
+      return tag('F');
+    }
+
+    MessageWriter integer(long value) throws IOException {
+      tag('I');
+      message.writeLong(value);
+      return this;
+    }
+
+    MessageWriter floatingPoint(double value) throws IOException {
+      tag('D');
+      message.writeDouble(value);
+      return this;
+    }
+
+    MessageWriter newString(String value) throws IOException {
+      byte[] bytes = value.getBytes(UTF_8);
+      tag('S');
+      message.writeInt(bytes.length);
+      message.write(bytes);
+      return this;
+    }
+
+    MessageWriter stringReference(int index) throws IOException {
+      tag('R');
+      message.writeInt(index);
+      return this;
+    }
+
+    MessageWriter list(int size) throws IOException {
+      tag('L');
+      message.writeInt(size);
+      return this;
+    }
+
+    MessageWriter map(int size) throws IOException {
+      tag('M');
+      message.writeInt(size);
+      return this;
+    }
+
+    BuildFileToBinaryParser createParser(boolean isServerMode) {
+      return new BuildFileToBinaryParser(
+          new ByteArrayInputStream(output.toByteArray()),
+          isServerMode);
+    }
+  }
+}
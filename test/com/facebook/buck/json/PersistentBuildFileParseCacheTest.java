@@ -0,0 +1,197 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+
+public class PersistentBuildFileParseCacheTest {
+
+  private static final ImmutableList<String> DEFAULT_INCLUDES =
+      ImmutableList.of("//tools/DEFS");
+  private static final ImmutableMap<String, String> ENVIRONMENT = ImmutableMap.of("USER", "me");
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private Path buildFile;
+  private Path include;
+  private PersistentBuildFileParseCache cache;
+
+  @Before
+  public void setUp() throws IOException {
+    filesystem = new ProjectFilesystem(
+        tmp.getRoot().toPath(),
+        ImmutableSet.of(Paths.get("foo/generated")));
+    Path root = tmp.getRoot().toPath().toAbsolutePath();
+    buildFile = write(
+        root.resolve("foo/BUCK"),
+        "include_defs('//DEFS')\nfoo_library(name = 'foo')\n");
+    include = write(root.resolve("DEFS"), "def foo_library(name):\n  pass\n");
+    cache = createCache("fingerprint");
+  }
+
+  @Test
+  public void rulesAreReturnedUnchangedWhileTheSourcesAreUnchanged() {
+    List<Map<String, Object>> rules = createRules();
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, rules);
+
+    // A new instance, as a new Buck process would have.
+    assertEquals(
+        Optional.of(rules),
+        createCache("fingerprint").get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT));
+  }
+
+  @Test
+  public void changingTheBuildFileOrAnIncludeInvalidatesTheRules() throws IOException {
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, createRules());
+    write(buildFile, "include_defs('//DEFS')\nfoo_library(name = 'bar')\n");
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, createRules());
+    write(include, "def foo_library(name, deps = []):\n  pass\n");
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, createRules());
+    Files.delete(include);
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+  }
+
+  @Test
+  public void rulesAreOnlyReusedWithTheSameConfiguration() {
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, createRules());
+
+    assertFalse(
+        cache.get(buildFile, ImmutableList.<String>of(), ENVIRONMENT).isPresent());
+    assertFalse(
+        cache.get(buildFile, DEFAULT_INCLUDES, ImmutableMap.of("USER", "you")).isPresent());
+    assertFalse(
+        createCache("another fingerprint")
+            .get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT)
+            .isPresent());
+  }
+
+  @Test
+  public void addingAFileInvalidatesBuildFilesThatGlob() throws IOException {
+    write(buildFile, "foo_library(name = 'foo', srcs = glob(['*.java']))\n");
+    List<Map<String, Object>> rules = createRules();
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, rules);
+
+    // Paths ignored by the project, such as buck-out, do not count.
+    write(tmp.getRoot().toPath().resolve("foo/generated/Generated.java"), "");
+    assertEquals(Optional.of(rules), cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT));
+
+    write(buildFile.resolveSibling("Foo.java"), "class Foo {}\n");
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+  }
+
+  @Test
+  public void globCallsReportedByBuckPyAreHonored() throws IOException {
+    // The glob() call is made by a macro in an include, so it does not appear in the build file.
+    List<Map<String, Object>> rules = createRules();
+    Iterables.getLast(rules).put("__uses_glob", true);
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, rules);
+
+    write(buildFile.resolveSibling("Foo.java"), "class Foo {}\n");
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+  }
+
+  @Test
+  public void filesInNestedPackagesDoNotInvalidateBuildFilesThatGlob() throws IOException {
+    write(buildFile, "foo_library(name = 'foo', srcs = glob(['**/*.java']))\n");
+    Path nestedBuildFile = write(buildFile.resolveSibling("bar/BUCK"), "");
+    List<Map<String, Object>> rules = createRules();
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, rules);
+
+    write(nestedBuildFile.resolveSibling("Bar.java"), "class Bar {}\n");
+    assertEquals(Optional.of(rules), cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT));
+
+    write(buildFile.resolveSibling("baz/Baz.java"), "class Baz {}\n");
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+  }
+
+  @Test
+  public void corruptEntriesAreIgnored() throws IOException {
+    cache.put(buildFile, DEFAULT_INCLUDES, ENVIRONMENT, createRules());
+    Path cacheDir = tmp.getRoot().toPath().resolve("parse_cache");
+    try (DirectoryStream<Path> entries = Files.newDirectoryStream(cacheDir)) {
+      for (Path entry : entries) {
+        write(entry, "{\"version\": 1, \"rules\": [");
+      }
+    }
+
+    assertFalse(cache.get(buildFile, DEFAULT_INCLUDES, ENVIRONMENT).isPresent());
+  }
+
+  private PersistentBuildFileParseCache createCache(String fingerprint) {
+    return new PersistentBuildFileParseCache(filesystem, Paths.get("parse_cache"), fingerprint);
+  }
+
+  /**
+   * @return the rules buck.py would produce for the build file, including the types it emits.
+   */
+  private List<Map<String, Object>> createRules() {
+    Map<String, Object> rule = Maps.newHashMap();
+    rule.put("type", "foo_library");
+    rule.put("name", "foo");
+    rule.put("buck.base_path", "foo");
+    rule.put("srcs", Lists.<Object>newArrayList("Foo.java"));
+    rule.put("optional", null);
+    rule.put("count", 42L);
+    rule.put("enabled", true);
+
+    Map<String, Object> includes = Maps.newHashMap();
+    includes.put(
+        "__includes",
+        Lists.<Object>newArrayList(buildFile.toString(), include.toString()));
+
+    List<Map<String, Object>> rules = Lists.newArrayList();
+    rules.add(rule);
+    rules.add(includes);
+    return rules;
+  }
+
+  private static Path write(Path path, String contents) throws IOException {
+    Files.createDirectories(path.getParent());
+    Files.write(path, contents.getBytes(UTF_8));
+    return path;
+  }
+}
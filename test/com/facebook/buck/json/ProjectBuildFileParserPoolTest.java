@@ -0,0 +1,160 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.json;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.rules.Description;
+import com.facebook.buck.testutil.FakeProjectFilesystem;
+import com.facebook.buck.testutil.TestConsole;
+import com.facebook.buck.util.Console;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BrokenBarrierException;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.annotation.Nullable;
+
+public class ProjectBuildFileParserPoolTest {
+
+  private static final ImmutableList<Path> BUILD_FILES = ImmutableList.of(
+      Paths.get("/project/a/BUCK"),
+      Paths.get("/project/b/BUCK"),
+      Paths.get("/project/c/BUCK"));
+
+  @Test
+  public void buildFilesAreParsedConcurrentlyAndReturnedInOrder()
+      throws BuildFileParseException, InterruptedException {
+    // Each parse waits until all three are in flight, so this only completes if the build files
+    // are spread across three parsers.
+    FakeParserFactory factory = new FakeParserFactory(new CyclicBarrier(3));
+
+    try (ProjectBuildFileParserPool pool = createPool(3, factory)) {
+      ImmutableMap<Path, List<Map<String, Object>>> results =
+          pool.getAllRulesAndMetaRules(BUILD_FILES);
+
+      assertEquals(BUILD_FILES, results.keySet().asList());
+      for (Path buildFile : BUILD_FILES) {
+        assertEquals(
+            ImmutableList.of(ImmutableMap.<String, Object>of("buck.path", buildFile.toString())),
+            results.get(buildFile));
+      }
+    }
+    assertEquals(3, factory.parsersCreated.get());
+  }
+
+  @Test
+  public void aSingleParserIsReusedForEveryBuildFile()
+      throws BuildFileParseException, InterruptedException {
+    FakeParserFactory factory = new FakeParserFactory(/* barrier */ null);
+
+    try (ProjectBuildFileParserPool pool = createPool(1, factory)) {
+      assertEquals(BUILD_FILES, pool.getAllRulesAndMetaRules(BUILD_FILES).keySet().asList());
+      pool.getAllRulesAndMetaRules(BUILD_FILES.get(0));
+    }
+    assertEquals(1, factory.parsersCreated.get());
+  }
+
+  @Test
+  public void parseFailuresArePropagated() throws InterruptedException {
+    FakeParserFactory factory = new FakeParserFactory(/* barrier */ null);
+    factory.failingBuildFile = Optional.of(BUILD_FILES.get(1));
+
+    try (ProjectBuildFileParserPool pool = createPool(2, factory)) {
+      pool.getAllRulesAndMetaRules(BUILD_FILES);
+      fail("Expected the parse failure to be rethrown.");
+    } catch (BuildFileParseException e) {
+      assertTrue(e.getHumanReadableErrorMessage().contains(BUILD_FILES.get(1).toString()));
+    }
+  }
+
+  private static ProjectBuildFileParserPool createPool(
+      int maxParsers,
+      ProjectBuildFileParserFactory factory) {
+    return new ProjectBuildFileParserPool(
+        maxParsers,
+        factory,
+        ImmutableList.<String>of(),
+        new TestConsole(),
+        ImmutableMap.<String, String>of(),
+        BuckEventBusFactory.newInstance(),
+        /* enableProfiling */ false);
+  }
+
+  private static class FakeParserFactory implements ProjectBuildFileParserFactory {
+
+    private final AtomicInteger parsersCreated = new AtomicInteger();
+    @Nullable private final CyclicBarrier barrier;
+    private Optional<Path> failingBuildFile = Optional.absent();
+
+    FakeParserFactory(@Nullable CyclicBarrier barrier) {
+      this.barrier = barrier;
+    }
+
+    @Override
+    public ProjectBuildFileParser createParser(
+        Iterable<String> commonIncludes,
+        Console console,
+        ImmutableMap<String, String> environment,
+        BuckEventBus buckEventBus) {
+      parsersCreated.incrementAndGet();
+      return new ProjectBuildFileParser(
+          new FakeProjectFilesystem(),
+          commonIncludes,
+          "python",
+          BuildFileOutputFormat.JSON,
+          ImmutableSet.<Description<?>>of(),
+          console,
+          environment,
+          buckEventBus) {
+        @Override
+        protected List<Map<String, Object>> getAllRulesInternal(Optional<Path> buildFile)
+            throws IOException {
+          if (barrier != null) {
+            try {
+              barrier.await(10, TimeUnit.SECONDS);
+            } catch (InterruptedException | BrokenBarrierException | TimeoutException e) {
+              throw new IOException(e);
+            }
+          }
+          if (buildFile.equals(failingBuildFile)) {
+            throw new IOException("Could not parse.");
+          }
+          return ImmutableList.<Map<String, Object>>of(
+              ImmutableMap.<String, Object>of("buck.path", buildFile.get().toString()));
+        }
+      };
+    }
+  }
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.junit;
+
+import static org.hamcrest.Matchers.hasItem;
+import static org.hamcrest.Matchers.not;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.junit.runner.JUnitCore;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+
+public class LoadedClassRecorderTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  @After
+  public void tearDown() {
+    System.clearProperty(LoadedClassRecorder.RECORD_LOADED_CLASSES_PROPERTY);
+  }
+
+  @Test
+  public void recordingIsOffByDefault() {
+    assertNull(LoadedClassRecorder.createIfEnabled(LoadedClassRecorderTest.class));
+  }
+
+  @Test
+  public void loadedClassesAreRecordedButNotThoseNextToTheRunner() throws Exception {
+    System.setProperty(LoadedClassRecorder.RECORD_LOADED_CLASSES_PROPERTY, "true");
+    LoadedClassRecorder recorder =
+        LoadedClassRecorder.createIfEnabled(LoadedClassRecorderTest.class);
+    assertNotNull(recorder);
+
+    // Certainly loaded, as it is running this test.
+    assertNotNull(JUnitCore.class);
+
+    File output = tmp.newFile("Test.classes");
+    recorder.record(output);
+    List<String> classes = Files.readAllLines(output.toPath(), StandardCharsets.UTF_8);
+
+    assertThat(classes, hasItem("org/junit/runner/JUnitCore"));
+    assertThat(classes, not(hasItem("org/junit/experimental/max/MaxCore")));
+    assertThat(classes, not(hasItem("com/facebook/buck/junit/LoadedClassRecorderTest")));
+  }
+}
@@ -0,0 +1,156 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.model;
+
+import static com.facebook.buck.testutil.WatchEvents.createOverflowEvent;
+import static com.facebook.buck.testutil.WatchEvents.createPathEvent;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.ImmutableSortedSet;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+
+public class IncrementalBuildFileTreeTest {
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Path root;
+  private IncrementalBuildFileTree tree;
+
+  @Before
+  public void setUp() throws IOException {
+    root = tmp.getRoot().toPath();
+    touchBuildFile("");
+    touchBuildFile("a");
+    touchBuildFile("a/b/c");
+    touchBuildFile("a/d");
+    touchBuildFile("ignored/e");
+    Files.createDirectories(root.resolve("a/b/no_build_file"));
+    ProjectFilesystem filesystem =
+        new ProjectFilesystem(root, ImmutableSet.of(Paths.get("ignored")));
+    tree = new IncrementalBuildFileTree(filesystem, /* numThreads */ 4);
+  }
+
+  @Test
+  public void lookupsMatchTheBuildFilesOnDisk() {
+    assertEquals(Paths.get("a/b/c"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/c/x.java")));
+    assertEquals(Paths.get("a"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+    assertEquals(Paths.get(""), tree.getBasePathOfAncestorTarget(Paths.get("x.java")));
+    assertEquals(Paths.get(""), tree.getBasePathOfAncestorTarget(Paths.get("ignored/e/x")));
+
+    assertEquals(
+        ImmutableSortedSet.of(Paths.get("b/c"), Paths.get("d")),
+        ImmutableSortedSet.copyOf(tree.getChildPaths(target("a"))));
+    assertEquals(
+        ImmutableSortedSet.of(Paths.get("a")),
+        ImmutableSortedSet.copyOf(tree.getChildPaths(target(""))));
+
+    assertEquals(
+        ImmutableSortedSet.of(
+            Paths.get("a/BUCK"),
+            Paths.get("a/b/c/BUCK"),
+            Paths.get("a/d/BUCK")),
+        tree.getBuildFilesUnder(Paths.get("a")));
+    assertEquals(4, tree.getBuildFilesUnder(Paths.get("")).size());
+  }
+
+  @Test
+  public void addedAndRemovedBuildFilesAreTrackedFromEvents() throws IOException {
+    assertEquals(Paths.get("a"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+
+    touchBuildFile("a/b");
+    // The tree does not look at the filesystem again until it is told about the change.
+    assertEquals(Paths.get("a"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+    tree.onFileSystemChange(
+        createPathEvent(Paths.get("a/b/BUCK"), StandardWatchEventKinds.ENTRY_CREATE));
+    assertEquals(Paths.get("a/b"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+    assertEquals(
+        ImmutableSortedSet.of(Paths.get("b"), Paths.get("d")),
+        ImmutableSortedSet.copyOf(tree.getChildPaths(target("a"))));
+
+    Files.delete(root.resolve("a/b/BUCK"));
+    tree.onFileSystemChange(
+        createPathEvent(Paths.get("a/b/BUCK"), StandardWatchEventKinds.ENTRY_DELETE));
+    assertEquals(Paths.get("a"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+  }
+
+  @Test
+  public void addedAndRemovedDirectoriesAreTrackedFromEvents() throws IOException {
+    tree.getBasePathOfAncestorTarget(Paths.get(""));
+
+    touchBuildFile("f/g");
+    tree.onFileSystemChange(createPathEvent(Paths.get("f"), StandardWatchEventKinds.ENTRY_CREATE));
+    assertEquals(
+        ImmutableSortedSet.of(Paths.get("f/g/BUCK")),
+        tree.getBuildFilesUnder(Paths.get("f")));
+
+    tree.onFileSystemChange(
+        createPathEvent(Paths.get("a/b"), StandardWatchEventKinds.ENTRY_DELETE));
+    assertEquals(
+        ImmutableSortedSet.of(Paths.get("a/BUCK"), Paths.get("a/d/BUCK")),
+        tree.getBuildFilesUnder(Paths.get("a")));
+
+    touchBuildFile("ignored/h");
+    tree.onFileSystemChange(
+        createPathEvent(Paths.get("ignored/h/BUCK"), StandardWatchEventKinds.ENTRY_CREATE));
+    assertEquals(ImmutableSortedSet.of(), tree.getBuildFilesUnder(Paths.get("ignored")));
+  }
+
+  @Test
+  public void overflowMakesTheTreeScanAgain() throws IOException {
+    assertEquals(Paths.get("a"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+
+    touchBuildFile("a/b");
+    tree.onFileSystemChange(createOverflowEvent());
+
+    assertEquals(Paths.get("a/b"), tree.getBasePathOfAncestorTarget(Paths.get("a/b/x.java")));
+  }
+
+  @Test
+  public void symlinkToAnAncestorIsNotFollowedForever() throws IOException {
+    Files.createSymbolicLink(root.resolve("a/d/loop"), root.resolve("a"));
+
+    assertEquals(
+        ImmutableSortedSet.of(
+            Paths.get("a/BUCK"),
+            Paths.get("a/b/c/BUCK"),
+            Paths.get("a/d/BUCK")),
+        tree.getBuildFilesUnder(Paths.get("a")));
+  }
+
+  private void touchBuildFile(String directory) throws IOException {
+    Path dir = root.resolve(directory);
+    Files.createDirectories(dir);
+    Files.createFile(dir.resolve("BUCK"));
+  }
+
+  private static BuildTarget target(String basePath) {
+    return BuildTarget.builder("//" + basePath, "target").build();
+  }
+}
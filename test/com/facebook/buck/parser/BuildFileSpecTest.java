@@ -18,6 +18,7 @@ package com.facebook.buck.parser;
 
 import static org.junit.Assert.assertEquals;
 
+import com.facebook.buck.model.IncrementalBuildFileTree;
 import com.facebook.buck.testutil.FakeProjectFilesystem;
 import com.facebook.buck.util.BuckConstant;
 import com.facebook.buck.util.ProjectFilesystem;
@@ -81,4 +82,31 @@ public class BuildFileSpecTest {
     assertEquals(expectedBuildFiles, actualBuildFiles);
   }
 
+  @Test
+  public void recursiveSpecLooksUpBuildFilesInTheTree() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(
+        tmp.getRoot().toPath(),
+        ImmutableSet.of(Paths.get("a", "ignored")));
+    Path buildFile = Paths.get("a", BuckConstant.BUILD_RULES_FILE_NAME);
+    Path nestedBuildFile = Paths.get("a", "b", BuckConstant.BUILD_RULES_FILE_NAME);
+    Path ignoredBuildFile = Paths.get("a", "ignored", BuckConstant.BUILD_RULES_FILE_NAME);
+    Path excludedBuildFile = Paths.get("a", "c", BuckConstant.BUILD_RULES_FILE_NAME);
+    for (Path path :
+        ImmutableSet.of(buildFile, nestedBuildFile, ignoredBuildFile, excludedBuildFile)) {
+      filesystem.mkdirs(path.getParent());
+      filesystem.writeContentsToPath("", path);
+    }
+    IncrementalBuildFileTree tree = new IncrementalBuildFileTree(filesystem, /* numThreads */ 2);
+
+    BuildFileSpec recursiveSpec = BuildFileSpec.fromRecursivePath(
+        buildFile.getParent(),
+        ImmutableSet.of(Paths.get("a", "ignored"), excludedBuildFile.getParent()));
+    assertEquals(
+        recursiveSpec.findBuildFiles(filesystem),
+        recursiveSpec.findBuildFiles(filesystem, tree));
+    assertEquals(
+        ImmutableSet.of(buildFile, nestedBuildFile),
+        recursiveSpec.findBuildFiles(filesystem, tree));
+  }
+
 }
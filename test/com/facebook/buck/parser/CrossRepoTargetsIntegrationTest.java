@@ -19,6 +19,7 @@ import static org.junit.Assert.assertEquals;
 
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.json.BuildFileOutputFormat;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
@@ -71,8 +72,11 @@ public class CrossRepoTargetsIntegrationTest {
     Parser parser = Parser.createParser(
         repositoryFactory,
         repositoryFactory.getRootRepository().getBuckConfig().getPythonInterpreter(),
+        BuildFileOutputFormat.JSON,
         ImmutableSet.<Pattern>of(),
-        new FakeRuleKeyBuilderFactory());
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 1,
+        /* enablePersistentParseCache */ false);
 
     BuildTarget mainTarget = BuildTarget.builder("//", "main").build();
     BuildTarget externalTarget =
@@ -17,28 +17,25 @@
 package com.facebook.buck.parser;
 
 import static com.facebook.buck.testutil.WatchEvents.createPathEvent;
-import static org.easymock.EasyMock.expect;
-import static org.easymock.EasyMock.replay;
-import static org.easymock.EasyMock.verify;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
 import static org.junit.Assert.fail;
 import static org.junit.Assume.assumeTrue;
 
-import com.facebook.buck.event.BuckEvent;
 import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.FakeBuckEventListener;
 import com.facebook.buck.event.TestEventConfigerator;
+import com.facebook.buck.json.BuildFileOutputFormat;
 import com.facebook.buck.json.BuildFileParseException;
 import com.facebook.buck.json.DefaultProjectBuildFileParserFactory;
+import com.facebook.buck.json.PersistentBuildFileParseCache;
 import com.facebook.buck.json.ProjectBuildFileParser;
 import com.facebook.buck.json.ProjectBuildFileParserFactory;
-import com.facebook.buck.model.BuildFileTree;
-import com.facebook.buck.model.BuildId;
 import com.facebook.buck.model.BuildTarget;
 import com.facebook.buck.model.BuildTargetException;
-import com.facebook.buck.model.FilesystemBackedBuildFileTree;
+import com.facebook.buck.model.HasBuildTarget;
+import com.facebook.buck.model.IncrementalBuildFileTree;
 import com.facebook.buck.rules.ActionGraph;
 import com.facebook.buck.rules.BuildRule;
 import com.facebook.buck.rules.FakeRepositoryFactory;
@@ -58,15 +55,16 @@ import com.facebook.buck.util.ProjectFilesystem;
 import com.facebook.buck.util.environment.Platform;
 import com.google.common.base.Charsets;
 import com.google.common.base.Optional;
+import com.google.common.base.Preconditions;
 import com.google.common.base.Predicates;
-import com.google.common.base.Supplier;
-import com.google.common.base.Suppliers;
+import com.google.common.collect.FluentIterable;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.ImmutableSortedSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
 import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 
@@ -152,6 +150,7 @@ public class ParserTest extends EasyMockSupport {
         new DefaultProjectBuildFileParserFactory(
             filesystem,
             BuckTestConstant.PYTHON_INTERPRETER,
+            BuildFileOutputFormat.JSON,
             buildRuleTypes.getAllDescriptions());
     testParser = createParser(emptyBuildTargets(), testBuildFileParserFactory);
   }
@@ -159,7 +158,7 @@ public class ParserTest extends EasyMockSupport {
   private Parser createParser(Iterable<Map<String, Object>> rules)
       throws IOException, InterruptedException {
     return createParser(
-        ofInstance(new FilesystemBackedBuildFileTree(filesystem)),
+        new IncrementalBuildFileTree(filesystem, /* numThreads */ 1),
         rules,
         new TestProjectBuildFileParserFactory(filesystem, buildRuleTypes),
         new BuildTargetParser());
@@ -170,20 +169,20 @@ public class ParserTest extends EasyMockSupport {
       ProjectBuildFileParserFactory buildFileParserFactory)
       throws IOException, InterruptedException {
     return createParser(
-        ofInstance(new FilesystemBackedBuildFileTree(filesystem)),
+        new IncrementalBuildFileTree(filesystem, /* numThreads */ 1),
         rules,
         buildFileParserFactory,
         new BuildTargetParser());
   }
 
   private Parser createParser(
-          Supplier<BuildFileTree> buildFileTreeSupplier,
+      IncrementalBuildFileTree buildFileTree,
       Iterable<Map<String, Object>> rules,
       ProjectBuildFileParserFactory buildFileParserFactory,
       BuildTargetParser buildTargetParser)
       throws IOException, InterruptedException {
     return createParser(
-        buildFileTreeSupplier,
+        buildFileTree,
         rules,
         buildFileParserFactory,
         buildTargetParser,
@@ -191,7 +190,7 @@ public class ParserTest extends EasyMockSupport {
   }
 
     private Parser createParser(
-        Supplier<BuildFileTree> buildFileTreeSupplier,
+        IncrementalBuildFileTree buildFileTree,
         Iterable<Map<String, Object>> rules,
         ProjectBuildFileParserFactory buildFileParserFactory,
         BuildTargetParser buildTargetParser,
@@ -199,11 +198,13 @@ public class ParserTest extends EasyMockSupport {
         throws IOException, InterruptedException {
     Parser parser = new Parser(
         repositoryFactory,
-        buildFileTreeSupplier,
+        buildFileTree,
         buildTargetParser,
         buildFileParserFactory,
         tempFilePatterns,
-        new FakeRuleKeyBuilderFactory());
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 1,
+        Optional.<PersistentBuildFileParseCache>absent());
 
     try {
       parser.parseRawRulesInternal(rules);
@@ -336,6 +337,72 @@ public class ParserTest extends EasyMockSupport {
       /* enableProfiling */ false);
   }
 
+  @Test
+  public void testDependenciesInOtherBuildFilesAreParsedWithAPoolOfParsers()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    tempDir.newFolder("java", "com", "facebook", "deps", "a");
+    tempDir.newFolder("java", "com", "facebook", "deps", "b");
+    tempDir.newFolder("java", "com", "facebook", "deps", "c");
+    Files.write(
+        "java_library(name = 'root', deps = [\n" +
+        "  '//java/com/facebook/deps/a:a',\n" +
+        "  '//java/com/facebook/deps/b:b',\n" +
+        "])\n",
+        tempDir.newFile("java/com/facebook/deps/" + BuckConstant.BUILD_RULES_FILE_NAME),
+        Charsets.UTF_8);
+    Files.write(
+        "java_library(\n" +
+        "  name = 'a',\n" +
+        "  deps = ['//java/com/facebook/deps/c:c'],\n" +
+        "  visibility = ['PUBLIC'],\n" +
+        ")\n",
+        tempDir.newFile("java/com/facebook/deps/a/" + BuckConstant.BUILD_RULES_FILE_NAME),
+        Charsets.UTF_8);
+    Files.write(
+        "java_library(\n" +
+        "  name = 'b',\n" +
+        "  deps = ['//java/com/facebook/deps/c:c'],\n" +
+        "  visibility = ['PUBLIC'],\n" +
+        ")\n",
+        tempDir.newFile("java/com/facebook/deps/b/" + BuckConstant.BUILD_RULES_FILE_NAME),
+        Charsets.UTF_8);
+    Files.write(
+        "java_library(name = 'c', visibility = ['PUBLIC'])\n",
+        tempDir.newFile("java/com/facebook/deps/c/" + BuckConstant.BUILD_RULES_FILE_NAME),
+        Charsets.UTF_8);
+
+    Parser parser = new Parser(
+        repositoryFactory,
+        new IncrementalBuildFileTree(filesystem, /* numThreads */ 1),
+        new BuildTargetParser(),
+        new DefaultProjectBuildFileParserFactory(
+            filesystem,
+            BuckTestConstant.PYTHON_INTERPRETER,
+            BuildFileOutputFormat.JSON,
+            buildRuleTypes.getAllDescriptions()),
+        tempFilePatterns,
+        new FakeRuleKeyBuilderFactory(),
+        /* numParserThreads */ 3,
+        Optional.<PersistentBuildFileParseCache>absent());
+
+    TargetGraph targetGraph = parser.buildTargetGraphForBuildTargets(
+        ImmutableList.of(BuildTarget.builder("//java/com/facebook/deps", "root").build()),
+        ImmutableList.<String>of(),
+        BuckEventBusFactory.newInstance(),
+        new TestConsole(),
+        ImmutableMap.<String, String>of(),
+        /* enableProfiling */ false);
+
+    ImmutableSet<BuildTarget> expectedTargets = ImmutableSet.of(
+        BuildTarget.builder("//java/com/facebook/deps", "root").build(),
+        BuildTarget.builder("//java/com/facebook/deps/a", "a").build(),
+        BuildTarget.builder("//java/com/facebook/deps/b", "b").build(),
+        BuildTarget.builder("//java/com/facebook/deps/c", "c").build());
+    assertEquals(
+        expectedTargets,
+        FluentIterable.from(targetGraph.getNodes()).transform(HasBuildTarget.TO_TARGET).toSet());
+  }
+
   @Test
   public void whenAllRulesRequestedWithTrueFilterThenMultipleRulesReturned()
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
@@ -418,6 +485,14 @@ public class ParserTest extends EasyMockSupport {
   @Test
   public void whenEnvironmentChangesThenCacheRulesAreInvalidated()
       throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    Files.write(
+        "import os\n" +
+        "include_defs('//java/com/facebook/includedByBuildFile')\n" +
+        "SOME_VALUE = os.environ.get('SOME_KEY')\n" +
+        "java_library(name = 'foo')\n" +
+        "java_library(name = 'bar')\n",
+        testBuildFile.toFile(),
+        Charsets.UTF_8);
     TestProjectBuildFileParserFactory buildFileParserFactory =
         new TestProjectBuildFileParserFactory(filesystem, buildRuleTypes);
     Parser parser = createParser(emptyBuildTargets(), buildFileParserFactory);
@@ -428,7 +503,7 @@ public class ParserTest extends EasyMockSupport {
         Lists.<String>newArrayList(),
         Predicates.<TargetNode<?>>alwaysTrue(),
         new TestConsole(),
-        ImmutableMap.of("Some Key", "Some Value"),
+        ImmutableMap.of("SOME_KEY", "Some Value"),
         BuckEventBusFactory.newInstance(),
         false /* enableProfiling */);
 
@@ -438,7 +513,7 @@ public class ParserTest extends EasyMockSupport {
         Lists.<String>newArrayList(),
         Predicates.<TargetNode<?>>alwaysTrue(),
         new TestConsole(),
-        ImmutableMap.of("Some Key", "Some Other Value"),
+        ImmutableMap.of("SOME_KEY", "Some Other Value"),
         BuckEventBusFactory.newInstance(),
         false /* enableProfiling */);
 
@@ -479,6 +554,135 @@ public class ParserTest extends EasyMockSupport {
   }
 
 
+  @Test
+  public void whenEnvironmentChangesThenOnlyBuildFilesReadingChangedVariablesAreInvalidated()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    Path otherBuildFile = tempDir.newFolder("java", "com", "other").toPath()
+        .resolve(BuckConstant.BUILD_RULES_FILE_NAME);
+    CannedProjectBuildFileParserFactory buildFileParserFactory =
+        new CannedProjectBuildFileParserFactory(
+            ImmutableMap.of(
+                testBuildFile, cannedRules(testBuildFile, ImmutableList.of("SOME_KEY")),
+                otherBuildFile, cannedRules(otherBuildFile, ImmutableList.<String>of())));
+    Parser parser = createParser(emptyBuildTargets(), buildFileParserFactory);
+
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Value", "OTHER_KEY", "Some Value"),
+        BuckEventBusFactory.newInstance(),
+        testBuildFile,
+        otherBuildFile);
+    assertEquals(ImmutableList.of(testBuildFile, otherBuildFile), buildFileParserFactory.parsed);
+
+    // Neither build file read OTHER_KEY.
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Value", "OTHER_KEY", "Some Other Value"),
+        BuckEventBusFactory.newInstance(),
+        testBuildFile,
+        otherBuildFile);
+    assertEquals(ImmutableList.of(testBuildFile, otherBuildFile), buildFileParserFactory.parsed);
+
+    BuckEventBus eventBus = BuckEventBusFactory.newInstance();
+    FakeBuckEventListener listener = new FakeBuckEventListener();
+    eventBus.register(listener);
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Other Value", "OTHER_KEY", "Some Other Value"),
+        eventBus,
+        testBuildFile,
+        otherBuildFile);
+    assertEquals(
+        ImmutableList.of(testBuildFile, otherBuildFile, testBuildFile),
+        buildFileParserFactory.parsed);
+
+    BuildFileInvalidationEvent event = Iterables.getOnlyElement(
+        Iterables.filter(listener.getEvents(), BuildFileInvalidationEvent.class));
+    assertEquals(BuildFileInvalidationEvent.Cause.ENVIRONMENT_CHANGE, event.getCause());
+    assertEquals("SOME_KEY", event.getChange());
+    assertEquals(1, event.getInvalidatedBuildFiles());
+  }
+
+  @Test
+  public void whenBuildFileCouldReadAnyVariableThenAnyEnvironmentChangeInvalidatesIt()
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    Path otherBuildFile = tempDir.newFolder("java", "com", "other").toPath()
+        .resolve(BuckConstant.BUILD_RULES_FILE_NAME);
+    CannedProjectBuildFileParserFactory buildFileParserFactory =
+        new CannedProjectBuildFileParserFactory(
+            ImmutableMap.of(
+                testBuildFile, cannedRules(testBuildFile, null),
+                otherBuildFile, cannedRules(otherBuildFile, ImmutableList.<String>of())));
+    Parser parser = createParser(emptyBuildTargets(), buildFileParserFactory);
+
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Value"),
+        BuckEventBusFactory.newInstance(),
+        testBuildFile,
+        otherBuildFile);
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Other Value"),
+        BuckEventBusFactory.newInstance(),
+        testBuildFile,
+        otherBuildFile);
+    assertEquals(
+        ImmutableList.of(testBuildFile, otherBuildFile, testBuildFile),
+        buildFileParserFactory.parsed);
+
+    // Variables read by Python itself affect every build file.
+    parseBuildFiles(
+        parser,
+        ImmutableMap.of("SOME_KEY", "Some Other Value", "PYTHONPATH", "/tmp"),
+        BuckEventBusFactory.newInstance(),
+        testBuildFile,
+        otherBuildFile);
+    assertEquals(
+        ImmutableList.of(
+            testBuildFile,
+            otherBuildFile,
+            testBuildFile,
+            testBuildFile,
+            otherBuildFile),
+        buildFileParserFactory.parsed);
+  }
+
+  private void parseBuildFiles(
+      Parser parser,
+      ImmutableMap<String, String> environment,
+      BuckEventBus eventBus,
+      Path... buildFiles)
+      throws BuildFileParseException, BuildTargetException, IOException, InterruptedException {
+    for (Path buildFile : buildFiles) {
+      parser.parseBuildFile(
+          buildFile,
+          /* defaultIncludes */ ImmutableList.<String>of(),
+          environment,
+          new TestConsole(),
+          eventBus);
+    }
+  }
+
+  /**
+   * @return the rules buck.py would give for a build file with a single rule, which read
+   *     {@code environmentVariables}, or could have read any of them if that is null.
+   */
+  private List<Map<String, Object>> cannedRules(
+      Path buildFile,
+      List<String> environmentVariables) {
+    Map<String, Object> metaRule = Maps.newHashMap();
+    metaRule.put("__includes", ImmutableList.of(buildFile.toString()));
+    metaRule.put("__env", environmentVariables);
+    return ImmutableList.of(
+        ImmutableMap.<String, Object>of(
+            "type", "java_library",
+            "name", "foo",
+            "buck.base_path",
+            filesystem.getRootPath().relativize(buildFile.getParent()).toString()),
+        metaRule);
+  }
+
   // TODO(jimp/devjasta): clean up the horrible ProjectBuildFileParserFactory mess.
   private void parseBuildFile(Path buildFile, Parser parser,
                               ProjectBuildFileParserFactory buildFileParserFactory)
@@ -1079,48 +1283,6 @@ public class ParserTest extends EasyMockSupport {
     assertEquals("Should have replaced build rules", 1, buildFileParserFactory.calls);
   }
 
-  @Test
-  @SuppressWarnings("unchecked") // Needed to mock generic class.
-  public void whenBuildFileTreeCacheInvalidatedTwiceDuringASingleBuildThenBuildFileTreeBuiltOnce()
-      throws IOException {
-    BuckEvent mockEvent = createMock(BuckEvent.class);
-    expect(mockEvent.getEventName()).andReturn("CommandStarted").anyTimes();
-    expect(mockEvent.getBuildId()).andReturn(new BuildId("BUILD1"));
-    BuildFileTree mockBuildFileTree = createMock(BuildFileTree.class);
-    Supplier<BuildFileTree> mockSupplier = createMock(Supplier.class);
-    expect(mockSupplier.get()).andReturn(mockBuildFileTree).once();
-    replay(mockEvent, mockSupplier, mockBuildFileTree);
-    Parser.BuildFileTreeCache cache = new Parser.BuildFileTreeCache(mockSupplier);
-    cache.onCommandStartedEvent(mockEvent);
-    cache.invalidateIfStale();
-    cache.get();
-    cache.invalidateIfStale();
-    cache.get();
-    verify(mockEvent, mockSupplier);
-  }
-
-  @Test
-  @SuppressWarnings("unchecked") // Needed to mock generic class.
-  public void whenBuildFileTreeCacheInvalidatedDuringTwoBuildsThenBuildFileTreeBuiltTwice()
-      throws IOException {
-    BuckEvent mockEvent = createMock(BuckEvent.class);
-    expect(mockEvent.getEventName()).andReturn("CommandStarted").anyTimes();
-    expect(mockEvent.getBuildId()).andReturn(new BuildId("BUILD1"));
-    expect(mockEvent.getBuildId()).andReturn(new BuildId("BUILD2"));
-    BuildFileTree mockBuildFileTree = createMock(BuildFileTree.class);
-    Supplier<BuildFileTree> mockSupplier = createMock(Supplier.class);
-    expect(mockSupplier.get()).andReturn(mockBuildFileTree).times(2);
-    replay(mockEvent, mockSupplier, mockBuildFileTree);
-    Parser.BuildFileTreeCache cache = new Parser.BuildFileTreeCache(mockSupplier);
-    cache.onCommandStartedEvent(mockEvent);
-    cache.invalidateIfStale();
-    cache.get();
-    cache.onCommandStartedEvent(mockEvent);
-    cache.invalidateIfStale();
-    cache.get();
-    verify(mockEvent, mockSupplier);
-  }
-
   @Test(expected = BuildFileParseException.class)
   public void whenSubprocessReturnsFailureThenProjectBuildFileParserThrowsOnClose()
       throws IOException, BuildFileParseException, InterruptedException {
@@ -1376,6 +1538,43 @@ public class ParserTest extends EasyMockSupport {
     return Sets.newHashSet();
   }
 
+  /**
+   * ProjectBuildFileParser test double which returns canned rules instead of running buck.py, and
+   * records the build files it parsed, in order.
+   */
+  private class CannedProjectBuildFileParserFactory implements ProjectBuildFileParserFactory {
+    private final ImmutableMap<Path, List<Map<String, Object>>> rules;
+    public final List<Path> parsed = Lists.newArrayList();
+
+    public CannedProjectBuildFileParserFactory(
+        ImmutableMap<Path, List<Map<String, Object>>> rules) {
+      this.rules = rules;
+    }
+
+    @Override
+    public ProjectBuildFileParser createParser(
+        Iterable<String> commonIncludes,
+        Console console,
+        ImmutableMap<String, String> environment,
+        BuckEventBus buckEventBus) {
+      return new ProjectBuildFileParser(
+          filesystem,
+          commonIncludes,
+          "python" /* pythonInterpreter */,
+          BuildFileOutputFormat.JSON,
+          buildRuleTypes.getAllDescriptions(),
+          console,
+          environment,
+          buckEventBus) {
+        @Override
+        protected List<Map<String, Object>> getAllRulesInternal(Optional<Path> buildFile) {
+          parsed.add(buildFile.get());
+          return Preconditions.checkNotNull(rules.get(buildFile.get()));
+        }
+      };
+    }
+  }
+
   /**
    * ProjectBuildFileParser test double which counts the number of times rules are parsed to test
    * caching logic in Parser.
@@ -1417,6 +1616,7 @@ public class ParserTest extends EasyMockSupport {
             projectFilesystem,
             ImmutableList.of("//java/com/facebook/defaultIncludeFile"),
             pythonInterpreter,
+            BuildFileOutputFormat.JSON,
             buildRuleTypes.getAllDescriptions(),
             new TestConsole(),
             ImmutableMap.<String, String>of(),
@@ -1431,16 +1631,4 @@ public class ParserTest extends EasyMockSupport {
       }
     }
   }
-
-  /**
-   * Analogue to {@link Suppliers#ofInstance(Object)}.
-   */
-  private static Supplier<BuildFileTree> ofInstance(final BuildFileTree buildFileTree) {
-    return new Supplier<BuildFileTree>() {
-      @Override
-      public BuildFileTree get() {
-        return buildFileTree;
-      }
-    };
-  }
 }
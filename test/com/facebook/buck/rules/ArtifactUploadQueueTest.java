@@ -0,0 +1,186 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.event.BuckEventBus;
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.model.BuildId;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.facebook.buck.timing.DefaultClock;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class ArtifactUploadQueueTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+  private BuckEventBus eventBus;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    eventBus = BuckEventBusFactory.newInstance();
+  }
+
+  @Test
+  public void eachRuleKeyIsUploadedOnceAndFlushWaitsForUploads()
+      throws InterruptedException, IOException {
+    RecordingArtifactCache cache = new RecordingArtifactCache(new CountDownLatch(0));
+    ArtifactUploadQueue queue = new ArtifactUploadQueue(
+        cache,
+        eventBus,
+        /* maxPendingUploads */ 4,
+        Executors.newSingleThreadExecutor());
+
+    // Write all of the metadata up front: the recorders for //foo:a share a metadata directory,
+    // which must not be rewritten while the first upload is zipping it.
+    BuildInfoRecorder first = createBuildInfoRecorder("//foo:a", "a");
+    BuildInfoRecorder duplicate = createBuildInfoRecorder("//foo:a", "a");
+    BuildInfoRecorder second = createBuildInfoRecorder("//foo:b", "b");
+
+    queue.enqueue(first);
+    queue.enqueue(duplicate);
+    queue.enqueue(second);
+    queue.flush();
+
+    assertEquals(0, queue.getDepth());
+    assertEquals(0, queue.getBytesInFlight());
+    assertEquals(
+        ImmutableList.of(
+            new RuleKey(Strings.repeat("a", 40)),
+            new RuleKey(Strings.repeat("b", 40))),
+        cache.storedKeys);
+    queue.close();
+  }
+
+  @Test
+  public void enqueueBlocksWhenTheQueueIsFull() throws InterruptedException, IOException {
+    CountDownLatch storeLatch = new CountDownLatch(1);
+    RecordingArtifactCache cache = new RecordingArtifactCache(storeLatch);
+    final ArtifactUploadQueue queue = new ArtifactUploadQueue(
+        cache,
+        eventBus,
+        /* maxPendingUploads */ 1,
+        Executors.newSingleThreadExecutor());
+
+    queue.enqueue(createBuildInfoRecorder("//foo:a", "a"));
+
+    final BuildInfoRecorder second = createBuildInfoRecorder("//foo:b", "b");
+    final CountDownLatch secondEnqueued = new CountDownLatch(1);
+    Thread thread = new Thread() {
+      @Override
+      public void run() {
+        try {
+          queue.enqueue(second);
+          secondEnqueued.countDown();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+    };
+    thread.start();
+
+    assertFalse(
+        "The second upload should wait for the first to finish.",
+        secondEnqueued.await(200, TimeUnit.MILLISECONDS));
+    assertEquals(1, queue.getDepth());
+
+    storeLatch.countDown();
+    assertTrue(secondEnqueued.await(10, TimeUnit.SECONDS));
+    thread.join();
+    queue.flush();
+    assertEquals(2, cache.storedKeys.size());
+    queue.close();
+  }
+
+  private BuildInfoRecorder createBuildInfoRecorder(String target, String ruleKeyChar)
+      throws IOException {
+    BuildInfoRecorder recorder = new BuildInfoRecorder(
+        BuildTargetFactory.newInstance(target),
+        filesystem,
+        new DefaultClock(),
+        new BuildId(),
+        ImmutableMap.<String, String>of(),
+        new RuleKey(Strings.repeat(ruleKeyChar, 40)),
+        new RuleKey(Strings.repeat("f", 40)));
+    recorder.writeMetadataToDisk(/* clearExistingMetadata */ true);
+    return recorder;
+  }
+
+  private static class RecordingArtifactCache implements ArtifactCache {
+
+    private final CountDownLatch storeLatch;
+    private final List<RuleKey> storedKeys =
+        Collections.synchronizedList(Lists.<RuleKey>newArrayList());
+
+    RecordingArtifactCache(CountDownLatch storeLatch) {
+      this.storeLatch = storeLatch;
+    }
+
+    @Override
+    public CacheResult fetch(RuleKey ruleKey, File output) {
+      return CacheResult.MISS;
+    }
+
+    @Override
+    public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+      return CacheResult.MISS;
+    }
+
+    @Override
+    public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+    }
+
+    @Override
+    public void store(RuleKey ruleKey, File output) throws InterruptedException {
+      storeLatch.await();
+      storedKeys.add(ruleKey);
+    }
+
+    @Override
+    public boolean isStoreSupported() {
+      return true;
+    }
+
+    @Override
+    public void close() {
+    }
+  }
+}
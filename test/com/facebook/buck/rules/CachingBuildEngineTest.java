@@ -26,6 +26,7 @@ import static org.easymock.EasyMock.expect;
 import static org.easymock.EasyMock.expectLastCall;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
 import static org.junit.Assert.assertTrue;
 
 import com.facebook.buck.android.AndroidResourceDescription;
@@ -35,6 +36,7 @@ import com.facebook.buck.event.BuckEventBus;
 import com.facebook.buck.event.BuckEventBusFactory;
 import com.facebook.buck.event.FakeBuckEventListener;
 import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.java.FakeJavaPackageFinder;
 import com.facebook.buck.java.JavaLibraryDescription;
 import com.facebook.buck.java.JavaPackageFinder;
 import com.facebook.buck.model.BuildId;
@@ -75,9 +77,9 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
-import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
@@ -85,6 +87,7 @@ import java.util.Comparator;
 import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipOutputStream;
 
@@ -210,13 +213,15 @@ public class CachingBuildEngineTest extends EasyMockSupport {
             /* ruleKeyWithoutDepsForRecorder */ anyObject(RuleKey.class)))
         .andReturn(buildInfoRecorder);
     expect(buildInfoRecorder.fetchArtifactForBuildable(
-            anyObject(File.class),
+            anyObject(ArtifactConsumer.class),
             eq(artifactCache)))
         .andReturn(CacheResult.MISS);
 
     // Set the requisite expectations to build the rule.
     expect(context.getEventBus()).andReturn(buckEventBus).anyTimes();
     expect(context.getStepRunner()).andReturn(createSameThreadStepRunner(buckEventBus)).anyTimes();
+    expect(context.getCriticalPathEstimate())
+        .andStubReturn(Optional.<CriticalPathEstimate>absent());
 
     expect(dep.getBuildTarget()).andStubReturn(depTarget);
     CachingBuildEngine cachingBuildEngine = new CachingBuildEngine();
@@ -238,6 +243,7 @@ public class CachingBuildEngineTest extends EasyMockSupport {
     // These methods should be invoked after the rule is built locally.
     buildInfoRecorder.recordArtifact(Paths.get(pathToOutputFile));
     buildInfoRecorder.writeMetadataToDisk(/* clearExistingMetadata */ true);
+    expect(context.getArtifactUploadQueue()).andReturn(Optional.<ArtifactUploadQueue>absent());
     buildInfoRecorder.performUploadToArtifactCache(artifactCache, buckEventBus);
 
     // Attempting to build the rule should force a rebuild due to a cache miss.
@@ -303,6 +309,11 @@ public class CachingBuildEngineTest extends EasyMockSupport {
       public CacheResult fetch(RuleKey ruleKey, File output) {
         throw new RuntimeException("Artifact cache must not be accessed while building the rule.");
       }
+
+      @Override
+      public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+        throw new RuntimeException("Artifact cache must not be accessed while building the rule.");
+      }
     };
 
     BuckEventBus eventBus = BuckEventBusFactory.newInstance();
@@ -340,6 +351,84 @@ public class CachingBuildEngineTest extends EasyMockSupport {
     assertEquals(CacheResult.SKIP, finishedEvent.getCacheResult());
   }
 
+  @Test
+  public void testComputeRuleKeysRecordsKeysOfTransitiveDeps() throws InterruptedException {
+    CachingBuildEngine cachingBuildEngine = new CachingBuildEngine();
+    SourcePathResolver pathResolver = new SourcePathResolver(new BuildRuleResolver());
+
+    FakeBuildRule leaf = new FakeBuildRule("//java/com/example:leaf", pathResolver);
+    leaf.setRuleKey(new RuleKey(Strings.repeat("a", 40)));
+    FakeBuildRule middle = new FakeBuildRule("//java/com/example:middle", pathResolver, leaf);
+    middle.setRuleKey(new RuleKey(Strings.repeat("b", 40)));
+    FakeBuildRule top = new FakeBuildRule("//java/com/example:top", pathResolver, middle, leaf);
+    top.setRuleKey(new RuleKey(Strings.repeat("c", 40)));
+
+    // This rule's key cannot be computed, so neither can its dependent's.
+    FakeBuildRule broken = new FakeBuildRule("//java/com/example:broken", pathResolver);
+    FakeBuildRule dependsOnBroken =
+        new FakeBuildRule("//java/com/example:depends_on_broken", pathResolver, broken, leaf);
+    dependsOnBroken.setRuleKey(new RuleKey(Strings.repeat("d", 40)));
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      cachingBuildEngine.computeRuleKeys(ImmutableList.<BuildRule>of(top, dependsOnBroken), pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    assertEquals(leaf.getRuleKey(), cachingBuildEngine.getRuleKey(leaf.getBuildTarget()));
+    assertEquals(middle.getRuleKey(), cachingBuildEngine.getRuleKey(middle.getBuildTarget()));
+    assertEquals(top.getRuleKey(), cachingBuildEngine.getRuleKey(top.getBuildTarget()));
+    assertNull(cachingBuildEngine.getRuleKey(broken.getBuildTarget()));
+    assertNull(cachingBuildEngine.getRuleKey(dependsOnBroken.getBuildTarget()));
+  }
+
+  @Test
+  public void testPrefetchArtifactsSkipsRulesThatAreUpToDate()
+      throws InterruptedException, IOException {
+    CachingBuildEngine cachingBuildEngine = new CachingBuildEngine();
+    SourcePathResolver pathResolver = new SourcePathResolver(new BuildRuleResolver());
+    ProjectFilesystem filesystem = new FakeProjectFilesystem();
+
+    FakeBuildRule leaf = new FakeBuildRule("//java/com/example:leaf", pathResolver);
+    leaf.setRuleKey(new RuleKey(Strings.repeat("a", 40)));
+    FakeBuildRule middle = new FakeBuildRule("//java/com/example:middle", pathResolver, leaf);
+    middle.setRuleKey(new RuleKey(Strings.repeat("b", 40)));
+    FakeBuildRule top = new FakeBuildRule("//java/com/example:top", pathResolver, middle, leaf);
+    top.setRuleKey(new RuleKey(Strings.repeat("c", 40)));
+
+    ForkJoinPool pool = new ForkJoinPool(2);
+    try {
+      cachingBuildEngine.computeRuleKeys(ImmutableList.<BuildRule>of(top), pool);
+    } finally {
+      pool.shutdown();
+    }
+
+    // The leaf's output on disk was built with its current rule key, so it will not be fetched.
+    new BuildInfoRecorder(
+        leaf.getBuildTarget(),
+        filesystem,
+        new DefaultClock(),
+        new BuildId(),
+        ImmutableMap.<String, String>of(),
+        leaf.getRuleKey(),
+        leaf.getRuleKey())
+        .writeMetadataToDisk(/* clearExistingMetadata */ true);
+
+    ArtifactCache artifactCache = createMock(ArtifactCache.class);
+    artifactCache.prefetch(ImmutableSet.of(top.getRuleKey(), middle.getRuleKey()));
+    replayAll();
+
+    BuildContext buildContext = FakeBuildContext.newBuilder(filesystem)
+        .setActionGraph(new ActionGraph(new MutableDirectedGraph<BuildRule>()))
+        .setJavaPackageFinder(new FakeJavaPackageFinder())
+        .setArtifactCache(artifactCache)
+        .build();
+    cachingBuildEngine.prefetchArtifacts(buildContext, ImmutableList.<BuildRule>of(top));
+
+    verifyAll();
+  }
+
   /**
    * Rebuild a rule where one if its dependencies has been modified such that its RuleKey has
    * changed, but its ABI is the same.
@@ -388,6 +477,8 @@ public class CachingBuildEngineTest extends EasyMockSupport {
 
     expect(buildContext.createOnDiskBuildInfoFor(buildTarget)).andReturn(onDiskBuildInfo);
     expect(buildContext.getStepRunner()).andReturn(createSameThreadStepRunner());
+    expect(buildContext.getCriticalPathEstimate())
+        .andStubReturn(Optional.<CriticalPathEstimate>absent());
     expect(buildContext.getEventBus()).andReturn(buckEventBus).anyTimes();
 
     replayAll();
@@ -461,7 +552,10 @@ public class CachingBuildEngineTest extends EasyMockSupport {
            /* ruleKeyWithoutDeps */ anyObject(RuleKey.class)))
         .andReturn(buildInfoRecorder);
 
-    expect(buildInfoRecorder.fetchArtifactForBuildable(anyObject(File.class), eq(artifactCache)))
+    expect(
+        buildInfoRecorder.fetchArtifactForBuildable(
+            anyObject(ArtifactConsumer.class),
+            eq(artifactCache)))
         .andReturn(CacheResult.MISS);
 
     // Populate the metadata that should be read from disk.
@@ -477,6 +571,8 @@ public class CachingBuildEngineTest extends EasyMockSupport {
 
     expect(buildContext.createOnDiskBuildInfoFor(buildTarget)).andReturn(onDiskBuildInfo);
     expect(buildContext.getStepRunner()).andReturn(createSameThreadStepRunner());
+    expect(buildContext.getCriticalPathEstimate())
+        .andStubReturn(Optional.<CriticalPathEstimate>absent());
     expect(buildContext.getEventBus()).andReturn(buckEventBus).anyTimes();
 
     replayAll();
@@ -538,7 +634,7 @@ public class CachingBuildEngineTest extends EasyMockSupport {
         "buck-out/gen/src/com/facebook/orca/orca.jar",
         "Imagine this is the contents of a valid JAR file.");
     expect(
-        artifactCache.fetch(
+        artifactCache.fetchStreaming(
             eq(buildRule.getRuleKey()),
             capture(new CaptureThatWritesAZipFile(desiredZipEntries))))
         .andReturn(CacheResult.DIR_HIT);
@@ -845,16 +941,16 @@ public class CachingBuildEngineTest extends EasyMockSupport {
   }
 
   /**
-   * Subclass of {@link Capture} that, when its {@link File} value is set, takes the location of
-   * that {@link File} and writes a zip file there with the entries specified to the constructor of
+   * Subclass of {@link Capture} that, when its {@link ArtifactConsumer} value is set, feeds that
+   * consumer a zip file with the entries specified to the constructor of
    * {@link CaptureThatWritesAZipFile}.
    * <p>
-   * This makes it possible to capture a call to {@link ArtifactCache#store(RuleKey, File)} and
-   * ensure that there will be a zip file in place immediately after the captured method has been
-   * invoked.
+   * This makes it possible to capture a call to
+   * {@link ArtifactCache#fetchStreaming(RuleKey, ArtifactConsumer)} and ensure that the artifact
+   * has been consumed immediately after the captured method has been invoked.
    */
   @SuppressWarnings("serial")
-  private static class CaptureThatWritesAZipFile extends Capture<File> {
+  private static class CaptureThatWritesAZipFile extends Capture<ArtifactConsumer> {
 
     private final Map<String, String> desiredEntries;
 
@@ -863,21 +959,20 @@ public class CachingBuildEngineTest extends EasyMockSupport {
     }
 
     @Override
-    public void setValue(File file) {
-      super.setValue(file);
+    public void setValue(ArtifactConsumer consumer) {
+      super.setValue(consumer);
 
-      // This must have the side-effect of writing a zip file in the specified place.
+      // This must have the side-effect of handing a zip file to the consumer.
       try {
-        writeEntries(file);
+        consumer.consume(new ByteArrayInputStream(writeEntries()));
       } catch (IOException e) {
         throw new RuntimeException(e);
       }
     }
 
-    private void writeEntries(File file) throws IOException {
-      try (ZipOutputStream zip = new ZipOutputStream(
-          new BufferedOutputStream(
-              new FileOutputStream(file)))) {
+    private byte[] writeEntries() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
         for (Map.Entry<String, String> mapEntry : desiredEntries.entrySet()) {
           ZipEntry entry = new ZipEntry(mapEntry.getKey());
           zip.putNextEntry(entry);
@@ -885,6 +980,7 @@ public class CachingBuildEngineTest extends EasyMockSupport {
           zip.closeEntry();
         }
       }
+      return bytes.toByteArray();
     }
   }
 
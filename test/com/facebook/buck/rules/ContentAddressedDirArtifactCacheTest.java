@@ -0,0 +1,164 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Optional;
+import com.google.common.base.Strings;
+import com.google.common.io.Files;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+public class ContentAddressedDirArtifactCacheTest {
+
+  private static final RuleKey KEY_A = new RuleKey(Strings.repeat("a", 40));
+  private static final RuleKey KEY_B = new RuleKey(Strings.repeat("b", 40));
+  private static final RuleKey KEY_C = new RuleKey(Strings.repeat("c", 40));
+
+  @Rule
+  public TemporaryFolder tmpDir = new TemporaryFolder();
+
+  @Test
+  public void testStoreAndFetchHit() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+
+    File output = writeFile("output", "contents");
+    assertEquals(CacheResult.MISS, cache.fetch(KEY_A, output));
+    cache.store(KEY_A, output);
+    assertFalse(new File(cacheDir, KEY_A.toString()).exists());
+
+    File fetched = tmpDir.newFile();
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_A, fetched));
+    assertEquals("contents", Files.toString(fetched, Charsets.UTF_8));
+    cache.close();
+  }
+
+  @Test
+  public void testIdenticalArtifactsAreStoredOnce() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        tmpDir.newFolder(),
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+
+    cache.store(KEY_A, writeFile("a", "same"));
+    cache.store(KEY_B, writeFile("b", "same"));
+    cache.store(KEY_C, writeFile("c", "different"));
+
+    assertEquals(2, cache.getBlobCount());
+    assertEquals("same".length() + "different".length(), cache.getTotalSizeBytes());
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_B, tmpDir.newFile()));
+    cache.close();
+  }
+
+  @Test
+  public void testEvictsLeastRecentlyUsedBlobsAndTheirKeys() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        tmpDir.newFolder(),
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(8L));
+
+    cache.store(KEY_A, writeFile("a", "aaaa"));
+    cache.store(KEY_B, writeFile("b", "bbbb"));
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_A, tmpDir.newFile()));
+    cache.store(KEY_C, writeFile("c", "cccc"));
+
+    cache.deleteOldFiles();
+
+    assertEquals(8, cache.getTotalSizeBytes());
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_A, tmpDir.newFile()));
+    assertEquals(CacheResult.MISS, cache.fetch(KEY_B, tmpDir.newFile()));
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_C, tmpDir.newFile()));
+    cache.close();
+  }
+
+  @Test
+  public void testIndexSurvivesReload() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(8L));
+    cache.store(KEY_A, writeFile("a", "aaaa"));
+    cache.store(KEY_B, writeFile("b", "bbbb"));
+    assertEquals(CacheResult.DIR_HIT, cache.fetch(KEY_A, tmpDir.newFile()));
+    cache.close();
+
+    ContentAddressedDirArtifactCache reloaded = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.of(8L));
+    assertEquals(8, reloaded.getTotalSizeBytes());
+    reloaded.store(KEY_C, writeFile("c", "cccc"));
+    reloaded.deleteOldFiles();
+
+    assertEquals(CacheResult.DIR_HIT, reloaded.fetch(KEY_A, tmpDir.newFile()));
+    assertEquals(CacheResult.MISS, reloaded.fetch(KEY_B, tmpDir.newFile()));
+    reloaded.close();
+  }
+
+  @Test
+  public void testIndexIsRebuiltWhenJournalIsMissing() throws IOException {
+    File cacheDir = tmpDir.newFolder();
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    cache.store(KEY_A, writeFile("a", "aaaa"));
+    cache.store(KEY_B, writeFile("b", "aaaa"));
+    cache.close();
+    assertTrue(new File(cacheDir, ContentAddressedDirArtifactCache.JOURNAL).delete());
+
+    ContentAddressedDirArtifactCache reloaded = new ContentAddressedDirArtifactCache(
+        cacheDir,
+        /* doStore */ true,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    assertEquals(1, reloaded.getBlobCount());
+    assertEquals(4, reloaded.getTotalSizeBytes());
+    assertEquals(CacheResult.DIR_HIT, reloaded.fetch(KEY_B, tmpDir.newFile()));
+    reloaded.close();
+  }
+
+  @Test
+  public void testNoStore() throws IOException {
+    ContentAddressedDirArtifactCache cache = new ContentAddressedDirArtifactCache(
+        tmpDir.newFolder(),
+        /* doStore */ false,
+        /* maxCacheSizeBytes */ Optional.<Long>absent());
+    cache.store(KEY_A, writeFile("a", "aaaa"));
+    assertEquals(CacheResult.MISS, cache.fetch(KEY_A, tmpDir.newFile()));
+    cache.close();
+  }
+
+  private File writeFile(String name, String contents) throws IOException {
+    File file = tmpDir.newFile(name);
+    Files.write(contents, file, Charsets.UTF_8);
+    return file;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import com.facebook.buck.graph.MutableDirectedGraph;
+import com.facebook.buck.model.BuildTargetFactory;
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableMap;
+
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+
+public class CriticalPathEstimateTest {
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private final SourcePathResolver pathResolver =
+      new SourcePathResolver(new BuildRuleResolver());
+
+  @Test
+  public void rulesWithTheLongestChainOfDependentsComeFirst() {
+    // //:binary depends on //:slow and //:fast, and //:slow depends on //:base.
+    BuildRule base = new FakeBuildRule("//:base", pathResolver);
+    BuildRule slow = new FakeBuildRule("//:slow", pathResolver, base);
+    BuildRule fast = new FakeBuildRule("//:fast", pathResolver);
+    BuildRule binary = new FakeBuildRule("//:binary", pathResolver, slow, fast);
+    ActionGraph graph = createGraph(base, slow, fast, binary);
+
+    RuleDurationHistory history = new RuleDurationHistory(
+        ImmutableMap.of(
+            "//:base", 100L,
+            "//:slow", 1000L,
+            "//:fast", 10L,
+            "//:binary", 50L));
+    CriticalPathEstimate estimate = CriticalPathEstimate.compute(graph, history);
+
+    assertEquals(50, estimate.getRemainingMillis(binary.getBuildTarget()));
+    assertEquals(1050, estimate.getRemainingMillis(slow.getBuildTarget()));
+    assertEquals(60, estimate.getRemainingMillis(fast.getBuildTarget()));
+    assertEquals(1150, estimate.getRemainingMillis(base.getBuildTarget()));
+    assertEquals(1150, estimate.getCriticalPathMillis());
+    assertEquals(4, estimate.getRulesWithRecordedDurations());
+
+    // On one thread every rule runs in turn, but more threads cannot beat the critical path.
+    assertEquals(1160, estimate.getPredictedBuildMillis(1));
+    assertEquals(1150, estimate.getPredictedBuildMillis(4));
+  }
+
+  @Test
+  public void rulesWithoutADurationAreAssumedToTakeTheAverageDuration() {
+    BuildRule lib = new FakeBuildRule("//:lib", pathResolver);
+    BuildRule newLib = new FakeBuildRule("//:new_lib", pathResolver, lib);
+    BuildRule binary = new FakeBuildRule("//:binary", pathResolver, newLib);
+    ActionGraph graph = createGraph(lib, newLib, binary);
+
+    RuleDurationHistory history = new RuleDurationHistory(
+        ImmutableMap.of("//:lib", 100L, "//:binary", 300L));
+    CriticalPathEstimate estimate = CriticalPathEstimate.compute(graph, history);
+
+    assertEquals(500, estimate.getRemainingMillis(newLib.getBuildTarget()));
+    assertEquals(600, estimate.getCriticalPathMillis());
+    assertEquals(2, estimate.getRulesWithRecordedDurations());
+    assertEquals(3, estimate.getRuleCount());
+    assertEquals(
+        0,
+        estimate.getRemainingMillis(BuildTargetFactory.newInstance("//:not_in_graph")));
+  }
+
+  @Test
+  public void historyAveragesTheLatestDurationWithTheRecordedOne() throws IOException {
+    ProjectFilesystem filesystem = new ProjectFilesystem(tmp.getRoot().toPath());
+    assertFalse(RuleDurationHistory.load(filesystem).getDurationMillis(
+        BuildTargetFactory.newInstance("//:lib")).isPresent());
+
+    new RuleDurationHistory(ImmutableMap.of("//:lib", 100L))
+        .withLatestDurations(
+            ImmutableMap.of(
+                BuildTargetFactory.newInstance("//:lib"), 300L,
+                BuildTargetFactory.newInstance("//:binary"), 50L))
+        .save(filesystem);
+
+    RuleDurationHistory loaded = RuleDurationHistory.load(filesystem);
+    assertEquals(
+        Optional.of(200L),
+        loaded.getDurationMillis(BuildTargetFactory.newInstance("//:lib")));
+    assertEquals(
+        Optional.of(50L),
+        loaded.getDurationMillis(BuildTargetFactory.newInstance("//:binary")));
+  }
+
+  private static ActionGraph createGraph(BuildRule... rules) {
+    MutableDirectedGraph<BuildRule> graph = new MutableDirectedGraph<>();
+    for (BuildRule rule : rules) {
+      graph.addNode(rule);
+      for (BuildRule dep : rule.getDeps()) {
+        graph.addEdge(rule, dep);
+      }
+    }
+    return new ActionGraph(graph);
+  }
+}
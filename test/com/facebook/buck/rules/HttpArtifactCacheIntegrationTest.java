@@ -0,0 +1,216 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.rules;
+
+import static java.nio.charset.StandardCharsets.UTF_8;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.event.BuckEventBusFactory;
+import com.facebook.buck.testutil.FakeFileHashCache;
+import com.facebook.buck.util.ProjectFilesystem;
+import com.google.common.base.Joiner;
+import com.google.common.base.Splitter;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.hash.Hashing;
+import com.google.common.io.CharStreams;
+
+import org.eclipse.jetty.server.Request;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.server.ServerConnector;
+import org.eclipse.jetty.server.handler.AbstractHandler;
+import org.eclipse.jetty.util.log.JavaUtilLog;
+import org.eclipse.jetty.util.log.Log;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.ObjectOutputStream;
+import java.util.List;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+public class HttpArtifactCacheIntegrationTest {
+
+  private static final RuleKey KEY_A = new RuleKey(Strings.repeat("a", 40));
+  private static final RuleKey KEY_B = new RuleKey(Strings.repeat("b", 40));
+
+  @Rule
+  public TemporaryFolder tmp = new TemporaryFolder();
+
+  private Server server;
+  private FakeArtifactCacheServer handler;
+  private HttpArtifactCache cache;
+
+  @Before
+  public void startServer() throws Exception {
+    // Configured using a singleton. *furrfu*
+    Log.setLog(new JavaUtilLog());
+    server = new Server();
+    ServerConnector connector = new ServerConnector(server);
+    connector.setPort(0);
+    server.addConnector(connector);
+    handler = new FakeArtifactCacheServer();
+    server.setHandler(handler);
+    server.start();
+
+    cache = new HttpArtifactCache(
+        "localhost",
+        connector.getLocalPort(),
+        /* timeoutSeconds */ 10,
+        /* doStore */ false,
+        new ProjectFilesystem(tmp.getRoot().toPath()),
+        BuckEventBusFactory.newInstance(),
+        FakeFileHashCache.EMPTY_CACHE);
+  }
+
+  @After
+  public void stopServer() throws Exception {
+    cache.close();
+    server.stop();
+    server.join();
+  }
+
+  @Test
+  public void prefetchedMissesDoNotNeedARoundTrip() throws IOException {
+    handler.put(KEY_A, "contents of a");
+
+    cache.prefetch(ImmutableSet.of(KEY_A, KEY_B));
+    assertEquals(1, handler.containsRequests.get());
+
+    assertEquals(CacheResult.MISS, cache.fetchStreaming(KEY_B, new RecordingConsumer()));
+    assertEquals(0, handler.fetchRequests.get());
+
+    RecordingConsumer consumer = new RecordingConsumer();
+    assertEquals(CacheResult.HTTP_HIT, cache.fetchStreaming(KEY_A, consumer));
+    assertEquals("contents of a", consumer.contents.get());
+    assertEquals(1, handler.fetchRequests.get());
+  }
+
+  @Test
+  public void prefetchSplitsLargeRequestsIntoBatches() {
+    List<RuleKey> ruleKeys = Lists.newArrayList();
+    for (int i = 0; i <= HttpArtifactCache.MAX_KEYS_PER_BATCH; i++) {
+      ruleKeys.add(new RuleKey(Hashing.sha1().hashInt(i).toString()));
+    }
+
+    cache.prefetch(ImmutableSet.copyOf(ruleKeys));
+
+    assertEquals(2, handler.containsRequests.get());
+    assertEquals(CacheResult.MISS, cache.fetchStreaming(ruleKeys.get(0), new RecordingConsumer()));
+    assertEquals(0, handler.fetchRequests.get());
+  }
+
+  @Test
+  public void serverWithoutBatchedLookupsFallsBackToFetchingEachKey() throws IOException {
+    handler.supportsBatchedLookups = false;
+    handler.put(KEY_A, "contents of a");
+
+    cache.prefetch(ImmutableSet.of(KEY_A, KEY_B));
+    cache.prefetch(ImmutableSet.of(KEY_A, KEY_B));
+    assertEquals("Batched lookups should only be attempted once.",
+        1,
+        handler.containsRequests.get());
+
+    assertEquals(CacheResult.MISS, cache.fetchStreaming(KEY_B, new RecordingConsumer()));
+    assertEquals(CacheResult.HTTP_HIT, cache.fetchStreaming(KEY_A, new RecordingConsumer()));
+    assertEquals(2, handler.fetchRequests.get());
+  }
+
+  private static class RecordingConsumer implements ArtifactConsumer {
+    private final AtomicReference<String> contents = new AtomicReference<>();
+
+    @Override
+    public void consume(InputStream artifact) throws IOException {
+      contents.set(CharStreams.toString(new InputStreamReader(artifact, UTF_8)));
+    }
+  }
+
+  /**
+   * Stand-in for an HTTP cache server that implements both single-key fetches and batched
+   * lookups.
+   */
+  private static class FakeArtifactCacheServer extends AbstractHandler {
+
+    private static final String FETCH_PREFIX = "/artifact/key/";
+    private static final String CONTAINS = "/artifact/contains";
+
+    private final ConcurrentMap<String, byte[]> artifacts = Maps.newConcurrentMap();
+    private final AtomicInteger fetchRequests = new AtomicInteger();
+    private final AtomicInteger containsRequests = new AtomicInteger();
+    private volatile boolean supportsBatchedLookups = true;
+
+    public void put(RuleKey ruleKey, String contents) throws IOException {
+      byte[] data = contents.getBytes(UTF_8);
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      try (ObjectOutputStream objectStream = new ObjectOutputStream(output)) {
+        objectStream.writeObject(Hashing.sha1().hashBytes(data));
+      }
+      output.write(data);
+      artifacts.put(ruleKey.toString(), output.toByteArray());
+    }
+
+    @Override
+    public void handle(
+        String target,
+        Request request,
+        HttpServletRequest httpServletRequest,
+        HttpServletResponse httpServletResponse) throws IOException, ServletException {
+      request.setHandled(true);
+      if (target.startsWith(FETCH_PREFIX)) {
+        fetchRequests.incrementAndGet();
+        byte[] artifact = artifacts.get(target.substring(FETCH_PREFIX.length()));
+        if (artifact == null) {
+          httpServletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        httpServletResponse.getOutputStream().write(artifact);
+      } else if (target.equals(CONTAINS)) {
+        containsRequests.incrementAndGet();
+        if (!supportsBatchedLookups) {
+          httpServletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+          return;
+        }
+        List<String> present = Lists.newArrayList();
+        for (String key : Splitter.on('\n').omitEmptyStrings().split(
+            CharStreams.toString(httpServletRequest.getReader()))) {
+          if (artifacts.containsKey(key)) {
+            present.add(key);
+          }
+        }
+        httpServletResponse.setStatus(HttpServletResponse.SC_OK);
+        httpServletResponse.getOutputStream().write(Joiner.on('\n').join(present).getBytes(UTF_8));
+      } else {
+        httpServletResponse.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      }
+    }
+  }
+}
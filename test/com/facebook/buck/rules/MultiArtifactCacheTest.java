@@ -17,13 +17,23 @@
 package com.facebook.buck.rules;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.annotation.Nullable;
 
@@ -32,6 +42,9 @@ public class MultiArtifactCacheTest {
       new RuleKey("76b1c1beae69428db2d1befb31cf743ac8ce90df");
   private static final File dummyFile = new File("dummy");
 
+  @Rule
+  public TemporaryFolder tmp = new DebuggableTemporaryFolder();
+
   class DummyArtifactCache implements ArtifactCache {
     @Nullable public RuleKey storeKey;
 
@@ -44,6 +57,24 @@ public class MultiArtifactCacheTest {
       return ruleKey.equals(storeKey) ? CacheResult.LOCAL_KEY_UNCHANGED_HIT : CacheResult.MISS;
     }
 
+    @Override
+    public CacheResult fetchStreaming(RuleKey ruleKey, ArtifactConsumer consumer) {
+      if (!ruleKey.equals(storeKey)) {
+        return CacheResult.MISS;
+      }
+      try {
+        consumer.consume(new ByteArrayInputStream(new byte[0]));
+      } catch (IOException e) {
+        return CacheResult.MISS;
+      }
+      return CacheResult.LOCAL_KEY_UNCHANGED_HIT;
+    }
+
+    @Override
+    public void prefetch(ImmutableSet<RuleKey> ruleKeys) {
+      // Nothing to look up - do nothing.
+    }
+
     @Override
     public void store(RuleKey ruleKey, File output) {
       storeKey = ruleKey;
@@ -106,4 +137,92 @@ public class MultiArtifactCacheTest {
 
     multiArtifactCache.close();
   }
+
+  @Test
+  public void testStreamingFetchWritesBackToEarlierCaches()
+      throws InterruptedException, IOException {
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = new MultiArtifactCache(ImmutableList.<ArtifactCache>of(
+        dummyArtifactCache1,
+        dummyArtifactCache2));
+    dummyArtifactCache2.store(dummyRuleKey, dummyFile);
+
+    final AtomicInteger consumed = new AtomicInteger();
+    ArtifactConsumer consumer = new ArtifactConsumer() {
+      @Override
+      public void consume(InputStream artifact) {
+        consumed.incrementAndGet();
+      }
+    };
+    assertEquals(
+        CacheResult.LOCAL_KEY_UNCHANGED_HIT,
+        multiArtifactCache.fetchStreaming(dummyRuleKey, consumer));
+    assertEquals(1, consumed.get());
+    assertEquals(
+        "A hit in a later cache should be written back to the earlier ones.",
+        dummyRuleKey,
+        dummyArtifactCache1.storeKey);
+
+    multiArtifactCache.close();
+  }
+
+  @Test
+  public void testConcurrentFetchWritesBackToEarlierCaches()
+      throws InterruptedException, IOException {
+    DummyArtifactCache dummyArtifactCache1 = new DummyArtifactCache();
+    DummyArtifactCache dummyArtifactCache2 = new DummyArtifactCache();
+    MultiArtifactCache multiArtifactCache = MultiArtifactCache.createConcurrent(
+        ImmutableList.<ArtifactCache>of(dummyArtifactCache1, dummyArtifactCache2),
+        /* gracePeriodMillis */ 0,
+        /* numWriteBackThreads */ 1);
+    File output = tmp.newFile("output.zip");
+
+    assertEquals("Fetch should fail",
+        CacheResult.MISS,
+        multiArtifactCache.fetch(dummyRuleKey, output));
+
+    dummyArtifactCache2.store(dummyRuleKey, output);
+    assertEquals("Fetch should succeed from the second cache",
+        CacheResult.LOCAL_KEY_UNCHANGED_HIT,
+        multiArtifactCache.fetch(dummyRuleKey, output));
+    assertTrue(output.exists());
+
+    // Closing waits for pending write-backs.
+    multiArtifactCache.close();
+    assertEquals("The hit should have been written back to the first cache",
+        dummyRuleKey,
+        dummyArtifactCache1.storeKey);
+  }
+
+  @Test
+  public void testConcurrentFetchDoesNotWaitForSlowCache()
+      throws InterruptedException, IOException {
+    final CountDownLatch slowFetchInterrupted = new CountDownLatch(1);
+    ArtifactCache slowArtifactCache = new DummyArtifactCache() {
+      @Override
+      public CacheResult fetch(RuleKey ruleKey, File output) {
+        try {
+          Thread.sleep(TimeUnit.MINUTES.toMillis(1));
+        } catch (InterruptedException e) {
+          slowFetchInterrupted.countDown();
+        }
+        return CacheResult.MISS;
+      }
+    };
+    DummyArtifactCache fastArtifactCache = new DummyArtifactCache();
+    fastArtifactCache.store(dummyRuleKey, dummyFile);
+    MultiArtifactCache multiArtifactCache = MultiArtifactCache.createConcurrent(
+        ImmutableList.of(slowArtifactCache, fastArtifactCache),
+        /* gracePeriodMillis */ 10,
+        /* numWriteBackThreads */ 1);
+
+    assertEquals(
+        CacheResult.LOCAL_KEY_UNCHANGED_HIT,
+        multiArtifactCache.fetch(dummyRuleKey, tmp.newFile("output.zip")));
+    assertTrue("The losing fetch should have been cancelled",
+        slowFetchInterrupted.await(10, TimeUnit.SECONDS));
+
+    multiArtifactCache.close();
+  }
 }
@@ -230,6 +230,14 @@ public class ExportFileTest {
               ListenableFuture<List<T>> allBuiltDeps, FutureCallback<List<T>> futureCallback) {
             // Do nothing.
           }
+
+          @Override
+          public <T> void addCallback(
+              ListenableFuture<List<T>> allBuiltDeps,
+              FutureCallback<List<T>> futureCallback,
+              long priority) {
+            // Do nothing.
+          }
         })
         .build();
   }
@@ -0,0 +1,76 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.step;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+public class ParallelStepTest {
+
+  @Test
+  public void stepsRunAtTheSameTime() throws InterruptedException {
+    // Each step waits for the other to start, so running them one after the other would time out.
+    final CountDownLatch started = new CountDownLatch(2);
+    Step waitForOther = new AbstractExecutionStep("wait") {
+      @Override
+      public int execute(ExecutionContext context) {
+        started.countDown();
+        try {
+          return started.await(5, TimeUnit.SECONDS) ? 0 : 1;
+        } catch (InterruptedException e) {
+          return 1;
+        }
+      }
+    };
+
+    ParallelStep step = new ParallelStep(ImmutableList.of(waitForOther, waitForOther));
+    ExecutionContext context = TestExecutionContext.newInstance();
+    assertEquals(0, step.execute(context));
+    assertEquals("wait", step.getShortName());
+    assertEquals("wait & wait", step.getDescription(context));
+  }
+
+  @Test
+  public void failureIsReportedOnceEveryStepHasFinished() throws InterruptedException {
+    final AtomicBoolean slowStepFinished = new AtomicBoolean(false);
+    Step slow = new AbstractExecutionStep("slow") {
+      @Override
+      public int execute(ExecutionContext context) {
+        try {
+          Thread.sleep(200);
+        } catch (InterruptedException e) {
+          return 1;
+        }
+        slowStepFinished.set(true);
+        return 0;
+      }
+    };
+
+    ParallelStep step = new ParallelStep(
+        ImmutableList.of(slow, new FakeStep("fail", "fail", 37)));
+    assertEquals(37, step.execute(TestExecutionContext.newInstance()));
+    assertTrue(slowStepFinished.get());
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util;
+
+import static com.facebook.buck.testutil.WatchEvents.createOverflowEvent;
+import static com.facebook.buck.testutil.WatchEvents.createPathEvent;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import com.facebook.buck.testutil.integration.DebuggableTemporaryFolder;
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.attribute.FileTime;
+
+public class PersistentFileHashCacheTest {
+
+  private static final Path INDEX = Paths.get("buck-out/file_hashes");
+
+  @Rule
+  public DebuggableTemporaryFolder tmp = new DebuggableTemporaryFolder();
+
+  private ProjectFilesystem filesystem;
+
+  @Before
+  public void setUp() {
+    filesystem = new ProjectFilesystem(
+        tmp.getRoot().toPath(),
+        ImmutableSet.of(BuckConstant.BUCK_OUTPUT_PATH));
+  }
+
+  @Test
+  public void hashesAreReusedAfterReload() throws IOException {
+    Path path = writeOldFile("SomeClass.java", "class SomeClass {}");
+
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    HashCode expected = sha1("class SomeClass {}");
+    assertEquals(expected, cache.get(path));
+    PersistentFileHashCache.Stats stats = cache.getAndResetStats();
+    assertEquals(0, stats.hits);
+    assertEquals(1, stats.misses);
+    cache.save();
+
+    PersistentFileHashCache reloaded = PersistentFileHashCache.load(filesystem, INDEX);
+    assertFalse("Loading the index should not populate the in-memory layer.",
+        reloaded.contains(path));
+    assertEquals(expected, reloaded.get(path));
+    stats = reloaded.getAndResetStats();
+    assertEquals(1, stats.hits);
+    assertEquals(0, stats.misses);
+    assertEquals(0, stats.rehashes);
+  }
+
+  @Test
+  public void fileIsRehashedWhenItsMetadataChanges() throws IOException {
+    Path path = writeOldFile("SomeClass.java", "class SomeClass {}");
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    cache.get(path);
+    cache.save();
+
+    writeOldFile("SomeClass.java", "class SomeOtherClass {}");
+    PersistentFileHashCache reloaded = PersistentFileHashCache.load(filesystem, INDEX);
+    assertEquals(sha1("class SomeOtherClass {}"), reloaded.get(path));
+    assertEquals(1, reloaded.getAndResetStats().rehashes);
+  }
+
+  @Test
+  public void recentlyModifiedFilesAreNotPersisted() throws IOException {
+    Path path = Paths.get("Fresh.java");
+    Files.write(filesystem.resolve(path), "class Fresh {}".getBytes(Charsets.UTF_8));
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    cache.get(path);
+    cache.save();
+
+    assertFalse(filesystem.exists(INDEX));
+  }
+
+  @Test
+  public void corruptIndexIsIgnored() throws IOException {
+    Path path = writeOldFile("SomeClass.java", "class SomeClass {}");
+    filesystem.createParentDirs(INDEX);
+    filesystem.writeContentsToPath("garbage", INDEX);
+
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    assertEquals(sha1("class SomeClass {}"), cache.get(path));
+    assertEquals(1, cache.getAndResetStats().misses);
+  }
+
+  @Test
+  public void overflowEventOnlyClearsInMemoryLayer() throws IOException {
+    Path path = writeOldFile("SomeClass.java", "class SomeClass {}");
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    cache.get(path);
+    assertTrue(cache.contains(path));
+    cache.getAndResetStats();
+
+    cache.onFileSystemChange(createOverflowEvent());
+    assertFalse(cache.contains(path));
+    cache.get(path);
+    assertEquals(1, cache.getAndResetStats().hits);
+  }
+
+  @Test
+  public void whenNotifiedOfChangeEventCacheEntryIsRemoved() throws IOException {
+    Path path = writeOldFile("SomeClass.java", "class SomeClass {}");
+    PersistentFileHashCache cache = PersistentFileHashCache.load(filesystem, INDEX);
+    cache.get(path);
+    cache.onFileSystemChange(createPathEvent(path, StandardWatchEventKinds.ENTRY_MODIFY));
+    assertFalse(cache.contains(path));
+  }
+
+  private Path writeOldFile(String name, String contents) throws IOException {
+    Path path = Paths.get(name);
+    Path absolutePath = filesystem.resolve(path);
+    Files.write(absolutePath, contents.getBytes(Charsets.UTF_8));
+    long oldEnough = System.currentTimeMillis() - 2 * PersistentFileHashCache.RACY_WINDOW_MILLIS;
+    Files.setLastModifiedTime(absolutePath, FileTime.fromMillis(oldEnough));
+    return path;
+  }
+
+  private static HashCode sha1(String contents) {
+    return Hashing.sha1().hashString(contents, Charsets.UTF_8);
+  }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+public class PriorityThreadPoolExecutorTest {
+
+  @Test
+  public void queuedTasksRunByPriorityThenInTheOrderTheyWereQueued()
+      throws InterruptedException {
+    PriorityThreadPoolExecutor executor =
+        new PriorityThreadPoolExecutor(Executors.defaultThreadFactory(), 1);
+    final List<String> order = Collections.synchronizedList(Lists.<String>newArrayList());
+
+    // Keep the only thread busy so that every other task has to wait in the queue.
+    final CountDownLatch blocker = new CountDownLatch(1);
+    executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              blocker.await();
+            } catch (InterruptedException e) {
+              Thread.currentThread().interrupt();
+            }
+          }
+        });
+
+    executor.execute(createTask("low", order), 1);
+    executor.execute(createTask("default", order));
+    executor.withPriority(10).execute(createTask("high", order));
+    executor.execute(createTask("second low", order), 1);
+    executor.execute(createTask("second high", order), 10);
+
+    blocker.countDown();
+    executor.shutdown();
+    assertTrue(executor.awaitTermination(10, TimeUnit.SECONDS));
+    assertEquals(
+        ImmutableList.of("high", "second high", "low", "second low", "default"),
+        order);
+  }
+
+  private static Runnable createTask(final String name, final List<String> order) {
+    return new Runnable() {
+      @Override
+      public void run() {
+        order.add(name);
+      }
+    };
+  }
+}
@@ -0,0 +1,112 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.util.concurrent;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import com.google.common.collect.Lists;
+
+import org.junit.Test;
+
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+public class RingBufferTest {
+
+  @Test
+  public void elementsComeOutInOrderAndOfferFailsWhenFull() {
+    RingBuffer<Integer> buffer = new RingBuffer<>(4);
+    assertNull(buffer.poll());
+
+    // Go around the buffer more than once.
+    for (int lap = 0; lap < 3; lap++) {
+      for (int i = 0; i < 4; i++) {
+        assertTrue(buffer.offer(i));
+      }
+      assertFalse(buffer.offer(4));
+      assertEquals(4, buffer.size());
+
+      for (int i = 0; i < 4; i++) {
+        assertEquals(Integer.valueOf(i), buffer.poll());
+      }
+      assertNull(buffer.poll());
+      assertTrue(buffer.isEmpty());
+    }
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void capacityMustBeAPowerOfTwo() {
+    new RingBuffer<Integer>(3);
+  }
+
+  @Test
+  public void concurrentProducersDoNotLoseOrReorderElements() throws InterruptedException {
+    final int producers = 4;
+    final int elementsPerProducer = 10000;
+    final RingBuffer<Integer> buffer = new RingBuffer<>(64);
+    final CountDownLatch start = new CountDownLatch(1);
+
+    List<Thread> threads = Lists.newArrayList();
+    for (int p = 0; p < producers; p++) {
+      final int producer = p;
+      Thread thread = new Thread() {
+        @Override
+        public void run() {
+          try {
+            start.await();
+          } catch (InterruptedException e) {
+            return;
+          }
+          for (int i = 0; i < elementsPerProducer; i++) {
+            while (!buffer.offer(producer * elementsPerProducer + i)) {
+              Thread.yield();
+            }
+          }
+        }
+      };
+      thread.start();
+      threads.add(thread);
+    }
+    start.countDown();
+
+    int[] lastSeen = new int[producers];
+    for (int p = 0; p < producers; p++) {
+      lastSeen[p] = -1;
+    }
+    int received = 0;
+    while (received < producers * elementsPerProducer) {
+      Integer element = buffer.poll();
+      if (element == null) {
+        Thread.yield();
+        continue;
+      }
+      int producer = element / elementsPerProducer;
+      int index = element % elementsPerProducer;
+      assertEquals("Elements from one producer must stay in order.", lastSeen[producer] + 1, index);
+      lastSeen[producer] = index;
+      received++;
+    }
+
+    for (Thread thread : threads) {
+      thread.join();
+    }
+    assertNull(buffer.poll());
+  }
+}
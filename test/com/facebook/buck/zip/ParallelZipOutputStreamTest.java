@@ -0,0 +1,193 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.APPEND_TO_ZIP;
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.OVERWRITE_EXISTING;
+import static com.facebook.buck.zip.ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION;
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.timing.FakeClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.hash.Hashing;
+import com.google.common.io.ByteStreams;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Deflater;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipException;
+import java.util.zip.ZipInputStream;
+
+public class ParallelZipOutputStreamTest {
+
+  private static final Clock CLOCK = new FakeClock(TimeUnit.DAYS.toNanos(365 * 40));
+
+  private ForkJoinPool pool;
+
+  @Before
+  public void createPool() {
+    pool = new ForkJoinPool(4);
+  }
+
+  @After
+  public void shutDownPool() {
+    pool.shutdownNow();
+  }
+
+  @Test
+  public void writesTheSameBytesAsTheAppendingStream() throws IOException {
+    List<TestEntry> entries = createEntries(/* withDuplicates */ false);
+
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    writeEntries(new AppendingZipOutputStream(CLOCK, serial, true), entries);
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    writeEntries(new ParallelZipOutputStream(pool, CLOCK, parallel, THROW_EXCEPTION), entries);
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    assertEquals(entries.size(), readEntries(parallel.toByteArray()).size());
+  }
+
+  @Test
+  public void appendsDuplicatesInTheSameWayAsTheAppendingStream() throws IOException {
+    List<TestEntry> entries = createEntries(/* withDuplicates */ true);
+
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    writeEntries(new AppendingZipOutputStream(CLOCK, serial, false), entries);
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    writeEntries(new ParallelZipOutputStream(pool, CLOCK, parallel, APPEND_TO_ZIP), entries);
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+  }
+
+  @Test
+  public void overwritesDuplicatesInTheSameWayAsTheOverwritingStream() throws IOException {
+    List<TestEntry> entries = createEntries(/* withDuplicates */ true);
+
+    ByteArrayOutputStream serial = new ByteArrayOutputStream();
+    writeEntries(new OverwritingZipOutputStream(CLOCK, serial), entries);
+    ByteArrayOutputStream parallel = new ByteArrayOutputStream();
+    writeEntries(new ParallelZipOutputStream(pool, CLOCK, parallel, OVERWRITE_EXISTING), entries);
+
+    assertArrayEquals(serial.toByteArray(), parallel.toByteArray());
+    List<String> names = readEntries(parallel.toByteArray());
+    assertEquals(entries.size() - 1, names.size());
+    assertEquals("dir/", names.get(0));
+  }
+
+  @Test(expected = ZipException.class)
+  public void shouldThrowAnExceptionForDuplicateEntriesByDefault() throws IOException {
+    try (CustomZipOutputStream out = new ParallelZipOutputStream(
+        pool,
+        CLOCK,
+        new ByteArrayOutputStream(),
+        THROW_EXCEPTION)) {
+      out.putNextEntry(new ZipEntry("example.txt"));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("example.txt"));
+    }
+  }
+
+  private List<TestEntry> createEntries(boolean withDuplicates) {
+    Random random = new Random(42);
+    ImmutableList.Builder<TestEntry> entries = ImmutableList.builder();
+    entries.add(new TestEntry("dir/", new byte[0], ZipStep.DEFAULT_COMPRESSION_LEVEL));
+    for (int i = 0; i < 50; i++) {
+      // A mix of small and large entries, some of which compress well and some not at all.
+      int size = i % 10 == 0 ? 300 * 1024 + random.nextInt(1024) : random.nextInt(4096);
+      byte[] bytes = new byte[size];
+      if (i % 3 == 0) {
+        random.nextBytes(bytes);
+      } else {
+        for (int j = 0; j < bytes.length; j++) {
+          bytes[j] = (byte) ('a' + random.nextInt(4));
+        }
+      }
+      int level;
+      if (i % 7 == 0) {
+        level = Deflater.NO_COMPRESSION;
+      } else if (i % 4 == 0) {
+        level = Deflater.BEST_COMPRESSION;
+      } else {
+        level = ZipStep.DEFAULT_COMPRESSION_LEVEL;
+      }
+      entries.add(new TestEntry("dir/file" + i, bytes, level));
+    }
+    if (withDuplicates) {
+      entries.add(new TestEntry(
+          "dir/file1",
+          "replacement".getBytes(StandardCharsets.UTF_8),
+          ZipStep.DEFAULT_COMPRESSION_LEVEL));
+    }
+    return entries.build();
+  }
+
+  private void writeEntries(CustomZipOutputStream out, List<TestEntry> entries)
+      throws IOException {
+    try {
+      for (TestEntry testEntry : entries) {
+        CustomZipEntry entry = new CustomZipEntry(testEntry.name);
+        entry.setCompressionLevel(testEntry.level);
+        if (entry.getMethod() == ZipEntry.STORED) {
+          entry.setSize(testEntry.bytes.length);
+          entry.setCompressedSize(testEntry.bytes.length);
+          entry.setCrc(Hashing.crc32().hashBytes(testEntry.bytes).padToLong());
+        }
+        out.putNextEntry(entry);
+        ByteStreams.copy(new ByteArrayInputStream(testEntry.bytes), out);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private List<String> readEntries(byte[] zip) throws IOException {
+    ImmutableList.Builder<String> names = ImmutableList.builder();
+    try (ZipInputStream in = new ZipInputStream(new ByteArrayInputStream(zip))) {
+      for (ZipEntry entry = in.getNextEntry(); entry != null; entry = in.getNextEntry()) {
+        names.add(entry.getName());
+        ByteStreams.toByteArray(in);
+      }
+    }
+    return names.build();
+  }
+
+  private static class TestEntry {
+    private final String name;
+    private final byte[] bytes;
+    private final int level;
+
+    public TestEntry(String name, byte[] bytes, int level) {
+      this.name = name;
+      this.bytes = bytes;
+      this.level = level;
+    }
+  }
+}
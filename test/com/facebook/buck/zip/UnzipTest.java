@@ -16,8 +16,11 @@
 
 package com.facebook.buck.zip;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 import com.facebook.buck.testutil.Zip;
 import com.facebook.buck.util.MorePosixFilePermissions;
@@ -30,11 +33,15 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.TemporaryFolder;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.Arrays;
+import java.util.Random;
 import java.util.zip.ZipEntry;
 
 public class UnzipTest {
@@ -114,4 +121,106 @@ public class UnzipTest {
         result);
 
   }
+
+  @Test
+  public void testExtractZipStreamPreservesContentsAndExecutePermissions() throws IOException {
+    // Write the archive the same way artifacts are written for the cache.
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(zipFile)) {
+      CustomZipEntry exe = new CustomZipEntry("bin/test.exe");
+      exe.setExternalAttributes(MorePosixFilePermissions.toMode(
+          PosixFilePermissions.fromString("r-x------")) << 16);
+      zip.putNextEntry(exe);
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeEntry();
+
+      zip.putNextEntry(new CustomZipEntry("subdir/2.bin"));
+      zip.write(DUMMY_FILE_CONTENTS);
+      zip.closeEntry();
+    }
+
+    File extractFolder = tmpFolder.newFolder();
+    ImmutableList<Path> result;
+    try (FileInputStream input = new FileInputStream(zipFile)) {
+      result = Unzip.extractZipStream(
+          input,
+          extractFolder.toPath().toAbsolutePath(),
+          /* overwriteExistingFiles */ true);
+      assertEquals("The whole stream should be consumed.", -1, input.read());
+    }
+
+    File exe = new File(extractFolder, "bin/test.exe");
+    File bin2 = new File(extractFolder, "subdir/2.bin");
+    assertTrue(exe.canExecute());
+    assertFalse(bin2.canExecute());
+    assertArrayEquals(DUMMY_FILE_CONTENTS, Files.readAllBytes(bin2.toPath()));
+    assertEquals(
+        ImmutableList.of(
+            extractFolder.toPath().toAbsolutePath().resolve("bin/test.exe"),
+            extractFolder.toPath().toAbsolutePath().resolve("subdir/2.bin")),
+        result);
+  }
+
+  @Test
+  public void testExtractZipStreamFindsCentralDirectoryAfterLargeEntries() throws IOException {
+    // Entries larger than the tail that is remembered while reading, so that it wraps around.
+    byte[] largeContents = new byte[200 * 1024 + 17];
+    new Random(0).nextBytes(largeContents);
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(zipFile)) {
+      zip.putNextEntry(new CustomZipEntry("large.bin"));
+      zip.write(largeContents);
+      zip.closeEntry();
+
+      CustomZipEntry exe = new CustomZipEntry("test.exe");
+      exe.setExternalAttributes(MorePosixFilePermissions.toMode(
+          PosixFilePermissions.fromString("r-x------")) << 16);
+      zip.putNextEntry(exe);
+      zip.write(largeContents, 0, 70 * 1024);
+      zip.closeEntry();
+    }
+
+    File extractFolder = tmpFolder.newFolder();
+    try (FileInputStream input = new FileInputStream(zipFile)) {
+      Unzip.extractZipStream(
+          input,
+          extractFolder.toPath().toAbsolutePath(),
+          /* overwriteExistingFiles */ true);
+    }
+
+    assertArrayEquals(
+        largeContents,
+        Files.readAllBytes(new File(extractFolder, "large.bin").toPath()));
+    assertTrue(new File(extractFolder, "test.exe").canExecute());
+  }
+
+  @Test
+  public void testExtractZipStreamDeletesWrittenFilesWhenTheStreamIsTruncated()
+      throws IOException {
+    byte[] contents = new byte[64 * 1024];
+    new Random(0).nextBytes(contents);
+    try (CustomZipOutputStream zip = ZipOutputStreams.newOutputStream(zipFile)) {
+      zip.putNextEntry(new CustomZipEntry("1.bin"));
+      zip.write(contents);
+      zip.closeEntry();
+
+      zip.putNextEntry(new CustomZipEntry("subdir/2.bin"));
+      zip.write(contents);
+      zip.closeEntry();
+    }
+    byte[] zipBytes = Files.readAllBytes(zipFile.toPath());
+
+    // Cut the archive off part of the way through the second entry.
+    File extractFolder = tmpFolder.newFolder();
+    try {
+      Unzip.extractZipStream(
+          new ByteArrayInputStream(Arrays.copyOf(zipBytes, zipBytes.length * 3 / 4)),
+          extractFolder.toPath().toAbsolutePath(),
+          /* overwriteExistingFiles */ true);
+      fail("Extracting a truncated archive should fail.");
+    } catch (IOException e) {
+      // Expected.
+    }
+
+    assertFalse(new File(extractFolder, "1.bin").exists());
+    assertFalse(new File(extractFolder, "subdir/2.bin").exists());
+  }
 }
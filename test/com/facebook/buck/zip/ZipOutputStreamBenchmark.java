@@ -0,0 +1,148 @@
+/*
+ * Copyright 2014-present Facebook, Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may
+ * not use this file except in compliance with the License. You may obtain
+ * a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.facebook.buck.zip;
+
+import com.facebook.buck.timing.Clock;
+import com.facebook.buck.timing.FakeClock;
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteStreams;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares how long each {@link CustomZipOutputStream} takes to zip the same files, and checks
+ * that they all produce the same zip. This is not a test: run it with the test classpath, passing
+ * the directories whose files should be zipped. By default it zips the {@code src} directory of
+ * the working directory.
+ * <p>
+ * The files are read into memory up front and the zips are written to memory, so the numbers cover
+ * compressing the entries and assembling the zip, but not disk IO.
+ */
+public class ZipOutputStreamBenchmark {
+
+  private static final int ITERATIONS = 10;
+  private static final Clock CLOCK = new FakeClock(TimeUnit.DAYS.toNanos(365 * 40));
+
+  private ZipOutputStreamBenchmark() {}
+
+  public static void main(String... args) throws IOException {
+    ImmutableList.Builder<Entry> builder = ImmutableList.builder();
+    for (String arg : args.length == 0 ? new String[] {"src"} : args) {
+      readFiles(Paths.get(arg), builder);
+    }
+    ImmutableList<Entry> entries = builder.build();
+    long totalBytes = 0;
+    for (Entry entry : entries) {
+      totalBytes += entry.bytes.length;
+    }
+    System.out.printf("Zipping %d files, %d KB.%n", entries.size(), totalBytes / 1024);
+
+    long fastestSerial = Long.MAX_VALUE;
+    long fastestOverwriting = Long.MAX_VALUE;
+    long fastestParallel = Long.MAX_VALUE;
+    byte[] expected = null;
+    for (int i = 0; i < ITERATIONS; i++) {
+      ByteArrayOutputStream out = new ByteArrayOutputStream();
+      long start = System.nanoTime();
+      write(new AppendingZipOutputStream(CLOCK, out, true), entries);
+      fastestSerial = Math.min(fastestSerial, System.nanoTime() - start);
+      expected = out.toByteArray();
+
+      out = new ByteArrayOutputStream();
+      start = System.nanoTime();
+      write(new OverwritingZipOutputStream(CLOCK, out), entries);
+      fastestOverwriting = Math.min(fastestOverwriting, System.nanoTime() - start);
+      checkSame(expected, out, "overwriting");
+
+      out = new ByteArrayOutputStream();
+      start = System.nanoTime();
+      write(
+          new ParallelZipOutputStream(
+              CLOCK,
+              out,
+              ZipOutputStreams.HandleDuplicates.THROW_EXCEPTION),
+          entries);
+      fastestParallel = Math.min(fastestParallel, System.nanoTime() - start);
+      checkSame(expected, out, "parallel");
+    }
+
+    print("appending", fastestSerial);
+    print("overwriting", fastestOverwriting);
+    print("parallel", fastestParallel);
+  }
+
+  private static void readFiles(Path root, final ImmutableList.Builder<Entry> entries)
+      throws IOException {
+    final Path base = root.toAbsolutePath().normalize();
+    Files.walkFileTree(
+        base,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult visitFile(Path file, BasicFileAttributes attrs)
+              throws IOException {
+            entries.add(new Entry(base.relativize(file).toString(), Files.readAllBytes(file)));
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  private static void write(CustomZipOutputStream zip, List<Entry> entries) throws IOException {
+    try (OutputStream out = zip) {
+      for (Entry entry : entries) {
+        zip.putNextEntry(new CustomZipEntry(entry.name));
+        ByteStreams.copy(new ByteArrayInputStream(entry.bytes), out);
+        zip.closeEntry();
+      }
+    }
+  }
+
+  private static void checkSame(byte[] expected, ByteArrayOutputStream actual, String name) {
+    if (!Arrays.equals(expected, actual.toByteArray())) {
+      throw new IllegalStateException("The " + name + " stream wrote a different zip.");
+    }
+  }
+
+  private static void print(String name, long nanos) {
+    System.out.printf(
+        "%-12s %6d ms (fastest of %d)%n",
+        name,
+        TimeUnit.NANOSECONDS.toMillis(nanos),
+        ITERATIONS);
+  }
+
+  private static class Entry {
+    private final String name;
+    private final byte[] bytes;
+
+    public Entry(String name, byte[] bytes) {
+      this.name = name;
+      this.bytes = bytes;
+    }
+  }
+}